@@ -0,0 +1,161 @@
+package com.telink.bluetooth;
+
+/**
+ * 在JVM上验证命令队列的优先级,防饿死和合并,直接运行main即可
+ */
+public class CommandQueueTest {
+
+    private static final Command.Callback CALLBACK_A = new NullCallback();
+    private static final Command.Callback CALLBACK_B = new NullCallback();
+
+    public static void main(String[] args) throws InterruptedException {
+        test1();
+        test2();
+        test3();
+        test4();
+        System.out.println("OK");
+    }
+
+    /**
+     * 先发送优先级高的通道,同一通道内先进先出,超出范围的优先级归到两端的通道
+     */
+    private static void test1() {
+        CommandQueue queue = new CommandQueue();
+
+        CommandContext bulk = add(queue, Command.PRIORITY_BULK, 0, CALLBACK_A);
+        CommandContext status = add(queue, Command.PRIORITY_STATUS, 0, CALLBACK_A);
+        CommandContext control1 = add(queue, Command.PRIORITY_CONTROL, 0, CALLBACK_A);
+        CommandContext control2 = add(queue, -1, 0, CALLBACK_A);
+        CommandContext login = add(queue, Command.PRIORITY_LOGIN, 0, CALLBACK_A);
+        CommandContext overflow = add(queue, 10, 0, CALLBACK_A);
+
+        check(queue.size() == 6, "size");
+        check(queue.getDepth(Command.PRIORITY_CONTROL) == 2, "clamp low");
+        check(queue.getDepth(Command.PRIORITY_BULK) == 2, "clamp high");
+        check(queue.getDepth(-1) == 2 && queue.getDepth(10) == 2, "clamp depth");
+        check(queue.getEnqueuedCount(10) == 2 && queue.getCoalescedCount(-1) == 0, "clamp counters");
+        check(queue.getAverageWaitTime(10) == 0 && queue.getMaxWaitTime(-1) == 0, "clamp wait");
+
+        CommandContext[] expected = {control1, control2, login, status, bulk, overflow};
+        for (CommandContext commandContext : expected) {
+            check(queue.peek() == commandContext, "order " + commandContext.command.priority);
+            check(queue.remove(commandContext), "remove");
+        }
+
+        check(queue.isEmpty() && queue.peek() == null, "empty");
+        check(!queue.remove(bulk), "remove twice");
+    }
+
+    /**
+     * 低优先级通道等待超过starvationTime时提前发送一次,之后重新计时
+     */
+    private static void test2() throws InterruptedException {
+        CommandQueue queue = new CommandQueue();
+        queue.setStarvationTime(50);
+
+        CommandContext bulk1 = add(queue, Command.PRIORITY_BULK, 0, CALLBACK_A);
+        CommandContext bulk2 = add(queue, Command.PRIORITY_BULK, 0, CALLBACK_A);
+        for (int i = 0; i < 4; i++)
+            add(queue, Command.PRIORITY_CONTROL, 0, CALLBACK_A);
+
+        check(queue.peek().command.priority == Command.PRIORITY_CONTROL, "not starved");
+        check(queue.remove(queue.peek()), "remove control");
+
+        Thread.sleep(80);
+        check(queue.peek() == bulk1, "starved");
+        check(queue.remove(bulk1), "remove starved");
+
+        // 刚被服务过,控制命令继续优先
+        check(queue.peek().command.priority == Command.PRIORITY_CONTROL, "served");
+        check(queue.remove(queue.peek()), "remove control");
+
+        Thread.sleep(80);
+        check(queue.peek() == bulk2, "starved again");
+        check(queue.getMaxWaitTime(Command.PRIORITY_BULK) >= 50, "max wait");
+    }
+
+    /**
+     * 相同合并键的命令替换队列中未发送的命令,保持位置,回调换成新的
+     */
+    private static void test3() {
+        CommandQueue queue = new CommandQueue();
+
+        CommandContext first = add(queue, Command.PRIORITY_CONTROL, 0x0100D201, CALLBACK_A);
+        CommandContext other = add(queue, Command.PRIORITY_CONTROL, 0x0100D202, CALLBACK_A);
+
+        Command latest = command(Command.PRIORITY_CONTROL, 0x0100D201);
+        check(queue.add(CommandContext.obtain(CALLBACK_B, latest)), "coalesced");
+
+        check(queue.size() == 2, "size");
+        check(queue.getCoalescedCount(Command.PRIORITY_CONTROL) == 1, "coalesced count");
+        check(queue.getEnqueuedCount(Command.PRIORITY_CONTROL) == 2, "enqueued count");
+        check(queue.peek() == first, "position");
+        check(first.command == latest && first.callback == CALLBACK_B, "replaced");
+
+        // 不同通道的相同合并键互不影响
+        check(!queue.add(CommandContext.obtain(CALLBACK_A, command(Command.PRIORITY_BULK, 0x0100D201))), "other lane");
+        check(queue.size() == 3, "other lane size");
+
+        check(queue.remove(first), "remove");
+        check(queue.peek() == other, "next");
+    }
+
+    /**
+     * 合并键为0的命令不合并,已经取出的命令不再被替换
+     */
+    private static void test4() {
+        CommandQueue queue = new CommandQueue();
+
+        add(queue, Command.PRIORITY_STATUS, 0, CALLBACK_A);
+        add(queue, Command.PRIORITY_STATUS, 0, CALLBACK_A);
+        check(queue.getDepth(Command.PRIORITY_STATUS) == 2, "key 0");
+        check(queue.getCoalescedCount(Command.PRIORITY_STATUS) == 0, "key 0 count");
+
+        queue.clear();
+        CommandContext first = add(queue, Command.PRIORITY_STATUS, 0x55, CALLBACK_A);
+        check(queue.remove(first), "remove");
+
+        CommandContext second = add(queue, Command.PRIORITY_STATUS, 0x55, CALLBACK_B);
+        check(queue.size() == 1 && queue.peek() == second, "after remove");
+        check(queue.getCoalescedCount(Command.PRIORITY_STATUS) == 0, "after remove count");
+
+        queue.clear();
+        check(queue.isEmpty(), "clear");
+        add(queue, Command.PRIORITY_STATUS, 0x55, CALLBACK_A);
+        check(queue.size() == 1, "after clear");
+    }
+
+    private static CommandContext add(CommandQueue queue, int priority, int coalesceKey, Command.Callback callback) {
+        CommandContext commandContext = CommandContext.obtain(callback, command(priority, coalesceKey));
+        check(!queue.add(commandContext), "add");
+        return commandContext;
+    }
+
+    private static Command command(int priority, int coalesceKey) {
+        Command command = Command.newInstance();
+        command.priority = priority;
+        command.coalesceKey = coalesceKey;
+        return command;
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    private static final class NullCallback implements Command.Callback {
+
+        @Override
+        public void success(Peripheral peripheral, Command command, Object obj) {
+        }
+
+        @Override
+        public void error(Peripheral peripheral, Command command, String errorMsg) {
+        }
+
+        @Override
+        public boolean timeout(Peripheral peripheral, Command command) {
+            return false;
+        }
+    }
+}
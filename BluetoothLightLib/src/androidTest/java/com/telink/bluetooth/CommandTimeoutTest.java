@@ -0,0 +1,190 @@
+package com.telink.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 通过假的GattTransport验证命令超时后迟到的回调不会记到下一个命令上,直接运行main即可
+ */
+public class CommandTimeoutTest {
+
+    private static final int TIMEOUT = 100;
+
+    public static void main(String[] args) throws InterruptedException {
+        test1();
+        test2();
+        test3();
+        test4();
+        test5();
+        System.out.println("OK");
+    }
+
+    /**
+     * A超时后B写入,A迟到的写回调忽略,B的回调完成B
+     */
+    private static void test1() throws InterruptedException {
+        WriteWindowTest.FakeTransport transport = new WriteWindowTest.FakeTransport(8);
+        Peripheral peripheral = WriteWindowTest.connect(transport);
+        Recorder recorder = new Recorder(false);
+
+        peripheral.sendCommand(recorder, newCommand(0, TIMEOUT));
+        peripheral.sendCommand(recorder, newCommand(1, 0));
+
+        waitWritten(transport, 2);
+        check(recorder.timeouts.equals(Collections.singletonList(0)), "timeout " + recorder.timeouts);
+
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "late callback");
+        check(recorder.succeeded.isEmpty(), "late callback credited " + recorder.succeeded);
+        check(peripheral.getInFlightCount() == 1, "B in flight");
+
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "B callback");
+        check(recorder.succeeded.equals(Collections.singletonList(1)), "succeeded " + recorder.succeeded);
+        check(peripheral.getInFlightCount() == 0, "idle");
+    }
+
+    /**
+     * 超时后重试,第一次写入迟到的回调忽略,重试的回调完成命令,只完成一次
+     */
+    private static void test2() throws InterruptedException {
+        WriteWindowTest.FakeTransport transport = new WriteWindowTest.FakeTransport(8);
+        Peripheral peripheral = WriteWindowTest.connect(transport);
+        Recorder recorder = new Recorder(true);
+
+        peripheral.sendCommand(recorder, newCommand(0, TIMEOUT));
+
+        waitWritten(transport, 2);
+
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "late callback");
+        check(recorder.succeeded.isEmpty(), "late callback credited");
+
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "retry callback");
+        check(recorder.succeeded.equals(Collections.singletonList(0)), "succeeded " + recorder.succeeded);
+        check(peripheral.getInFlightCount() == 0, "idle");
+    }
+
+    /**
+     * A超时后回调丢失,B的回调被A认领,B之后没有再收到回调,超时时按认领的回调完成,C不受影响
+     */
+    private static void test3() throws InterruptedException {
+        WriteWindowTest.FakeTransport transport = new WriteWindowTest.FakeTransport(8);
+        Peripheral peripheral = WriteWindowTest.connect(transport);
+        Recorder recorder = new Recorder(false);
+
+        peripheral.sendCommand(recorder, newCommand(0, TIMEOUT));
+        peripheral.sendCommand(recorder, newCommand(1, TIMEOUT));
+
+        waitWritten(transport, 2);
+        // A的回调没有到达,只有B的
+        check(transport.lose(), "lose A");
+
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "B callback");
+        waitSucceeded(recorder, 1);
+        check(recorder.succeeded.equals(Collections.singletonList(1)), "succeeded " + recorder.succeeded);
+        check(recorder.timeouts.equals(Collections.singletonList(0)), "timeout " + recorder.timeouts);
+        check(peripheral.getInFlightCount() == 0, "B idle");
+
+        peripheral.sendCommand(recorder, newCommand(2, TIMEOUT));
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "C callback");
+        check(recorder.succeeded.equals(Arrays.asList(1, 2)), "C succeeded " + recorder.succeeded);
+        check(peripheral.getInFlightCount() == 0, "C idle");
+    }
+
+    /**
+     * 超时后重试,第一次写入的回调丢失,重试的回调完成命令
+     */
+    private static void test4() throws InterruptedException {
+        WriteWindowTest.FakeTransport transport = new WriteWindowTest.FakeTransport(8);
+        Peripheral peripheral = WriteWindowTest.connect(transport);
+        Recorder recorder = new Recorder(true);
+
+        peripheral.sendCommand(recorder, newCommand(0, TIMEOUT));
+
+        waitWritten(transport, 2);
+        check(transport.lose(), "lose first");
+
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "retry callback");
+        waitSucceeded(recorder, 1);
+        check(recorder.succeeded.equals(Collections.singletonList(0)), "succeeded " + recorder.succeeded);
+        check(recorder.timeouts.equals(Collections.singletonList(0)), "timeout " + recorder.timeouts);
+        check(peripheral.getInFlightCount() == 0, "idle");
+    }
+
+    /**
+     * 超时命令欠下的回调过了超时时间后失效,之后的命令立即完成
+     */
+    private static void test5() throws InterruptedException {
+        WriteWindowTest.FakeTransport transport = new WriteWindowTest.FakeTransport(8);
+        Peripheral peripheral = WriteWindowTest.connect(transport);
+        Recorder recorder = new Recorder(false);
+
+        peripheral.sendCommand(recorder, newCommand(0, TIMEOUT));
+        waitWritten(transport, 1);
+        check(transport.lose(), "lose first");
+
+        Thread.sleep(TIMEOUT * 3);
+        check(recorder.timeouts.equals(Collections.singletonList(0)), "timeout " + recorder.timeouts);
+
+        peripheral.sendCommand(recorder, newCommand(1, TIMEOUT));
+        check(transport.complete(BluetoothGatt.GATT_SUCCESS), "B callback");
+        check(recorder.succeeded.equals(Collections.singletonList(1)), "succeeded " + recorder.succeeded);
+        check(peripheral.getInFlightCount() == 0, "idle");
+    }
+
+    private static Command newCommand(int value, int timeout) {
+        Command command = Command.newInstance();
+        command.serviceUUID = WriteWindowTest.SERVICE_UUID;
+        command.characteristicUUID = WriteWindowTest.COMMAND_UUID;
+        command.type = Command.CommandType.WRITE;
+        command.data = new byte[]{(byte) value};
+        command.timeout = timeout;
+        return command;
+    }
+
+    private static void waitWritten(WriteWindowTest.FakeTransport transport, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && transport.getWrittenCount() < count; i++)
+            Thread.sleep(20);
+        check(transport.getWrittenCount() == count, "written " + transport.getWrittenCount());
+    }
+
+    private static void waitSucceeded(Recorder recorder, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && recorder.succeeded.size() < count; i++)
+            Thread.sleep(20);
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    private static final class Recorder implements Command.Callback {
+
+        final List<Integer> succeeded = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> timeouts = Collections.synchronizedList(new ArrayList<Integer>());
+        private final boolean retry;
+
+        Recorder(boolean retry) {
+            this.retry = retry;
+        }
+
+        @Override
+        public void success(Peripheral peripheral, Command command, Object obj) {
+            this.succeeded.add((int) command.data[0]);
+        }
+
+        @Override
+        public void error(Peripheral peripheral, Command command, String errorMsg) {
+            throw new AssertionError("error " + errorMsg);
+        }
+
+        @Override
+        public boolean timeout(Peripheral peripheral, Command command) {
+            boolean first = !this.timeouts.contains((int) command.data[0]);
+            this.timeouts.add((int) command.data[0]);
+            return this.retry && first;
+        }
+    }
+}
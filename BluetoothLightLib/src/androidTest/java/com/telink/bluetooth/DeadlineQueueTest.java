@@ -0,0 +1,117 @@
+package com.telink.bluetooth;
+
+/**
+ * 在JVM上验证超时队列的排序,取消和重新计时,直接运行main即可
+ */
+public class DeadlineQueueTest {
+
+    public static void main(String[] args) {
+        test1();
+        test2();
+        test3();
+        test4();
+        System.out.println("OK");
+    }
+
+    /**
+     * 按截止时间顺序取出,只有成为最早的截止时间时需要重新设置定时器
+     */
+    private static void test1() {
+        DeadlineQueue queue = new DeadlineQueue();
+        CommandContext a = context();
+        CommandContext b = context();
+        CommandContext c = context();
+
+        check(queue.schedule(a, 300), "first");
+        check(!queue.schedule(b, 500), "later");
+        check(queue.schedule(c, 100), "earlier");
+        check(queue.nextDeadline() == 100, "next");
+
+        check(queue.pollExpired(99) == null, "not expired");
+        check(queue.pollExpired(400) == c, "c");
+        check(c.deadline == 0, "c deadline");
+        check(queue.pollExpired(400) == a, "a");
+        check(queue.pollExpired(400) == null, "b not expired");
+        check(queue.nextDeadline() == 500, "next b");
+        check(queue.pollExpired(500) == b, "b");
+        check(queue.nextDeadline() == 0, "empty");
+    }
+
+    /**
+     * 取消的命令不会超时,也不影响下一个截止时间
+     */
+    private static void test2() {
+        DeadlineQueue queue = new DeadlineQueue();
+        CommandContext a = context();
+        CommandContext b = context();
+
+        queue.schedule(a, 100);
+        queue.schedule(b, 200);
+        queue.cancel(a);
+
+        check(a.deadline == 0, "cancelled");
+        check(queue.nextDeadline() == 200, "skip cancelled");
+        check(queue.pollExpired(1000) == b, "b");
+        check(queue.pollExpired(1000) == null, "a never expires");
+    }
+
+    /**
+     * 同一个命令重新计时后只按新的截止时间超时一次,clear后全部失效
+     */
+    private static void test3() {
+        DeadlineQueue queue = new DeadlineQueue();
+        CommandContext a = context();
+        CommandContext b = context();
+
+        queue.schedule(a, 100);
+        queue.schedule(b, 200);
+        check(!queue.schedule(a, 300), "reschedule later");
+
+        check(queue.nextDeadline() == 200, "stale entry");
+        check(queue.pollExpired(250) == b, "b");
+        check(queue.pollExpired(250) == null, "a rescheduled");
+        check(queue.pollExpired(300) == a, "a");
+        check(queue.pollExpired(1000) == null, "a once");
+
+        queue.schedule(a, 100);
+        queue.schedule(b, 200);
+        queue.clear();
+        check(a.deadline == 0 && b.deadline == 0, "clear deadline");
+        check(queue.nextDeadline() == 0 && queue.pollExpired(1000) == null, "clear");
+
+        // 清空后条目复用
+        check(queue.schedule(b, 50), "after clear");
+        check(queue.pollExpired(50) == b, "reuse");
+    }
+
+    /**
+     * 命令回收后被另一个连接复用,截止时间相同时原来队列中失效的条目也不会取走或清除它
+     */
+    private static void test4() {
+        DeadlineQueue first = new DeadlineQueue();
+        DeadlineQueue second = new DeadlineQueue();
+        CommandContext a = context();
+
+        first.schedule(a, 100);
+        first.cancel(a);
+        second.schedule(a, 100);
+
+        check(first.pollExpired(1000) == null, "stale entry");
+        check(a.deadline == 100, "deadline kept");
+
+        first.schedule(context(), 100);
+        first.clear();
+        check(a.deadline == 100, "clear other");
+
+        check(second.pollExpired(1000) == a, "owner");
+    }
+
+    private static CommandContext context() {
+        return new CommandContext(null, Command.newInstance());
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
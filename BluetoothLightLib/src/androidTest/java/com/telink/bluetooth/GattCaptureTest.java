@@ -0,0 +1,137 @@
+package com.telink.bluetooth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * 在JVM上验证抓包的写入和读取,直接运行main即可
+ */
+public class GattCaptureTest {
+
+    private static final UUID COMMAND_UUID = UUID.fromString("00010203-0405-0607-0809-0a0b0c0d1912");
+
+    public static void main(String[] args) throws IOException {
+        test1();
+        test2();
+        test3();
+        test4();
+        System.out.println("OK");
+    }
+
+    /**
+     * 连接编号和两个字节的状态码原样读回
+     */
+    private static void test1() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattCapture capture = new GattCapture(out, 1024, 0);
+        capture.record(GattCapture.TYPE_WRITE, 7, COMMAND_UUID, 0x101, new byte[]{1, 2, 3});
+        capture.record(GattCapture.TYPE_NOTIFY, 8, COMMAND_UUID, 0, new byte[]{4});
+        capture.close();
+
+        GattCapture.Reader reader = new GattCapture.Reader(new ByteArrayInputStream(out.toByteArray()));
+        GattCapture.Record record = reader.next();
+        check(record.type == GattCapture.TYPE_WRITE && record.status == 0x101 && record.connection == 7, "write " + record);
+        check(COMMAND_UUID.equals(record.characteristic) && record.data.length == 3, "write data");
+
+        record = reader.next();
+        check(record.type == GattCapture.TYPE_NOTIFY && record.connection == 8, "notify " + record);
+        check(reader.next() == null, "end");
+        reader.close();
+    }
+
+    /**
+     * 版本1的文件仍然可以读取
+     */
+    private static void test2() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(GattCapture.MAGIC);
+        out.write(1);
+        // type status uuid timestamp(8) length(2) data
+        out.write(new byte[]{GattCapture.TYPE_READ, (byte) 0x85, (byte) 0xFF, 0, 0, 0, 0, 0, 0, 0, 9, 0, 1, 0x42});
+
+        GattCapture.Reader reader = new GattCapture.Reader(new ByteArrayInputStream(out.toByteArray()));
+        GattCapture.Record record = reader.next();
+        check(record.type == GattCapture.TYPE_READ && record.status == 0x85 && record.connection == 0, "v1 " + record);
+        check(record.timestamp == 9 && record.data[0] == 0x42, "v1 data");
+        check(reader.next() == null, "v1 end");
+        reader.close();
+    }
+
+    /**
+     * 写入失败后关闭输出,不再记录
+     */
+    private static void test3() throws IOException {
+        FailingOutputStream out = new FailingOutputStream();
+        GattCapture capture = new GattCapture(out, 1024, 0);
+        capture.record(GattCapture.TYPE_WRITE, 1, COMMAND_UUID, 0, new byte[4096]);
+        check(out.closed, "closed on failure");
+
+        capture.record(GattCapture.TYPE_WRITE, 1, COMMAND_UUID, 0, new byte[1]);
+        check(capture.getRecordCount() == 0, "no record after failure");
+        capture.close();
+    }
+
+    /**
+     * 两个写入同时在途时,回调时特征值里已经是第二个写入的数据,记录的是各自提交时的数据
+     */
+    private static void test4() throws IOException {
+        WriteWindowTest.FakeTransport transport = new WriteWindowTest.FakeTransport(8);
+        Peripheral peripheral = WriteWindowTest.connect(transport);
+        peripheral.setWriteWindow(2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GattCapture capture = new GattCapture(out, 1024, 0);
+        Peripheral.setCapture(capture);
+
+        try {
+            for (int i = 0; i < 2; i++) {
+                Command command = Command.newInstance();
+                command.serviceUUID = WriteWindowTest.SERVICE_UUID;
+                command.characteristicUUID = WriteWindowTest.COMMAND_UUID;
+                command.type = Command.CommandType.WRITE_NO_RESPONSE;
+                command.data = new byte[]{(byte) i};
+                peripheral.sendCommand(null, command);
+            }
+            check(transport.complete(0) && transport.complete(0), "callbacks");
+        } finally {
+            Peripheral.setCapture(null);
+            capture.close();
+        }
+
+        GattCapture.Reader reader = new GattCapture.Reader(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < 2; i++) {
+            GattCapture.Record record = reader.next();
+            check(record.type == GattCapture.TYPE_WRITE && record.data[0] == i, "submitted payload " + record);
+            check(record.connection == peripheral.getConnectionId(), "connection id");
+        }
+        reader.close();
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    private static final class FailingOutputStream extends OutputStream {
+
+        boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            throw new IOException("no space");
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            throw new IOException("no space");
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+}
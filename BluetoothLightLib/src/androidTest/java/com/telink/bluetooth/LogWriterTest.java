@@ -0,0 +1,109 @@
+package com.telink.bluetooth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * 在JVM上验证日志文件的写入,丢弃计数和打不开文件后的恢复,直接运行main即可
+ */
+public class LogWriterTest {
+
+    public static void main(String[] args) throws Exception {
+        test1();
+        test2();
+        test3();
+        System.out.println("OK");
+    }
+
+    /**
+     * flush后全部写入当天的文件
+     */
+    private static void test1() throws IOException {
+        String base = createDir("normal");
+        LogWriter writer = new LogWriter(16);
+
+        for (int i = 0; i < 10; i++)
+            check(writer.offer(base, "tag", "line " + i), "offer");
+
+        check(writer.flush(5000), "flush");
+        check(countLines(base) == 10, "lines");
+        check(writer.getDroppedCount() == 0, "dropped");
+    }
+
+    /**
+     * 缓冲区满时丢弃,写入的和丢弃的加起来等于全部
+     */
+    private static void test2() throws IOException {
+        String base = createDir("full");
+        LogWriter writer = new LogWriter(4);
+
+        for (int i = 0; i < 1000; i++)
+            writer.offer(base, "tag", "line " + i);
+
+        check(writer.flush(5000), "flush");
+        check(countLines(base) + writer.getDroppedCount() == 1000, "conservation");
+    }
+
+    /**
+     * 文件打不开时计入丢弃,间隔后重新打开
+     */
+    private static void test3() throws Exception {
+        String dir = createDir("blocked");
+        // 目录的位置被普通文件占用,打不开
+        File blocker = new File(dir, "logs");
+        check(blocker.createNewFile(), "blocker");
+        String base = blocker.getPath() + "/";
+
+        LogWriter writer = new LogWriter(16);
+        for (int i = 0; i < 5; i++)
+            writer.offer(base, "tag", "lost " + i);
+        check(writer.flush(5000), "flush");
+        check(writer.getDroppedCount() == 5, "dropped " + writer.getDroppedCount());
+
+        check(blocker.delete(), "unblock");
+
+        // 还在重试间隔内
+        writer.offer(base, "tag", "lost");
+        check(writer.flush(5000), "flush");
+        check(writer.getDroppedCount() == 6, "backoff");
+
+        Thread.sleep(1200);
+        writer.offer(base, "tag", "written");
+        check(writer.flush(5000), "flush");
+        check(writer.getDroppedCount() == 6, "recovered");
+        check(countLines(base) == 1, "recovered lines");
+    }
+
+    private static String createDir(String name) throws IOException {
+        File dir = File.createTempFile("logwriter", name);
+        check(dir.delete() && dir.mkdirs(), "mkdirs");
+        return dir.getPath() + "/";
+    }
+
+    private static int countLines(String base) throws IOException {
+        Calendar calendar = Calendar.getInstance();
+        String path = base + String.format(Locale.US, "%04d/%02d/%02d.log", calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+        File file = new File(path);
+        if (!file.exists())
+            return 0;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int count = 0;
+            while (reader.readLine() != null)
+                count++;
+            return count;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
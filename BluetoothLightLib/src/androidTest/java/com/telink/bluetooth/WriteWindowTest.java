@@ -0,0 +1,262 @@
+package com.telink.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+
+/**
+ * 通过一个假的GattTransport驱动真实的Peripheral,验证写入窗口,直接运行main即可
+ */
+public class WriteWindowTest {
+
+    static final UUID SERVICE_UUID = UUID.fromString("00010203-0405-0607-0809-0a0b0c0d1910");
+    static final UUID COMMAND_UUID = UUID.fromString("00010203-0405-0607-0809-0a0b0c0d1912");
+
+    private static final int COUNT = 20;
+
+    public static void main(String[] args) {
+        test1();
+        test2();
+        test3();
+        test4();
+        System.out.println("OK");
+    }
+
+    /**
+     * 窗口为1时与原来一样,一次只写一个命令
+     */
+    private static void test1() {
+        FakeTransport transport = new FakeTransport(8);
+        Result result = run(transport, 1, Command.CommandType.WRITE_NO_RESPONSE);
+        check(transport.maxPending == 1, "window 1 in flight " + transport.maxPending);
+        result.checkOrder(transport);
+    }
+
+    /**
+     * 窗口为4时最多4个写入在途
+     */
+    private static void test2() {
+        FakeTransport transport = new FakeTransport(8);
+        Result result = run(transport, 4, Command.CommandType.WRITE_NO_RESPONSE);
+        check(transport.maxPending == 4, "window 4 in flight " + transport.maxPending);
+        result.checkOrder(transport);
+    }
+
+    /**
+     * WRITE命令不参与并行
+     */
+    private static void test3() {
+        FakeTransport transport = new FakeTransport(8);
+        Result result = run(transport, 8, Command.CommandType.WRITE);
+        check(transport.maxPending == 1, "WRITE in flight " + transport.maxPending);
+        result.checkOrder(transport);
+    }
+
+    /**
+     * 底层缓冲满时拒绝写入,命令停下来,收到写回调后重新写入,不丢失也不重复
+     */
+    private static void test4() {
+        FakeTransport transport = new FakeTransport(2);
+        Result result = run(transport, 8, Command.CommandType.WRITE_NO_RESPONSE);
+        check(transport.rejected > 0, "stalled");
+        check(transport.maxPending == 2, "stall in flight " + transport.maxPending);
+        result.checkOrder(transport);
+    }
+
+    private static Result run(FakeTransport transport, int window, Command.CommandType type) {
+
+        Peripheral peripheral = connect(transport);
+        peripheral.setWriteWindow(window);
+
+        Result result = new Result();
+
+        for (int i = 0; i < COUNT; i++) {
+            Command command = Command.newInstance();
+            command.serviceUUID = SERVICE_UUID;
+            command.characteristicUUID = COMMAND_UUID;
+            command.type = type;
+            command.data = new byte[]{(byte) i};
+            check(peripheral.sendCommand(result, command), "send");
+            check(peripheral.getInFlightCount() <= window, "window exceeded");
+        }
+
+        while (transport.complete(BluetoothGatt.GATT_SUCCESS))
+            check(peripheral.getInFlightCount() <= window, "window exceeded");
+
+        check(peripheral.getInFlightCount() == 0, "idle");
+        return result;
+    }
+
+    static Peripheral connect(FakeTransport transport) {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("A4:C1:38:00:00:01");
+        Peripheral peripheral = new Peripheral(device, null, -50);
+        peripheral.setTransportFactory(transport);
+        peripheral.connect(null);
+        peripheral.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        check(peripheral.isConnected(), "connected");
+        return peripheral;
+    }
+
+    static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    private static final class Result implements Command.Callback {
+
+        final List<Integer> succeeded = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public void success(Peripheral peripheral, Command command, Object obj) {
+            this.succeeded.add(command.data[0] & 0xFF);
+        }
+
+        @Override
+        public void error(Peripheral peripheral, Command command, String errorMsg) {
+            throw new AssertionError("error " + errorMsg);
+        }
+
+        @Override
+        public boolean timeout(Peripheral peripheral, Command command) {
+            throw new AssertionError("timeout");
+        }
+
+        /**
+         * 每个命令按发送顺序写入一次,按顺序完成
+         */
+        void checkOrder(FakeTransport transport) {
+            check(transport.written.size() == COUNT, "written " + transport.written.size());
+            check(this.succeeded.size() == COUNT, "succeeded " + this.succeeded.size());
+            for (int i = 0; i < COUNT; i++) {
+                check(transport.written.get(i)[0] == i, "write order " + i);
+                check(this.succeeded.get(i) == i, "callback order " + i);
+            }
+        }
+    }
+
+    /**
+     * 模拟底层的写入缓冲,缓冲满时writeCharacteristic返回false,由测试调用{@link #complete(int)}按写入顺序逐个回调
+     */
+    static final class FakeTransport implements GattTransport, GattTransport.Factory {
+
+        private final int capacity;
+        private final List<BluetoothGattService> services = new ArrayList<>(1);
+        private final Queue<BluetoothGattCharacteristic> pending = new ArrayDeque<>();
+        private BluetoothGattCallback callback;
+
+        final List<byte[]> written = new ArrayList<>();
+        int maxPending;
+        int rejected;
+
+        FakeTransport(int capacity) {
+            this.capacity = capacity;
+            BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            service.addCharacteristic(new BluetoothGattCharacteristic(COMMAND_UUID,
+                    BluetoothGattCharacteristic.PROPERTY_READ
+                            | BluetoothGattCharacteristic.PROPERTY_WRITE
+                            | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0));
+            this.services.add(service);
+        }
+
+        synchronized int getWrittenCount() {
+            return this.written.size();
+        }
+
+        /**
+         * 回调最早的一个写入
+         *
+         * @return 没有在途的写入时返回false
+         */
+        boolean complete(int status) {
+            BluetoothGattCharacteristic characteristic;
+            synchronized (this) {
+                characteristic = this.pending.poll();
+            }
+            if (characteristic == null)
+                return false;
+            this.callback.onCharacteristicWrite(null, characteristic, status);
+            return true;
+        }
+
+        /**
+         * 丢掉最早的一个写入的回调
+         *
+         * @return 没有在途的写入时返回false
+         */
+        synchronized boolean lose() {
+            return this.pending.poll() != null;
+        }
+
+        @Override
+        public GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return this.services;
+        }
+
+        @Override
+        public BluetoothGattService getService(UUID serviceUUID) {
+            return SERVICE_UUID.equals(serviceUUID) ? this.services.get(0) : null;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            if (this.pending.size() >= this.capacity) {
+                this.rejected++;
+                return false;
+            }
+            this.written.add(characteristic.getValue().clone());
+            this.pending.add(characteristic);
+            this.maxPending = Math.max(this.maxPending, this.pending.size());
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return false;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return false;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
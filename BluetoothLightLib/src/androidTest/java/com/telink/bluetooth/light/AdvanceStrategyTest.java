@@ -0,0 +1,76 @@
+package com.telink.bluetooth.light;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在JVM上验证两个滑条交替拖动时的采样,直接运行main即可
+ */
+public class AdvanceStrategyTest {
+
+    private static final byte OPCODE = (byte) 0xD2;
+    private static final int SAMPLE_RATE = 320;
+    private static final int COMMAND_DELAY = 320;
+    // 定时器的误差
+    private static final int SLACK = 30;
+
+    private static final List<long[]> sent = new ArrayList<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        test1();
+        System.out.println("OK");
+    }
+
+    /**
+     * A,B,A,B交替发送,采样间隔和命令间隔都不变,每个目标最后的值都会发出去
+     */
+    private static void test1() throws InterruptedException {
+        AdvanceStrategy strategy = AdvanceStrategy.getDefault();
+        strategy.setSampleRate(SAMPLE_RATE);
+        strategy.setCallback(new AdvanceStrategy.Callback() {
+            @Override
+            public boolean onCommandSampled(byte opcode, int address, byte[] params, Object tag, int delay) {
+                synchronized (sent) {
+                    sent.add(new long[]{System.currentTimeMillis(), delay, address, params[0]});
+                }
+                return true;
+            }
+        });
+        strategy.onStart();
+
+        for (int i = 0; i <= 20; i++) {
+            strategy.postCommand(OPCODE, 0x01, new byte[]{(byte) i}, 0, null, true, false);
+            strategy.postCommand(OPCODE, 0x02, new byte[]{(byte) i}, 0, null, true, false);
+            Thread.sleep(10);
+        }
+
+        Thread.sleep(SAMPLE_RATE * 4);
+        strategy.onStop();
+
+        synchronized (sent) {
+            check(sent.size() >= 3, "sent " + sent.size());
+
+            int last1 = -1;
+            int last2 = -1;
+            for (int i = 0; i < sent.size(); i++) {
+                long[] command = sent.get(i);
+                if (command[2] == 0x01)
+                    last1 = (int) command[3];
+                else
+                    last2 = (int) command[3];
+                if (i == 0)
+                    continue;
+                long[] prev = sent.get(i - 1);
+                check(command[0] - prev[0] >= SAMPLE_RATE - SLACK, "sample rate " + (command[0] - prev[0]));
+                check(command[0] + command[1] - prev[0] - prev[1] >= COMMAND_DELAY - SLACK, "command delay");
+            }
+
+            check(last1 == 20 && last2 == 20, "last " + last1 + " " + last2);
+        }
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,193 @@
+package com.telink.bluetooth.light;
+
+import android.os.Handler;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在JVM上验证异步命令的完成,监听,超时和响应匹配,直接运行main即可
+ */
+public class CommandFutureTest {
+
+    private static final int OPCODE = 0xDB;
+
+    public static void main(String[] args) throws Exception {
+        test1();
+        test2();
+        test3();
+        test4();
+        test5();
+        test6();
+        System.out.println("OK");
+    }
+
+    /**
+     * 只完成一次,之后添加的监听立即回调
+     */
+    private static void test1() throws Exception {
+        CommandFuture future = new CommandFuture(-1, -1);
+        final AtomicInteger calls = new AtomicInteger();
+        CommandFuture.Listener listener = new CommandFuture.Listener() {
+            @Override
+            public void onCompleted(CommandFuture future) {
+                calls.incrementAndGet();
+            }
+        };
+
+        future.addListener(listener);
+        check(!future.isDone(), "pending");
+
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            check(false, "get before done");
+        } catch (TimeoutException e) {
+            // 还没有完成
+        }
+
+        byte[] result = new byte[]{1};
+        check(future.setSuccess(result), "success");
+        check(!future.setFailure("late"), "complete twice");
+        check(!future.cancel(false), "cancel after done");
+        check(future.get() == result && future.isSuccess(), "result");
+
+        future.addListener(listener);
+        check(calls.get() == 2, "listener " + calls.get());
+    }
+
+    /**
+     * 失败,超时和取消时get抛出异常
+     */
+    private static void test2() throws Exception {
+        CommandFuture failed = new CommandFuture(-1, -1);
+        failed.setFailure("write error");
+        try {
+            failed.get();
+            check(false, "failure");
+        } catch (ExecutionException e) {
+            check("write error".equals(e.getMessage()), "failure message");
+        }
+
+        CommandFuture timeout = new CommandFuture(OPCODE, -1);
+        timeout.setTimeout();
+        check(timeout.isTimeout() && timeout.getState() == CommandFuture.STATE_TIMEOUT, "timeout");
+
+        CommandFuture cancelled = new CommandFuture(-1, -1);
+        check(cancelled.cancel(true) && cancelled.isCancelled(), "cancel");
+        try {
+            cancelled.get();
+            check(false, "cancelled");
+        } catch (CancellationException e) {
+            // 已取消
+        }
+    }
+
+    /**
+     * 按(opcode, 源地址)匹配,指定了源地址的优先,同一个目标按发送顺序
+     */
+    private static void test3() {
+        AsyncFutures futures = new AsyncFutures();
+        CommandFuture any = new CommandFuture(OPCODE, -1);
+        CommandFuture first = new CommandFuture(OPCODE, 0x12);
+        CommandFuture second = new CommandFuture(OPCODE, 0x12);
+        CommandFuture write = new CommandFuture(-1, -1);
+
+        futures.add(any, 10000);
+        futures.add(first, 10000);
+        futures.add(second, 10000);
+        futures.add(write, 10000);
+
+        check(futures.match(0xDC, 0x12) == null, "other opcode");
+        check(futures.match(OPCODE, 0x12) == first, "first");
+        check(futures.match(OPCODE, 0x12) == second, "second");
+        check(futures.match(OPCODE, 0x12) == any, "any src");
+        check(futures.match(OPCODE, 0x13) == null, "consumed");
+
+        check(futures.size() == 1, "write only");
+        check(futures.remove(write), "remove");
+        check(!futures.remove(write), "remove twice");
+    }
+
+    /**
+     * 等待响应超时,清理其他Handler不影响超时
+     */
+    private static void test4() throws Exception {
+        AsyncFutures futures = new AsyncFutures();
+        final CommandFuture future = new CommandFuture(OPCODE, 0x12);
+        final CountDownLatch latch = new CountDownLatch(1);
+        future.addListener(new CommandFuture.Listener() {
+            @Override
+            public void onCompleted(CommandFuture future) {
+                latch.countDown();
+            }
+        });
+
+        futures.add(future, 50);
+        // LightController连接和登录时会清理mDelayHandler
+        new Handler().removeCallbacksAndMessages(null);
+
+        check(latch.await(2, TimeUnit.SECONDS), "timeout fired");
+        check(future.isTimeout(), "timeout state");
+        check(futures.size() == 0 && futures.match(OPCODE, 0x12) == null, "removed");
+    }
+
+    /**
+     * 匹配到响应后超时不再触发,断开时全部取出
+     */
+    private static void test5() throws Exception {
+        AsyncFutures futures = new AsyncFutures();
+        CommandFuture answered = new CommandFuture(OPCODE, 0x12);
+        futures.add(answered, 50);
+        CommandFuture matched = futures.match(OPCODE, 0x12);
+        check(matched == answered, "matched");
+        matched.setSuccess(new byte[20]);
+
+        CommandFuture pending = new CommandFuture(OPCODE, -1);
+        futures.add(pending, 50);
+        List<CommandFuture> all = futures.removeAll();
+        check(all != null && all.size() == 1 && all.get(0) == pending, "remove all");
+        check(futures.removeAll() == null, "empty");
+
+        Thread.sleep(200);
+        check(answered.isSuccess(), "no timeout after match");
+        check(!pending.isDone(), "no timeout after remove all");
+    }
+
+    /**
+     * 取消的命令从索引中移除,之后的响应交给同一个目标的下一个命令,超时也不再触发
+     */
+    private static void test6() throws Exception {
+        AsyncFutures futures = new AsyncFutures();
+        CommandFuture cancelled = new CommandFuture(OPCODE, 0x12);
+        CommandFuture next = new CommandFuture(OPCODE, 0x12);
+        futures.add(cancelled, 50);
+        futures.add(next, 10000);
+
+        check(cancelled.cancel(false), "cancel");
+        check(futures.size() == 1, "removed " + futures.size());
+        check(futures.match(OPCODE, 0x12) == next, "next");
+        check(futures.size() == 0, "empty");
+
+        Thread.sleep(200);
+        check(cancelled.isCancelled(), "no timeout after cancel");
+
+        // 已经完成但还在索引中的命令也跳过
+        CommandFuture failed = new CommandFuture(OPCODE, 0x12);
+        CommandFuture live = new CommandFuture(OPCODE, 0x12);
+        futures.add(failed, 10000);
+        futures.add(live, 10000);
+        failed.setFailure("write error");
+        check(futures.match(OPCODE, 0x12) == live, "skip done");
+        check(futures.size() == 0, "skip done removed");
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
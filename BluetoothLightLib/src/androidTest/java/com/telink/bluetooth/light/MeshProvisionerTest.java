@@ -0,0 +1,165 @@
+package com.telink.bluetooth.light;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+
+import com.telink.bluetooth.GattTransport;
+import com.telink.util.Strings;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在JVM上验证同时更新多个设备时的重试和结果统计,连接全部失败,直接运行main即可
+ */
+public class MeshProvisionerTest {
+
+    private static final byte[] MESH_NAME = Strings.stringToBytes("telink_mesh1", 16);
+
+    public static void main(String[] args) throws Exception {
+        test1();
+        test2();
+        System.out.println("OK");
+        // LightController和Peripheral的Handler线程不是守护线程
+        System.exit(0);
+    }
+
+    /**
+     * 失败的设备重试一次,每个设备只有一个结果,已经更新过的设备跳过
+     */
+    private static void test1() throws InterruptedException {
+        RefusingFactory factory = new RefusingFactory();
+        LightPeripheral[] lights = new LightPeripheral[4];
+        for (int i = 0; i < lights.length; i++)
+            lights[i] = create(i + 1, factory);
+        lights[3].meshChanged = true;
+
+        MeshProvisioner provisioner = new MeshProvisioner(null, 2);
+        Recorder recorder = run(provisioner, lights);
+
+        check(recorder.succeeded == 0 && recorder.total == 3, "completed " + recorder.succeeded + "/" + recorder.total);
+        check(recorder.progress.equals(Arrays.asList(1, 2, 3)), "progress " + recorder.progress);
+
+        check(provisioner.getTotal() == 3 && provisioner.getCompleted() == 3 && provisioner.getSucceeded() == 0, "counters");
+        check(provisioner.getResults().size() == 3, "results");
+        for (int i = 0; i < 3; i++) {
+            MeshProvisioner.Result result = provisioner.getResult(lights[i].getMacAddress());
+            check(result != null && !result.success && result.attempts == 2, "result " + i);
+            check(factory.attempts(lights[i]) == 2, "attempts " + i + " : " + factory.attempts(lights[i]));
+        }
+        check(factory.attempts(lights[3]) == 0, "mesh changed");
+        check(!provisioner.isRunning(), "stopped");
+    }
+
+    /**
+     * 日志中已经完成的设备不再连接,算成功,尝试次数为0
+     */
+    private static void test2() throws Exception {
+        RefusingFactory factory = new RefusingFactory();
+        LightPeripheral done = create(0x11, factory);
+        LightPeripheral failed = create(0x12, factory);
+
+        File file = File.createTempFile("provisioner", ".bin");
+        file.deleteOnExit();
+        ProvisionJournal journal = ProvisionJournal.open(file, Strings.stringToBytes("telink_mesh2", 16),
+                Strings.stringToBytes("456", 16), null);
+        journal.record(done.getMacLong(), ProvisionJournal.STEP_COMPLETED, 0);
+
+        MeshProvisioner provisioner = new MeshProvisioner(null, 1);
+        provisioner.setJournal(journal);
+        try {
+            Recorder recorder = run(provisioner, new LightPeripheral[]{done, failed});
+            check(recorder.succeeded == 1 && recorder.total == 2, "completed " + recorder.succeeded + "/" + recorder.total);
+        } finally {
+            journal.close();
+        }
+
+        MeshProvisioner.Result result = provisioner.getResult(done.getMacAddress());
+        check(result.success && result.attempts == 0, "restored");
+        check(factory.attempts(done) == 0, "restored not connected");
+        check(!provisioner.getResult(failed.getMacAddress()).success, "failed");
+        check(provisioner.getResults().get(0).light == done, "restored first");
+    }
+
+    private static Recorder run(MeshProvisioner provisioner, LightPeripheral[] lights) throws InterruptedException {
+        provisioner.setParameters(LeUpdateParameters.create()
+                .setOldPassword("123")
+                .setNewMeshName("telink_mesh2")
+                .setNewPassword("456"));
+
+        Recorder recorder = new Recorder();
+        provisioner.start(lights, recorder);
+        check(recorder.latch.await(20, TimeUnit.SECONDS), "completed");
+        return recorder;
+    }
+
+    private static LightPeripheral create(int index, GattTransport.Factory factory) {
+        String mac = String.format("A4:C1:38:00:00:%02X", index);
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mac);
+        LightPeripheral light = new LightPeripheral(device, null, -60, MESH_NAME, index);
+        light.setTransportFactory(factory);
+        return light;
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    private static final class Recorder implements MeshProvisioner.Callback {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile int succeeded = -1;
+        volatile int total = -1;
+
+        @Override
+        public void onConnecting(LightController controller, LightPeripheral light) {
+        }
+
+        @Override
+        public void onUpdating(LightController controller, LightPeripheral light) {
+        }
+
+        @Override
+        public void onResult(LightController controller, MeshProvisioner.Result result, int completed, int total) {
+            this.progress.add(completed);
+        }
+
+        @Override
+        public void onCompleted(int succeeded, int total) {
+            this.succeeded = succeeded;
+            this.total = total;
+            this.latch.countDown();
+        }
+    }
+
+    /**
+     * 所有连接都立即失败,记录每个设备的连接次数
+     */
+    private static final class RefusingFactory implements GattTransport.Factory {
+
+        private final Map<String, Integer> attempts = new HashMap<>();
+
+        @Override
+        public synchronized GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+            Integer count = this.attempts.get(device.getAddress());
+            this.attempts.put(device.getAddress(), count == null ? 1 : count + 1);
+            return null;
+        }
+
+        synchronized int attempts(LightPeripheral light) {
+            Integer count = this.attempts.get(light.getMacAddress());
+            return count == null ? 0 : count;
+        }
+    }
+}
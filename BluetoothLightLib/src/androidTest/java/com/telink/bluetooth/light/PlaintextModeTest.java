@@ -0,0 +1,166 @@
+package com.telink.bluetooth.light;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import com.telink.bluetooth.GattTransport;
+import com.telink.crypto.AES;
+import com.telink.util.Event;
+import com.telink.util.EventListener;
+import com.telink.util.Strings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在JVM上验证{@link AES#Security}为false时登录后照常发送命令和接收通知,直接运行main即可
+ */
+public class PlaintextModeTest {
+
+    private static final byte OPCODE = (byte) 0xD0;
+
+    public static void main(String[] args) throws InterruptedException {
+        AES.Security = false;
+        try {
+            test1();
+        } finally {
+            AES.Security = true;
+        }
+        System.out.println("OK");
+        // LightController的事件线程不是守护线程
+        System.exit(0);
+    }
+
+    /**
+     * 命令不加密直接写入,通知不解密直接分发
+     */
+    private static void test1() throws InterruptedException {
+        PlainTransport transport = new PlainTransport();
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("A4:C1:38:00:00:01");
+        LightPeripheral light = new LightPeripheral(device, null, -50, Strings.stringToBytes("telink_mesh1", 16), 0x01);
+        light.setTransportFactory(transport);
+
+        LightController controller = new LightController();
+        controller.connect(null, light);
+        light.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        check(light.isConnected(), "connected");
+
+        controller.login(Strings.stringToBytes("telink_mesh1", 16), Strings.stringToBytes("123", 16));
+        check(controller.isLogin(), "login");
+
+        byte[] params = new byte[]{0x01, 0x00, 0x00};
+        check(controller.sendCommand(OPCODE, 0xFFFF, params, true, 0), "send");
+        check(transport.written.size() == 1, "written " + transport.written.size());
+
+        byte[] frame = transport.written.get(0);
+        check(frame[5] == (byte) 0xFF && frame[6] == (byte) 0xFF, "address");
+        check(frame[7] == (byte) (OPCODE | 0xC0), "opcode");
+        check(frame[10] == 0x01, "params");
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+        controller.addEventListener(LightController.LightEvent.NOTIFICATION_RECEIVE, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                received.add(((LightController.LightEvent) event).getArgs());
+                latch.countDown();
+            }
+        });
+
+        byte[] notification = new byte[20];
+        notification[7] = (byte) 0xDC;
+        controller.onNotify(light, notification, null, null, 201);
+
+        check(latch.await(2, TimeUnit.SECONDS), "notification");
+        byte[] result = (byte[]) received.get(0);
+        check(result[7] == (byte) 0xDC, "plaintext");
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * 记录写入的数据,写入时立即回调成功
+     */
+    private static final class PlainTransport implements GattTransport, GattTransport.Factory {
+
+        final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+        private final BluetoothGattService service;
+        private BluetoothGattCallback callback;
+
+        PlainTransport() {
+            Manufacture manufacture = Manufacture.getDefault();
+            this.service = new BluetoothGattService(manufacture.getUUID(Manufacture.UUIDType.SERVICE),
+                    BluetoothGattService.SERVICE_TYPE_PRIMARY);
+            this.service.addCharacteristic(new BluetoothGattCharacteristic(manufacture.getUUID(Manufacture.UUIDType.COMMAND),
+                    BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0));
+        }
+
+        @Override
+        public GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return Collections.singletonList(this.service);
+        }
+
+        @Override
+        public BluetoothGattService getService(UUID serviceUUID) {
+            return this.service.getUuid().equals(serviceUUID) ? this.service : null;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return false;
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            this.written.add(characteristic.getValue().clone());
+            this.callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return false;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return false;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
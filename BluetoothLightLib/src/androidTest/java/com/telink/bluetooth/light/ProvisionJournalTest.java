@@ -0,0 +1,127 @@
+package com.telink.bluetooth.light;
+
+import com.telink.util.Strings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 在JVM上验证更新网络参数的步骤日志,直接运行main即可
+ */
+public class ProvisionJournalTest {
+
+    private static final long MAC1 = 0xA4C138000001L;
+    private static final long MAC2 = 0xA4C138000002L;
+
+    public static void main(String[] args) throws IOException {
+        test1();
+        test2();
+        test3();
+        test4();
+        System.out.println("OK");
+    }
+
+    /**
+     * 重新打开后恢复每个设备的地址和步骤
+     */
+    private static void test1() throws IOException {
+        File file = createFile();
+
+        ProvisionJournal journal = open(file, "456");
+        journal.record(MAC1, ProvisionJournal.STEP_ADDRESS, 0x12);
+        journal.record(MAC1, ProvisionJournal.STEP_MESH_NAME, 0);
+        journal.record(MAC2, ProvisionJournal.STEP_ADDRESS, 0x13);
+        journal.record(MAC2, ProvisionJournal.STEP_COMPLETED, 0);
+        journal.close();
+
+        journal = open(file, "456");
+        check(journal.size() == 2, "size");
+        check(journal.getAddress(MAC1) == 0x12, "address");
+        check(journal.getStep(MAC1) == ProvisionJournal.STEP_MESH_NAME, "step");
+        check(journal.getStep(MAC2) == ProvisionJournal.STEP_COMPLETED, "completed");
+        journal.close();
+    }
+
+    /**
+     * 末尾写了一半的记录丢弃,之后的记录接着写
+     */
+    private static void test2() throws IOException {
+        File file = createFile();
+
+        ProvisionJournal journal = open(file, "456");
+        journal.record(MAC1, ProvisionJournal.STEP_ADDRESS, 0x12);
+        journal.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[7]);
+        raf.close();
+
+        journal = open(file, "456");
+        check(journal.getAddress(MAC1) == 0x12, "torn address");
+        journal.record(MAC1, ProvisionJournal.STEP_LTK, 0);
+        journal.close();
+
+        journal = open(file, "456");
+        check(journal.getStep(MAC1) == ProvisionJournal.STEP_LTK, "torn append");
+        journal.close();
+    }
+
+    /**
+     * 新网络参数不同时清空
+     */
+    private static void test3() throws IOException {
+        File file = createFile();
+
+        ProvisionJournal journal = open(file, "456");
+        journal.record(MAC1, ProvisionJournal.STEP_COMPLETED, 0);
+        journal.close();
+
+        journal = open(file, "789");
+        check(journal.size() == 0, "target");
+        journal.close();
+    }
+
+    /**
+     * 写入过LTK的设备重新写网络名时仍然保持STEP_LTK,压缩后内容不变
+     */
+    private static void test4() throws IOException {
+        File file = createFile();
+
+        ProvisionJournal journal = open(file, "456");
+        for (int i = 0; i < 10; i++)
+            journal.record(MAC1, ProvisionJournal.STEP_ADDRESS, 0x12);
+        journal.record(MAC1, ProvisionJournal.STEP_LTK, 0);
+        journal.record(MAC1, ProvisionJournal.STEP_MESH_NAME, 0);
+        journal.record(MAC2, ProvisionJournal.STEP_COMPLETED, 0);
+        check(journal.getStep(MAC1) == ProvisionJournal.STEP_LTK, "sticky");
+
+        long length = file.length();
+        journal.compact();
+        check(file.length() < length, "compact");
+        journal.close();
+
+        journal = open(file, "456");
+        check(journal.getAddress(MAC1) == 0x12, "compact address");
+        check(journal.getStep(MAC1) == ProvisionJournal.STEP_LTK, "compact step");
+        check(journal.getStep(MAC2) == ProvisionJournal.STEP_COMPLETED, "compact completed");
+        journal.close();
+    }
+
+    private static ProvisionJournal open(File file, String password) throws IOException {
+        return ProvisionJournal.open(file, Strings.stringToBytes("telink_mesh2", 16),
+                Strings.stringToBytes(password, 16), null);
+    }
+
+    private static File createFile() throws IOException {
+        File file = File.createTempFile("journal", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
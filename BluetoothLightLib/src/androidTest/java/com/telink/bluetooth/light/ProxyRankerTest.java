@@ -0,0 +1,79 @@
+package com.telink.bluetooth.light;
+
+import android.bluetooth.BluetoothAdapter;
+
+/**
+ * 在JVM上验证代理节点的选择,直接运行main即可
+ */
+public class ProxyRankerTest {
+
+    public static void main(String[] args) {
+        test1();
+        test2();
+        test3();
+        System.out.println("OK");
+    }
+
+    /**
+     * 偶尔一次很强的RSSI不会盖过一直稳定的节点
+     */
+    private static void test1() {
+        ProxyRanker ranker = new ProxyRanker();
+        LightPeripheral spike = create(1, -90);
+        LightPeripheral stable = create(2, -65);
+
+        long now = 1000;
+        for (int i = 0; i < 20; i++, now += 100) {
+            ranker.onAdvertise(spike, i == 19 ? -40 : -90, now);
+            ranker.onAdvertise(stable, -65, now);
+        }
+
+        check(ranker.select(new LightPeripheral[]{spike, stable}, now) == stable, "spike");
+        check(stable.getSignal().getCount() == 20, "count");
+    }
+
+    /**
+     * 长时间没有广播的节点排到后面
+     */
+    private static void test2() {
+        ProxyRanker ranker = new ProxyRanker();
+        LightPeripheral gone = create(1, -55);
+        LightPeripheral alive = create(2, -70);
+
+        ranker.onAdvertise(gone, -55, 1000);
+        ranker.onAdvertise(alive, -70, 1000);
+        ranker.onAdvertise(alive, -70, 20000);
+
+        check(ranker.select(new LightPeripheral[]{gone, alive}, 20000) == alive, "stale");
+    }
+
+    /**
+     * 最近连接失败的节点暂时让给其他节点,成功的节点优先
+     */
+    private static void test3() {
+        ProxyRanker ranker = new ProxyRanker();
+        LightPeripheral failed = create(1, -60);
+        LightPeripheral other = create(2, -66);
+
+        ranker.onAdvertise(failed, -60, 1000);
+        ranker.onAdvertise(other, -66, 1000);
+        check(ranker.select(new LightPeripheral[]{failed, other}, 1000) == failed, "rssi");
+
+        ranker.onFailure(failed, 1500);
+        check(ranker.select(new LightPeripheral[]{failed, other}, 2000) == other, "failure");
+
+        ranker.onSuccess(other, 2500);
+        check(ranker.score(other, 3000) > ranker.score(create(3, -66), 3000), "success");
+    }
+
+    private static LightPeripheral create(int index, int rssi) {
+        String mac = String.format("A4:C1:38:00:00:%02X", index);
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return new LightPeripheral(adapter.getRemoteDevice(mac), null, rssi, null, index);
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
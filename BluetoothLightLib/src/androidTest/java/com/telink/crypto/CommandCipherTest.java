@@ -0,0 +1,79 @@
+package com.telink.crypto;
+
+import com.telink.util.Arrays;
+
+/**
+ * 用libTelinkCrypto(x86_64)生成的向量验证{@link CommandCipher},直接运行main即可
+ */
+public class CommandCipherTest {
+
+    // session key, iv, 明文, encryptCmd的结果
+    private static final String[][] ENCRYPT_VECTORS = {
+            {"edec1abf3e6fdc8f97993fc68f47ebd2", "2b6fda8116fc07b6", "920f90badb3c4f110ee3fcd2d1bd05e6f5b0ae2e", "920f90daa38a560eae4c4a8015f74d13023dc6ce"},
+            {"a383f459128497f86a3d30a15b319502", "f1802a00dd9b268f", "2fcec97908cfa7fa1800f28dc8d09beffc934e3b", "2fcec9408f413b34f22213ffe8627df9b671d30d"},
+            {"09af246c08c65f659d582420ab382445", "9957ea95e485446b", "a213d933ca048be0c7ec40b2d10a8785d6d32680", "a213d9c8e93fd99310da75e508b6069414d2b572"},
+            {"8f4fbb585413e87a11ab16317a54ddb6", "087a552be19d6510", "4f582983d2a5b71596e9f9264968af063be1d920", "4f582986c12add1c1387cc8ec7d6af3f4e1819b9"},
+    };
+
+    // session key, iv, 通知密文, decryptCmd的结果
+    private static final String[][] DECRYPT_VECTORS = {
+            {"2c1119d09bb541d14b050d765938707c", "21b9e53972fca7fb", "6c22b4ed165d97f82c0763ef3e182f1718251e8f", "6c22b4ed165d97711a7a0e2b9f137f431bc66cc0"},
+            {"1c7cddf915cfdb7647070c0315ccb878", "e6175b7ca9be7b10", "e21c965c0bb57cc3f63b57ed29c579fb05bd1e0e", "e21c965c0bb57c139652c588471413bc2e4ddfda"},
+            {"81965a9706288ea7c269d2a866e95530", "f89316781caf8439", "10c59379b355fa8b05c13f17ccba03960c5dcf45", "10c59379b355fae64fd2014462b5b71952ce8d8e"},
+            {"e3521b0665fc89eed5ffadfe11e2f58f", "5879038803f838ab", "fc44a17fca14b0a33a07decc5cc6b1d1a606645c", "fc44a17fca14b08742f7dba0f905a7503c34a697"},
+    };
+
+    public static void main(String[] args) {
+        test1();
+        test2();
+        test3();
+        test4();
+        System.out.println("OK");
+    }
+
+    private static void test1() {
+        for (String[] vector : ENCRYPT_VECTORS) {
+            byte[] packet = Arrays.hexToBytes(vector[2]);
+            new CommandCipher(Arrays.hexToBytes(vector[0])).encrypt(Arrays.hexToBytes(vector[1]), packet);
+            check(Arrays.equals(Arrays.hexToBytes(vector[3]), packet), "encrypt " + vector[2]);
+        }
+    }
+
+    private static void test2() {
+        for (String[] vector : DECRYPT_VECTORS) {
+            byte[] packet = Arrays.hexToBytes(vector[2]);
+            boolean mic = new CommandCipher(Arrays.hexToBytes(vector[0])).decrypt(Arrays.hexToBytes(vector[1]), packet);
+            check(mic, "decrypt mic " + vector[2]);
+            check(Arrays.equals(Arrays.hexToBytes(vector[3]), packet), "decrypt " + vector[2]);
+        }
+    }
+
+    /**
+     * 同一个实例连续处理多个包
+     */
+    private static void test3() {
+        String[] vector = ENCRYPT_VECTORS[0];
+        CommandCipher cipher = new CommandCipher(Arrays.hexToBytes(vector[0]));
+        for (int i = 0; i < 3; i++) {
+            byte[] packet = Arrays.hexToBytes(vector[2]);
+            cipher.encrypt(Arrays.hexToBytes(vector[1]), packet);
+            check(Arrays.equals(Arrays.hexToBytes(vector[3]), packet), "reuse " + i);
+        }
+    }
+
+    /**
+     * 密文被改动时MIC校验失败
+     */
+    private static void test4() {
+        for (String[] vector : DECRYPT_VECTORS) {
+            byte[] packet = Arrays.hexToBytes(vector[2]);
+            packet[12] ^= 0x01;
+            check(!new CommandCipher(Arrays.hexToBytes(vector[0])).decrypt(Arrays.hexToBytes(vector[1]), packet), "tampered " + vector[2]);
+        }
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
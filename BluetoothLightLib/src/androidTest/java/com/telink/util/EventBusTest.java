@@ -0,0 +1,341 @@
+package com.telink.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多个线程同时dispatch,验证每个线程的事件按顺序回调并且不丢失,直接运行main即可
+ */
+public class EventBusTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS = 10000;
+
+    public static void main(String[] args) throws InterruptedException {
+        test1();
+        test2();
+        test3();
+        test4();
+        test5();
+        test6();
+        test7();
+        System.out.println("OK");
+        // EventBus的线程池不是守护线程
+        System.exit(0);
+    }
+
+    /**
+     * 后台线程上批量回调,每个生产者的顺序不变
+     */
+    private static void test1() throws InterruptedException {
+
+        final EventBus<Integer> eventBus = new EventBus<>();
+        final int[] last = new int[PRODUCERS];
+        final int[] errors = new int[1];
+        final CountDownLatch latch = new CountDownLatch(PRODUCERS * EVENTS);
+
+        for (int i = 0; i < PRODUCERS; i++)
+            last[i] = -1;
+
+        for (int i = 0; i < PRODUCERS; i++) {
+            eventBus.addEventListener(i, new EventListener<Integer>() {
+                @Override
+                public void performed(Event<Integer> event) {
+                    int producer = event.getType();
+                    int sequence = (Integer) event.getSender();
+                    if (sequence != last[producer] + 1)
+                        errors[0]++;
+                    last[producer] = sequence;
+                    latch.countDown();
+                }
+            });
+        }
+
+        Thread[] threads = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final int producer = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < EVENTS; j++)
+                        eventBus.dispatchEvent(new Event<>((Object) j, producer, Event.ThreadMode.Background));
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        check(latch.await(10, TimeUnit.SECONDS), "background completed");
+        check(errors[0] == 0, "background out of order : " + errors[0]);
+        check(eventBus.getPendingCount() == 0, "background pending");
+        check(eventBus.getDispatchedCount() == PRODUCERS * EVENTS, "background dispatched");
+    }
+
+    /**
+     * 线程模式交替时仍然保持dispatch的顺序
+     */
+    private static void test2() throws InterruptedException {
+
+        final EventBus<Integer> eventBus = new EventBus<>();
+        final int[] last = new int[]{-1};
+        final int[] errors = new int[1];
+        final CountDownLatch latch = new CountDownLatch(1000);
+
+        eventBus.addEventListener(0, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                int sequence = (Integer) event.getSender();
+                if (sequence != last[0] + 1)
+                    errors[0]++;
+                last[0] = sequence;
+                latch.countDown();
+            }
+        });
+
+        for (int i = 0; i < 1000; i++) {
+            Event.ThreadMode mode = i % 3 == 0 ? Event.ThreadMode.Default : Event.ThreadMode.Background;
+            eventBus.dispatchEvent(new Event<>((Object) i, 0, mode));
+        }
+
+        check(latch.await(10, TimeUnit.SECONDS), "mixed completed");
+        check(errors[0] == 0, "mixed out of order : " + errors[0]);
+    }
+
+    /**
+     * 容量为8的BLOCK队列,生产者等待而不是丢事件
+     */
+    private static void test3() throws InterruptedException {
+
+        final EventBus<Integer> eventBus = new EventBus<>();
+        eventBus.setCapacity(8, EventBus.OverflowPolicy.BLOCK);
+        final CountDownLatch latch = new CountDownLatch(PRODUCERS * 1000);
+        final AtomicInteger received = new AtomicInteger();
+
+        eventBus.addEventListener(0, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                received.incrementAndGet();
+                latch.countDown();
+            }
+        });
+
+        Thread[] threads = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++)
+                        eventBus.dispatchEvent(new Event<>(null, 0, Event.ThreadMode.Background));
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        check(latch.await(10, TimeUnit.SECONDS), "block completed");
+        check(received.get() == PRODUCERS * 1000, "block received");
+        check(eventBus.getDroppedCount() == 0, "block dropped");
+    }
+
+    /**
+     * 监听阻塞时DROP_OLDEST和COALESCE的队列不超过容量,没有设置合并的类型时COALESCE和DROP_OLDEST相同
+     */
+    private static void test4() throws InterruptedException {
+
+        for (EventBus.OverflowPolicy policy : new EventBus.OverflowPolicy[]{EventBus.OverflowPolicy.DROP_OLDEST, EventBus.OverflowPolicy.COALESCE}) {
+
+            final EventBus<Integer> eventBus = new EventBus<>();
+            eventBus.setCapacity(8, policy);
+            final CountDownLatch gate = new CountDownLatch(1);
+            final CountDownLatch entered = new CountDownLatch(1);
+
+            eventBus.addEventListener(0, new EventListener<Integer>() {
+                @Override
+                public void performed(Event<Integer> event) {
+                    entered.countDown();
+                    try {
+                        gate.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            });
+
+            eventBus.dispatchEvent(new Event<>(null, 0, Event.ThreadMode.Background));
+            check(entered.await(10, TimeUnit.SECONDS), policy + " entered");
+
+            for (int i = 1; i < 100; i++)
+                eventBus.dispatchEvent(new Event<>(null, i % 2, Event.ThreadMode.Background));
+
+            int queueSize = eventBus.getQueueSize();
+            gate.countDown();
+
+            // 第一个事件已经被drain取出
+            check(queueSize == 8, policy + " queue size : " + queueSize);
+            check(eventBus.getDroppedCount() == 100 - 1 - 8, policy + " dropped : " + eventBus.getDroppedCount());
+            check(eventBus.getCoalescedCount() == 0, policy + " coalesced");
+        }
+    }
+
+    /**
+     * 合并的事件类型在队列中只保留最新的一个
+     */
+    private static void test5() throws InterruptedException {
+
+        final EventBus<Integer> eventBus = new EventBus<>();
+        eventBus.setCoalescing(1, true);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final StringBuilder received = new StringBuilder();
+
+        eventBus.addEventListener(0, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                try {
+                    gate.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        eventBus.addEventListener(1, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                received.append(((ProgressEvent) event).progress).append(' ');
+            }
+        });
+        eventBus.addEventListener(2, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                done.countDown();
+            }
+        });
+
+        eventBus.dispatchEvent(new Event<>(null, 0, Event.ThreadMode.Background));
+        for (int i = 0; i <= 100; i++)
+            eventBus.dispatchEvent(new ProgressEvent(eventBus, i));
+        eventBus.dispatchEvent(new Event<>(null, 2, Event.ThreadMode.Background));
+        gate.countDown();
+
+        check(done.await(10, TimeUnit.SECONDS), "coalescing completed");
+        check("100 ".equals(received.toString()), "coalescing received : " + received);
+        check(eventBus.getCoalescedCount() == 100, "coalescing count");
+    }
+
+    /**
+     * COALESCE只合并设置了合并的类型,并且按来源合并;其他类型的事件不会被不同来源的同类事件替换
+     */
+    private static void test6() throws InterruptedException {
+
+        final EventBus<Integer> eventBus = new EventBus<>();
+        eventBus.setCapacity(8, EventBus.OverflowPolicy.COALESCE);
+        eventBus.setCoalescing(1, true);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final StringBuilder progress = new StringBuilder();
+        final StringBuilder notifications = new StringBuilder();
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        eventBus.addEventListener(0, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        eventBus.addEventListener(1, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                progress.append(((ProgressEvent) event).progress).append(' ');
+            }
+        });
+        eventBus.addEventListener(2, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                notifications.append(event.getSender()).append(' ');
+            }
+        });
+        eventBus.addEventListener(3, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                done.countDown();
+            }
+        });
+
+        eventBus.dispatchEvent(new Event<>(null, 0, Event.ThreadMode.Background));
+        check(entered.await(10, TimeUnit.SECONDS), "coalesce entered");
+
+        // 4个来源的进度,每个来源只保留最新的一个
+        Object[] senders = new Object[]{"a", "b", "c", "d"};
+        for (int i = 0; i < 100; i++)
+            eventBus.dispatchEvent(new ProgressEvent(senders[i % 4], i));
+        check(eventBus.getQueueSize() == 4, "coalesce senders : " + eventBus.getQueueSize());
+        check(eventBus.getCoalescedCount() == 96, "coalesce count : " + eventBus.getCoalescedCount());
+
+        // 不同设备的通知不合并,超过容量时丢掉最早的: a
+        for (int i = 0; i < 5; i++)
+            eventBus.dispatchEvent(new Event<Integer>(i, 2, Event.ThreadMode.Background));
+        check(eventBus.getQueueSize() == 8, "coalesce capacity : " + eventBus.getQueueSize());
+        check(eventBus.getDroppedCount() == 1, "coalesce dropped : " + eventBus.getDroppedCount());
+
+        // 丢掉b
+        eventBus.dispatchEvent(new Event<>(null, 3, Event.ThreadMode.Background));
+        gate.countDown();
+
+        check(done.await(10, TimeUnit.SECONDS), "coalesce completed");
+        check(eventBus.getDroppedCount() == 2, "coalesce dropped : " + eventBus.getDroppedCount());
+        check("98 99 ".equals(progress.toString()), "coalesce progress : " + progress);
+        check("0 1 2 3 4 ".equals(notifications.toString()), "coalesce notifications : " + notifications);
+    }
+
+    /**
+     * BLOCK在looper线程上dispatch时不阻塞,主线程上的drain才能继续
+     */
+    private static void test7() throws InterruptedException {
+
+        final EventBus<Integer> eventBus = new EventBus<>();
+        eventBus.setCapacity(1, EventBus.OverflowPolicy.BLOCK);
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(5);
+
+        eventBus.addEventListener(0, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                try {
+                    gate.await();
+                } catch (InterruptedException ignored) {
+                }
+                latch.countDown();
+            }
+        });
+
+        // main方法所在的线程是主线程
+        for (int i = 0; i < 5; i++)
+            eventBus.dispatchEvent(new Event<>(null, 0, Event.ThreadMode.Background));
+
+        check(eventBus.getBlockedCount() == 0, "looper blocked");
+        gate.countDown();
+        check(latch.await(10, TimeUnit.SECONDS), "looper completed");
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+
+    private static final class ProgressEvent extends Event<Integer> {
+
+        final int progress;
+
+        ProgressEvent(Object sender, int progress) {
+            super(sender, 1, ThreadMode.Background);
+            this.progress = progress;
+        }
+    }
+}
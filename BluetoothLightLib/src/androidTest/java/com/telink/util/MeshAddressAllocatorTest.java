@@ -0,0 +1,208 @@
+package com.telink.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * 验证地址分配器的顺序,并发分配,批量分配和保存恢复,直接运行main即可
+ */
+public class MeshAddressAllocatorTest {
+
+    private static final int THREADS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        test1();
+        test2();
+        test3();
+        test4();
+        test5();
+        System.out.println("OK");
+    }
+
+    /**
+     * 从上次分配的地址之后开始,到末尾后再用释放的空位,全部用完后返回-1
+     */
+    private static void test1() {
+        MeshAddressAllocator allocator = new MeshAddressAllocator();
+
+        check(allocator.allocDeviceAddress() == MeshUtils.DEVICE_ADDRESS_MIN, "first");
+        check(allocator.allocGroupAddress() == MeshUtils.GROUP_ADDRESS_MIN, "first group");
+        check(allocator.allocDeviceAddress() == 0x02, "second");
+
+        allocator.release(0x01);
+        check(allocator.allocDeviceAddress() == 0x03, "skip released");
+
+        check(allocator.reserve(0x80), "reserve");
+        check(!allocator.reserve(0x80), "reserve twice");
+        check(allocator.allocDeviceAddress() == 0x81, "after reserve");
+
+        while (allocator.getDeviceCount() < MeshUtils.DEVICE_ADDRESS_MAX)
+            check(allocator.allocDeviceAddress() != -1, "fill");
+        check(allocator.allocDeviceAddress() == -1, "full");
+        check(allocator.isAllocated(MeshUtils.DEVICE_ADDRESS_MAX), "max");
+
+        allocator.release(0x40);
+        check(allocator.allocDeviceAddress() == 0x40, "wrap");
+    }
+
+    /**
+     * 多个线程同时分配,地址不重复
+     */
+    private static void test2() throws InterruptedException {
+        final MeshAddressAllocator allocator = new MeshAddressAllocator();
+        final List<Integer> addresses = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int address;
+                    while ((address = allocator.allocGroupAddress()) != -1) {
+                        synchronized (addresses) {
+                            addresses.add(address);
+                        }
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+
+        latch.await();
+
+        boolean[] seen = new boolean[MeshUtils.GROUP_ADDRESS_MAX + 1];
+        for (int address : addresses) {
+            check(!seen[address], "duplicate " + Integer.toHexString(address));
+            seen[address] = true;
+        }
+        check(addresses.size() == MeshUtils.GROUP_ADDRESS_MAX - MeshUtils.GROUP_ADDRESS_MIN + 1, "count");
+    }
+
+    /**
+     * 批量分配,空闲地址不够时一个都不分配
+     */
+    private static void test3() {
+        MeshAddressAllocator allocator = new MeshAddressAllocator();
+
+        int[] addresses = allocator.allocDeviceAddresses(250);
+        check(addresses != null && addresses.length == 250, "bulk");
+        check(allocator.allocDeviceAddresses(10) == null, "bulk full");
+        check(allocator.getDeviceCount() == 250, "rollback");
+    }
+
+    /**
+     * 保存后恢复,从已使用的最大地址之后继续分配
+     */
+    private static void test4() {
+        MeshAddressAllocator allocator = new MeshAddressAllocator();
+        allocator.reserve(0x05);
+        allocator.reserve(0x20);
+        allocator.reserve(0x8010);
+
+        MeshAddressAllocator restored = MeshAddressAllocator.fromBytes(allocator.toBytes());
+        check(restored.getDeviceCount() == 2 && restored.getGroupCount() == 1, "restore count");
+        check(restored.isAllocated(0x20) && restored.isAllocated(0x8010), "restore bits");
+        check(restored.allocDeviceAddress() == 0x21, "restore cursor");
+        check(restored.allocGroupAddress() == 0x8011, "restore group cursor");
+
+        List<Integer> addresses = new ArrayList<>();
+        addresses.add(0x30);
+        addresses.add(0x8040);
+        addresses.add(0x4000);
+        restored.reserveAll(addresses);
+        check(restored.getDeviceCount() == 4 && restored.getGroupCount() == 3, "reserve all");
+        check(restored.allocDeviceAddress() == 0x31, "reserve all cursor");
+    }
+
+    /**
+     * MeshUtils原来的接口结果不变,和原来的实现比较随机的已用地址列表
+     */
+    private static void test5() {
+        List<Integer> addresses = new ArrayList<>();
+        check(MeshUtils.allocDeviceAddress(addresses) == MeshUtils.DEVICE_ADDRESS_MIN, "empty");
+
+        addresses.add(0x10);
+        addresses.add(0x03);
+        check(MeshUtils.allocDeviceAddress(addresses) == 0x11, "last + 1");
+
+        addresses.clear();
+        addresses.add(0x05);
+        addresses.add(MeshUtils.DEVICE_ADDRESS_MAX);
+        check(MeshUtils.allocDeviceAddress(addresses) == 0x06, "gap above lowest");
+
+        Random random = new Random(1);
+
+        for (int n = 0; n < 20000; n++) {
+            boolean group = random.nextBoolean();
+            int min = group ? MeshUtils.GROUP_ADDRESS_MIN : MeshUtils.DEVICE_ADDRESS_MIN;
+            int max = group ? MeshUtils.GROUP_ADDRESS_MAX : MeshUtils.DEVICE_ADDRESS_MAX;
+            int count = random.nextInt(max - min + 2);
+            addresses.clear();
+            for (int i = 0; i < count; i++) {
+                // 偏向高地址,覆盖最大地址已用的情况
+                addresses.add(random.nextInt(4) == 0 ? max - random.nextInt(4) : min + random.nextInt(max - min + 1));
+            }
+
+            List<Integer> copy = new ArrayList<>(addresses);
+            int expected = reference(copy, min, max);
+            int actual = group ? MeshUtils.allocGroupAddress(addresses) : MeshUtils.allocDeviceAddress(addresses);
+            check(expected == actual, "compat " + addresses + " : " + expected + " != " + actual);
+        }
+    }
+
+    /**
+     * 原来的MeshUtils.allocDeviceAddress/allocGroupAddress
+     */
+    private static int reference(List<Integer> allocAddress, int min, int max) {
+
+        if (allocAddress == null || allocAddress.isEmpty())
+            return min;
+
+        int count = allocAddress.size();
+
+        if (count > (max - min))
+            return -1;
+
+        Collections.sort(allocAddress);
+
+        Integer last = allocAddress.get(count - 1);
+
+        if ((last + 1) <= max)
+            return last + 1;
+
+        Integer prev = null;
+        Integer next;
+
+        int i = 0;
+
+        while (i < count) {
+
+            if (prev == null) {
+                prev = allocAddress.get(i);
+                i = 1;
+                continue;
+            }
+
+            next = allocAddress.get(i);
+
+            if ((prev + 1) != next && prev != max)
+                return prev + 1;
+
+            if ((i + 1) >= count)
+                return next >= max ? min : next + 1;
+
+            prev = next;
+            i++;
+        }
+
+        return -1;
+    }
+
+    private static void check(boolean value, String message) {
+        if (!value)
+            throw new AssertionError(message);
+    }
+}
@@ -33,6 +33,8 @@ import com.telink.util.Strings;
 
 public class TelinkApplication extends Application {
 
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(TelinkApplication.class);
+
     private static TelinkApplication mThis;
 
     protected final EventBus<String> mEventBus = new EventBus<>();
@@ -73,7 +75,7 @@ public class TelinkApplication extends Application {
         mThis = this;
         mContext = this;
         super.onCreate();
-        TelinkLog.d("TelinkApplication Created.");
+        LOG.d("TelinkApplication Created.");
     }
 
     public void doInit() {
@@ -223,13 +225,13 @@ public class TelinkApplication extends Application {
     }
 
     protected void serviceConnected(ComponentName name, IBinder service) {
-        TelinkLog.d("service connected --> " + name.getShortClassName());
+        LOG.d("service connected --> %s", name.getShortClassName());
         serviceConnected = true;
         dispatchEvent(ServiceEvent.newInstance(this, ServiceEvent.SERVICE_CONNECTED, service));
     }
 
     protected void serviceDisconnected(ComponentName name) {
-        TelinkLog.d("service disconnected --> " + name.getShortClassName());
+        LOG.d("service disconnected --> %s", name.getShortClassName());
         serviceConnected = false;
         dispatchEvent(ServiceEvent.newInstance(this, ServiceEvent.SERVICE_DISCONNECTED, null));
     }
@@ -285,7 +287,7 @@ public class TelinkApplication extends Application {
         String eventType = NotificationEvent.getEventType((byte) opcode);
         if (Strings.isEmpty(eventType))
             return;
-        TelinkLog.e("postCommand event : " + eventType + "--" + opcode);
+        LOG.e("postCommand event : %s--%d", eventType, opcode);
         NotificationEvent event = NotificationEvent.newInstance(this, eventType, notifyInfo);
         event.setThreadMode(Event.ThreadMode.Background);
         dispatchEvent(event);
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 系统BluetoothGatt的链路
+ */
+public final class AndroidGattTransport implements GattTransport {
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+            BluetoothGatt gatt = device.connectGatt(context, false, callback);
+            return gatt != null ? new AndroidGattTransport(gatt) : null;
+        }
+    };
+
+    private final BluetoothGatt gatt;
+
+    public AndroidGattTransport(BluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    public BluetoothGatt getGatt() {
+        return this.gatt;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return this.gatt.discoverServices();
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return this.gatt.getServices();
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID serviceUUID) {
+        return this.gatt.getService(serviceUUID);
+    }
+
+    @Override
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return this.gatt.readCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return this.gatt.writeCharacteristic(characteristic);
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return this.gatt.setCharacteristicNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return this.gatt.readRemoteRssi();
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && this.gatt.requestConnectionPriority(connectionPriority);
+    }
+
+    @Override
+    public void disconnect() {
+        this.gatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        this.gatt.close();
+    }
+}
@@ -10,12 +10,53 @@ import java.util.UUID;
 
 public class Command {
 
+    /**
+     * 交互控制命令,如开关灯,调光
+     */
+    public static final int PRIORITY_CONTROL = 0;
+    /**
+     * 登录,配对命令
+     */
+    public static final int PRIORITY_LOGIN = 1;
+    /**
+     * 状态查询命令
+     */
+    public static final int PRIORITY_STATUS = 2;
+    /**
+     * 大量数据传输,如OTA
+     */
+    public static final int PRIORITY_BULK = 3;
+
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object sPoolSync = new Object();
+    private static Command sPool;
+    private static int sPoolSize;
+
     public UUID serviceUUID;
     public UUID characteristicUUID;
     public CommandType type;
     public byte[] data;
     public Object tag;
     public int delay;
+    /**
+     * 命令优先级,数值越小越先发送,默认为{@link #PRIORITY_CONTROL}
+     */
+    public int priority = PRIORITY_CONTROL;
+    /**
+     * 合并键,队列中还未发送的相同合并键的命令会被新命令原地替换,0表示不合并
+     */
+    public int coalesceKey;
+    /**
+     * 命令超时时间,单位毫秒,小于等于0时使用{@link Peripheral}的默认超时时间
+     */
+    public int timeout;
+    /**
+     * 由{@link #obtain()}取得的命令,完成后会被{@link Peripheral}回收,回调中如果要持有它需要设置为false
+     */
+    public boolean recyclable;
+
+    private Command next;
+    private boolean inPool;
 
     public Command() {
         this(null, null, CommandType.WRITE);
@@ -44,6 +85,54 @@ public class Command {
         return new Command();
     }
 
+    /**
+     * 从回收池中取得一个命令,{@link #data}保留上次使用的缓冲区,可以直接复用
+     */
+    public static Command obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                Command command = sPool;
+                sPool = command.next;
+                command.next = null;
+                command.inPool = false;
+                sPoolSize--;
+                return command;
+            }
+        }
+        Command command = new Command();
+        command.recyclable = true;
+        return command;
+    }
+
+    /**
+     * 放回回收池,{@link #recyclable}为false时不做处理
+     */
+    public void recycle() {
+
+        if (!this.recyclable)
+            return;
+
+        byte[] buffer = this.data;
+
+        this.clear();
+        this.data = buffer;
+        this.type = CommandType.WRITE;
+        this.tag = null;
+        this.delay = 0;
+        this.priority = PRIORITY_CONTROL;
+        this.coalesceKey = 0;
+        this.timeout = 0;
+
+        synchronized (sPoolSync) {
+            if (this.inPool || sPoolSize >= MAX_POOL_SIZE)
+                return;
+            this.inPool = true;
+            this.next = sPool;
+            sPool = this;
+            sPoolSize++;
+        }
+    }
+
     public void clear() {
         this.serviceUUID = null;
         this.characteristicUUID = null;
@@ -58,7 +147,7 @@ public class Command {
             d = Arrays.bytesToHexString(this.data, ",");
 
         return "{ tag : " + this.tag + ", type : " + this.type
-                + " characteristicUUID :" + characteristicUUID.toString() + " data: " + d + " delay :" + delay + "}";
+                + " characteristicUUID :" + characteristicUUID.toString() + " data: " + d + " delay :" + delay + " priority :" + priority + " timeout :" + timeout + "}";
     }
 
     public enum CommandType {
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+final class CommandContext {
+
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object sPoolSync = new Object();
+    private static CommandContext sPool;
+    private static int sPoolSize;
+
+    public Command command;
+    public Command.Callback callback;
+    // 进入队列的时间
+    public long time;
+    // 超时的截止时间(SystemClock.uptimeMillis),0表示没有计时
+    public long deadline;
+    // DeadlineQueue中当前有效的条目,回收后会被别的连接复用,只比较截止时间分不出是谁的条目
+    Object deadlineEntry;
+    // 这个命令在途时,同一特性的回调被已经超时的命令认领了,可能其实是这个命令的回调,超时时按它完成
+    public boolean absorbed;
+    public int absorbedStatus;
+    public byte[] absorbedData;
+
+    private CommandContext next;
+    private boolean inPool;
+
+    public CommandContext(Command.Callback callback, Command command) {
+        this.callback = callback;
+        this.command = command;
+    }
+
+    public static CommandContext obtain(Command.Callback callback, Command command) {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                CommandContext commandContext = sPool;
+                sPool = commandContext.next;
+                commandContext.next = null;
+                commandContext.inPool = false;
+                sPoolSize--;
+                commandContext.callback = callback;
+                commandContext.command = command;
+                return commandContext;
+            }
+        }
+        return new CommandContext(callback, command);
+    }
+
+    public void clear() {
+        this.command = null;
+        this.callback = null;
+    }
+
+    /**
+     * 命令完成后放回回收池,同时回收命令
+     */
+    public void recycle(Command command) {
+
+        if (command != null)
+            command.recycle();
+
+        this.clear();
+        this.time = 0;
+        this.deadline = 0;
+        this.deadlineEntry = null;
+        this.absorbed = false;
+        this.absorbedData = null;
+
+        synchronized (sPoolSync) {
+            if (this.inPool || sPoolSize >= MAX_POOL_SIZE)
+                return;
+            this.inPool = true;
+            this.next = sPool;
+            sPool = this;
+            sPoolSize++;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * 按优先级分道的命令队列
+ * <p>每个{@link Command#priority}对应一个FIFO通道,总是先发送优先级高的通道.
+ * 低优先级通道的队首等待超过{@link #getStarvationTime()}时会被提前发送一次,避免被饿死.
+ * <p>设置了{@link Command#coalesceKey}的命令,如果通道中已有相同key还未发送的命令,直接替换它,保持原来的位置.
+ */
+final class CommandQueue {
+
+    public static final int LANE_COUNT = Command.PRIORITY_BULK + 1;
+    public static final int DEFAULT_STARVATION_TIME = 2000;
+
+    private final Lane[] lanes = new Lane[LANE_COUNT];
+    private int starvationTime = DEFAULT_STARVATION_TIME;
+
+    public CommandQueue() {
+        for (int i = 0; i < LANE_COUNT; i++)
+            this.lanes[i] = new Lane();
+    }
+
+    private static int laneOf(Command command) {
+        return laneOf(command.priority);
+    }
+
+    /**
+     * 超出范围的优先级归到两端的通道,和入队时一样
+     */
+    private static int laneOf(int priority) {
+        if (priority < Command.PRIORITY_CONTROL)
+            return Command.PRIORITY_CONTROL;
+        if (priority > Command.PRIORITY_BULK)
+            return Command.PRIORITY_BULK;
+        return priority;
+    }
+
+    public synchronized int getStarvationTime() {
+        return this.starvationTime;
+    }
+
+    public synchronized void setStarvationTime(int starvationTime) {
+        this.starvationTime = starvationTime;
+    }
+
+    /**
+     * @return true 替换了队列中相同合并键的命令
+     */
+    public synchronized boolean add(CommandContext commandContext) {
+        Command command = commandContext.command;
+        Lane lane = this.lanes[laneOf(command)];
+
+        if (command.coalesceKey != 0) {
+            CommandContext pending = lane.pending.get(command.coalesceKey);
+            if (pending != null) {
+                // 被替换的命令不会再有回调
+                Command superseded = pending.command;
+                pending.command = command;
+                if (superseded != command)
+                    superseded.recycle();
+                pending.callback = commandContext.callback;
+                lane.coalesced++;
+                commandContext.recycle(null);
+                return true;
+            }
+            lane.pending.put(command.coalesceKey, commandContext);
+        }
+
+        long now = System.currentTimeMillis();
+        commandContext.time = now;
+        if (lane.queue.isEmpty())
+            lane.lastServed = now;
+        lane.queue.add(commandContext);
+        lane.enqueued++;
+        return false;
+    }
+
+    /**
+     * 下一个要发送的命令
+     */
+    public synchronized CommandContext peek() {
+        Lane lane = this.select(System.currentTimeMillis());
+        return lane != null ? lane.queue.peek() : null;
+    }
+
+    public synchronized boolean remove(CommandContext commandContext) {
+        Lane lane = this.lanes[laneOf(commandContext.command)];
+
+        if (lane.queue.peek() == commandContext) {
+            lane.queue.poll();
+        } else if (!lane.queue.remove(commandContext)) {
+            return false;
+        }
+
+        int key = commandContext.command.coalesceKey;
+        if (key != 0 && lane.pending.get(key) == commandContext)
+            lane.pending.remove(key);
+
+        long now = System.currentTimeMillis();
+        long wait = now - commandContext.time;
+
+        lane.lastServed = now;
+        lane.dequeued++;
+        lane.totalWait += wait;
+        if (wait > lane.maxWait)
+            lane.maxWait = wait;
+
+        return true;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (Lane lane : this.lanes) {
+            if (!lane.queue.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Lane lane : this.lanes)
+            size += lane.queue.size();
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (Lane lane : this.lanes) {
+            lane.queue.clear();
+            lane.pending.clear();
+        }
+    }
+
+    /**
+     * 通道中等待发送的命令数
+     */
+    public synchronized int getDepth(int priority) {
+        return this.lanes[laneOf(priority)].queue.size();
+    }
+
+    /**
+     * 通道中命令的平均等待时间
+     */
+    public synchronized long getAverageWaitTime(int priority) {
+        Lane lane = this.lanes[laneOf(priority)];
+        return lane.dequeued == 0 ? 0 : lane.totalWait / lane.dequeued;
+    }
+
+    /**
+     * 通道中命令的最长等待时间
+     */
+    public synchronized long getMaxWaitTime(int priority) {
+        return this.lanes[laneOf(priority)].maxWait;
+    }
+
+    public synchronized long getEnqueuedCount(int priority) {
+        return this.lanes[laneOf(priority)].enqueued;
+    }
+
+    /**
+     * 通道中被合并(替换)掉的命令数
+     */
+    public synchronized long getCoalescedCount(int priority) {
+        return this.lanes[laneOf(priority)].coalesced;
+    }
+
+    public synchronized void resetCounters() {
+        for (Lane lane : this.lanes) {
+            lane.enqueued = 0;
+            lane.coalesced = 0;
+            lane.dequeued = 0;
+            lane.totalWait = 0;
+            lane.maxWait = 0;
+        }
+    }
+
+    private Lane select(long now) {
+
+        Lane top = null;
+        Lane starved = null;
+        long starvedWait = 0;
+
+        for (Lane lane : this.lanes) {
+
+            CommandContext head = lane.queue.peek();
+
+            if (head == null)
+                continue;
+
+            if (top == null) {
+                top = lane;
+                continue;
+            }
+
+            // 从队首入队或者通道上次被服务开始计算,保证每个周期最多提前一次
+            long wait = now - Math.max(head.time, lane.lastServed);
+
+            if (wait >= this.starvationTime && wait > starvedWait) {
+                starved = lane;
+                starvedWait = wait;
+            }
+        }
+
+        return starved != null ? starved : top;
+    }
+
+    private static final class Lane {
+        final ArrayDeque<CommandContext> queue = new ArrayDeque<>();
+        // 合并键 -> 还未发送的命令,int键不装箱,入队出队不分配
+        final SparseArray<CommandContext> pending = new SparseArray<>();
+        long lastServed;
+        long enqueued;
+        long coalesced;
+        long dequeued;
+        long totalWait;
+        long maxWait;
+    }
+}
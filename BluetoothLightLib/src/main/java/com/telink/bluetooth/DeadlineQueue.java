@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * 在途命令的超时队列,按截止时间排序的最小堆
+ * <p>取消只是把{@link CommandContext#deadline}清零,堆中失效的条目在到达堆顶时丢弃,取消为O(1).
+ * CommandContext会回收复用,条目是否有效看它是不是命令当前的条目,不看截止时间.
+ * 出堆的条目放回空闲列表复用.
+ */
+final class DeadlineQueue {
+
+    private static final Comparator<Entry> COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.deadline < rhs.deadline ? -1 : (lhs.deadline == rhs.deadline ? 0 : 1);
+        }
+    };
+
+    private final PriorityQueue<Entry> heap = new PriorityQueue<>(16, COMPARATOR);
+    private final ArrayDeque<Entry> free = new ArrayDeque<>();
+
+    /**
+     * @return 是否成为最早的截止时间,需要重新设置定时器
+     */
+    public synchronized boolean schedule(CommandContext commandContext, long deadline) {
+        commandContext.deadline = deadline;
+        Entry entry = this.free.poll();
+        if (entry == null)
+            entry = new Entry();
+        entry.context = commandContext;
+        entry.deadline = deadline;
+        commandContext.deadlineEntry = entry;
+        this.heap.add(entry);
+        this.purge();
+        return this.heap.peek().context == commandContext;
+    }
+
+    public synchronized void cancel(CommandContext commandContext) {
+        commandContext.deadline = 0;
+        commandContext.deadlineEntry = null;
+    }
+
+    /**
+     * 取出一个已超时的命令
+     *
+     * @return 没有超时的命令时返回null
+     */
+    public synchronized CommandContext pollExpired(long now) {
+        this.purge();
+        Entry entry = this.heap.peek();
+        if (entry == null || entry.deadline > now)
+            return null;
+        this.heap.poll();
+        CommandContext commandContext = entry.context;
+        commandContext.deadline = 0;
+        commandContext.deadlineEntry = null;
+        this.release(entry);
+        return commandContext;
+    }
+
+    /**
+     * @return 最早的截止时间,没有时返回0
+     */
+    public synchronized long nextDeadline() {
+        this.purge();
+        Entry entry = this.heap.peek();
+        return entry != null ? entry.deadline : 0;
+    }
+
+    public synchronized void clear() {
+        Entry entry;
+        while ((entry = this.heap.poll()) != null) {
+            if (entry.context.deadlineEntry == entry) {
+                entry.context.deadline = 0;
+                entry.context.deadlineEntry = null;
+            }
+            this.release(entry);
+        }
+    }
+
+    private void purge() {
+        Entry entry;
+        while ((entry = this.heap.peek()) != null && entry.context.deadlineEntry != entry) {
+            this.heap.poll();
+            this.release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        entry.context = null;
+        this.free.add(entry);
+    }
+
+    private static final class Entry {
+        CommandContext context;
+        long deadline;
+    }
+}
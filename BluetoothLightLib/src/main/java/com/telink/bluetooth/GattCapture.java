@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GATT操作的二进制抓包
+ * <p>通过{@link Peripheral#setCapture(GattCapture)}开启后,Peripheral的写,读,Notify和Descriptor写入都会记录下来,
+ * LightController解密后的Notify另外记录为{@link #TYPE_DECRYPTED}.
+ * 记录先写到预先分配的缓冲区,满了才写入文件;设置了大小上限时超出的记录直接丢弃并计数.
+ * <p>文件格式: 头部"TLGC" + 版本号(1字节),之后每条记录为
+ * <pre>
+ * type(1) status(2) connection(2) uuid(1) timestamp(8) length(2) data(length)
+ * </pre>
+ * timestamp是相对开始抓包时的纳秒数.connection是{@link Peripheral#getConnectionId()},区分同时存在的多个连接.
+ * uuid是特征值的编号,第一次出现时先写一条{@link #TYPE_UUID}记录,data为16字节的UUID.
+ * 写入记录的data是提交写入时的数据.版本1的文件没有connection,status只有1字节,仍然可以读取.
+ * 用{@link Reader}读取,{@link com.telink.bluetooth.light.GattReplay}回放.
+ */
+public final class GattCapture implements Closeable {
+
+    public static final int TYPE_UUID = 0;
+    public static final int TYPE_WRITE = 1;
+    public static final int TYPE_READ = 2;
+    public static final int TYPE_NOTIFY = 3;
+    public static final int TYPE_DESCRIPTOR_WRITE = 4;
+    public static final int TYPE_DECRYPTED = 5;
+
+    static final byte[] MAGIC = new byte[]{'T', 'L', 'G', 'C'};
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 16;
+
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_UUID_COUNT = 255;
+
+    private final OutputStream out;
+    private final ByteBuffer buffer;
+    private final long maxBytes;
+    private final long startTime;
+    private final List<UUID> uuids = new ArrayList<>();
+
+    private long size;
+    private long recordCount;
+    private long droppedCount;
+    private boolean closed;
+
+    /**
+     * @param maxBytes 文件大小上限,小于等于0时不限制
+     */
+    public GattCapture(File file, long maxBytes) throws IOException {
+        this(new FileOutputStream(file), DEFAULT_BUFFER_SIZE, maxBytes);
+    }
+
+    public GattCapture(OutputStream out, int bufferSize, long maxBytes) throws IOException {
+        this.out = out;
+        this.buffer = ByteBuffer.allocate(Math.max(bufferSize, 1024));
+        this.maxBytes = maxBytes;
+        this.startTime = System.nanoTime();
+
+        this.buffer.put(MAGIC).put((byte) VERSION);
+        this.size = this.buffer.position();
+    }
+
+    /**
+     * 记录一次GATT操作,在GATT回调线程上调用,不抛出异常
+     *
+     * @param connection     连接编号,{@link Peripheral#getConnectionId()}
+     * @param characteristic 特征值或Descriptor的UUID,可以为null
+     */
+    public synchronized void record(int type, int connection, UUID characteristic, int status, byte[] data) {
+
+        if (this.closed)
+            return;
+
+        long timestamp = System.nanoTime() - this.startTime;
+        int length = data == null ? 0 : Math.min(data.length, 0xFFFF);
+        int index = characteristic == null ? 0xFF : this.uuids.indexOf(characteristic);
+        boolean define = index < 0;
+        int required = HEADER_LENGTH + length + (define ? HEADER_LENGTH + 16 : 0);
+
+        if (define && this.uuids.size() >= MAX_UUID_COUNT) {
+            this.droppedCount++;
+            return;
+        }
+
+        if (this.maxBytes > 0 && this.size + required > this.maxBytes) {
+            this.droppedCount++;
+            return;
+        }
+
+        try {
+            if (define) {
+                index = this.uuids.size();
+                this.uuids.add(characteristic);
+                this.ensureCapacity(HEADER_LENGTH + 16);
+                this.putHeader(TYPE_UUID, 0, 0, index, timestamp, 16);
+                this.buffer.putLong(characteristic.getMostSignificantBits());
+                this.buffer.putLong(characteristic.getLeastSignificantBits());
+            }
+
+            this.ensureCapacity(HEADER_LENGTH + length);
+            this.putHeader(type, status, connection, index, timestamp, length);
+            if (length > this.buffer.remaining()) {
+                // 比缓冲区还大的数据直接写入
+                this.drain();
+                this.out.write(data, 0, length);
+            } else if (length > 0) {
+                this.buffer.put(data, 0, length);
+            }
+        } catch (IOException e) {
+            // 写不进去后不再记录,关闭文件
+            this.closed = true;
+            try {
+                this.out.close();
+            } catch (IOException ignored) {
+            }
+            return;
+        }
+
+        this.size += required;
+        this.recordCount++;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (this.closed)
+            return;
+        this.drain();
+        this.out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed)
+            return;
+        try {
+            this.drain();
+        } finally {
+            this.closed = true;
+            this.out.close();
+        }
+    }
+
+    public synchronized long getSize() {
+        return this.size;
+    }
+
+    public synchronized long getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * 超出大小上限被丢弃的记录数
+     */
+    public synchronized long getDroppedCount() {
+        return this.droppedCount;
+    }
+
+    public static Reader open(File file) throws IOException {
+        return new Reader(new FileInputStream(file));
+    }
+
+    private void putHeader(int type, int status, int connection, int index, long timestamp, int length) {
+        this.buffer.put((byte) type)
+                .putShort((short) status)
+                .putShort((short) connection)
+                .put((byte) index)
+                .putLong(timestamp)
+                .putShort((short) length);
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (this.buffer.remaining() < length)
+            this.drain();
+    }
+
+    private void drain() throws IOException {
+        if (this.buffer.position() == 0)
+            return;
+        this.out.write(this.buffer.array(), 0, this.buffer.position());
+        this.buffer.clear();
+    }
+
+    /**
+     * 一条抓包记录
+     */
+    public static final class Record {
+
+        public int type;
+        public int status;
+        /**
+         * 连接编号,版本1的文件为0
+         */
+        public int connection;
+        /**
+         * 相对开始抓包时的纳秒数
+         */
+        public long timestamp;
+        public UUID characteristic;
+        public byte[] data;
+
+        @Override
+        public String toString() {
+            return "Record{type=" + type + ", status=" + status + ", connection=" + connection + ", timestamp=" + timestamp
+                    + ", characteristic=" + characteristic
+                    + ", data=" + com.telink.util.Arrays.bytesToHexString(data, ":") + "}";
+        }
+    }
+
+    /**
+     * 顺序读取抓包文件,{@link #TYPE_UUID}记录不会返回
+     */
+    public static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final List<UUID> uuids = new ArrayList<>();
+        private final int version;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC))
+                throw new IOException("not a gatt capture");
+            this.version = this.in.readUnsignedByte();
+            if (this.version < 1 || this.version > VERSION)
+                throw new IOException("unsupported capture version : " + this.version);
+        }
+
+        /**
+         * @return 读到结尾时返回null
+         */
+        public Record next() throws IOException {
+
+            for (; ; ) {
+
+                int type = this.in.read();
+                if (type < 0)
+                    return null;
+
+                try {
+                    int status;
+                    int connection = 0;
+                    if (this.version == 1) {
+                        status = this.in.readUnsignedByte();
+                    } else {
+                        status = this.in.readUnsignedShort();
+                        connection = this.in.readUnsignedShort();
+                    }
+                    int index = this.in.readUnsignedByte();
+                    long timestamp = this.in.readLong();
+                    byte[] data = new byte[this.in.readUnsignedShort()];
+                    this.in.readFully(data);
+
+                    if (type == TYPE_UUID) {
+                        ByteBuffer value = ByteBuffer.wrap(data);
+                        this.uuids.add(index, new UUID(value.getLong(), value.getLong()));
+                        continue;
+                    }
+
+                    Record record = new Record();
+                    record.type = type;
+                    record.status = status;
+                    record.connection = connection;
+                    record.timestamp = timestamp;
+                    record.characteristic = index < this.uuids.size() ? this.uuids.get(index) : null;
+                    record.data = data;
+                    return record;
+                } catch (EOFException e) {
+                    // 没写完的最后一条记录
+                    return null;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
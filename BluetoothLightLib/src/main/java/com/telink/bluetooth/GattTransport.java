@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link Peripheral}的GATT链路
+ * <p>默认由{@link AndroidGattTransport}通过BluetoothGatt实现,也可以替换为模拟的设备,在没有真实灯的环境中测试上层协议.
+ * 结果通过连接时传入的{@link BluetoothGattCallback}异步回调,回调中的BluetoothGatt参数可能为null,不要使用它.
+ */
+public interface GattTransport {
+
+    boolean discoverServices();
+
+    List<BluetoothGattService> getServices();
+
+    BluetoothGattService getService(UUID serviceUUID);
+
+    boolean readCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+
+    boolean readRemoteRssi();
+
+    boolean requestConnectionPriority(int connectionPriority);
+
+    void disconnect();
+
+    void close();
+
+    interface Factory {
+
+        /**
+         * 发起连接
+         *
+         * @return 无法连接时返回null
+         */
+        GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback);
+    }
+}
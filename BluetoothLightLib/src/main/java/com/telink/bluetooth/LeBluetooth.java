@@ -9,10 +9,14 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.os.Build;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -38,6 +42,7 @@ public final class LeBluetooth {
     private LeScanCallback mCallback;
     private BluetoothAdapter mAdapter;
     private Context mContext;
+    private volatile ScanConfig mScanConfig;
 
     /********************************************************************************
      * Construct
@@ -76,6 +81,17 @@ public final class LeBluetooth {
         }
     }
 
+    /**
+     * 设置下一次扫描使用的过滤和扫描参数,只在Android 5.0以上有效,传null时不过滤并使用系统默认参数
+     */
+    public void setScanConfig(ScanConfig config) {
+        this.mScanConfig = config;
+    }
+
+    public ScanConfig getScanConfig() {
+        return this.mScanConfig;
+    }
+
     /**
      * 设置回调函数
      *
@@ -91,13 +107,16 @@ public final class LeBluetooth {
 
                 @Override
                 public void onScanResult(int callbackType, ScanResult result) {
-                    if (isSupportLollipop()) {
-                        byte[] scanRecord = null;
+                    if (isSupportLollipop())
+                        onResult(result);
+                }
 
-                        if (result.getScanRecord() != null)
-                            scanRecord = result.getScanRecord().getBytes();
-                        if (mCallback != null)
-                            mCallback.onLeScan(result.getDevice(), result.getRssi(), scanRecord);
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    // 设置了reportDelay时批量上报
+                    if (isSupportLollipop()) {
+                        for (ScanResult result : results)
+                            onResult(result);
                     }
                 }
 
@@ -120,6 +139,15 @@ public final class LeBluetooth {
         }
     }
 
+    private void onResult(ScanResult result) {
+        byte[] scanRecord = null;
+
+        if (result.getScanRecord() != null)
+            scanRecord = result.getScanRecord().getBytes();
+        if (mCallback != null)
+            mCallback.onLeScan(result.getDevice(), result.getRssi(), scanRecord);
+    }
+
     /**
      * 开始扫描
      *
@@ -162,7 +190,11 @@ public final class LeBluetooth {
                 if (mCallback != null)
                     mCallback.onScanFail(SCAN_FAILED_FEATURE_UNSUPPORTED);
             } else {
-                mScanner.startScan(mScanCallback);
+                ScanConfig config = this.mScanConfig;
+                if (config == null)
+                    mScanner.startScan(mScanCallback);
+                else
+                    mScanner.startScan(config.buildFilters(), config.buildSettings(mAdapter), mScanCallback);
                 synchronized (this) {
                     mScanning = true;
                 }
@@ -267,6 +299,105 @@ public final class LeBluetooth {
         return this.mAdapter;
     }
 
+    /**
+     * 扫描过滤和扫描参数
+     * <p>厂商ID的过滤在控制器支持时由蓝牙芯片完成({@link BluetoothAdapter#isOffloadedFilteringSupported()}),
+     * 不符合的广播包不会唤醒应用.
+     */
+    public static final class ScanConfig {
+
+        private int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+        private int matchMode = ScanSettings.MATCH_MODE_AGGRESSIVE;
+        private int numOfMatches = ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT;
+        private long reportDelayMillis;
+        private int[] manufacturerIds;
+
+        /**
+         * {@link ScanSettings#SCAN_MODE_LOW_POWER},{@link ScanSettings#SCAN_MODE_BALANCED}或{@link ScanSettings#SCAN_MODE_LOW_LATENCY}
+         */
+        public ScanConfig setScanMode(int scanMode) {
+            this.scanMode = scanMode;
+            return this;
+        }
+
+        /**
+         * Android 6.0以上有效,{@link ScanSettings#MATCH_MODE_AGGRESSIVE}或{@link ScanSettings#MATCH_MODE_STICKY}
+         */
+        public ScanConfig setMatchMode(int matchMode) {
+            this.matchMode = matchMode;
+            return this;
+        }
+
+        /**
+         * Android 6.0以上有效
+         */
+        public ScanConfig setNumOfMatches(int numOfMatches) {
+            this.numOfMatches = numOfMatches;
+            return this;
+        }
+
+        /**
+         * 大于0时批量上报,控制器不支持批量扫描时忽略
+         */
+        public ScanConfig setReportDelay(long millis) {
+            this.reportDelayMillis = millis;
+            return this;
+        }
+
+        /**
+         * 只上报包含这些厂商数据的广播包,ID是广播包中厂商数据前两个字节按小端读出的值
+         */
+        public ScanConfig setManufacturerIds(int... manufacturerIds) {
+            this.manufacturerIds = manufacturerIds;
+            return this;
+        }
+
+        public int getScanMode() {
+            return this.scanMode;
+        }
+
+        public int getMatchMode() {
+            return this.matchMode;
+        }
+
+        public long getReportDelay() {
+            return this.reportDelayMillis;
+        }
+
+        public int[] getManufacturerIds() {
+            return this.manufacturerIds;
+        }
+
+        List<ScanFilter> buildFilters() {
+
+            if (this.manufacturerIds == null || this.manufacturerIds.length == 0)
+                return null;
+
+            List<ScanFilter> filters = new ArrayList<>(this.manufacturerIds.length);
+
+            for (int id : this.manufacturerIds)
+                filters.add(new ScanFilter.Builder().setManufacturerData(id, new byte[0]).build());
+
+            return filters;
+        }
+
+        ScanSettings buildSettings(BluetoothAdapter adapter) {
+
+            ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(this.scanMode);
+
+            if (this.reportDelayMillis > 0 && adapter.isOffloadedScanBatchingSupported())
+                builder.setReportDelay(this.reportDelayMillis);
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                builder.setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                        .setMatchMode(this.matchMode)
+                        .setNumOfMatches(this.numOfMatches);
+            }
+
+            return builder.build();
+        }
+    }
+
     public interface LeScanCallback {
         void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord);
 
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Locale;
+
+/**
+ * {@link TelinkLog}的日志文件写入
+ * <p>调用线程只把日志放进固定大小的环形缓冲区,满了直接丢弃并计数,不会阻塞.
+ * 一个后台线程批量取出写入一直打开的文件,每批写完flush,跨天时切换到新的文件.
+ * <p>SD卡不可用或打开/写入失败时,这期间的日志也算丢弃,之后按1s,2s,4s...最长60s的间隔重新打开.
+ * <p>{@link #installCrashHandler()}后未捕获的异常导致崩溃前会先把缓冲区写完.
+ */
+final class LogWriter implements Runnable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 60 * 1000;
+
+    private static LogWriter sInstance;
+    private static boolean sCrashHandlerInstalled;
+
+    private final int capacity;
+    private final long[] times;
+    private final String[] paths;
+    private final String[] tags;
+    private final String[] messages;
+    private int head;
+    private int count;
+
+    private final Object lock = new Object();
+    private long enqueued;
+    private long written;
+    private long dropped;
+    private Thread thread;
+
+    // 以下只在写入线程上访问
+    private final long[] batchTimes;
+    private final String[] batchPaths;
+    private final String[] batchTags;
+    private final String[] batchMessages;
+    private final StringBuilder line = new StringBuilder(256);
+    private Writer out;
+    private String currentPath;
+    private String currentBase;
+    private long dayStart;
+    private long dayEnd;
+    private String datePrefix;
+    // 文件打不开时下次重试的时间和间隔
+    private long retryTime;
+    private long retryDelay;
+    // 这一批中没有写入文件的日志数
+    private int lost;
+
+    LogWriter(int capacity) {
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.paths = new String[capacity];
+        this.tags = new String[capacity];
+        this.messages = new String[capacity];
+        this.batchTimes = new long[capacity];
+        this.batchPaths = new String[capacity];
+        this.batchTags = new String[capacity];
+        this.batchMessages = new String[capacity];
+    }
+
+    static synchronized LogWriter getInstance() {
+        if (sInstance == null)
+            sInstance = new LogWriter(DEFAULT_CAPACITY);
+        return sInstance;
+    }
+
+    /**
+     * 设置默认的UncaughtExceptionHandler,崩溃前等待缓冲区写完再交给原来的handler,多次调用只设置一次
+     */
+    static synchronized void installCrashHandler() {
+
+        if (sCrashHandlerInstalled)
+            return;
+
+        sCrashHandlerInstalled = true;
+
+        final Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                getInstance().flush(1000);
+                if (previous != null)
+                    previous.uncaughtException(t, e);
+            }
+        });
+    }
+
+    /**
+     * @return 缓冲区已满被丢弃时返回false
+     */
+    boolean offer(String path, String tag, String msg) {
+
+        long now = System.currentTimeMillis();
+
+        synchronized (this.lock) {
+
+            if (this.count == this.capacity) {
+                this.dropped++;
+                return false;
+            }
+
+            int index = (this.head + this.count) % this.capacity;
+            this.times[index] = now;
+            this.paths[index] = path;
+            this.tags[index] = tag;
+            this.messages[index] = msg;
+            this.count++;
+            this.enqueued++;
+
+            if (this.thread == null)
+                this.start();
+            else if (this.count == 1)
+                this.lock.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * 等待之前的日志全部写入文件
+     *
+     * @return 是否在超时前写完
+     */
+    boolean flush(long timeoutMillis) {
+
+        synchronized (this.lock) {
+
+            if (this.thread == null || Thread.currentThread() == this.thread)
+                return this.written >= this.enqueued;
+
+            long target = this.enqueued;
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+
+            try {
+                while (this.written < target) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        return false;
+                    this.lock.wait(wait);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            return true;
+        }
+    }
+
+    long getDroppedCount() {
+        synchronized (this.lock) {
+            return this.dropped;
+        }
+    }
+
+    int getPendingCount() {
+        synchronized (this.lock) {
+            return this.count;
+        }
+    }
+
+    private void start() {
+        this.thread = new Thread(this, "TelinkLogWriter");
+        this.thread.setDaemon(true);
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+
+        for (; ; ) {
+
+            int size;
+
+            synchronized (this.lock) {
+                try {
+                    while (this.count == 0)
+                        this.lock.wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                size = this.count;
+                for (int i = 0; i < size; i++) {
+                    int index = (this.head + i) % this.capacity;
+                    this.batchTimes[i] = this.times[index];
+                    this.batchPaths[i] = this.paths[index];
+                    this.batchTags[i] = this.tags[index];
+                    this.batchMessages[i] = this.messages[index];
+                    this.paths[index] = null;
+                    this.tags[index] = null;
+                    this.messages[index] = null;
+                }
+                this.head = (this.head + size) % this.capacity;
+                this.count = 0;
+            }
+
+            int appended = 0;
+            long last = 0;
+
+            for (int i = 0; i < size; i++) {
+                last = this.batchTimes[i];
+                if (this.write(last, this.batchPaths[i], this.batchTags[i], this.batchMessages[i]))
+                    appended++;
+                this.batchPaths[i] = null;
+                this.batchTags[i] = null;
+                this.batchMessages[i] = null;
+            }
+
+            try {
+                if (this.out != null) {
+                    this.out.flush();
+                    this.retryDelay = 0;
+                }
+            } catch (IOException e) {
+                // 缓冲中这一批的日志可能没有写进去
+                this.lost += appended;
+                this.fail(last);
+            }
+
+            synchronized (this.lock) {
+                this.written += size;
+                this.dropped += this.lost;
+                this.lost = 0;
+                this.lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return 是否写入,文件没有打开时返回false并计入丢弃
+     */
+    private boolean write(long time, String base, String tag, String msg) {
+
+        if (time >= this.dayEnd || time < this.dayStart || !base.equals(this.currentBase))
+            this.roll(time, base);
+        else if (this.out == null && time >= this.retryTime)
+            this.open(time);
+
+        if (this.out == null) {
+            this.lost++;
+            return false;
+        }
+
+        // [yyyy-MM-dd HH:mm:ss]
+        int seconds = (int) ((time - this.dayStart) / 1000);
+        StringBuilder line = this.line;
+        line.setLength(0);
+        line.append(this.datePrefix);
+        appendTwoDigits(line, seconds / 3600);
+        line.append(':');
+        appendTwoDigits(line, seconds / 60 % 60);
+        line.append(':');
+        appendTwoDigits(line, seconds % 60);
+        line.append("] ").append(tag).append(' ').append(msg).append(TelinkLog.LINE_BREAK);
+
+        try {
+            this.out.append(line);
+        } catch (IOException e) {
+            this.lost++;
+            this.fail(time);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 与原来的目录结构相同: path + yyyy/MM/dd.log
+     */
+    private void roll(long time, String base) {
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        this.dayStart = calendar.getTimeInMillis();
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        this.dayEnd = calendar.getTimeInMillis();
+
+        this.datePrefix = String.format(Locale.US, "[%04d-%02d-%02d ", year, month, day);
+        String path = base + String.format(Locale.US, "%04d/%02d/%02d.log", year, month, day);
+
+        if (path.equals(this.currentPath) && this.out != null)
+            return;
+
+        this.close();
+        this.currentBase = base;
+        this.currentPath = path;
+        // 换了文件,马上打开
+        this.retryDelay = 0;
+        this.open(time);
+    }
+
+    private void open(long time) {
+
+        if (TelinkLog.isSDAva()) {
+
+            File file = new File(this.currentPath);
+            if (!file.exists())
+                TelinkLog.createDipPath(this.currentPath);
+
+            try {
+                this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true)), BUFFER_SIZE);
+                return;
+            } catch (IOException e) {
+                this.out = null;
+            }
+        }
+
+        this.fail(time);
+    }
+
+    /**
+     * 关闭文件,间隔加倍后再重新打开
+     */
+    private void fail(long time) {
+        this.close();
+        this.retryDelay = this.retryDelay == 0 ? MIN_RETRY_MILLIS : Math.min(this.retryDelay * 2, MAX_RETRY_MILLIS);
+        this.retryTime = time + this.retryDelay;
+    }
+
+    private void close() {
+        if (this.out != null) {
+            try {
+                this.out.close();
+            } catch (IOException ignored) {
+            }
+            this.out = null;
+        }
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        if (value < 10)
+            sb.append('0');
+        sb.append(value);
+    }
+}
@@ -11,21 +11,27 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
-import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
 import com.telink.util.Arrays;
+import com.telink.util.MeshUtils;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Peripheral extends BluetoothGattCallback {
 
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(Peripheral.class);
+
     public static final int CONNECTION_PRIORITY_BALANCED = 0;
     public static final int CONNECTION_PRIORITY_HIGH = 1;
     public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
@@ -38,7 +44,11 @@ public class Peripheral extends BluetoothGattCallback {
 
     private static final int RSSI_UPDATE_TIME_INTERVAL = 2000;
 
-    protected final Queue<CommandContext> mInputCommandQueue = new ConcurrentLinkedQueue<>();
+    private static volatile GattTransport.Factory sTransportFactory = AndroidGattTransport.FACTORY;
+    private static volatile GattCapture sCapture;
+    private static final AtomicInteger sConnectionIds = new AtomicInteger();
+
+    protected final CommandQueue mInputCommandQueue = new CommandQueue();
     protected final Queue<CommandContext> mOutputCommandQueue = new ConcurrentLinkedQueue<>();
     protected final Map<String, CommandContext> mNotificationCallbacks = new ConcurrentHashMap<>();
 
@@ -51,14 +61,20 @@ public class Peripheral extends BluetoothGattCallback {
 
     private final Object mStateLock = new Object();
     private final Object mProcessLock = new Object();
+    private final WriteWindow mWriteWindow = new WriteWindow();
+    private final DeadlineQueue mDeadlines = new DeadlineQueue();
+    // 已经超时但底层可能还会回调的读写,回调到达时忽略,不会记到下一个命令上.回调也可能丢失,超过命令的超时时间后失效
+    private final List<TimedOutCallback> mTimedOutCallbacks = new ArrayList<>();
 
     protected BluetoothDevice device;
-    protected BluetoothGatt gatt;
+    protected GattTransport gatt;
+    protected GattTransport.Factory transportFactory;
     protected int rssi;
     protected byte[] scanRecord;
     protected String name;
     protected String mac;
     protected byte[] macBytes;
+    protected long macLong;
     protected int type;
     protected List<BluetoothGattService> mServices;
 
@@ -68,7 +84,10 @@ public class Peripheral extends BluetoothGattCallback {
     protected int updateIntervalMill = 5 * 1000;
     protected int commandTimeoutMill = 10 * 1000;
     protected long lastTime;
+    protected int connectionId;
     private int mConnState = CONN_STATE_IDLE;
+    // 被底层拒绝的并行写入命令,等待在途命令完成后重新写入
+    private CommandContext mStalledCommand;
 
     public Peripheral(BluetoothDevice device, byte[] scanRecord, int rssi) {
 
@@ -78,6 +97,7 @@ public class Peripheral extends BluetoothGattCallback {
 
         this.name = device.getName();
         this.mac = device.getAddress();
+        this.macLong = MeshUtils.macToLong(this.mac);
         this.type = device.getType();
     }
 
@@ -85,6 +105,35 @@ public class Peripheral extends BluetoothGattCallback {
      * Public API
      *******************************************************************************/
 
+    /**
+     * 设置所有Peripheral默认使用的链路,传null时恢复为系统的BluetoothGatt
+     */
+    public static void setDefaultTransportFactory(GattTransport.Factory factory) {
+        sTransportFactory = factory != null ? factory : AndroidGattTransport.FACTORY;
+    }
+
+    public static GattTransport.Factory getDefaultTransportFactory() {
+        return sTransportFactory;
+    }
+
+    /**
+     * 开始记录所有Peripheral的GATT操作,传null时停止,不会关闭之前的capture
+     */
+    public static void setCapture(GattCapture capture) {
+        sCapture = capture;
+    }
+
+    public static GattCapture getCapture() {
+        return sCapture;
+    }
+
+    /**
+     * 只对这个Peripheral设置链路,优先于{@link #setDefaultTransportFactory(GattTransport.Factory)}
+     */
+    public void setTransportFactory(GattTransport.Factory factory) {
+        this.transportFactory = factory;
+    }
+
     public BluetoothDevice getDevice() {
         return this.device;
     }
@@ -97,6 +146,13 @@ public class Peripheral extends BluetoothGattCallback {
         return this.mac;
     }
 
+    /**
+     * 48位的MAC地址,格式不正确时为-1
+     */
+    public long getMacLong() {
+        return this.macLong;
+    }
+
     public List<BluetoothGattService> getServices() {
         return mServices;
     }
@@ -122,6 +178,13 @@ public class Peripheral extends BluetoothGattCallback {
         return this.type;
     }
 
+    /**
+     * 每次连接分配的编号,抓包中用来区分不同的连接
+     */
+    public int getConnectionId() {
+        return this.connectionId;
+    }
+
     public int getRssi() {
         return this.rssi;
     }
@@ -137,15 +200,15 @@ public class Peripheral extends BluetoothGattCallback {
         synchronized (this.mStateLock) {
             this.lastTime = 0;
             if (this.mConnState == CONN_STATE_IDLE) {
-                TelinkLog.d("Peripheral#connect " + this.getDeviceName() + " -- "
-                        + this.getMacAddress());
+                LOG.d("Peripheral#connect %s -- %s", this.getDeviceName(), this.getMacAddress());
                 this.mConnState = CONN_STATE_CONNECTING;
-                this.gatt = this.device.connectGatt(context, false, this);
+                this.connectionId = sConnectionIds.incrementAndGet() & 0xFFFF;
+                GattTransport.Factory factory = this.transportFactory != null ? this.transportFactory : sTransportFactory;
+                this.gatt = factory.connect(context, this.device, this);
                 if (this.gatt == null) {
                     this.disconnect();
                     this.mConnState = CONN_STATE_IDLE;
-                    TelinkLog.d("Peripheral# gatt NULL onDisconnect:" + this.getDeviceName() + " -- "
-                            + this.getMacAddress());
+                    LOG.d("Peripheral# gatt NULL onDisconnect:%s -- %s", this.getDeviceName(), this.getMacAddress());
                     this.onDisconnect();
                 }
             }
@@ -159,8 +222,7 @@ public class Peripheral extends BluetoothGattCallback {
                 return;
         }
 
-        TelinkLog.d("disconnect " + this.getDeviceName() + " -- "
-                + this.getMacAddress());
+        LOG.d("disconnect %s -- %s", this.getDeviceName(), this.getMacAddress());
 
         this.clear();
 
@@ -182,7 +244,12 @@ public class Peripheral extends BluetoothGattCallback {
     }
 
     private void clear() {
-        this.processing = false;
+        synchronized (this.mProcessLock) {
+            this.processing = false;
+            this.mStalledCommand = null;
+            this.mWriteWindow.reset();
+            this.mTimedOutCallbacks.clear();
+        }
         this.stopMonitoringRssi();
         this.cancelCommandTimeoutTask();
         this.mInputCommandQueue.clear();
@@ -198,7 +265,7 @@ public class Peripheral extends BluetoothGattCallback {
                 return false;
         }
 
-        CommandContext commandContext = new CommandContext(callback, command);
+        CommandContext commandContext = CommandContext.obtain(callback, command);
         this.postCommand(commandContext);
 
         return true;
@@ -220,8 +287,60 @@ public class Peripheral extends BluetoothGattCallback {
         this.mRssiUpdateHandler.removeCallbacksAndMessages(null);
     }
 
+    /**
+     * 设置WRITE_NO_RESPONSE命令的写入窗口大小,即未收到写回调时最多可以同时在途的命令数
+     * <p>默认为1,即一次只写一个命令.批量控制时可以设置为4~8.
+     *
+     * @param size 窗口大小
+     */
+    public final void setWriteWindow(int size) {
+        synchronized (this.mProcessLock) {
+            this.mWriteWindow.setSize(size);
+        }
+    }
+
+    public final int getWriteWindow() {
+        synchronized (this.mProcessLock) {
+            return this.mWriteWindow.getSize();
+        }
+    }
+
+    public final int getInFlightCount() {
+        synchronized (this.mProcessLock) {
+            return this.mWriteWindow.getInFlight();
+        }
+    }
+
+    /**
+     * 低优先级命令最长等待多久后会被提前发送一次
+     */
+    public final void setStarvationTime(int starvationTime) {
+        this.mInputCommandQueue.setStarvationTime(starvationTime);
+    }
+
+    /**
+     * @param priority {@link Command#PRIORITY_CONTROL} ~ {@link Command#PRIORITY_BULK}
+     * @return 此优先级等待发送的命令数
+     */
+    public final int getQueueDepth(int priority) {
+        return this.mInputCommandQueue.getDepth(priority);
+    }
+
+    public final long getAverageWaitTime(int priority) {
+        return this.mInputCommandQueue.getAverageWaitTime(priority);
+    }
+
+    public final long getMaxWaitTime(int priority) {
+        return this.mInputCommandQueue.getMaxWaitTime(priority);
+    }
+
+    public final long getCoalescedCount(int priority) {
+        return this.mInputCommandQueue.getCoalescedCount(priority);
+    }
+
     public final boolean requestConnectionPriority(int connectionPriority) {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && this.gatt.requestConnectionPriority(connectionPriority);
+        GattTransport gatt = this.gatt;
+        return gatt != null && gatt.requestConnectionPriority(connectionPriority);
     }
 
     /********************************************************************************
@@ -266,6 +385,10 @@ public class Peripheral extends BluetoothGattCallback {
 //        TelinkLog.d("postCommand");
         if (commandContext.command.delay < 0) {
             synchronized (this.mOutputCommandQueue) {
+                synchronized (this.mProcessLock) {
+                    this.mWriteWindow.acquireExclusive();
+                    this.processing = true;
+                }
                 this.mOutputCommandQueue.add(commandContext);
                 this.processCommand(commandContext);
             }
@@ -273,38 +396,45 @@ public class Peripheral extends BluetoothGattCallback {
         }
 
         this.mInputCommandQueue.add(commandContext);
-        synchronized (this.mProcessLock) {
-            if (!this.processing) {
-                this.processCommand();
-            }
-        }
+        this.processCommand();
     }
 
     private void processCommand() {
+        // 窗口打开时连续写入,直到credit用完或者遇到不能并行的命令
+        while (this.processNextCommand()) ;
+    }
+
+    /**
+     * @return 是否还可以继续写入下一个命令
+     */
+    private boolean processNextCommand() {
 //        TelinkLog.d("processing : " + this.processing);
 
         CommandContext commandContext;
         Command.CommandType commandType;
+        boolean hasCredit = false;
 
-        synchronized (mInputCommandQueue) {
-            if (this.mInputCommandQueue.isEmpty())
-                return;
-            commandContext = this.mInputCommandQueue.poll();
-        }
+        synchronized (this.mProcessLock) {
 
-        if (commandContext == null)
-            return;
+            commandContext = this.mStalledCommand;
 
-        commandType = commandContext.command.type;
+            if (commandContext == null)
+                commandContext = this.mInputCommandQueue.peek();
 
-        if (commandType != Command.CommandType.ENABLE_NOTIFY && commandType != Command.CommandType.DISABLE_NOTIFY) {
-            synchronized (mOutputCommandQueue) {
-                this.mOutputCommandQueue.add(commandContext);
-            }
+            if (commandContext == null || !this.mWriteWindow.canSend(commandContext.command))
+                return false;
 
-            synchronized (this.mProcessLock) {
-                if (!this.processing)
-                    this.processing = true;
+            if (commandContext == this.mStalledCommand)
+                this.mStalledCommand = null;
+            else
+                this.mInputCommandQueue.remove(commandContext);
+
+            commandType = commandContext.command.type;
+
+            if (commandType != Command.CommandType.ENABLE_NOTIFY && commandType != Command.CommandType.DISABLE_NOTIFY) {
+                this.mOutputCommandQueue.add(commandContext);
+                hasCredit = this.mWriteWindow.acquire(commandContext.command);
+                this.processing = true;
             }
         }
 
@@ -318,6 +448,8 @@ public class Peripheral extends BluetoothGattCallback {
         } else {
             this.processCommand(commandContext);
         }
+
+        return hasCredit;
     }
 
     synchronized private void processCommand(CommandContext commandContext) {
@@ -325,23 +457,23 @@ public class Peripheral extends BluetoothGattCallback {
         Command command = commandContext.command;
         Command.CommandType commandType = command.type;
 
-        TelinkLog.d("processCommand : " + command.toString());
+        LOG.d("processCommand : %s", command);
 
         switch (commandType) {
             case READ:
-                this.postCommandTimeoutTask();
+                this.postCommandTimeoutTask(commandContext);
                 this.readCharacteristic(commandContext, command.serviceUUID,
                         command.characteristicUUID);
                 break;
             case WRITE:
-                this.postCommandTimeoutTask();
+                this.postCommandTimeoutTask(commandContext);
                 this.writeCharacteristic(commandContext, command.serviceUUID,
                         command.characteristicUUID,
                         BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT,
                         command.data);
                 break;
             case WRITE_NO_RESPONSE:
-                this.postCommandTimeoutTask();
+                this.postCommandTimeoutTask(commandContext);
                 this.writeCharacteristic(commandContext, command.serviceUUID,
                         command.characteristicUUID,
                         BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE,
@@ -360,18 +492,192 @@ public class Peripheral extends BluetoothGattCallback {
 
     private void commandCompleted() {
 
-        TelinkLog.d("commandCompleted");
+        LOG.d("commandCompleted");
 
         synchronized (this.mProcessLock) {
-            if (this.processing)
-                this.processing = false;
+            this.processing = !this.mWriteWindow.isIdle();
         }
 
         this.processCommand();
     }
 
+    private CommandContext pollOutputCommand() {
+        CommandContext commandContext = this.mOutputCommandQueue.poll();
+        if (commandContext != null) {
+            this.mDeadlines.cancel(commandContext);
+            synchronized (this.mProcessLock) {
+                this.mWriteWindow.release();
+            }
+        }
+        return commandContext;
+    }
+
+    /**
+     * 取出读写回调对应的命令
+     * <p>同一个特性的读或写由底层按写入顺序回调,对应这个特性最早写入的命令.
+     * 这个特性上还有已经超时的命令时,回调属于超时的命令.
+     * 超时的命令的回调如果丢失了,这个回调其实属于在途的命令,先记在在途的命令上,
+     * 它之后没有再收到回调时,超时时按记下的回调完成,不会一直错位下去.
+     *
+     * @return 回调属于已经超时的命令或者没有对应的命令时返回null
+     */
+    private CommandContext pollOutputCommand(BluetoothGattCharacteristic characteristic, boolean read, int status) {
+
+        UUID characteristicUUID = characteristic.getUuid();
+
+        synchronized (this.mProcessLock) {
+
+            if (!this.mTimedOutCallbacks.isEmpty() && this.removeTimedOutCallback(characteristicUUID, read)) {
+                LOG.d("ignore callback of timed out command : %s", characteristicUUID);
+                for (CommandContext commandContext : this.mOutputCommandQueue) {
+                    if (!commandContext.absorbed && isCallbackOf(commandContext, characteristicUUID, read)) {
+                        commandContext.absorbed = true;
+                        commandContext.absorbedStatus = status;
+                        commandContext.absorbedData = read ? characteristic.getValue() : null;
+                        break;
+                    }
+                }
+                return null;
+            }
+
+            // 通常就是队首,不用创建迭代器
+            CommandContext head = this.mOutputCommandQueue.peek();
+            if (head != null && isCallbackOf(head, characteristicUUID, read) && this.mOutputCommandQueue.remove(head))
+                return this.releaseOutputCommand(head);
+
+            for (CommandContext commandContext : this.mOutputCommandQueue) {
+                if (isCallbackOf(commandContext, characteristicUUID, read) && this.mOutputCommandQueue.remove(commandContext))
+                    return this.releaseOutputCommand(commandContext);
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isCallbackOf(CommandContext commandContext, UUID characteristicUUID, boolean read) {
+        Command command = commandContext.command;
+        return command != null
+                && (command.type == Command.CommandType.READ) == read
+                && characteristicUUID.equals(command.characteristicUUID);
+    }
+
+    private CommandContext releaseOutputCommand(CommandContext commandContext) {
+        commandContext.absorbed = false;
+        commandContext.absorbedData = null;
+        this.mDeadlines.cancel(commandContext);
+        this.mWriteWindow.release();
+        return commandContext;
+    }
+
+    /**
+     * 超时的命令移出在途队列,记下底层还欠它的回调,不归还credit
+     *
+     * @return 回调已经先到达时返回false
+     */
+    private boolean removeTimedOutCommand(CommandContext commandContext, int timeout) {
+
+        synchronized (this.mProcessLock) {
+
+            if (!this.mOutputCommandQueue.remove(commandContext))
+                return false;
+
+            Command command = commandContext.command;
+            this.mTimedOutCallbacks.add(new TimedOutCallback(command.characteristicUUID,
+                    command.type == Command.CommandType.READ, SystemClock.uptimeMillis() + timeout));
+        }
+
+        return true;
+    }
+
+    /**
+     * 认领一个超时命令欠下的回调,顺便丢弃已经失效的
+     */
+    private boolean removeTimedOutCallback(UUID characteristicUUID, boolean read) {
+
+        long now = SystemClock.uptimeMillis();
+        Iterator<TimedOutCallback> iterator = this.mTimedOutCallbacks.iterator();
+
+        while (iterator.hasNext()) {
+            TimedOutCallback timedOut = iterator.next();
+            if (timedOut.expiry <= now) {
+                iterator.remove();
+            } else if (timedOut.read == read && timedOut.characteristicUUID.equals(characteristicUUID)) {
+                iterator.remove();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * 在途命令的回调之前被超时的命令认领了,之后也没有再收到回调,说明超时命令的回调丢失了,按认领的回调完成
+     *
+     * @return 命令不在在途队列中时返回false
+     */
+    private boolean completeAbsorbedCommand(CommandContext commandContext) {
+
+        synchronized (this.mProcessLock) {
+            if (!this.mOutputCommandQueue.remove(commandContext))
+                return false;
+            this.mWriteWindow.release();
+        }
+
+        int status = commandContext.absorbedStatus;
+        byte[] data = commandContext.absorbedData;
+        boolean read = commandContext.command.type == Command.CommandType.READ;
+        commandContext.absorbed = false;
+        commandContext.absorbedData = null;
+
+        LOG.d("complete command with absorbed callback : %s", commandContext.command.characteristicUUID);
+
+        if (status == BluetoothGatt.GATT_SUCCESS)
+            this.commandSuccess(commandContext, data);
+        else
+            this.commandError(commandContext, read ? "read characteristic failed" : "write characteristic fail");
+
+        this.commandCompleted();
+        return true;
+    }
+
+    private int timeoutOf(Command command) {
+        return command.timeout > 0 ? command.timeout : this.commandTimeoutMill;
+    }
+
+    private void removeOutputCommand(CommandContext commandContext) {
+        this.mDeadlines.cancel(commandContext);
+        if (this.mOutputCommandQueue.remove(commandContext)) {
+            synchronized (this.mProcessLock) {
+                this.mWriteWindow.release();
+            }
+        }
+    }
+
+    /**
+     * 写入失败时,如果前面还有在途的命令,说明是底层忙而拒绝了并行写入,等待下一个写回调后重新写入
+     */
+    private boolean stallCommand(CommandContext commandContext) {
+
+        if (this.mOutputCommandQueue.peek() == commandContext)
+            return false;
+
+        if (!this.mOutputCommandQueue.remove(commandContext))
+            return false;
+
+        this.mDeadlines.cancel(commandContext);
+
+        synchronized (this.mProcessLock) {
+            this.mWriteWindow.release();
+            this.mWriteWindow.close();
+            this.mStalledCommand = commandContext;
+        }
+
+        LOG.d("write stalled, wait for credit");
+        return true;
+    }
+
     private void commandSuccess(CommandContext commandContext, Object data) {
-        TelinkLog.d("commandSuccess");
+        LOG.d("commandSuccess");
         this.lastTime = System.currentTimeMillis();
         if (commandContext != null) {
 
@@ -383,17 +689,19 @@ public class Peripheral extends BluetoothGattCallback {
                 callback.success(this, command,
                         data);
             }
+
+            this.recycleCommand(commandContext, command);
         }
     }
 
     private void commandSuccess(Object data) {
         CommandContext commandContext;
-        commandContext = this.mOutputCommandQueue.poll();
+        commandContext = this.pollOutputCommand();
         this.commandSuccess(commandContext, data);
     }
 
     private void commandError(CommandContext commandContext, String errorMsg) {
-        TelinkLog.d("commandError:" + errorMsg);
+        LOG.d("commandError:%s", errorMsg);
         this.lastTime = System.currentTimeMillis();
         if (commandContext != null) {
 
@@ -405,17 +713,28 @@ public class Peripheral extends BluetoothGattCallback {
                 callback.error(this, command,
                         errorMsg);
             }
+
+            this.recycleCommand(commandContext, command);
         }
     }
 
     private void commandError(String errorMsg) {
         CommandContext commandContext;
-        commandContext = this.mOutputCommandQueue.poll();
+        commandContext = this.pollOutputCommand();
         this.commandError(commandContext, errorMsg);
     }
 
+    private void recycleCommand(CommandContext commandContext, Command command) {
+        // 通知的CommandContext还要留在mNotificationCallbacks中
+        if (command == null
+                || command.type == Command.CommandType.ENABLE_NOTIFY
+                || command.type == Command.CommandType.DISABLE_NOTIFY)
+            return;
+        commandContext.recycle(command);
+    }
+
     private boolean commandTimeout(CommandContext commandContext) {
-        TelinkLog.d("commandTimeout");
+        LOG.d("commandTimeout");
         this.lastTime = System.currentTimeMillis();
         if (commandContext != null) {
             Command command = commandContext.command;
@@ -430,16 +749,24 @@ public class Peripheral extends BluetoothGattCallback {
         return false;
     }
 
-    private void postCommandTimeoutTask() {
+    private void postCommandTimeoutTask(CommandContext commandContext) {
 
-        if (this.commandTimeoutMill <= 0)
+        int timeout = this.timeoutOf(commandContext.command);
+
+        if (timeout <= 0)
             return;
 
-        this.mTimeoutHandler.removeCallbacksAndMessages(null);
-        this.mTimeoutHandler.postDelayed(this.mCommandTimeoutRunnable, this.commandTimeoutMill);
+        long deadline = SystemClock.uptimeMillis() + timeout;
+
+        // 只有最早的截止时间变化时才需要重新设置定时器
+        if (this.mDeadlines.schedule(commandContext, deadline)) {
+            this.mTimeoutHandler.removeCallbacks(this.mCommandTimeoutRunnable);
+            this.mTimeoutHandler.postAtTime(this.mCommandTimeoutRunnable, deadline);
+        }
     }
 
     private void cancelCommandTimeoutTask() {
+        this.mDeadlines.clear();
         this.mTimeoutHandler.removeCallbacksAndMessages(null);
     }
 
@@ -477,7 +804,8 @@ public class Peripheral extends BluetoothGattCallback {
         }
 
         if (!success) {
-            this.commandError(errorMsg);
+            this.removeOutputCommand(commandContext);
+            this.commandError(commandContext, errorMsg);
             this.commandCompleted();
         }
     }
@@ -501,6 +829,8 @@ public class Peripheral extends BluetoothGattCallback {
                 characteristic.setWriteType(writeType);
 
                 if (!this.gatt.writeCharacteristic(characteristic)) {
+                    if (this.stallCommand(commandContext))
+                        return;
                     success = false;
                     errorMsg = "write characteristic error";
                 }
@@ -515,7 +845,8 @@ public class Peripheral extends BluetoothGattCallback {
         }
 
         if (!success) {
-            this.commandError(errorMsg);
+            this.removeOutputCommand(commandContext);
+            this.commandError(commandContext, errorMsg);
             this.commandCompleted();
         }
     }
@@ -676,8 +1007,7 @@ public class Peripheral extends BluetoothGattCallback {
     @Override
     public void onConnectionStateChange(BluetoothGatt gatt, int status,
                                         int newState) {
-        TelinkLog.d("onConnectionStateChange  status :" + status + " state : "
-                + newState);
+        LOG.d("onConnectionStateChange  status :%d state : %d", status, newState);
 
         if (newState == BluetoothGatt.STATE_CONNECTED) {
 
@@ -686,8 +1016,7 @@ public class Peripheral extends BluetoothGattCallback {
             }
 
             if (this.gatt == null || !this.gatt.discoverServices()) {
-                TelinkLog.d("remote service discovery has been stopped status = "
-                        + newState);
+                LOG.d("remote service discovery has been stopped status = %d", newState);
 
                 this.disconnect();
 
@@ -698,7 +1027,7 @@ public class Peripheral extends BluetoothGattCallback {
         } else {
 
             synchronized (this.mStateLock) {
-                TelinkLog.d("Close");
+                LOG.d("Close");
 
                 if (this.gatt != null) {
                     this.gatt.close();
@@ -707,7 +1036,7 @@ public class Peripheral extends BluetoothGattCallback {
 
                 this.clear();
                 this.mConnState = CONN_STATE_IDLE;
-                TelinkLog.d("Peripheral#onConnectionStateChange#onDisconnect");
+                LOG.d("Peripheral#onConnectionStateChange#onDisconnect");
                 this.onDisconnect();
             }
         }
@@ -718,6 +1047,10 @@ public class Peripheral extends BluetoothGattCallback {
                                         BluetoothGattCharacteristic characteristic) {
         super.onCharacteristicChanged(gatt, characteristic);
 
+        GattCapture capture = sCapture;
+        if (capture != null)
+            capture.record(GattCapture.TYPE_NOTIFY, this.connectionId, characteristic.getUuid(), BluetoothGatt.GATT_SUCCESS, characteristic.getValue());
+
         String key = this.generateHashKey(characteristic);
         CommandContext commandContext = this.mNotificationCallbacks.get(key);
 
@@ -735,13 +1068,17 @@ public class Peripheral extends BluetoothGattCallback {
                                      BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
 
-        this.cancelCommandTimeoutTask();
+        GattCapture capture = sCapture;
+        if (capture != null)
+            capture.record(GattCapture.TYPE_READ, this.connectionId, characteristic.getUuid(), status, characteristic.getValue());
+
+        CommandContext commandContext = this.pollOutputCommand(characteristic, true, status);
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
             byte[] data = characteristic.getValue();
-            this.commandSuccess(data);
+            this.commandSuccess(commandContext, data);
         } else {
-            this.commandError("read characteristic failed");
+            this.commandError(commandContext, "read characteristic failed");
         }
 
         this.commandCompleted();
@@ -752,15 +1089,23 @@ public class Peripheral extends BluetoothGattCallback {
                                       BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicWrite(gatt, characteristic, status);
 
-        this.cancelCommandTimeoutTask();
+        CommandContext commandContext = this.pollOutputCommand(characteristic, false, status);
+
+        GattCapture capture = sCapture;
+        if (capture != null) {
+            // 记录提交写入时的数据,回调时特征值里可能已经是后面写入的数据
+            Command command = commandContext != null ? commandContext.command : null;
+            byte[] data = command != null ? command.data : characteristic.getValue();
+            capture.record(GattCapture.TYPE_WRITE, this.connectionId, characteristic.getUuid(), status, data);
+        }
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
-            this.commandSuccess(null);
+            this.commandSuccess(commandContext, null);
         } else {
-            this.commandError("write characteristic fail");
+            this.commandError(commandContext, "write characteristic fail");
         }
 
-        TelinkLog.d("onCharacteristicWrite newStatus : " + status);
+        LOG.d("onCharacteristicWrite newStatus : %d", status);
 
         this.commandCompleted();
     }
@@ -770,8 +1115,6 @@ public class Peripheral extends BluetoothGattCallback {
                                  BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorRead(gatt, descriptor, status);
 
-        this.cancelCommandTimeoutTask();
-
         if (status == BluetoothGatt.GATT_SUCCESS) {
             byte[] data = descriptor.getValue();
             this.commandSuccess(data);
@@ -787,7 +1130,9 @@ public class Peripheral extends BluetoothGattCallback {
                                   BluetoothGattDescriptor descriptor, int status) {
         super.onDescriptorWrite(gatt, descriptor, status);
 
-        this.cancelCommandTimeoutTask();
+        GattCapture capture = sCapture;
+        if (capture != null)
+            capture.record(GattCapture.TYPE_DESCRIPTOR_WRITE, this.connectionId, descriptor.getUuid(), status, descriptor.getValue());
 
         if (status == BluetoothGatt.GATT_SUCCESS) {
             this.commandSuccess(null);
@@ -802,12 +1147,12 @@ public class Peripheral extends BluetoothGattCallback {
     public void onServicesDiscovered(BluetoothGatt gatt, int status) {
         super.onServicesDiscovered(gatt, status);
 
-        if (status == BluetoothGatt.GATT_SUCCESS) {
-            List<BluetoothGattService> services = gatt.getServices();
+        if (status == BluetoothGatt.GATT_SUCCESS && this.gatt != null) {
+            List<BluetoothGattService> services = this.gatt.getServices();
             this.mServices = services;
             this.onServicesDiscovered(services);
         } else {
-            TelinkLog.d("Service discovery failed");
+            LOG.d("Service discovery failed");
             this.disconnect();
         }
     }
@@ -829,7 +1174,7 @@ public class Peripheral extends BluetoothGattCallback {
     public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
         super.onMtuChanged(gatt, mtu, status);
 
-        TelinkLog.d("mtu changed : " + mtu);
+        LOG.d("mtu changed : %d", mtu);
     }
 
     @Override
@@ -837,23 +1182,6 @@ public class Peripheral extends BluetoothGattCallback {
         super.onReliableWriteCompleted(gatt, status);
     }
 
-    private final class CommandContext {
-
-        public Command command;
-        public Command.Callback callback;
-        public long time;
-
-        public CommandContext(Command.Callback callback, Command command) {
-            this.callback = callback;
-            this.command = command;
-        }
-
-        public void clear() {
-            this.command = null;
-            this.callback = null;
-        }
-    }
-
     private final class RssiUpdateRunnable implements Runnable {
 
         @Override
@@ -865,8 +1193,9 @@ public class Peripheral extends BluetoothGattCallback {
             if (!isConnected())
                 return;
 
-            if (gatt != null)
-                gatt.readRemoteRssi();
+            GattTransport transport = gatt;
+            if (transport != null)
+                transport.readRemoteRssi();
 
             mRssiUpdateHandler.postDelayed(mRssiUpdateRunnable, updateIntervalMill);
         }
@@ -879,11 +1208,22 @@ public class Peripheral extends BluetoothGattCallback {
 
             synchronized (mOutputCommandQueue) {
 
-                CommandContext commandContext = mOutputCommandQueue.peek();
+                CommandContext commandContext;
+
+                // 每个命令单独超时,只处理已经到期的命令
+                while ((commandContext = mDeadlines.pollExpired(SystemClock.uptimeMillis())) != null) {
 
-                if (commandContext != null) {
+                    if (commandContext.absorbed) {
+                        completeAbsorbedCommand(commandContext);
+                        continue;
+                    }
 
                     Command command = commandContext.command;
+
+                    // 已经交给底层,这个命令之后的回调不再对应任何命令
+                    if (!removeTimedOutCommand(commandContext, timeoutOf(command)))
+                        continue;
+
                     Command.Callback callback = commandContext.callback;
 
                     boolean retry = commandTimeout(commandContext);
@@ -891,16 +1231,40 @@ public class Peripheral extends BluetoothGattCallback {
                     if (retry) {
                         commandContext.command = command;
                         commandContext.callback = callback;
+                        mOutputCommandQueue.add(commandContext);
                         processCommand(commandContext);
                     } else {
-                        mOutputCommandQueue.poll();
+                        synchronized (mProcessLock) {
+                            mWriteWindow.release();
+                        }
                         commandCompleted();
+                        recycleCommand(commandContext, command);
                     }
                 }
+
+                long deadline = mDeadlines.nextDeadline();
+
+                if (deadline > 0) {
+                    mTimeoutHandler.removeCallbacks(mCommandTimeoutRunnable);
+                    mTimeoutHandler.postAtTime(mCommandTimeoutRunnable, deadline);
+                }
             }
         }
     }
 
+    private static final class TimedOutCallback {
+
+        final UUID characteristicUUID;
+        final boolean read;
+        final long expiry;
+
+        TimedOutCallback(UUID characteristicUUID, boolean read, long expiry) {
+            this.characteristicUUID = characteristicUUID;
+            this.read = read;
+            this.expiry = expiry;
+        }
+    }
+
     private final class CommandDelayRunnable implements Runnable {
 
         @Override
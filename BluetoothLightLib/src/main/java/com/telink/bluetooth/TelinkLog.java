@@ -3,17 +3,11 @@ package com.telink.bluetooth;
 import android.os.Environment;
 import android.text.TextUtils;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Formatter;
-import java.util.Locale;
 
 public class TelinkLog {
 
@@ -434,42 +428,54 @@ public class TelinkLog {
         logwtf(tag, tr);
     }
 
+    /**
+     * 跳过TelinkLog自己的栈帧,Android和JVM上getStackTrace的层数不同
+     */
     private static StackTraceElement getCallerStackTraceElement() {
-        return Thread.currentThread().getStackTrace()[4];
+        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
+        String name = TelinkLog.class.getName();
+        boolean inside = false;
+        for (StackTraceElement element : stackTrace) {
+            if (name.equals(element.getClassName()))
+                inside = true;
+            else if (inside)
+                return element;
+        }
+        return stackTrace[stackTrace.length - 1];
     }
 
+    /**
+     * 写入日志文件,文件为path + yyyy/MM/dd.log
+     * <p>只放进{@link LogWriter}的缓冲区,由后台线程写入,缓冲区满时丢弃
+     */
     public static void point(String path, String tag, String msg) {
-        if (isSDAva()) {
-            Date date = new Date();
-            SimpleDateFormat dateFormat = new SimpleDateFormat("", Locale.SIMPLIFIED_CHINESE);
-            dateFormat.applyPattern("yyyy");
-            path = path + dateFormat.format(date) + "/";
-            dateFormat.applyPattern("MM");
-            path += dateFormat.format(date) + "/";
-            dateFormat.applyPattern("dd");
-            path += dateFormat.format(date) + ".log";
-            dateFormat.applyPattern("[yyyy-MM-dd HH:mm:ss]");
-            String time = dateFormat.format(date);
-            File file = new File(path);
-            if (!file.exists())
-                createDipPath(path);
-            BufferedWriter out = null;
-            try {
-                out = new BufferedWriter(new OutputStreamWriter(
-                        new FileOutputStream(file, true)));
-                out.write(time + " " + tag + " " + msg + "\r\n");
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (out != null) {
-                        out.close();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        if (path == null)
+            return;
+        LogWriter.getInstance().offer(path, tag, msg);
+    }
+
+    /**
+     * 等待缓冲区中的日志写入文件
+     *
+     * @return 是否在超时前写完
+     */
+    public static boolean flush(long timeoutMillis) {
+        return LogWriter.getInstance().flush(timeoutMillis);
+    }
+
+    /**
+     * 缓冲区已满,或者日志文件打不开/写入失败被丢弃的日志数
+     */
+    public static long getDroppedCount() {
+        return LogWriter.getInstance().getDroppedCount();
+    }
+
+    /**
+     * 替换进程的默认UncaughtExceptionHandler,崩溃前先把缓冲区中的日志写入文件,再交给原来的handler.
+     * 默认不设置,需要时在Application.onCreate中调用
+     */
+    public static void enableFlushOnCrash() {
+        LogWriter.installCrashHandler();
     }
 
     /**
@@ -507,12 +513,148 @@ public class TelinkLog {
     }
 
     private static String generateTag(StackTraceElement caller) {
-        String tag = "(%s:%d).%s"; // 占位符
-        String callerClazzName = caller.getFileName();
-        tag = String.format(tag, callerClazzName, caller.getLineNumber(), caller.getMethodName()); // 替换
-        tag = (TAG == null || "".equalsIgnoreCase(TAG)) ? tag : TAG + ":"
-                + tag;
-        return tag;
+        StringBuilder tag = new StringBuilder(64);
+        if (TAG != null && TAG.length() != 0)
+            tag.append(TAG).append(':');
+        tag.append('(').append(caller.getFileName()).append(':').append(caller.getLineNumber()).append(')')
+                .append('.').append(caller.getMethodName());
+        return tag.toString();
+    }
+
+    /**
+     * 每个类一个的Logger,tag固定为类名,不需要遍历调用栈
+     * <pre>
+     * private static final TelinkLog.Logger LOG = TelinkLog.getLogger(Foo.class);
+     *
+     * LOG.d("write : %s", data);
+     * </pre>
+     */
+    public static Logger getLogger(Class<?> clazz) {
+        return new Logger(clazz.getSimpleName());
+    }
+
+    public static Logger getLogger(String name) {
+        return new Logger(name);
+    }
+
+    /**
+     * 参数化的日志,对应级别关闭时不格式化,byte[]参数格式化成十六进制
+     */
+    public static final class Logger {
+
+        private final String name;
+        private Tag tag;
+
+        private Logger(String name) {
+            this.name = name;
+        }
+
+        public boolean isD() {
+            return allowD;
+        }
+
+        public boolean isI() {
+            return allowI;
+        }
+
+        public boolean isW() {
+            return allowW;
+        }
+
+        public boolean isE() {
+            return allowE;
+        }
+
+        public void d(String msg) {
+            if (allowD)
+                logd(this.tag(), msg);
+        }
+
+        public void d(String format, Object arg) {
+            if (allowD)
+                logd(this.tag(), message(format, arg));
+        }
+
+        public void d(String format, Object arg1, Object arg2) {
+            if (allowD)
+                logd(this.tag(), message(format, arg1, arg2));
+        }
+
+        public void d(String format, Object... args) {
+            if (allowD)
+                logd(this.tag(), message(format, args));
+        }
+
+        public void i(String msg) {
+            if (allowI)
+                logi(this.tag(), msg);
+        }
+
+        public void i(String format, Object... args) {
+            if (allowI)
+                logi(this.tag(), message(format, args));
+        }
+
+        public void w(String msg) {
+            if (allowW)
+                logw(this.tag(), msg);
+        }
+
+        public void w(String format, Object... args) {
+            if (allowW)
+                logw(this.tag(), message(format, args));
+        }
+
+        public void e(String msg) {
+            if (allowE)
+                loge(this.tag(), msg, null);
+        }
+
+        public void e(String msg, Throwable tr) {
+            if (allowE)
+                loge(this.tag(), msg, tr);
+        }
+
+        public void e(String format, Object arg, Throwable tr) {
+            if (allowE)
+                loge(this.tag(), message(format, arg), tr);
+        }
+
+        public void e(String format, Object... args) {
+            if (allowE)
+                loge(this.tag(), message(format, args), null);
+        }
+
+        /**
+         * TAG可能被修改,变化时才重新拼接
+         */
+        private String tag() {
+            String prefix = TAG;
+            Tag tag = this.tag;
+            if (tag == null || tag.prefix != prefix) {
+                tag = new Tag(prefix, (prefix == null || prefix.length() == 0) ? this.name : prefix + ":" + this.name);
+                this.tag = tag;
+            }
+            return tag.value;
+        }
+
+        private static String message(String format, Object... args) {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] instanceof byte[])
+                    args[i] = com.telink.util.Arrays.bytesToHexString((byte[]) args[i], ":");
+            }
+            return format(format, args);
+        }
+
+        private static final class Tag {
+            final String prefix;
+            final String value;
+
+            Tag(String prefix, String value) {
+                this.prefix = prefix;
+                this.value = value;
+            }
+        }
     }
 
     private static String getThrowable(Throwable throwable, String mag) {
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth;
+
+/**
+ * 命令写入窗口
+ * <p>窗口大小为1时与原来一样一次只有一个命令在途;
+ * 大于1时允许多个连续的{@link Command.CommandType#WRITE_NO_RESPONSE}命令同时在途,每个写回调归还一个credit.
+ * <p>非线程安全,由{@link Peripheral}在处理锁内调用.
+ */
+final class WriteWindow {
+
+    public static final int DEFAULT_SIZE = 1;
+    public static final int MAX_SIZE = 16;
+
+    private int size = DEFAULT_SIZE;
+    private int inFlight;
+    // 在途的命令是否全部是已写出的WRITE_NO_RESPONSE命令
+    private boolean open;
+
+    public int getSize() {
+        return this.size;
+    }
+
+    public void setSize(int size) {
+        if (size < DEFAULT_SIZE)
+            size = DEFAULT_SIZE;
+        else if (size > MAX_SIZE)
+            size = MAX_SIZE;
+        this.size = size;
+    }
+
+    public int getInFlight() {
+        return this.inFlight;
+    }
+
+    public boolean isIdle() {
+        return this.inFlight == 0;
+    }
+
+    /**
+     * 命令是否可以与在途的命令并行写入
+     */
+    public boolean isPipelined(Command command) {
+        return this.size > 1
+                && command.type == Command.CommandType.WRITE_NO_RESPONSE
+                && command.delay == 0;
+    }
+
+    /**
+     * 是否还有credit发送此命令
+     */
+    public boolean canSend(Command command) {
+        if (this.inFlight == 0)
+            return true;
+        return this.open && this.inFlight < this.size && this.isPipelined(command);
+    }
+
+    /**
+     * 占用一个credit
+     *
+     * @return 窗口是否还可以继续写入
+     */
+    public boolean acquire(Command command) {
+        if (this.inFlight == 0)
+            this.open = this.isPipelined(command);
+        this.inFlight++;
+        return this.open && this.inFlight < this.size;
+    }
+
+    /**
+     * 不经过窗口直接写入的命令(delay < 0)
+     */
+    public void acquireExclusive() {
+        this.inFlight++;
+        this.open = false;
+    }
+
+    /**
+     * 命令完成(成功,失败或者超时),归还credit
+     */
+    public void release() {
+        if (this.inFlight > 0)
+            this.inFlight--;
+        if (this.inFlight == 0)
+            this.open = false;
+    }
+
+    /**
+     * 底层拒绝了写入,等待在途的命令全部完成后再继续
+     */
+    public void close() {
+        this.open = false;
+    }
+
+    public void reset() {
+        this.inFlight = 0;
+        this.open = false;
+    }
+}
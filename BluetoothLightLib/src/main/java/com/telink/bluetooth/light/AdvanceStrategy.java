@@ -4,6 +4,9 @@ import android.os.Handler;
 
 import com.telink.bluetooth.TelinkLog;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 命令写入FIFO策略
  */
@@ -109,23 +112,36 @@ public abstract class AdvanceStrategy {
 
     /**
      * 默认的命令发送策略
+     * <p>采样的命令每个采样周期最多发送一个,周期内同一个(opcode,地址)只保留最新的值,
+     * 不同目标的值按先后顺序排队,由定时任务逐个发送,多个滑条同时拖动也不会超过采样率.
      */
     private static class DefaultAdvanceStrategy extends AdvanceStrategy {
 
         public final static String TAG = "AdvanceStrategy";
 
-        private long lastSampleTime;
+        private static final TelinkLog.Logger LOG = TelinkLog.getLogger(TAG);
+
+        private final Handler commandSender;
+
+        private final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                sendPending();
+            }
+        };
 
-        // 上一个是否是采样指令
-        private Handler commandSender;
+        // 以下字段调用线程和commandSender都会访问,用this同步
+        private long lastSampleTime;
 
         // 上一次发送指令时间
         private long lastCmdTime;
 
-        private StrategyTask task;
-//        private boolean isLastSampleCmd = false;
+        // 等待发送的采样命令,每个目标一个
+        private final List<Sample> pending = new ArrayList<>();
+        // task是否还在等待执行
+        private boolean taskPending;
 
-        private class StrategyTask implements Runnable {
+        private static class Sample {
             private byte opcode;
             private int address;
             private byte[] params;
@@ -140,74 +156,130 @@ public abstract class AdvanceStrategy {
                 this.tag = tag;
             }
 
-            @Override
-            public void run() {
-                TelinkLog.d(TAG, "Delay run Opcode : " + Integer.toHexString(opcode));
-                lastSampleTime = System.currentTimeMillis();
-                lastCmdTime = System.currentTimeMillis();
-                DefaultAdvanceStrategy.this.mCallback.onCommandSampled(opcode, address, params, tag, delay);
+            public boolean isSameTarget(byte opcode, int address) {
+                return this.opcode == opcode && this.address == address;
             }
         }
 
         public DefaultAdvanceStrategy() {
             commandSender = new Handler();
-            task = new StrategyTask();
         }
 
 
         @Override
-        public void onStart() {
+        public synchronized void onStart() {
             this.lastSampleTime = 0;
         }
 
         @Override
-        public void onStop() {
+        public synchronized void onStop() {
+            commandSender.removeCallbacks(task);
+            taskPending = false;
+            pending.clear();
         }
 
         @Override
         public boolean postCommand(byte opcode, int address, byte[] params, int delay, Object tag, boolean noResponse, boolean immediate) {
-            long currentTime = System.currentTimeMillis();
-            // 是否直接发送指令
-            boolean now = false;
-            if (lastCmdTime == 0) {
-                //第一个命令,直接写入FIFO
-                now = true;
-            } else if (immediate) {
-                //立即发送的命令
-                now = true;
-            } else {
-                if (isExists(opcode, this.getSampleOpcodes())) {
-                    long interval = currentTime - this.lastSampleTime;
-                    if (interval < 0) {
-                        now = true;
-                        lastSampleTime = currentTime;
-                    } else if (interval >= this.getSampleRate()) {
-                        now = true;
-                        lastSampleTime = currentTime;
+            Callback callback;
+
+            synchronized (this) {
+                callback = this.mCallback;
+                long currentTime = System.currentTimeMillis();
+                // 是否直接发送指令
+                boolean now = false;
+                if (lastCmdTime == 0) {
+                    //第一个命令,直接写入FIFO
+                    now = true;
+                } else if (immediate) {
+                    //立即发送的命令
+                    now = true;
+                } else {
+                    if (isExists(opcode, this.getSampleOpcodes())) {
+                        long interval = currentTime - this.lastSampleTime;
+                        if (pending.isEmpty() && (interval < 0 || interval >= this.getSampleRate())) {
+                            now = true;
+                        } else {
+                            this.addPending(opcode, address, params, delay, tag);
+                            if (!taskPending) {
+                                taskPending = true;
+                                commandSender.postDelayed(task, Math.max(this.getSampleRate() - interval, 0));
+                            }
+                        }
                     } else {
-                        commandSender.removeCallbacks(task);
-                        task.setCommandArgs(opcode, address, params, delay, tag);
-                        commandSender.postDelayed(task, this.getSampleRate() - interval);
+                        now = true;
                     }
-                } else {
-                    now = true;
                 }
+
+                if (!now || callback == null) {
+                    LOG.d("Delay Opcode : %02X", opcode & 0xFF);
+                    return false;
+                }
+
+                LOG.d("Sample Opcode : %02X delay:%d", opcode & 0xFF, delay);
+                // 第一个和立即发送的采样命令也算一次采样
+                if (isExists(opcode, this.getSampleOpcodes()))
+                    lastSampleTime = currentTime;
+                delay = this.spacing(delay, currentTime);
             }
 
-            if (now && this.mCallback != null) {
-                TelinkLog.d(TAG, "Sample Opcode : " + Integer.toHexString(opcode) + " delay:" + delay);
+            //所有采样到的命令立即交给回调接口处理
+            return callback.onCommandSampled(opcode, address, params, tag, delay);
+        }
 
-                long period = currentTime - this.lastCmdTime;
-                if (period > 0 && period < COMMAND_DELAY) {
-                    if (delay < (COMMAND_DELAY - period))
-                        delay = (int) (COMMAND_DELAY - period);
+        /**
+         * 同一个目标替换成最新的值,位置不变
+         */
+        private void addPending(byte opcode, int address, byte[] params, int delay, Object tag) {
+            for (Sample sample : pending) {
+                if (sample.isSameTarget(opcode, address)) {
+                    sample.setCommandArgs(opcode, address, params, delay, tag);
+                    return;
                 }
-                lastCmdTime = System.currentTimeMillis();
-                //所有采样到的命令立即交给回调接口处理
-                return this.mCallback.onCommandSampled(opcode, address, params, tag, delay);
             }
-            TelinkLog.d(TAG, "Delay Opcode : " + Integer.toHexString(opcode));
-            return false;
+            Sample sample = new Sample();
+            sample.setCommandArgs(opcode, address, params, delay, tag);
+            pending.add(sample);
+        }
+
+        /**
+         * 每次发送最早等待的一个,还有剩下的就在一个采样周期后继续
+         */
+        private void sendPending() {
+            Callback callback;
+            Sample sample;
+            int delay;
+
+            synchronized (this) {
+                taskPending = false;
+                if (pending.isEmpty())
+                    return;
+                sample = pending.remove(0);
+                callback = this.mCallback;
+                long currentTime = System.currentTimeMillis();
+                lastSampleTime = currentTime;
+                delay = this.spacing(sample.delay, currentTime);
+                if (!pending.isEmpty()) {
+                    taskPending = true;
+                    commandSender.postDelayed(task, this.getSampleRate());
+                }
+            }
+
+            LOG.d("Delay run Opcode : %02X", sample.opcode & 0xFF);
+            if (callback != null)
+                callback.onCommandSampled(sample.opcode, sample.address, sample.params, sample.tag, delay);
+        }
+
+        /**
+         * 和上一个命令至少间隔COMMAND_DELAY
+         */
+        private int spacing(int delay, long currentTime) {
+            long period = currentTime - this.lastCmdTime;
+            if (period > 0 && period < COMMAND_DELAY) {
+                if (delay < (COMMAND_DELAY - period))
+                    delay = (int) (COMMAND_DELAY - period);
+            }
+            lastCmdTime = currentTime;
+            return delay;
         }
     }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * 广播包解析
+ * <p>第一步{@link #parse(byte[])}直接从scanRecord中读出厂商ID,MeshName的位置,Mesh地址和状态,不分配对象,可以重复使用;
+ * 第二步{@link #create(BluetoothDevice, int)}只对需要的设备创建{@link LightPeripheral}.
+ * 每个线程用{@link #obtain()}取得自己的实例.
+ */
+public final class AdvertiseData {
+
+    public static final int MESH_NAME_LENGTH = 16;
+
+    private static final ThreadLocal<AdvertiseData> THREAD_LOCAL = new ThreadLocal<AdvertiseData>() {
+        @Override
+        protected AdvertiseData initialValue() {
+            return new AdvertiseData();
+        }
+    };
+
+    private byte[] scanRecord;
+    private int meshNameOffset;
+    private int meshNameLength;
+    private int meshNameHash;
+    private int vendorId;
+    private int meshUUID;
+    private int productUUID;
+    private int status;
+    private int meshAddress;
+
+    /**
+     * 广播包中厂商ID按大端保存,系统的ScanFilter按小端读取
+     *
+     * @return 用于{@link com.telink.bluetooth.LeBluetooth.ScanConfig#setManufacturerIds(int...)}的ID
+     */
+    public static int toManufacturerId(int vendorId) {
+        return ((vendorId & 0xFF) << 8) | ((vendorId >> 8) & 0xFF);
+    }
+
+    public static AdvertiseData obtain() {
+        return THREAD_LOCAL.get();
+    }
+
+    /**
+     * @return 是否是本厂商的设备
+     */
+    public boolean parse(byte[] scanRecord) {
+        return this.parse(scanRecord, Manufacture.getDefault().getVendorId());
+    }
+
+    public boolean parse(byte[] scanRecord, int expectedVendorId) {
+
+        this.scanRecord = null;
+        this.meshNameOffset = 0;
+        this.meshNameLength = -1;
+        this.meshNameHash = 0;
+
+        if (scanRecord == null)
+            return false;
+
+        int length = scanRecord.length;
+        int packetPosition = 0;
+        int rspData = 0;
+
+        while (packetPosition < length) {
+
+            int packetSize = scanRecord[packetPosition] & 0xFF;
+
+            if (packetSize == 0)
+                break;
+
+            int position = packetPosition + 1;
+
+            if (position >= length)
+                return false;
+
+            int type = scanRecord[position++] & 0xFF;
+
+            if (type == 0x09) {
+
+                int contentLength = packetSize - 1;
+
+                if (contentLength > MESH_NAME_LENGTH || contentLength <= 0 || position + contentLength > length)
+                    return false;
+
+                this.meshNameOffset = position;
+                this.meshNameLength = contentLength;
+                int hash = 1;
+                for (int i = 0; i < MESH_NAME_LENGTH; i++)
+                    hash = 31 * hash + (i < contentLength ? scanRecord[position + i] : 0);
+                this.meshNameHash = hash;
+            } else if (type == 0xFF) {
+
+                rspData++;
+
+                if (rspData == 2) {
+
+                    // vendorId(2) meshUUID(2) reserve(4) productUUID(2) status(1) meshAddress(2)
+                    if (position + 13 > length)
+                        return false;
+
+                    this.vendorId = ((scanRecord[position++] & 0xFF) << 8) + (scanRecord[position++] & 0xFF);
+
+                    if (this.vendorId != expectedVendorId)
+                        return false;
+
+                    this.meshUUID = (scanRecord[position++] & 0xFF) + ((scanRecord[position++] & 0xFF) << 8);
+                    position += 4;
+                    this.productUUID = (scanRecord[position++] & 0xFF) + ((scanRecord[position++] & 0xFF) << 8);
+                    this.status = scanRecord[position++] & 0xFF;
+                    this.meshAddress = (scanRecord[position++] & 0xFF) + ((scanRecord[position] & 0xFF) << 8);
+                    this.scanRecord = scanRecord;
+                    return true;
+                }
+            }
+
+            packetPosition += packetSize + 1;
+        }
+
+        return false;
+    }
+
+    /**
+     * 上一次{@link #parse(byte[])}是否已经成功解析了这个scanRecord,过滤链中不用再解析一次
+     */
+    public boolean isParsed(byte[] scanRecord) {
+        return scanRecord != null && this.scanRecord == scanRecord;
+    }
+
+    public int getVendorId() {
+        return this.vendorId;
+    }
+
+    public int getMeshUUID() {
+        return this.meshUUID;
+    }
+
+    public int getProductUUID() {
+        return this.productUUID;
+    }
+
+    public int getStatus() {
+        return this.status;
+    }
+
+    public int getMeshAddress() {
+        return this.meshAddress;
+    }
+
+    /**
+     * 补0到16字节后的MeshName的hash,与{@link java.util.Arrays#hashCode(byte[])}相同
+     */
+    public int getMeshNameHash() {
+        return this.meshNameHash;
+    }
+
+    /**
+     * 与补0到16字节的MeshName比较,不分配对象
+     */
+    public boolean meshNameEquals(byte[] meshName) {
+
+        if (this.meshNameLength < 0 || meshName == null || meshName.length != MESH_NAME_LENGTH)
+            return false;
+
+        byte[] scanRecord = this.scanRecord;
+        int offset = this.meshNameOffset;
+
+        for (int i = 0; i < MESH_NAME_LENGTH; i++) {
+            byte value = i < this.meshNameLength ? scanRecord[offset + i] : 0;
+            if (value != meshName[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 创建设备,只在{@link #parse(byte[])}返回true之后调用
+     */
+    public LightPeripheral create(BluetoothDevice device, int rssi) {
+
+        byte[] meshName = null;
+
+        if (this.meshNameLength >= 0) {
+            meshName = new byte[MESH_NAME_LENGTH];
+            System.arraycopy(this.scanRecord, this.meshNameOffset, meshName, 0, this.meshNameLength);
+        }
+
+        LightPeripheral light = new LightPeripheral(device, this.scanRecord, rssi, meshName, this.meshAddress);
+        light.putAdvProperty(LightPeripheral.ADV_MESH_NAME, meshName);
+        light.putAdvProperty(LightPeripheral.ADV_MESH_ADDRESS, this.meshAddress);
+        light.putAdvProperty(LightPeripheral.ADV_MESH_UUID, this.meshUUID);
+        light.putAdvProperty(LightPeripheral.ADV_PRODUCT_UUID, this.productUUID);
+        light.putAdvProperty(LightPeripheral.ADV_STATUS, this.status);
+
+        return light;
+    }
+}
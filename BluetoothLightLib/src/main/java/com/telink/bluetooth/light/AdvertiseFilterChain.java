@@ -58,6 +58,19 @@ public final class AdvertiseFilterChain {
         return this;
     }
 
+    /**
+     * 是否有默认过滤器之外的过滤器,没有时其他厂商的广播不用经过过滤链
+     */
+    public boolean hasCustomFilter() {
+        synchronized (this) {
+            for (Object filter : this.mFilters) {
+                if (!(filter instanceof DefaultAdvertiseDataFilter))
+                    return true;
+            }
+            return false;
+        }
+    }
+
     public Iterator<AdvertiseDataFilter> iterator() {
         synchronized (this) {
             return this.mFilters.iterator();
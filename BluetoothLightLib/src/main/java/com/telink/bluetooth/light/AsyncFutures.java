@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import android.os.Handler;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 还没有完成的异步命令
+ * <p>等待响应的命令按(opcode, 源地址)索引,收到通知时不用逐个比较.
+ * 超时用单独的Handler,LightController清理mDelayHandler时不会被取消.
+ */
+final class AsyncFutures {
+
+    // 不限定源地址时的索引,0xFFFF是广播地址,不会是响应的源地址
+    private static final int ANY_SRC = 0xFFFF;
+
+    private final Handler timeoutHandler = new Handler();
+    private final Set<CommandFuture> futures = new HashSet<>();
+    // 同一个(opcode, 源地址)按发送顺序排列
+    private final SparseArray<ArrayDeque<CommandFuture>> responses = new SparseArray<>();
+
+    private static int key(int opcode, int src) {
+        return ((opcode & 0xFF) << 16) | (src == -1 ? ANY_SRC : src & 0xFFFF);
+    }
+
+    /**
+     * @param timeout 等待响应的超时时间,单位毫秒,只等待写入完成的命令忽略
+     */
+    void add(final CommandFuture future, int timeout) {
+
+        synchronized (this) {
+            this.futures.add(future);
+            future.setOwner(this);
+
+            if (!future.isAwaitingResponse())
+                return;
+
+            int key = key(future.responseOpcode, future.responseSrc);
+            ArrayDeque<CommandFuture> queue = this.responses.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>(2);
+                this.responses.put(key, queue);
+            }
+            queue.add(future);
+
+            future.timeoutTask = new Runnable() {
+                @Override
+                public void run() {
+                    if (AsyncFutures.this.remove(future))
+                        future.setTimeout();
+                }
+            };
+        }
+
+        this.timeoutHandler.postDelayed(future.timeoutTask, timeout);
+    }
+
+    /**
+     * @return 还没有完成时返回true
+     */
+    boolean remove(CommandFuture future) {
+
+        synchronized (this) {
+            if (!this.futures.remove(future))
+                return false;
+
+            if (future.isAwaitingResponse()) {
+                int key = key(future.responseOpcode, future.responseSrc);
+                ArrayDeque<CommandFuture> queue = this.responses.get(key);
+                if (queue != null && queue.remove(future) && queue.isEmpty())
+                    this.responses.remove(key);
+            }
+        }
+
+        this.cancelTimeout(future);
+        return true;
+    }
+
+    /**
+     * 取出等待这个响应的命令,先找指定了源地址的,再找不限定源地址的
+     *
+     * @return 没有时返回null
+     */
+    CommandFuture match(int opcode, int src) {
+
+        CommandFuture future;
+
+        synchronized (this) {
+            if (this.responses.size() == 0)
+                return null;
+
+            future = this.poll(key(opcode, src));
+            if (future == null)
+                future = this.poll(key(opcode, -1));
+            if (future == null)
+                return null;
+
+            this.futures.remove(future);
+        }
+
+        this.cancelTimeout(future);
+        return future;
+    }
+
+    /**
+     * 取出全部,断开连接时调用
+     */
+    List<CommandFuture> removeAll() {
+
+        List<CommandFuture> result;
+
+        synchronized (this) {
+            if (this.futures.isEmpty())
+                return null;
+            result = new ArrayList<>(this.futures);
+            this.futures.clear();
+            this.responses.clear();
+        }
+
+        for (CommandFuture future : result)
+            this.cancelTimeout(future);
+
+        return result;
+    }
+
+    synchronized int size() {
+        return this.futures.size();
+    }
+
+    /**
+     * 跳过已经完成(比如刚被取消,还没来得及移除)的命令
+     */
+    private CommandFuture poll(int key) {
+        ArrayDeque<CommandFuture> queue = this.responses.get(key);
+        if (queue == null)
+            return null;
+        CommandFuture future;
+        while ((future = queue.poll()) != null && future.isDone()) {
+            this.futures.remove(future);
+            this.cancelTimeout(future);
+        }
+        if (queue.isEmpty())
+            this.responses.remove(key);
+        return future;
+    }
+
+    private void cancelTimeout(CommandFuture future) {
+        if (future.timeoutTask != null)
+            this.timeoutHandler.removeCallbacks(future.timeoutTask);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import com.telink.crypto.SessionCrypto;
+
+/**
+ * 命令帧编码
+ * <p>帧头,参数和MIC直接写入调用者提供的缓冲区并原地加密,nonce使用内部缓冲区,稳态下不分配内存.
+ * 非线程安全,由{@link LightController}同步调用.
+ */
+final class CommandEncoder {
+
+    public static final int FRAME_LENGTH = 20;
+    public static final int PARAMS_OFFSET = 10;
+
+    private final byte[] nonce = new byte[8];
+
+    /**
+     * 写入明文帧: sn(3) + src(2) + dest(2) + opcode(1) + vendorId(2) + params(10)
+     */
+    public static void writeFrame(byte[] frame, int sn, int address, byte opcode, int vendorId, byte[] params) {
+
+        int offset = 0;
+
+        // SN
+        frame[offset++] = (byte) (sn & 0xFF);
+        frame[offset++] = (byte) (sn >> 8 & 0xFF);
+        frame[offset++] = (byte) (sn >> 16 & 0xFF);
+
+        // src address
+        frame[offset++] = 0x00;
+        frame[offset++] = 0x00;
+
+        // dest address
+        frame[offset++] = (byte) (address & 0xFF);
+        frame[offset++] = (byte) (address >> 8 & 0xFF);
+
+        // opcode
+        frame[offset++] = (byte) (opcode | 0xC0);
+
+        // vendor Id
+        frame[offset++] = (byte) (vendorId >> 8 & 0xFF);
+        frame[offset++] = (byte) (vendorId & 0xFF);
+
+        // params
+        int length = 0;
+        if (params != null) {
+            length = params.length;
+            System.arraycopy(params, 0, frame, offset, length);
+        }
+
+        // 复用的缓冲区要清掉上次的参数
+        for (int i = offset + length; i < FRAME_LENGTH; i++)
+            frame[i] = 0;
+    }
+
+    /**
+     * 命令的nonce,返回内部缓冲区
+     */
+    public byte[] nonce(byte[] macAddress, int sn) {
+
+        byte[] ivm = this.nonce;
+
+        for (int i = 0; i < 4; i++)
+            ivm[i] = i < macAddress.length ? macAddress[i] : 0;
+
+        ivm[4] = 0x01;
+        ivm[5] = (byte) (sn & 0xFF);
+        ivm[6] = (byte) (sn >> 8 & 0xFF);
+        ivm[7] = (byte) (sn >> 16 & 0xFF);
+
+        return ivm;
+    }
+
+    /**
+     * 编码并原地加密
+     */
+    public void encode(SessionCrypto crypto, byte[] macAddress, byte[] frame,
+                       int sn, int address, byte opcode, int vendorId, byte[] params) {
+        writeFrame(frame, sn, address, opcode, vendorId, params);
+        crypto.encryptCommandInPlace(this.nonce(macAddress, sn), frame);
+    }
+}
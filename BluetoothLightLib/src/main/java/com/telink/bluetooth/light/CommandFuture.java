@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步命令的结果
+ * <p>由{@link LightController#sendCommandAsync(byte, int, byte[], boolean, int)}返回,
+ * 命令写入(或读取)完成,收到期望的响应,失败或者超时时完成.
+ * 可以阻塞等待{@link #get()},也可以通过{@link #addListener(Listener)}在完成时回调.
+ */
+public final class CommandFuture implements Future<byte[]> {
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_SUCCESS = 1;
+    public static final int STATE_FAILURE = 2;
+    public static final int STATE_TIMEOUT = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    final int responseOpcode;
+    final int responseSrc;
+    // 等待响应的超时任务,由AsyncFutures管理
+    Runnable timeoutTask;
+    // 所在的AsyncFutures,取消时从中移除
+    private AsyncFutures owner;
+
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private List<Listener> listeners;
+    private int state = STATE_PENDING;
+    private byte[] result;
+    private String errorMsg;
+
+    /**
+     * @param responseOpcode 期望的响应opcode,-1表示只等待命令写入完成
+     * @param responseSrc    期望的响应源地址,-1表示任意地址
+     */
+    CommandFuture(int responseOpcode, int responseSrc) {
+        this.responseOpcode = responseOpcode;
+        this.responseSrc = responseSrc;
+    }
+
+    public synchronized int getState() {
+        return this.state;
+    }
+
+    public synchronized boolean isSuccess() {
+        return this.state == STATE_SUCCESS;
+    }
+
+    public synchronized boolean isTimeout() {
+        return this.state == STATE_TIMEOUT;
+    }
+
+    /**
+     * 读取到的数据或者解密后的响应,写命令没有等待响应时为null
+     */
+    public synchronized byte[] getResult() {
+        return this.result;
+    }
+
+    public synchronized String getErrorMsg() {
+        return this.errorMsg;
+    }
+
+    boolean isAwaitingResponse() {
+        return this.responseOpcode != -1;
+    }
+
+    /**
+     * 通知数据是否是期望的响应
+     */
+    boolean matches(int opcode, int src) {
+        return this.responseOpcode == opcode && (this.responseSrc == -1 || this.responseSrc == src);
+    }
+
+    /**
+     * 添加完成监听,已经完成时立即回调
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (this.state == STATE_PENDING) {
+                if (this.listeners == null)
+                    this.listeners = new ArrayList<>(1);
+                this.listeners.add(listener);
+                return;
+            }
+        }
+        listener.onCompleted(this);
+    }
+
+    boolean setSuccess(byte[] result) {
+        return this.complete(STATE_SUCCESS, result, null);
+    }
+
+    boolean setFailure(String errorMsg) {
+        return this.complete(STATE_FAILURE, null, errorMsg);
+    }
+
+    boolean setTimeout() {
+        return this.complete(STATE_TIMEOUT, null, "timeout");
+    }
+
+    private boolean complete(int state, byte[] result, String errorMsg) {
+
+        List<Listener> listeners;
+
+        synchronized (this) {
+            if (this.state != STATE_PENDING)
+                return false;
+            this.state = state;
+            this.result = result;
+            this.errorMsg = errorMsg;
+            listeners = this.listeners;
+            this.listeners = null;
+        }
+
+        this.latch.countDown();
+
+        if (listeners != null) {
+            for (Listener listener : listeners)
+                listener.onCompleted(this);
+        }
+
+        return true;
+    }
+
+    synchronized void setOwner(AsyncFutures owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * 只取消等待,已经写入的命令无法撤回
+     * <p>同时从AsyncFutures中移除,之后的响应留给同一个(opcode, 源地址)的下一个命令.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+
+        if (!this.complete(STATE_CANCELLED, null, "cancelled"))
+            return false;
+
+        AsyncFutures owner;
+        synchronized (this) {
+            owner = this.owner;
+        }
+        if (owner != null)
+            owner.remove(this);
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return this.state == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return this.state != STATE_PENDING;
+    }
+
+    @Override
+    public byte[] get() throws InterruptedException, ExecutionException {
+        this.latch.await();
+        return this.report();
+    }
+
+    @Override
+    public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!this.latch.await(timeout, unit))
+            throw new TimeoutException();
+        return this.report();
+    }
+
+    private synchronized byte[] report() throws ExecutionException {
+        if (this.state == STATE_SUCCESS)
+            return this.result;
+        if (this.state == STATE_CANCELLED)
+            throw new CancellationException();
+        throw new ExecutionException(this.errorMsg, null);
+    }
+
+    public interface Listener {
+        void onCompleted(CommandFuture future);
+    }
+}
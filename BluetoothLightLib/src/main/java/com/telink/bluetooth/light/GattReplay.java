@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import com.telink.bluetooth.GattCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 回放{@link GattCapture}抓到的数据,用于离线的性能和回归分析
+ * <p>只回放解密后的Notify({@link GattCapture#TYPE_DECRYPTED}),抓包里没有会话密钥,原始的加密数据无法重新解密.
+ */
+public final class GattReplay {
+
+    private final List<GattCapture.Record> records;
+    private boolean realtime;
+
+    public GattReplay(List<GattCapture.Record> records) {
+        this.records = records;
+    }
+
+    /**
+     * 读取整个抓包文件
+     */
+    public static GattReplay load(File file) throws IOException {
+
+        List<GattCapture.Record> records = new ArrayList<>();
+        GattCapture.Reader reader = GattCapture.open(file);
+
+        try {
+            GattCapture.Record record;
+            while ((record = reader.next()) != null)
+                records.add(record);
+        } finally {
+            reader.close();
+        }
+
+        return new GattReplay(records);
+    }
+
+    /**
+     * 按抓包时的时间间隔回放,默认尽快回放
+     */
+    public GattReplay setRealtime(boolean realtime) {
+        this.realtime = realtime;
+        return this;
+    }
+
+    public List<GattCapture.Record> getRecords() {
+        return Collections.unmodifiableList(this.records);
+    }
+
+    /**
+     * 把解密后的Notify依次交给controller,和真实连接一样匹配等待中的命令并发出{@link LightController.LightEvent#NOTIFICATION_RECEIVE}
+     *
+     * @return 回放的Notify数量
+     */
+    public int replay(LightController controller) throws InterruptedException {
+
+        int count = 0;
+        long start = System.nanoTime();
+        long first = -1;
+
+        for (GattCapture.Record record : this.records) {
+
+            if (record.type != GattCapture.TYPE_DECRYPTED)
+                continue;
+
+            if (this.realtime) {
+                if (first < 0)
+                    first = record.timestamp;
+                long delay = (record.timestamp - first) - (System.nanoTime() - start);
+                if (delay > 0)
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+            }
+
+            controller.onNotifyData(record.data);
+            count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * 不经过LightController,直接用注册的{@link NotificationParser}解析每个Notify
+     *
+     * @return 解析出结果的Notify数量
+     */
+    public int parse() {
+
+        int count = 0;
+        int vendorId = Manufacture.getDefault().getVendorId();
+
+        for (GattCapture.Record record : this.records) {
+
+            if (record.type != GattCapture.TYPE_DECRYPTED)
+                continue;
+
+            byte[] data = record.data;
+
+            if (data == null || data.length < 20)
+                continue;
+
+            if ((((data[8] & 0xFF) << 8) + (data[9] & 0xFF)) != vendorId)
+                continue;
+
+            NotificationParser<?> parser = NotificationParser.get(data[7] & 0xFF);
+
+            if (parser == null)
+                continue;
+
+            NotificationInfo notificationInfo = new NotificationInfo();
+            notificationInfo.opcode = data[7] & 0xFF;
+            notificationInfo.src = (data[3] & 0xFF) + ((data[4] & 0xFF) << 8);
+            System.arraycopy(data, 10, notificationInfo.params, 0, 10);
+
+            if (parser.parse(notificationInfo) != null)
+                count++;
+        }
+
+        return count;
+    }
+}
@@ -65,4 +65,30 @@ public final class LeScanParameters extends Parameters {
         return this;
     }
 
+    /**
+     * 系统扫描参数,Android 5.0以上有效
+     *
+     * @param scanMode          ScanSettings.SCAN_MODE_*
+     * @param matchMode         ScanSettings.MATCH_MODE_*,Android 6.0以上有效
+     * @param reportDelayMillis 大于0时批量上报
+     * @return
+     */
+    public LeScanParameters setScanSettings(int scanMode, int matchMode, int reportDelayMillis) {
+        this.set(Parameters.PARAM_SCAN_MODE, scanMode);
+        this.set(Parameters.PARAM_SCAN_MATCH_MODE, matchMode);
+        this.set(Parameters.PARAM_SCAN_REPORT_DELAY, reportDelayMillis);
+        return this;
+    }
+
+    /**
+     * 是否由蓝牙控制器按厂商ID过滤广播包,默认为true;使用其他厂商的{@link AdvertiseDataFilter}时需要关闭
+     *
+     * @param value
+     * @return
+     */
+    public LeScanParameters setVendorFilter(boolean value) {
+        this.set(Parameters.PARAM_SCAN_VENDOR_FILTER, value);
+        return this;
+    }
+
 }
@@ -4,6 +4,7 @@
  */
 package com.telink.bluetooth.light;
 
+import java.io.File;
 import java.util.Arrays;
 
 /**
@@ -88,4 +89,26 @@ public final class LeUpdateParameters extends Parameters {
         this.set(PARAM_DEVICE_LIST, Arrays.asList(value));
         return this;
     }
+
+    /**
+     * 同时连接更新的设备数,默认为1,即一个一个更新;最大为8,受手机同时连接数的限制
+     *
+     * @param value
+     * @return
+     */
+    public LeUpdateParameters setConcurrency(int value) {
+        this.set(PARAM_UPDATE_CONCURRENCY, value);
+        return this;
+    }
+
+    /**
+     * 步骤日志文件,App被杀后用同样的参数重新更新时,跳过已完成的设备,已设置地址的设备沿用日志中的地址
+     *
+     * @param value
+     * @return
+     */
+    public LeUpdateParameters setJournal(File value) {
+        this.set(PARAM_UPDATE_JOURNAL, value);
+        return this;
+    }
 }
@@ -9,7 +9,7 @@ import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.support.annotation.Nullable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.telink.bluetooth.Command;
@@ -21,14 +21,16 @@ import com.telink.util.Event;
 import com.telink.util.EventListener;
 import com.telink.util.Strings;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class LightAdapter {
 
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(LightAdapter.class);
+
     public static final int STATUS_CONNECTING = 0;
     public static final int STATUS_CONNECTED = 1;
     public static final int STATUS_LOGINING = 2;
@@ -65,6 +67,9 @@ public class LightAdapter {
     private static final int STATE_PENDING = 1;
     private static final int STATE_RUNNING = 2;
 
+    // 扫描失败后重试的延时
+    private static final int SCAN_RETRY_DELAY = 1000;
+
     //自动连接时最大重连次数
     private static final int CONNECT_MAX_RETRY = 2;
 
@@ -90,9 +95,16 @@ public class LightAdapter {
     protected LightController mLightCtrl;
     private LightPeripherals mScannedLights;
     private LightPeripherals mUpdateLights;
+    private final ProxyRanker mProxyRanker = new ProxyRanker();
+    // 同时连接多个设备更新网络参数,PARAM_UPDATE_CONCURRENCY大于1时使用
+    private MeshProvisioner mProvisioner;
+    // 更新网络参数的步骤日志,设置了PARAM_UPDATE_JOURNAL时使用
+    private ProvisionJournal mJournal;
     private Handler mLoopHandler;
     private Runnable mLoopTask;
-    private int mInterval = 200;
+    // 下一次执行mLoopTask的时间(uptimeMillis),0表示没有安排
+    private long mNextLoopTime;
+    private final Object mLoopLock = new Object();
     private Handler mNotifyHandler;
     private Runnable mNotifyTask;
 
@@ -117,6 +129,9 @@ public class LightAdapter {
 
     private HandlerThread mThread;
 
+    private final MeshNameCache mMeshName = new MeshNameCache();
+    private final MeshNameCache mOutOfMeshName = new MeshNameCache();
+
     /********************************************************************************
      * Public API
      *******************************************************************************/
@@ -131,10 +146,14 @@ public class LightAdapter {
 
     synchronized private void setMode(int value) {
         this.mode.getAndSet(value);
+        if (value != MODE_UPDATE_MESH && this.mProvisioner != null)
+            this.mProvisioner.cancel();
+        if (value != MODE_UPDATE_MESH)
+            this.closeJournal();
         if (mLightCtrl != null) {
             mLightCtrl.setIsUpdating(value == MODE_UPDATE_MESH);
         }
-        TelinkLog.d("" + value);
+        LOG.d("mode : %d", value);
     }
 
     private String getModeStr(int value) {
@@ -162,7 +181,7 @@ public class LightAdapter {
 
     synchronized public void start(Context context) {
 
-        TelinkLog.d("light mAdapter start");
+        LOG.d("light mAdapter start");
 
         if (this.isStarted.get())
             return;
@@ -210,7 +229,7 @@ public class LightAdapter {
 
     synchronized public void stop() {
 
-        TelinkLog.d("light mAdapter stop");
+        LOG.d("light mAdapter stop");
 
         if (!this.isStarted.get())
             return;
@@ -249,6 +268,11 @@ public class LightAdapter {
 
         this.mScanCallback = null;
 
+        if (this.mProvisioner != null) {
+            this.mProvisioner.cancel();
+            this.mProvisioner = null;
+        }
+
         this.mScannedLights.clear();
         this.mScannedLights = null;
 
@@ -267,13 +291,12 @@ public class LightAdapter {
         if (!this.isStarted.get())
             return false;
 
-        int index = this.mScannedLights.getPeripheralIndex(mac);
+        LightPeripheral light = this.mScannedLights.get(mac);
 
-        if (index == -1)
+        if (light == null)
             return false;
 
-        TelinkLog.d("LightAdapter#connect");
-        LightPeripheral light = this.mScannedLights.get(mac);
+        LOG.d("LightAdapter#connect");
         this.connect(light, timeoutSeconds);
         return true;
     }
@@ -282,7 +305,7 @@ public class LightAdapter {
 
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#disconnect");
+        LOG.d("LightAdapter#disconnect");
         this.mLightCtrl.disconnect();
     }
 
@@ -306,7 +329,7 @@ public class LightAdapter {
         LightPeripheral light = this.mLightCtrl.getCurrentLight();
         if (light == null || !light.isConnected())
             return false;
-        TelinkLog.d("LightAdapter#login");
+        LOG.d("LightAdapter#login");
         this.mLightCtrl.login(meshName, password);
         return true;
     }
@@ -317,7 +340,7 @@ public class LightAdapter {
         LightPeripheral light = this.mLightCtrl.getCurrentLight();
         if (light == null || !this.mLightCtrl.isLogin())
             return false;
-        TelinkLog.d("LightAdapter#startOta");
+        LOG.d("LightAdapter#startOta");
         this.mLightCtrl.startOta(firmware);
         return true;
     }
@@ -328,7 +351,7 @@ public class LightAdapter {
         LightPeripheral light = this.mLightCtrl.getCurrentLight();
         if (light == null || !light.isConnected())
             return false;
-        TelinkLog.d("LightAdapter#getFirmwareVersion");
+        LOG.d("LightAdapter#getFirmwareVersion");
         this.mLightCtrl.requestFirmware();
         return true;
     }
@@ -343,9 +366,53 @@ public class LightAdapter {
         }
         byte[] password = Strings.stringToBytes(pwd, 16);
 
+        if (this.getMode() == MODE_UPDATE_MESH) {
+            byte[] newMeshName = Strings.stringToBytes(mParams.getString(Parameters.PARAM_NEW_MESH_NAME), 16);
+            byte[] newPassword = Strings.stringToBytes(mParams.getString(Parameters.PARAM_NEW_PASSWORD), 16);
+            this.mLightCtrl.loginForReset(meshName, password, newMeshName, newPassword);
+            return;
+        }
+
         this.login(meshName, password);
     }
 
+    private void openJournal() {
+
+        this.closeJournal();
+
+        Object file = this.mParams.get(Parameters.PARAM_UPDATE_JOURNAL);
+
+        if (!(file instanceof File))
+            return;
+
+        byte[] meshName = Strings.stringToBytes(mParams.getString(Parameters.PARAM_NEW_MESH_NAME), 16);
+        byte[] password = Strings.stringToBytes(mParams.getString(Parameters.PARAM_NEW_PASSWORD), 16);
+        byte[] ltk = mParams.getBytes(Parameters.PARAM_LONG_TERM_KEY);
+
+        try {
+            this.mJournal = ProvisionJournal.open((File) file, meshName, password, ltk);
+        } catch (IOException e) {
+            LOG.e("open journal error : %s", e.getMessage());
+            return;
+        }
+
+        this.mLightCtrl.setJournal(this.mJournal);
+    }
+
+    private void closeJournal() {
+
+        if (this.mJournal == null)
+            return;
+
+        if (this.mLightCtrl != null)
+            this.mLightCtrl.setJournal(null);
+        if (this.mProvisioner != null)
+            this.mProvisioner.setJournal(null);
+
+        this.mJournal.close();
+        this.mJournal = null;
+    }
+
     public boolean sendCommand(byte opcode, int address, byte[] params) {
         return this.sendCommand(opcode, address, params, null, 0);
     }
@@ -405,7 +472,7 @@ public class LightAdapter {
 
         if (this.getMode() == MODE_SCAN_MESH)
             return;
-        TelinkLog.d("LightAdapter#startLeScan");
+        LOG.d("LightAdapter#startLeScan");
         this.setMode(MODE_IDLE);
 
         if (!isSupportN())
@@ -429,7 +496,7 @@ public class LightAdapter {
 
         if (this.getMode() == MODE_UPDATE_MESH)
             return;
-        TelinkLog.d("LightAdapter#updateMesh");
+        LOG.d("LightAdapter#updateMesh");
         this.setMode(MODE_IDLE);
 
         if (!isSupportN())
@@ -483,6 +550,30 @@ public class LightAdapter {
         this.mLightCtrl.disconnect();
 
         this.setMode(MODE_UPDATE_MESH);
+        this.openJournal();
+
+        int concurrency = this.mParams.getInt(Parameters.PARAM_UPDATE_CONCURRENCY, 1);
+
+        if (concurrency > 1) {
+            // 事件循环保持等待,由MeshProvisioner完成后回到IDLE
+            this.setState(STATE_PENDING);
+            this.enableLoop(false);
+
+            if (this.mProvisioner == null || this.mProvisioner.getConcurrency() != Math.min(concurrency, MeshProvisioner.MAX_CONCURRENCY))
+                this.mProvisioner = new MeshProvisioner(this.mContext, concurrency);
+
+            this.mProvisioner.setParameters(this.mParams);
+            this.mProvisioner.setJournal(this.mJournal);
+            this.mProvisioner.start(this.mUpdateLights.toArray(), new ProvisionCallback());
+            return;
+        }
+
+        // 日志中已完成的设备meshChanged为true,update()中跳过
+        if (this.mJournal != null) {
+            for (LightPeripheral light : this.mUpdateLights.toArray())
+                this.mJournal.restore(light);
+        }
+
         this.setState(STATE_RUNNING);
 
         this.enableLoop(true);
@@ -495,7 +586,7 @@ public class LightAdapter {
 
         if (this.getMode() == MODE_AUTO_CONNECT_MESH)
             return;
-        TelinkLog.d("LightAdapter#autoConnect");
+        LOG.d("LightAdapter#autoConnect");
         this.setMode(MODE_IDLE);
 
         if (!isSupportN())
@@ -562,7 +653,7 @@ public class LightAdapter {
 
         if (this.getMode() == MODE_OTA)
             return;
-        TelinkLog.d("LightAdapter#startOta");
+        LOG.d("LightAdapter#startOta");
         this.setMode(MODE_IDLE);
 
 
@@ -583,7 +674,7 @@ public class LightAdapter {
 
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#enableAutoRefreshNotify");
+        LOG.d("LightAdapter#enableAutoRefreshNotify");
         this.autoRefreshParams = params;
         this.autoRefreshCount = 0;
         this.enableRefreshNotify(true);
@@ -593,7 +684,7 @@ public class LightAdapter {
 
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#disableAutoRefreshNotify");
+        LOG.d("LightAdapter#disableAutoRefreshNotify");
         this.enableRefreshNotify(false);
         this.autoRefreshParams = null;
     }
@@ -601,28 +692,28 @@ public class LightAdapter {
     public void enableNotification() {
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#enableNotification");
+        LOG.d("LightAdapter#enableNotification");
         this.mLightCtrl.enableNotification();
     }
 
     public void disableNotification() {
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#disableNotification");
+        LOG.d("LightAdapter#disableNotification");
         this.mLightCtrl.disableNotification();
     }
 
     public void updateNotification() {
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#updateNotification");
+        LOG.d("LightAdapter#updateNotification");
         this.mLightCtrl.updateNotification();
     }
 
     public void updateNotification(byte[] params) {
         if (!this.isStarted.get())
             return;
-        TelinkLog.d("LightAdapter#updateNotification-with-params");
+        LOG.d("LightAdapter#updateNotification-with-params");
         this.mLightCtrl.updateNotification(params);
     }
 
@@ -642,7 +733,7 @@ public class LightAdapter {
             try {
                 light = filter.filter(device, rssi, scanRecord);
             } catch (Exception e) {
-                TelinkLog.d("Advertise Filter Exception : " + filter.toString() + "--" + e.getMessage());
+                LOG.d("Advertise Filter Exception : %s--%s", filter, e.getMessage());
             }
 
             if (light != null)
@@ -652,6 +743,30 @@ public class LightAdapter {
         return light;
     }
 
+    /**
+     * 创建LightPeripheral之前的过滤,只比较广播包中的MeshName
+     */
+    protected boolean onLeScanFilter(AdvertiseData data) {
+
+        int mode = this.getMode();
+
+        Parameters params = this.getParameters();
+
+        if (params == null)
+            return false;
+
+        byte[] meshName = this.mMeshName.get(params.getString(Parameters.PARAM_MESH_NAME));
+
+        if (mode == MODE_SCAN_MESH) {
+            byte[] outOfMeshName = this.mOutOfMeshName.get(params.getString(Parameters.PARAM_OUT_OF_MESH));
+            return data.meshNameEquals(meshName) || data.meshNameEquals(outOfMeshName);
+        } else if (mode == MODE_AUTO_CONNECT_MESH) {
+            return data.meshNameEquals(meshName);
+        }
+
+        return true;
+    }
+
     protected boolean onLeScanFilter(LightPeripheral light) {
 
         int mode = this.getMode();
@@ -663,11 +778,11 @@ public class LightAdapter {
 
         byte[] outOfMeshName;
 
-        byte[] meshName = Strings.stringToBytes(params.getString(Parameters.PARAM_MESH_NAME), 16);
+        byte[] meshName = this.mMeshName.get(params.getString(Parameters.PARAM_MESH_NAME));
         byte[] meshName1 = light.getMeshName();
 
         if (mode == MODE_SCAN_MESH) {
-            outOfMeshName = Strings.stringToBytes(params.getString(Parameters.PARAM_OUT_OF_MESH), 16);
+            outOfMeshName = this.mOutOfMeshName.get(params.getString(Parameters.PARAM_OUT_OF_MESH));
             if (!Arrays.equals(meshName, meshName1) && !Arrays.equals(outOfMeshName, meshName1))
                 return false;
         } else if (mode == MODE_AUTO_CONNECT_MESH) {
@@ -714,6 +829,9 @@ public class LightAdapter {
 
     synchronized private void setState(int value) {
         this.state.getAndSet(value);
+        // 上一步完成,马上执行下一步
+        if (value == STATE_RUNNING)
+            this.wakeLoop(0);
     }
 
     synchronized private void setIsStarted(boolean value) {
@@ -747,24 +865,46 @@ public class LightAdapter {
         this.setStatus(newStatus, false, false);
     }
 
+    /**
+     * mLoopTask不再轮询,由连接,登录,扫描事件和需要的定时器触发
+     */
     private void enableLoop(boolean running) {
 
-        if (this.mLoopHandler == null || this.mLoopTask == null)
-            return;
+        synchronized (this.mLoopLock) {
+
+            if (this.mLoopHandler == null || this.mLoopTask == null)
+                return;
 
-        if (running) {
+            this.mainLoopRunning = running;
 
-            if (!this.mainLoopRunning) {
-                this.mLoopHandler.postDelayed(this.mLoopTask,
-                        this.mInterval);
-//                this.mLoopHandler.post(this.mLoopTask);
+            if (running) {
+                this.wakeLoop(0);
+            } else {
+                this.mLoopHandler.removeCallbacks(this.mLoopTask);
+                this.mNextLoopTime = 0;
             }
+        }
+    }
+
+    /**
+     * 在delayMillis后执行一次mLoopTask,已经安排了更早的执行时忽略
+     */
+    private void wakeLoop(long delayMillis) {
+
+        synchronized (this.mLoopLock) {
+
+            if (!this.mainLoopRunning || this.mLoopHandler == null || this.mLoopTask == null)
+                return;
+
+            long time = SystemClock.uptimeMillis() + Math.max(delayMillis, 0);
+
+            if (this.mNextLoopTime != 0 && this.mNextLoopTime <= time)
+                return;
 
-        } else {
             this.mLoopHandler.removeCallbacks(this.mLoopTask);
+            this.mLoopHandler.postAtTime(this.mLoopTask, time);
+            this.mNextLoopTime = time;
         }
-
-        this.mainLoopRunning = running;
     }
 
     private void enableRefreshNotify(boolean enable) {
@@ -811,9 +951,10 @@ public class LightAdapter {
 
         @Override
         public void onScanFail(int errorCode) {
-            TelinkLog.d(" scan fail : " + errorCode);
+            LOG.d(" scan fail : %d", errorCode);
             if (mCallback != null)
                 mCallback.onError(errorCode);
+            wakeLoop(SCAN_RETRY_DELAY);
         }
 
         @Override
@@ -825,6 +966,8 @@ public class LightAdapter {
         @Override
         public void onStoppedScan() {
             isScanStopped.set(true);
+            // 扫描被系统停止时由mLoopTask重新开始
+            wakeLoop(0);
         }
 
         @Override
@@ -835,9 +978,23 @@ public class LightAdapter {
             if (mCallback == null || getMode() == MODE_IDLE || getMode() == MODE_UPDATE_MESH)
                 return;
 
-            synchronized (LightAdapter.this) {
-                if (mScannedLights.contains(device.getAddress()))
+            LightPeripheral known = mScannedLights.get(device.getAddress());
+
+            // 已经扫描到的设备只更新信号,用于自动连接时选择代理节点
+            if (known != null) {
+                mProxyRanker.onAdvertise(known, rssi, System.currentTimeMillis());
+                return;
+            }
+
+            // 本厂商的设备先在广播包上比较MeshName,不符合的不创建LightPeripheral
+            AdvertiseData data = AdvertiseData.obtain();
+
+            if (data.parse(scanRecord)) {
+                if (!onLeScanFilter(data))
                     return;
+            } else if (!AdvertiseFilterChain.getDefault().hasCustomFilter()) {
+                // 其他厂商的设备不会进入mScannedLights,每个广播包都会到这里,默认过滤器也不会接受
+                return;
             }
 
             LightPeripheral light = LightAdapter.this.onLeScan(device, rssi, scanRecord);
@@ -851,7 +1008,9 @@ public class LightAdapter {
             if (!result)
                 return;
 
-            TelinkLog.d("add scan result : " + device.getAddress());
+            LOG.d("add scan result : %s", device.getAddress());
+
+            mProxyRanker.onAdvertise(light, rssi, System.currentTimeMillis());
 
             int mode = getMode();
 
@@ -864,6 +1023,7 @@ public class LightAdapter {
                     if (mScannedLights.size() == 0) {
                         mScannedLights.put(light);
                         mCallback.onLeScan(light, rssi,mode, scanRecord);
+                        wakeLoop(0);
                     }
 
                 } else {
@@ -873,8 +1033,10 @@ public class LightAdapter {
 
             } else if (mode == MODE_AUTO_CONNECT_MESH) {
                 mScannedLights.put(light);
+                wakeLoop(0);
             } else if (mode == MODE_OTA) {
                 mScannedLights.put(light);
+                wakeLoop(0);
             }
         }
 
@@ -909,8 +1071,11 @@ public class LightAdapter {
 
         private void onLoginSuccess() {
 
-            TelinkLog.d("onLoginSuccess "
-                    + mLightCtrl.getCurrentLight().getMacAddress());
+            LightPeripheral light = mLightCtrl.getCurrentLight();
+
+            LOG.d("onLoginSuccess %s", light.getMacAddress());
+
+            mProxyRanker.onSuccess(light, System.currentTimeMillis());
 
             setStatus(STATUS_LOGIN, true);
 
@@ -953,8 +1118,11 @@ public class LightAdapter {
 
         private void onLoginFailure() {
 
-            TelinkLog.d("onLoginFail "
-                    + mLightCtrl.getCurrentLight().getMacAddress());
+            LightPeripheral light = mLightCtrl.getCurrentLight();
+
+            LOG.d("onLoginFail %s", light.getMacAddress());
+
+            mProxyRanker.onFailure(light, System.currentTimeMillis());
 
             setStatus(STATUS_LOGOUT, true);
 
@@ -965,7 +1133,7 @@ public class LightAdapter {
                 setStatus(STATUS_UPDATE_MESH_FAILURE);
             } else if (mode == MODE_AUTO_CONNECT_MESH) {
 //                mScannedLights.clear();
-                mScannedLights.removeTop();
+                mScannedLights.retryOrRemove(light);
                 nextLightIndex.set(0);
 //                lastLogoutTime = 0;
                 setState(STATE_RUNNING);
@@ -977,8 +1145,7 @@ public class LightAdapter {
         }
 
         private void onNError() {
-            TelinkLog.d("onNError "
-                    + mLightCtrl.getCurrentLight().getMacAddress());
+            LOG.d("onNError %s", mLightCtrl.getCurrentLight().getMacAddress());
 
             setStatus(STATUS_LOGOUT, true);
 
@@ -1010,6 +1177,44 @@ public class LightAdapter {
         }
     }
 
+    /**
+     * 每个连接的状态用各自的LightController回调,与一个一个更新时的状态顺序相同
+     */
+    private final class ProvisionCallback implements MeshProvisioner.Callback {
+
+        private void onStatusChanged(LightController controller, int oldStatus, int newStatus) {
+            if (getMode() == MODE_UPDATE_MESH && mCallback != null)
+                mCallback.onStatusChanged(controller, MODE_UPDATE_MESH, oldStatus, newStatus);
+        }
+
+        @Override
+        public void onConnecting(LightController controller, LightPeripheral light) {
+            this.onStatusChanged(controller, -1, STATUS_CONNECTING);
+        }
+
+        @Override
+        public void onUpdating(LightController controller, LightPeripheral light) {
+            this.onStatusChanged(controller, STATUS_LOGIN, STATUS_UPDATING_MESH);
+        }
+
+        @Override
+        public void onResult(LightController controller, MeshProvisioner.Result result, int completed, int total) {
+            LOG.d("update mesh %s %s (%d/%d)", result.light.getMacAddress(), result.success, completed, total);
+            if (result.success)
+                updateCount.getAndIncrement();
+            this.onStatusChanged(controller, STATUS_UPDATING_MESH,
+                    result.success ? STATUS_UPDATE_MESH_COMPLETED : STATUS_UPDATE_MESH_FAILURE);
+        }
+
+        @Override
+        public void onCompleted(int succeeded, int total) {
+            if (getMode() != MODE_UPDATE_MESH)
+                return;
+            setStatus(STATUS_UPDATE_ALL_MESH_COMPLETED);
+            idleMode(false);
+        }
+    }
+
     private final class NormalCommandListener implements EventListener<Integer> {
 
         private void onCommandSuccess(Command command) {
@@ -1053,7 +1258,7 @@ public class LightAdapter {
 
         private void onResetMeshSuccess() {
 
-            TelinkLog.d("onResetMeshSuccess " + mLightCtrl.getCurrentLight().getMacAddress());
+            LOG.d("onResetMeshSuccess %s", mLightCtrl.getCurrentLight().getMacAddress());
 
             setStatus(STATUS_UPDATE_MESH_COMPLETED);
 
@@ -1065,9 +1270,7 @@ public class LightAdapter {
 
         private void onResetMeshFailure(String reason) {
 
-            TelinkLog.d("onResetMeshFail "
-                    + mLightCtrl.getCurrentLight().getMacAddress()
-                    + " error msg : " + reason);
+            LOG.d("onResetMeshFail %s error msg : %s", mLightCtrl.getCurrentLight().getMacAddress(), reason);
 
             setStatus(STATUS_UPDATE_MESH_FAILURE);
 
@@ -1155,13 +1358,13 @@ public class LightAdapter {
     private final class OtaListener implements EventListener<Integer> {
 
         private void onOtaSuccess() {
-            TelinkLog.d("OTA Success");
+            LOG.d("OTA Success");
             setStatus(STATUS_OTA_COMPLETED, true);
             setMode(MODE_IDLE);
         }
 
         private void onOtaFailure() {
-            TelinkLog.d("OTA Failure");
+            LOG.d("OTA Failure");
             setStatus(STATUS_OTA_FAILURE, true);
             setMode(MODE_IDLE);
         }
@@ -1193,6 +1396,12 @@ public class LightAdapter {
         @Override
         public void run() {
 
+            synchronized (mLoopLock) {
+                mNextLoopTime = 0;
+                if (!mainLoopRunning)
+                    return;
+            }
+
             int mode = getMode();
 
             if (mode == MODE_SCAN_MESH) {
@@ -1204,9 +1413,6 @@ public class LightAdapter {
             } else if (mode == MODE_OTA) {
                 this.autoOta();
             }
-
-            if (mLoopHandler != null)
-                mLoopHandler.postDelayed(this, mInterval);
         }
 
         private void leScan() {
@@ -1235,9 +1441,11 @@ public class LightAdapter {
             long currentTime = System.currentTimeMillis();
             timeoutSeconds = timeoutSeconds * 1000;
 
-            if ((currentTime - lastScanTime) >= timeoutSeconds) {
+            if ((currentTime - lastScanTime) < timeoutSeconds) {
+                wakeLoop(lastScanTime + timeoutSeconds - currentTime);
+            } else {
 
-                TelinkLog.d("scan timeout");
+                LOG.d("scan timeout");
 
                 if (isSingleScan) {
                     setStatus(STATUS_MESH_SCAN_TIMEOUT);
@@ -1256,6 +1464,8 @@ public class LightAdapter {
             if (updateCount.get() >= lightCount || nextLightIndex.get() >= lightCount) {
                 setState(STATE_PENDING);
                 nextLightIndex.set(0);
+                if (mJournal != null)
+                    mJournal.compact();
                 setStatus(STATUS_UPDATE_ALL_MESH_COMPLETED);
                 idleMode(false); //false
                 return;
@@ -1284,10 +1494,12 @@ public class LightAdapter {
                 long currentTime = System.currentTimeMillis();
                 long delay = currentTime - lastUpdateTime;
 
-                if (delay < waitSeconds)
+                if (delay < waitSeconds) {
+                    wakeLoop(waitSeconds - delay);
                     return;
-                else
+                } else {
                     pause = false;
+                }
             }
 
             if (!this.startLeScan()) {
@@ -1320,7 +1532,8 @@ public class LightAdapter {
 //            lastLogoutTime = 0;
             int timeoutSeconds = mParams
                     .getInt(Parameters.PARAM_TIMEOUT_SECONDS);
-            LightPeripheral light = mScannedLights.getTop();
+            // 按平滑后的RSSI,广播频率和历史连接结果选择最稳定的节点
+            LightPeripheral light = mProxyRanker.select(mScannedLights.toArray(), System.currentTimeMillis());
             if (light != null) {
                 connect(light, timeoutSeconds);
             } else {
@@ -1349,10 +1562,10 @@ public class LightAdapter {
             }
 
             if (light.isConnected()) {
-                TelinkLog.d("login");
+                LOG.d("login");
                 login(light);
             } else {
-                TelinkLog.d("connect");
+                LOG.d("connect");
                 connect(light, timeoutSeconds);
             }
         }
@@ -1360,6 +1573,7 @@ public class LightAdapter {
         private boolean startLeScan() {
             mScanDelayHandler.removeCallbacks(stopScanTask);
             if (!LeBluetooth.getInstance().isScanning()) {
+                LeBluetooth.getInstance().setScanConfig(createScanConfig(mParams));
                 if (!LeBluetooth.getInstance().startScan(null))
                     return false;
                 lastLogoutTime = 0;
@@ -1370,11 +1584,6 @@ public class LightAdapter {
 
         private boolean checkOffLine() {
 
-            if (lastLogoutTime == 0) {
-                lastLogoutTime = System.currentTimeMillis() - mInterval;
-                return false;
-            }
-
             int checkOffLineTime = mParams.getInt(Parameters.PARAM_OFFLINE_TIMEOUT_SECONDS, 0) * 1000;
 
             if (checkOffLineTime <= 0)
@@ -1382,12 +1591,19 @@ public class LightAdapter {
 
             long currentTime = System.currentTimeMillis();
 
+            if (lastLogoutTime == 0) {
+                lastLogoutTime = currentTime;
+                wakeLoop(checkOffLineTime + 1);
+                return false;
+            }
+
             if ((currentTime - lastLogoutTime) > checkOffLineTime) {
                 lastLogoutTime = 0;
                 stopScan();
                 setStatus(STATUS_MESH_OFFLINE);
                 return true;
             } else {
+                wakeLoop(lastLogoutTime + checkOffLineTime + 1 - currentTime);
                 return false;
             }
         }
@@ -1397,6 +1613,7 @@ public class LightAdapter {
             stopLeScan();
             this.pause = true;
             this.lastUpdateTime = System.currentTimeMillis();
+            wakeLoop(waitSeconds);
         }
     }
 
@@ -1430,7 +1647,7 @@ public class LightAdapter {
                     autoRefreshRunning = false;
                 } else {
                     autoRefreshCount = count;
-                    TelinkLog.d("AutoRefresh : " + count);
+                    LOG.d("AutoRefresh : %d", count);
                     mNotifyHandler.postDelayed(this, delay);
                 }
             } else if (repeat <= 0) {
@@ -1440,115 +1657,44 @@ public class LightAdapter {
     }
 
 
-    private final class LightPeripherals {
+    /**
+     * 默认只让本厂商的广播包通过,解析规则与{@link AdvertiseData}相同
+     */
+    private static LeBluetooth.ScanConfig createScanConfig(Parameters params) {
 
-        private List<LightPeripheral> mPeripherals;
+        LeBluetooth.ScanConfig config = new LeBluetooth.ScanConfig();
 
-        public LightPeripherals() {
-            this.mPeripherals = new ArrayList<>();
-        }
-
-        public void put(LightPeripheral light) {
+        if (params == null)
+            return config;
 
-            int index = this.getPeripheralIndex(light.getMacAddress());
+        if (params.contains(Parameters.PARAM_SCAN_MODE))
+            config.setScanMode(params.getInt(Parameters.PARAM_SCAN_MODE));
+        if (params.contains(Parameters.PARAM_SCAN_MATCH_MODE))
+            config.setMatchMode(params.getInt(Parameters.PARAM_SCAN_MATCH_MODE));
+        config.setReportDelay(params.getInt(Parameters.PARAM_SCAN_REPORT_DELAY, 0));
 
-            if (index == -1)
-                this.mPeripherals.add(light);
-        }
+        if (params.getBoolean(Parameters.PARAM_SCAN_VENDOR_FILTER, true))
+            config.setManufacturerIds(AdvertiseData.toManufacturerId(Manufacture.getDefault().getVendorId()));
 
-        @Nullable
-        public LightPeripheral get(int index) {
+        return config;
+    }
 
-            if (index >= 0 && index < this.mPeripherals.size())
-                return this.mPeripherals.get(index);
+    /**
+     * 扫描参数中的MeshName转换成的16字节数组,参数不变时不重新转换
+     */
+    private static final class MeshNameCache {
 
-            return null;
-        }
+        private String name;
+        private byte[] bytes;
 
-        public LightPeripheral getTop() {
-            if (this.mPeripherals.size() <= 0) {
+        synchronized byte[] get(String name) {
+            if (name == null)
                 return null;
+            if (!name.equals(this.name)) {
+                this.bytes = Strings.stringToBytes(name, AdvertiseData.MESH_NAME_LENGTH);
+                this.name = name;
             }
-            return this.mPeripherals.get(0);
-        }
-
-        public boolean removeTop() {
-            if (this.mPeripherals.size() <= 0) {
-                return false;
-            }
-            if (this.mPeripherals.get(0).getRetry() == 0) {
-                this.mPeripherals.get(0).addRetry();
-            } else {
-                this.mPeripherals.remove(0);
-            }
-
-            return true;
-        }
-
-        @Nullable
-        public LightPeripheral get(String macAddress) {
-
-            int index = this.getPeripheralIndex(macAddress);
-
-            if (index != -1) {
-                return this.get(index);
-            }
-
-            return null;
-        }
-
-        public boolean contains(String macAddress) {
-
-            int index = this.getPeripheralIndex(macAddress);
-
-            return index != -1;
-        }
-
-        public int size() {
-            synchronized (this) {
-                return this.mPeripherals.size();
-            }
-        }
-
-        public void clear() {
-            synchronized (this) {
-                this.mPeripherals.clear();
-            }
-        }
-
-        private int getPeripheralIndex(String macAddress) {
-
-            int count = this.size();
-
-            Peripheral peripheral;
-
-            for (int i = 0; i < count; i++) {
-
-                peripheral = this.mPeripherals.get(i);
-
-                if (peripheral.getMacAddress().equals(macAddress))
-                    return i;
-            }
-            return -1;
-        }
-
-        public void copyTo(LightPeripherals dest) {
-            for (LightPeripheral light : this.mPeripherals) {
-                dest.put(light);
-            }
-        }
-
-        public LightPeripheral getByMaxRssi() {
-            LightPeripheral result = null;
-
-            synchronized (this) {
-                for (LightPeripheral light : this.mPeripherals) {
-                    if (result == null || light.getRssi() > result.getRssi())
-                        result = light;
-                }
-            }
-
-            return result;
+            return this.bytes;
         }
     }
 
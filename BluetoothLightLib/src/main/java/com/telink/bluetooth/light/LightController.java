@@ -10,12 +10,15 @@ import android.os.Build;
 import android.os.Handler;
 
 import com.telink.bluetooth.Command;
+import com.telink.bluetooth.GattCapture;
 import com.telink.bluetooth.Peripheral;
 import com.telink.bluetooth.TelinkLog;
 import com.telink.crypto.AES;
+import com.telink.crypto.SessionCrypto;
 import com.telink.util.Arrays;
 import com.telink.util.Event;
 import com.telink.util.EventBus;
+import com.telink.util.ListenerRegistry;
 
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
@@ -32,6 +35,8 @@ import javax.crypto.NoSuchPaddingException;
 
 public final class LightController extends EventBus<Integer> implements LightPeripheral.Callback {
 
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(LightController.class);
+
     /********************************************************************************
      * Command Tag
      *******************************************************************************/
@@ -66,6 +71,11 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
     // 控制指令 默认320ms延时
     private static final int DEFAULT_DELAY_TIME = 320;
+
+    /**
+     * 异步命令等待响应的默认超时时间,单位毫秒
+     */
+    public static final int DEFAULT_RESPONSE_TIMEOUT = 5000;
     /********************************************************************************
      * Attributes
      *******************************************************************************/
@@ -87,10 +97,16 @@ public final class LightController extends EventBus<Integer> implements LightPer
     private final Command.Callback deleteCallback = new DeleteCommandCallback();
     private final Command.Callback otaCallback = new OtaCommandCallback();
     private final Command.Callback firmwareCallback = new FirmwareCallback();
+    private final Command.Callback asyncCallback = new AsyncCommandCallback();
+    // 还没有完成的异步命令
+    private final AsyncFutures mAsyncFutures = new AsyncFutures();
     private final OtaPacketParser otaPacketParser = new OtaPacketParser();
+    private final CommandEncoder commandEncoder = new CommandEncoder();
 
     private LightPeripheral light;
     private byte[] sessionKey;
+    // 登录成功后创建,断开时释放
+    private SessionCrypto sessionCrypto;
     private int sequenceNumber = Integer.MAX_VALUE;
     private Random random = new SecureRandom();
     private boolean isLogin = false;
@@ -108,6 +124,10 @@ public final class LightController extends EventBus<Integer> implements LightPer
     private static final int N_TIMEOUT = 5;
     private int failCount = 0;
     private boolean mIsUpdatingMesh = false;
+    // 更新网络参数的步骤日志,没有时为null
+    private volatile ProvisionJournal mJournal;
+    // 按日志用新的网络参数登录
+    private boolean isResumeLogin = false;
     private static final int MAX_RETRY = 3;
     //private boolean otaCompleted;
 
@@ -116,6 +136,11 @@ public final class LightController extends EventBus<Integer> implements LightPer
      *******************************************************************************/
 
     public LightController() {
+        // 事件类型都是LightEvent中的int常量
+        super(ListenerRegistry.newIntRegistry());
+        // 进度和信号强度只需要最新的值,还未回调的旧事件直接合并
+        this.setCoalescing(LightEvent.OTA_PROGRESS, true);
+        this.setCoalescing(LightEvent.RSSI_CHANGED, true);
     }
 
     /********************************************************************************
@@ -124,6 +149,9 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
     @Override
     public void dispatchEvent(Event<Integer> event) {
+        // 事件来源是当时的设备,换设备后还未回调的旧事件可以用getSender()区分
+        if (event instanceof LightEvent && event.getSender() == null)
+            ((LightEvent) event).setSender(this.light);
         super.dispatchEvent(event.setThreadMode(Event.ThreadMode.Background));
     }
 
@@ -152,6 +180,10 @@ public final class LightController extends EventBus<Integer> implements LightPer
         this.mIsUpdatingMesh = isUpdating;
     }
 
+    void setJournal(ProvisionJournal journal) {
+        this.mJournal = journal;
+    }
+
 
     synchronized public void connect(Context context, LightPeripheral light) {
         failCount = 0;
@@ -172,7 +204,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
     synchronized public void retryConnect() {
 
-        TelinkLog.d("LightController.retryConnect：" + failCount);
+        LOG.d("LightController.retryConnect：%d", failCount);
         this.light.connect(this.mContext, this);
         this.mDelayHandler.removeCallbacks(this.mConnectTask);
         this.mDelayHandler.removeCallbacksAndMessages(null);
@@ -186,13 +218,15 @@ public final class LightController extends EventBus<Integer> implements LightPer
         this.mDelayHandler.removeCallbacks(this.mConnectTask);
         this.mDelayHandler.removeCallbacksAndMessages(null);
         this.resetOta();
+        this.failAsyncFutures("disconnected");
 
         if (this.light != null) {
-            TelinkLog.d("LightController.disconnect:" + light.getDeviceName() + "--" + light.getMacAddress());
+            LOG.d("LightController.disconnect:%s--%s", light.getDeviceName(), light.getMacAddress());
             this.light.disconnect();
         }
 
         this.sessionKey = null;
+        this.sessionCrypto = null;
         this.sequenceNumber = 0;
 
         this.meshName = null;
@@ -201,12 +235,37 @@ public final class LightController extends EventBus<Integer> implements LightPer
         this.newPassword = null;
     }
 
+    /**
+     * 更新网络参数前登录: 日志中已经写入LTK的设备可能已经换成新的网络,先用新的网络参数登录,
+     * 密码错误时清除这一步,下一次用旧的网络参数
+     */
+    void loginForReset(byte[] meshName, byte[] password, byte[] newMeshName, byte[] newPassword) {
+
+        ProvisionJournal journal = this.mJournal;
+        boolean resume = journal != null && this.light != null
+                && journal.getStep(this.light.getMacLong()) == ProvisionJournal.STEP_LTK;
+
+        synchronized (this) {
+            this.isResumeLogin = resume;
+        }
+
+        if (resume) {
+            LOG.d("resume %s with new mesh", this.light.getMacAddress());
+            this.login(newMeshName, newPassword);
+        } else {
+            this.login(meshName, password);
+        }
+    }
+
     public void login(byte[] meshName, byte[] password) {
 
         this.meshName = meshName;
         this.password = password;
 
         if (!AES.Security) {
+            // 不加密时SessionCrypto原样返回数据,发送命令和解析通知照常进行
+            this.sessionCrypto = new SessionCrypto(new byte[16]);
+
             synchronized (this) {
                 this.isLogin = true;
             }
@@ -264,12 +323,15 @@ public final class LightController extends EventBus<Integer> implements LightPer
         rCmd.characteristicUUID = characteristicUUID;
         rCmd.tag = TAG_LOGIN_READ;
 
+        wCmd.priority = Command.PRIORITY_LOGIN;
+        rCmd.priority = Command.PRIORITY_LOGIN;
+
         this.sendCommand(this.loginCallback, wCmd);
         this.sendCommand(this.loginCallback, rCmd);
     }
 
     public void reset(byte[] meshName, byte[] password, byte[] longTermKey) {
-        TelinkLog.d("prepare update mesh info");
+        LOG.d("prepare update mesh info");
 
         synchronized (this) {
             if (!this.isLogin) {
@@ -294,27 +356,21 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
         this.mDelayHandler.removeCallbacksAndMessages(null);
 
-        byte[] nn;
-        byte[] pwd;
-        byte[] ltk;
-
-        try {
-            nn = AES.encrypt(this.sessionKey, meshName);
-            pwd = AES.encrypt(this.sessionKey, password);
-            ltk = AES.encrypt(this.sessionKey, longTermKey);
-
-            Arrays.reverse(nn, 0, nn.length - 1);
-            Arrays.reverse(pwd, 0, pwd.length - 1);
-            Arrays.reverse(ltk, 0, ltk.length - 1);
+        SessionCrypto crypto = this.sessionCrypto;
 
-        } catch (InvalidKeyException | NoSuchAlgorithmException
-                | NoSuchPaddingException | UnsupportedEncodingException
-                | IllegalBlockSizeException | BadPaddingException
-                | NoSuchProviderException e) {
-            this.dispatchEvent(new LightEvent(LightEvent.RESET_MESH_FAILURE, e.getMessage()));
+        if (crypto == null) {
+            this.dispatchEvent(new LightEvent(LightEvent.RESET_MESH_FAILURE, "not login"));
             return;
         }
 
+        byte[] nn = crypto.encrypt(meshName);
+        byte[] pwd = crypto.encrypt(password);
+        byte[] ltk = crypto.encrypt(longTermKey);
+
+        Arrays.reverse(nn, 0, nn.length - 1);
+        Arrays.reverse(pwd, 0, pwd.length - 1);
+        Arrays.reverse(ltk, 0, ltk.length - 1);
+
         byte[] nnData = new byte[17];
         nnData[0] = Opcode.BLE_GATT_OP_PAIR_NETWORK_NAME.getValue();
         System.arraycopy(nn, 0, nnData, 1, nn.length);
@@ -341,6 +397,11 @@ public final class LightController extends EventBus<Integer> implements LightPer
         Command checkCmd = new Command(serviceUUID, pairUUID, Command.CommandType.READ,
                 null, TAG_RESET_MESH_CHECK);
 
+        nnCmd.priority = Command.PRIORITY_LOGIN;
+        pwdCmd.priority = Command.PRIORITY_LOGIN;
+        ltkCmd.priority = Command.PRIORITY_LOGIN;
+        checkCmd.priority = Command.PRIORITY_LOGIN;
+
         this.sendCommand(this.resetCallback, nnCmd);
         this.sendCommand(this.resetCallback, pwdCmd);
         this.sendCommand(this.resetCallback, ltkCmd);
@@ -352,7 +413,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         int newAddress = this.light.getNewMeshAddress();
         int oldAddress = this.light.getMeshAddress();
 
-        TelinkLog.d("mesh address -->" + newAddress + " : " + oldAddress);
+        LOG.d("mesh address -->%d : %d", newAddress, oldAddress);
 
         if (newAddress == oldAddress)
             return false;
@@ -361,7 +422,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         byte opcode = (byte) 0xE0;
         byte[] params = new byte[]{(byte) (newAddress & 0xFF), (byte) (newAddress >> 8 & 0xFF)};
 
-        TelinkLog.d("prepare update mesh address -->" + light.getMacAddress() + " src : " + Integer.toHexString(oldAddress) + " new : " + Integer.toHexString(newAddress));
+        LOG.d("prepare update mesh address -->%s src : %x new : %x", light.getMacAddress(), oldAddress, newAddress);
 
         this.sendCommand(this.normalCallback, opcode, 0x0000, params, false, TAG_RESET_MESH_ADDRESS, 0);
         byte[] params1 = new byte[]{(byte) 0xFF, (byte) 0xFF};
@@ -436,9 +497,10 @@ public final class LightController extends EventBus<Integer> implements LightPer
         updateNotifyCmd.characteristicUUID = characteristicUUID;
         updateNotifyCmd.tag = TAG_NOTIFY_UPDATE;
         updateNotifyCmd.delay = DEFAULT_DELAY_TIME;
+        updateNotifyCmd.priority = Command.PRIORITY_STATUS;
 
         this.sendCommand(null, updateNotifyCmd);
-        TelinkLog.d("LightController#updateNotification");
+        LOG.d("LightController#updateNotification");
     }
 
     public void updateNotification() {
@@ -576,6 +638,9 @@ public final class LightController extends EventBus<Integer> implements LightPer
         rCmd.type = Command.CommandType.READ;
         rCmd.tag = TAG_DELETE_READ;
 
+        wCmd.priority = Command.PRIORITY_LOGIN;
+        rCmd.priority = Command.PRIORITY_LOGIN;
+
         this.sendCommand(this.deleteCallback, wCmd);
         this.sendCommand(this.deleteCallback, rCmd);
     }
@@ -594,7 +659,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
             }
         }
 
-        TelinkLog.d("Start OTA");
+        LOG.d("Start OTA");
         this.resetOta();
         this.otaPacketParser.set(firmware);
         this.sendNextOtaPacketCommand();
@@ -627,6 +692,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         cmd.serviceUUID = serviceUUID;
         cmd.characteristicUUID = characteristicUUID;
         cmd.type = Command.CommandType.WRITE_NO_RESPONSE;
+        cmd.priority = Command.PRIORITY_BULK;
 
         if (this.otaPacketParser.hasNextPacket()) {
             cmd.data = this.otaPacketParser.getNextPacket();
@@ -645,9 +711,9 @@ public final class LightController extends EventBus<Integer> implements LightPer
     private boolean validateOta() {
         int sectionSize = Manufacture.getDefault().getOtaSize();
         int sendTotal = otaPacketParser.getNextPacketIndex() * 16;
-        TelinkLog.d("ota onCommandSampled byte length : " + sendTotal);
+        LOG.d("ota onCommandSampled byte length : %d", sendTotal);
         if (sendTotal > 0 && sendTotal % sectionSize == 0) {
-            TelinkLog.d("onCommandSampled ota read packet " + otaPacketParser.getNextPacketIndex());
+            LOG.d("onCommandSampled ota read packet %d", otaPacketParser.getNextPacketIndex());
             Manufacture manufacture = Manufacture.getDefault();
             UUID serviceUUID = manufacture.getUUID(Manufacture.UUIDType.SERVICE);
             UUID characteristicUUID = manufacture.getUUID(Manufacture.UUIDType.OTA);
@@ -657,6 +723,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
             cmd.characteristicUUID = characteristicUUID;
             cmd.type = Command.CommandType.READ;
             cmd.tag = TAG_OTA_READ;
+            cmd.priority = Command.PRIORITY_BULK;
             this.sendCommand(otaCallback, cmd);
             return true;
         }
@@ -675,6 +742,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         cmd.type = Command.CommandType.READ;
         cmd.tag = TAG_OTA_CHECK;
         cmd.delay = 0;
+        cmd.priority = Command.PRIORITY_BULK;
         this.sendCommand(otaCallback, cmd);
     }
 
@@ -682,31 +750,6 @@ public final class LightController extends EventBus<Integer> implements LightPer
      * Command API
      *******************************************************************************/
 
-    private boolean sendCommand(Command.Callback callback, byte[] commandData, boolean noResponse, Object tag, int delay) {
-
-        byte[] sk = this.sessionKey;
-        int sn = this.sequenceNumber;
-
-        TelinkLog.d("LightController#sendCommand#NoEncrypt: " + Arrays.bytesToHexString(commandData, ":"));
-        byte[] macAddress = this.light.getMacBytes();
-        byte[] nonce = this.getSecIVM(macAddress, sn);
-        byte[] data = AES.encrypt(sk, nonce, commandData);
-
-        Manufacture manufacture = Manufacture.getDefault();
-        UUID serviceUUID = manufacture.getUUID(Manufacture.UUIDType.SERVICE);
-        UUID characteristicUUID = manufacture.getUUID(Manufacture.UUIDType.COMMAND);
-
-        Command command = Command.newInstance();
-        command.type = noResponse ? Command.CommandType.WRITE_NO_RESPONSE : Command.CommandType.WRITE;
-        command.data = data;
-        command.serviceUUID = serviceUUID;
-        command.characteristicUUID = characteristicUUID;
-        command.tag = tag;
-        command.delay = delay;
-
-        return this.sendCommand(callback, command);
-    }
-
     private boolean sendCommand(Command.Callback callback, Command cmd) {
 
         boolean success = true;
@@ -723,42 +766,48 @@ public final class LightController extends EventBus<Integer> implements LightPer
     }
 
     public boolean sendCommand(Command.Callback callback, byte opcode, int address, byte[] params, boolean noResponse, Object tag, int delay) {
+        return this.sendCommand(callback, opcode, address, params, noResponse, tag, delay, true);
+    }
 
-        int sn = this.generateSequenceNumber();
-
-        byte[] command = new byte[20];
-
-        int offset = 0;
-
-        // SN
-        command[offset++] = (byte) (sn & 0xFF);
-        command[offset++] = (byte) (sn >> 8 & 0xFF);
-        command[offset++] = (byte) (sn >> 16 & 0xFF);
-
-        // src address
-        command[offset++] = 0x00;
-        command[offset++] = 0x00;
+    private boolean sendCommand(Command.Callback callback, byte opcode, int address, byte[] params, boolean noResponse, Object tag, int delay, boolean coalesce) {
 
-        // dest address
-        command[offset++] = (byte) (address & 0xFF);
-        command[offset++] = (byte) (address >> 8 & 0xFF);
+        SessionCrypto crypto = this.sessionCrypto;
 
-        // opcode
-        command[offset++] = (byte) (opcode | 0xC0);
+        if (crypto == null)
+            return false;
 
         Manufacture manufacture = Manufacture.getDefault();
         int vendorId = manufacture.getVendorId();
 
-        // vendor Id
-        command[offset++] = (byte) (vendorId >> 8 & 0xFF);
-        command[offset++] = (byte) (vendorId & 0xFF);
-
-        // params
-        if (params != null) {
-            System.arraycopy(params, 0, command, offset, params.length);
+        // 命令和帧缓冲区都从回收池中取,完成后由Peripheral回收
+        Command command = Command.obtain();
+        byte[] frame = command.data;
+        if (frame == null || frame.length != CommandEncoder.FRAME_LENGTH)
+            frame = new byte[CommandEncoder.FRAME_LENGTH];
+
+        synchronized (this.commandEncoder) {
+            int sn = this.generateSequenceNumber();
+            if (LOG.isD()) {
+                CommandEncoder.writeFrame(frame, sn, address, opcode, vendorId, params);
+                LOG.d("LightController#sendCommand#NoEncrypt: %s", frame);
+            }
+            this.commandEncoder.encode(crypto, this.light.getMacBytes(), frame, sn, address, opcode, vendorId, params);
         }
 
-        return this.sendCommand(callback, command, noResponse, tag, delay);
+        // 开关,亮度,颜色这类命令只需要最后一个值,队列中还未发送的同一目标的同类命令直接替换
+        int coalesceKey = 0;
+        if (coalesce && AdvanceStrategy.isExists(opcode, AdvanceStrategy.getDefault().getSampleOpcodes()))
+            coalesceKey = (1 << 24) | ((opcode & 0xFF) << 16) | (address & 0xFFFF);
+
+        command.type = noResponse ? Command.CommandType.WRITE_NO_RESPONSE : Command.CommandType.WRITE;
+        command.data = frame;
+        command.serviceUUID = manufacture.getUUID(Manufacture.UUIDType.SERVICE);
+        command.characteristicUUID = manufacture.getUUID(Manufacture.UUIDType.COMMAND);
+        command.tag = tag;
+        command.delay = delay;
+        command.coalesceKey = coalesceKey;
+
+        return this.sendCommand(callback, command);
     }
 
     public boolean sendCommand(byte opcode, int address, byte[] params, boolean noResponse, int delay) {
@@ -769,6 +818,64 @@ public final class LightController extends EventBus<Integer> implements LightPer
         return this.sendCommand(this.normalCallback, opcode, address, params, noResponse, tag, delay);
     }
 
+    /**
+     * 异步发送命令,命令写入完成时完成
+     *
+     * @return 命令的结果
+     */
+    public CommandFuture sendCommandAsync(byte opcode, int address, byte[] params, boolean noResponse, int delay) {
+        return this.sendCommandAsync(opcode, address, params, noResponse, delay, -1, 0);
+    }
+
+    /**
+     * 异步发送命令,收到期望的响应时完成,结果为解密后的通知数据
+     *
+     * @param responseOpcode  期望的响应opcode,如{@link Opcode#BLE_GATT_OP_CTRL_DB},-1表示不等待响应
+     * @param responseTimeout 等待响应的超时时间,单位毫秒,不大于0时使用{@link #DEFAULT_RESPONSE_TIMEOUT}
+     * @return 命令的结果
+     */
+    public CommandFuture sendCommandAsync(byte opcode, int address, byte[] params, boolean noResponse, int delay,
+                                          int responseOpcode, int responseTimeout) {
+
+        // 发给单个设备时只接受这个设备的响应
+        int responseSrc = (address > 0 && address < 0x8000) ? address : -1;
+        final CommandFuture future = new CommandFuture(responseOpcode == -1 ? -1 : responseOpcode & 0xFF, responseSrc);
+
+        if (responseTimeout <= 0)
+            responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+
+        this.mAsyncFutures.add(future, responseTimeout);
+
+        // 异步命令不参与合并,否则被替换掉的命令永远不会完成
+        if (!this.sendCommand(this.asyncCallback, opcode, address, params, noResponse, future, delay, false)) {
+            this.mAsyncFutures.remove(future);
+            future.setFailure("not login");
+        }
+
+        return future;
+    }
+
+    private void failAsyncFutures(String errorMsg) {
+        List<CommandFuture> futures = this.mAsyncFutures.removeAll();
+        if (futures == null)
+            return;
+        for (CommandFuture future : futures)
+            future.setFailure(errorMsg);
+    }
+
+    private void onAsyncResponse(byte[] data) {
+
+        if (data == null || data.length < 20)
+            return;
+
+        int opcode = data[7] & 0xFF;
+        int src = (data[3] & 0xFF) + ((data[4] & 0xFF) << 8);
+        CommandFuture matched = this.mAsyncFutures.match(opcode, src);
+
+        if (matched != null)
+            matched.setSuccess(data);
+    }
+
     /********************************************************************************
      * Device Firmware Information
      *******************************************************************************/
@@ -782,6 +889,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         cmd.serviceUUID = serviceUUID;
         cmd.characteristicUUID = characteristicUUID;
         cmd.type = Command.CommandType.READ;
+        cmd.priority = Command.PRIORITY_STATUS;
 
         return this.sendCommand(this.firmwareCallback, cmd);
     }
@@ -808,20 +916,6 @@ public final class LightController extends EventBus<Integer> implements LightPer
         return randm;
     }
 
-    private byte[] getSecIVM(byte[] meshAddress, int sn) {
-
-        byte[] ivm = new byte[8];
-
-        System.arraycopy(meshAddress, 0, ivm, 0, meshAddress.length);
-
-        ivm[4] = 0x01;
-        ivm[5] = (byte) (sn & 0xFF);
-        ivm[6] = (byte) (sn >> 8 & 0xFF);
-        ivm[7] = (byte) (sn >> 16 & 0xFF);
-
-        return ivm;
-    }
-
     private byte[] getSecIVS(byte[] macAddress) {
 
         byte[] ivs = new byte[8];
@@ -871,9 +965,9 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
     @Override
     public void onConnect(LightPeripheral light) {
-        TelinkLog.d("LightController#onConnect");
+        LOG.d("LightController#onConnect");
         if (isN() && mIsUpdatingMesh) {
-            TelinkLog.d("mDelayHandler#nCheckRunnable");
+            LOG.d("mDelayHandler#nCheckRunnable");
             mDelayHandler.removeCallbacks(mConnectTask);
             mDelayHandler.postDelayed(nCheckRunnable, N_TIMEOUT * 1000);
             isChecking = false;
@@ -883,21 +977,21 @@ public final class LightController extends EventBus<Integer> implements LightPer
     @Override
     public void onDisconnect(LightPeripheral light) {
 
-        TelinkLog.d("LightController.onDisconnect");
+        LOG.d("LightController.onDisconnect");
         this.disconnect();
         if (isN() && mIsUpdatingMesh && isChecking) {
             isChecking = false;
             mDelayHandler.removeCallbacks(nCheckRunnable);
             failCount++;
-            TelinkLog.d("fail count:" + failCount);
+            LOG.d("fail count:%d", failCount);
             if (failCount >= MAX_RETRY) {
-                TelinkLog.d("LightController.onDisconnect.CONNECT_FAILURE_N");
-                this.dispatchEvent(new LightEvent(LightEvent.CONNECT_FAILURE_N, " onDisconnect " + light.getMacAddress()));
+                LOG.d("LightController.onDisconnect.CONNECT_FAILURE_N");
+                this.dispatchEvent(new LightEvent(LightEvent.CONNECT_FAILURE_N, " onDisconnect " + light.getMacAddress()).setSender(light));
             } else {
                 retryConnect();
             }
         } else {
-            this.dispatchEvent(new LightEvent(LightEvent.CONNECT_FAILURE, " onDisconnect " + light.getMacAddress()));
+            this.dispatchEvent(new LightEvent(LightEvent.CONNECT_FAILURE, " onDisconnect " + light.getMacAddress()).setSender(light));
         }
     }
 
@@ -916,14 +1010,31 @@ public final class LightController extends EventBus<Integer> implements LightPer
     public void onNotify(LightPeripheral light, byte[] data,
                          UUID serviceUUID, UUID characteristicUUID, Object tag) {
 
+        SessionCrypto crypto = this.sessionCrypto;
+
+        if (crypto == null)
+            return;
+
         byte[] macAddress = light.getMacBytes();
         byte[] nonce = getSecIVS(macAddress);
         System.arraycopy(data, 0, nonce, 3, 5);
-        byte[] result = AES.decrypt(this.sessionKey, nonce, data);
+        byte[] result = crypto.decryptNotification(nonce, data);
+
+        GattCapture capture = Peripheral.getCapture();
+        if (capture != null)
+            capture.record(GattCapture.TYPE_DECRYPTED, light.getConnectionId(), characteristicUUID, 0, result);
 
-        TelinkLog.e("Notify Data --> " + Arrays.bytesToHexString(result, ","));
+        LOG.d("Notify Data --> %s", result);
 
         this.onDeviceAddressNotify(data, tag);
+        this.onNotifyData(result);
+    }
+
+    /**
+     * 解密后的notify数据,{@link GattReplay}回放时直接调用
+     */
+    void onNotifyData(byte[] result) {
+        this.onAsyncResponse(result);
         this.dispatchEvent(new LightEvent(LightEvent.NOTIFICATION_RECEIVE, result));
     }
 
@@ -955,7 +1066,11 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
         light.setMeshAddress(meshAddress);
 
-        TelinkLog.d("Device Address Update Success --> old : " + Integer.toHexString(light.getMeshAddress()) + " new: " + Integer.toHexString(meshAddress));
+        ProvisionJournal journal = this.mJournal;
+        if (journal != null)
+            journal.record(light.getMacLong(), ProvisionJournal.STEP_ADDRESS, meshAddress);
+
+        LOG.d("Device Address Update Success --> old : %x new: %x", light.getMeshAddress(), meshAddress);
 
         this.reset(this.newMeshName, this.newPassword, this.newLongTermKey);
     }
@@ -1017,6 +1132,11 @@ public final class LightController extends EventBus<Integer> implements LightPer
         public Object getArgs() {
             return args;
         }
+
+        LightEvent setSender(LightPeripheral light) {
+            this.sender = light;
+            return this;
+        }
     }
 
     /********************************************************************************
@@ -1031,7 +1151,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
             synchronized (LightController.this) {
                 if (!LightController.this.isLogin) {
-                    TelinkLog.d("LightController.Connection Timeout N");
+                    LOG.d("LightController.Connection Timeout N");
                     disconnect();
                     isChecking = true;
                 }
@@ -1047,7 +1167,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
             synchronized (LightController.this) {
                 if (!LightController.this.isLogin) {
-                    TelinkLog.d("LightController.Connection Timeout");
+                    LOG.d("LightController.Connection Timeout");
                     disconnect();
                     LightController.this.dispatchEvent(new LightEvent(LightEvent.CONNECT_FAILURE, "connection timeout"));
                 }
@@ -1067,6 +1187,17 @@ public final class LightController extends EventBus<Integer> implements LightPer
             byte[] data = (byte[]) response;
 
             if (data[0] == Opcode.BLE_GATT_OP_PAIR_ENC_FAIL.getValue()) {
+                ProvisionJournal journal = mJournal;
+                synchronized (LightController.this) {
+                    if (journal != null) {
+                        if (isResumeLogin)
+                            journal.record(light, ProvisionJournal.STEP_NONE);
+                        else if (journal.getStep(light.getMacLong()) >= ProvisionJournal.STEP_MESH_NAME)
+                            // 写入LTK后还没收到回复就断开了,设备可能已经换成新的网络
+                            journal.record(light, ProvisionJournal.STEP_LTK);
+                    }
+                    isResumeLogin = false;
+                }
                 disconnect();
                 dispatchEvent(new LightEvent(LightEvent.LOGIN_FAILURE, "encryption is not correct"));
                 return;
@@ -1088,6 +1219,8 @@ public final class LightController extends EventBus<Integer> implements LightPer
                     return;
                 }
 
+                sessionCrypto = new SessionCrypto(sessionKey);
+
                 synchronized (LightController.this) {
                     isLogin = true;
                 }
@@ -1105,7 +1238,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         @Override
         public void error(Peripheral peripheral, Command command,
                           String reason) {
-            TelinkLog.d("login command error  : " + reason);
+            LOG.d("login command error  : %s", reason);
 
             disconnect();
             dispatchEvent(new LightEvent(LightEvent.LOGIN_FAILURE, reason));
@@ -1131,6 +1264,17 @@ public final class LightController extends EventBus<Integer> implements LightPer
         public void success(Peripheral peripheral, Command command,
                             Object response) {
 
+            ProvisionJournal journal = mJournal;
+
+            if (journal != null) {
+                if (command.tag.equals(TAG_RESET_MESH_NAME))
+                    journal.record(light, ProvisionJournal.STEP_MESH_NAME);
+                else if (command.tag.equals(TAG_RESET_MESH_PASSWORD))
+                    journal.record(light, ProvisionJournal.STEP_PASSWORD);
+                else if (command.tag.equals(TAG_RESET_MESH_LTK))
+                    journal.record(light, ProvisionJournal.STEP_LTK);
+            }
+
             if (!command.tag.equals(TAG_RESET_MESH_CHECK))
                 return;
 
@@ -1138,29 +1282,22 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
             if (data[0] == Opcode.BLE_GATT_OP_PAIR_CONFIRM.getValue()) {
 
-                try {
-
-                    byte[] sk = new byte[16];
+                SessionCrypto crypto = sessionCrypto;
+                byte[] sk = new byte[16];
 
-                    for (int i = 0; i < 16; i++) {
-                        sk[i] = (byte) (newMeshName[i] ^ newPassword[i] ^ newLongTermKey[i]);
-                    }
+                for (int i = 0; i < 16; i++) {
+                    sk[i] = (byte) (newMeshName[i] ^ newPassword[i] ^ newLongTermKey[i]);
+                }
 
-                    sk = AES.encrypt(sessionKey, sk);
+                if (crypto != null) {
+                    sk = crypto.encrypt(sk);
                     sk = Arrays.reverse(sk);
+                }
 
-                    byte[] sk1 = new byte[16];
-                    System.arraycopy(data, 1, sk1, 0, 16);
-
-                    if (!Arrays.equals(sk, sk1)) {
-                        light.meshChanged = false;
-                        dispatchEvent(new LightEvent(LightEvent.RESET_MESH_FAILURE, "set mesh failure"));
-                        return;
-                    }
+                byte[] sk1 = new byte[16];
+                System.arraycopy(data, 1, sk1, 0, 16);
 
-                } catch (InvalidKeyException | IllegalBlockSizeException
-                        | BadPaddingException | NoSuchAlgorithmException
-                        | NoSuchPaddingException | NoSuchProviderException | UnsupportedEncodingException e) {
+                if (crypto == null || !Arrays.equals(sk, sk1)) {
                     light.meshChanged = false;
                     dispatchEvent(new LightEvent(LightEvent.RESET_MESH_FAILURE, "set mesh failure"));
                     return;
@@ -1175,6 +1312,8 @@ public final class LightController extends EventBus<Integer> implements LightPer
                 light.setPassword(newPassword);
                 light.setLongTermKey(newLongTermKey);
                 light.meshChanged = true;
+                if (journal != null)
+                    journal.record(light, ProvisionJournal.STEP_COMPLETED);
                 dispatchEvent(new LightEvent(LightEvent.RESET_MESH_SUCCESS));
 
             } else {
@@ -1299,10 +1438,10 @@ public final class LightController extends EventBus<Integer> implements LightPer
                 }
                 setOtaProgressChanged();
             } else if (command.tag.equals(TAG_OTA_READ)) {
-                TelinkLog.d("read response : " + Arrays.bytesToString((byte[]) obj));
+                LOG.d("read response : %s", obj);
                 sendNextOtaPacketCommand();
             } else if (command.tag.equals(TAG_OTA_CHECK)) {
-                TelinkLog.d("last read packet response : " + Arrays.bytesToString((byte[]) obj));
+                LOG.d("last read packet response : %s", obj);
                 resetOta();
                 setOtaProgressChanged();
                 /*synchronized (this) {
@@ -1316,9 +1455,9 @@ public final class LightController extends EventBus<Integer> implements LightPer
 
         @Override
         public void error(Peripheral peripheral, Command command, String errorMsg) {
-            TelinkLog.d("error packet : " + Arrays.bytesToHexString(command.data, ":"));
+            LOG.d("error packet : %s", command.data);
             if (command.tag.equals(TAG_OTA_CHECK)) {
-                TelinkLog.d("last read packet response error : ");
+                LOG.d("last read packet response error : ");
                 resetOta();
                 setOtaProgressChanged();
                 /*synchronized (this) {
@@ -1334,7 +1473,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
         @Override
         public boolean timeout(Peripheral peripheral, Command command) {
             if (command.tag.equals(TAG_OTA_CHECK)) {
-                TelinkLog.d("last read packet response timeout : ");
+                LOG.d("last read packet response timeout : ");
                 resetOta();
                 setOtaProgressChanged();
                 /*synchronized (this) {
@@ -1346,7 +1485,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
                 sendNextOtaPacketCommand();
                 return false;
             }
-            TelinkLog.d("timeout : " + Arrays.bytesToHexString(command.data, ":"));
+            LOG.d("timeout : %s", command.data);
             return false;
         }
     }
@@ -1376,6 +1515,10 @@ public final class LightController extends EventBus<Integer> implements LightPer
         @Override
         public void success(Peripheral peripheral, Command command,
                             Object obj) {
+            // 没有监听时不创建事件,命令可以直接回收
+            if (!hasEventListener(LightEvent.COMMAND_SUCCESS))
+                return;
+            command.recyclable = false;
             dispatchEvent(new LightEvent(LightEvent.COMMAND_SUCCESS, command));
         }
 
@@ -1385,6 +1528,7 @@ public final class LightController extends EventBus<Integer> implements LightPer
             if (command.tag.equals(TAG_RESET_MESH_ADDRESS)) {
                 dispatchEvent(new LightEvent(LightEvent.RESET_MESH_FAILURE, "set address fail"));
             } else {
+                command.recyclable = false;
                 dispatchEvent(new LightEvent(LightEvent.COMMAND_FAILURE, command));
             }
         }
@@ -1395,147 +1539,40 @@ public final class LightController extends EventBus<Integer> implements LightPer
         }
     }
 
-    private final class OtaRunnable implements Runnable {
+    private final class AsyncCommandCallback implements Command.Callback {
 
         @Override
-        public void run() {
-            if (!validateOta())
-                sendNextOtaPacketCommand();
-        }
-    }
-
-    private final class OtaPacketParser {
-
-        private int total;
-        private int index = -1;
-        private byte[] data;
-        private int progress;
-
-        public void set(byte[] data) {
-            this.clear();
-
-            this.data = data;
-            int length = this.data.length;
-            int size = 16;
-
-            if (length % size == 0) {
-                total = length / size;
-            } else {
-                total = (int) Math.floor(length / size + 1);
-            }
-        }
-
-        public void clear() {
-            this.progress = 0;
-            this.total = 0;
-            this.index = -1;
-            this.data = null;
-        }
-
-        public boolean hasNextPacket() {
-            return this.total > 0 && (this.index + 1) < this.total;
-        }
-
-        public int getNextPacketIndex() {
-            return this.index + 1;
-        }
-
-        public byte[] getNextPacket() {
-
-            int index = this.getNextPacketIndex();
-            byte[] packet = this.getPacket(index);
-            this.index = index;
-
-            return packet;
-        }
-
-        public byte[] getPacket(int index) {
-
-            int length = this.data.length;
-            int size = 16;
-            int packetSize;
-
-            if (length > size) {
-                if ((index + 1) == this.total) {
-                    packetSize = length - index * size;
-                } else {
-                    packetSize = size;
-                }
-            } else {
-                packetSize = length;
-            }
-
-            packetSize = packetSize + 4;
-            byte[] packet = new byte[packetSize];
-
-            System.arraycopy(this.data, index * size, packet, 2, packetSize - 4);
-
-            this.fillIndex(packet, index);
-            int crc = this.crc16(packet);
-            this.fillCrc(packet, crc);
-            TelinkLog.d("ota packet ---> index : " + index + " total : " + this.total + " crc : " + crc + " content : " + Arrays.bytesToHexString(packet, ":"));
-            return packet;
-        }
-
-        public byte[] getCheckPacket() {
-            byte[] packet = new byte[4];
-            int index = this.getNextPacketIndex();
-            this.fillIndex(packet, index);
-            int crc = this.crc16(packet);
-            this.fillCrc(packet, crc);
-            TelinkLog.d("ota check packet ---> index : " + index + " crc : " + crc + " content : " + Arrays.bytesToHexString(packet, ":"));
-            return packet;
-        }
-
-        public void fillIndex(byte[] packet, int index) {
-            int offset = 0;
-            packet[offset++] = (byte) (index & 0xFF);
-            packet[offset] = (byte) (index >> 8 & 0xFF);
+        public void success(Peripheral peripheral, Command command, Object obj) {
+            CommandFuture future = (CommandFuture) command.tag;
+            // 等待响应的命令在收到通知时完成
+            if (future.isAwaitingResponse())
+                return;
+            mAsyncFutures.remove(future);
+            future.setSuccess(obj instanceof byte[] ? (byte[]) obj : null);
         }
 
-        public void fillCrc(byte[] packet, int crc) {
-            int offset = packet.length - 2;
-            packet[offset++] = (byte) (crc & 0xFF);
-            packet[offset] = (byte) (crc >> 8 & 0xFF);
+        @Override
+        public void error(Peripheral peripheral, Command command, String errorMsg) {
+            CommandFuture future = (CommandFuture) command.tag;
+            mAsyncFutures.remove(future);
+            future.setFailure(errorMsg);
         }
 
-        public int crc16(byte[] packet) {
-
-            int length = packet.length - 2;
-            short[] poly = new short[]{0, (short) 0xA001};
-            int crc = 0xFFFF;
-            int ds;
-
-            for (int j = 0; j < length; j++) {
-
-                ds = packet[j];
-
-                for (int i = 0; i < 8; i++) {
-                    crc = (crc >> 1) ^ poly[(crc ^ ds) & 1] & 0xFFFF;
-                    ds = ds >> 1;
-                }
-            }
-
-            return crc;
+        @Override
+        public boolean timeout(Peripheral peripheral, Command command) {
+            CommandFuture future = (CommandFuture) command.tag;
+            mAsyncFutures.remove(future);
+            future.setTimeout();
+            return false;
         }
+    }
 
-        private boolean invalidateProgress() {
-
-            float a = this.getNextPacketIndex();
-            float b = this.total;
-
-            int progress = (int) Math.floor((a / b * 100));
-
-            if (progress == this.progress)
-                return false;
-
-            this.progress = progress;
-
-            return true;
-        }
+    private final class OtaRunnable implements Runnable {
 
-        public int getProgress() {
-            return this.progress;
+        @Override
+        public void run() {
+            if (!validateOta())
+                sendNextOtaPacketCommand();
         }
     }
 
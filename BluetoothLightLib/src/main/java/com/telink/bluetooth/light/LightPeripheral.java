@@ -35,12 +35,14 @@ public class LightPeripheral extends Peripheral {
     private byte[] longTermKey;
     private int meshAddress;
 
-    private Callback mCallback;
+    private volatile Callback mCallback;
 
     private String meshNameStr;
     private int newMeshAddress = -1;
     private int retry = 0;
 
+    private final ProxyRanker.Signal signal = new ProxyRanker.Signal();
+
     public LightPeripheral(BluetoothDevice device, byte[] scanRecord, int rssi,
                            byte[] meshName, int meshAddress) {
         super(device, scanRecord, rssi);
@@ -131,6 +133,10 @@ public class LightPeripheral extends Peripheral {
         retry++;
     }
 
+    ProxyRanker.Signal getSignal() {
+        return this.signal;
+    }
+
     public int getAdvPropertyAsInt(String key) {
         return (int) this.advProperties.get(key);
     }
@@ -168,6 +174,13 @@ public class LightPeripheral extends Peripheral {
         super.connect(context);
     }
 
+    /**
+     * 之后的连接事件不再回调,主动断开前调用
+     */
+    void detach() {
+        this.mCallback = null;
+    }
+
     @Override
     public void disconnect() {
         super.disconnect();
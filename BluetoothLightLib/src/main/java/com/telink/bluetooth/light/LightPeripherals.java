@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import com.telink.util.MeshUtils;
+
+/**
+ * 扫描到的设备,按加入的顺序保存,用48位MAC转换成的long做索引
+ * <p>写时复制: 加入和移除时加锁生成新的快照,快照中是开放寻址的long哈希表和按顺序排列的数组.
+ * 扫描回调里的查找只读一次volatile引用,不加锁,不分配对象.
+ */
+final class LightPeripherals {
+
+    private static final Snapshot EMPTY = new Snapshot(new LightPeripheral[0]);
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    /**
+     * 已经存在相同MAC的设备时忽略
+     */
+    public synchronized void put(LightPeripheral light) {
+
+        Snapshot snapshot = this.snapshot;
+
+        if (snapshot.indexOf(light.getMacLong()) != -1)
+            return;
+
+        int size = snapshot.lights.length;
+        LightPeripheral[] lights = new LightPeripheral[size + 1];
+        System.arraycopy(snapshot.lights, 0, lights, 0, size);
+        lights[size] = light;
+        this.snapshot = new Snapshot(lights);
+    }
+
+    /**
+     * @return 超出范围时返回null
+     */
+    public LightPeripheral get(int index) {
+
+        LightPeripheral[] lights = this.snapshot.lights;
+
+        if (index >= 0 && index < lights.length)
+            return lights[index];
+
+        return null;
+    }
+
+    public LightPeripheral getTop() {
+        return this.get(0);
+    }
+
+    /**
+     * 重试过一次后才移除
+     *
+     * @return 不在列表中时返回false
+     */
+    public synchronized boolean retryOrRemove(LightPeripheral light) {
+
+        Snapshot snapshot = this.snapshot;
+        int index = snapshot.indexOf(light.getMacLong());
+
+        if (index == -1)
+            return false;
+
+        LightPeripheral[] lights = snapshot.lights;
+
+        if (lights[index].getRetry() == 0) {
+            lights[index].addRetry();
+        } else {
+            LightPeripheral[] result = new LightPeripheral[lights.length - 1];
+            System.arraycopy(lights, 0, result, 0, index);
+            System.arraycopy(lights, index + 1, result, index, result.length - index);
+            this.snapshot = result.length == 0 ? EMPTY : new Snapshot(result);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return 没有时返回null
+     */
+    public LightPeripheral get(String macAddress) {
+        return this.get(MeshUtils.macToLong(macAddress));
+    }
+
+    public LightPeripheral get(long mac) {
+        Snapshot snapshot = this.snapshot;
+        int index = snapshot.indexOf(mac);
+        return index == -1 ? null : snapshot.lights[index];
+    }
+
+    public boolean contains(String macAddress) {
+        return this.snapshot.indexOf(MeshUtils.macToLong(macAddress)) != -1;
+    }
+
+    public int size() {
+        return this.snapshot.lights.length;
+    }
+
+    public synchronized void clear() {
+        this.snapshot = EMPTY;
+    }
+
+    /**
+     * 当前所有设备的快照,不能修改
+     */
+    public LightPeripheral[] toArray() {
+        return this.snapshot.lights;
+    }
+
+    public void copyTo(LightPeripherals dest) {
+        dest.putAll(this.snapshot.lights);
+    }
+
+    /**
+     * source来自另一个LightPeripherals,本身没有重复的MAC
+     */
+    private synchronized void putAll(LightPeripheral[] source) {
+
+        Snapshot snapshot = this.snapshot;
+        LightPeripheral[] lights = new LightPeripheral[snapshot.lights.length + source.length];
+        int size = snapshot.lights.length;
+        System.arraycopy(snapshot.lights, 0, lights, 0, size);
+
+        for (LightPeripheral light : source) {
+            if (snapshot.indexOf(light.getMacLong()) == -1)
+                lights[size++] = light;
+        }
+
+        if (size == snapshot.lights.length)
+            return;
+
+        LightPeripheral[] result = new LightPeripheral[size];
+        System.arraycopy(lights, 0, result, 0, size);
+        this.snapshot = new Snapshot(result);
+    }
+
+    private static final class Snapshot {
+
+        final LightPeripheral[] lights;
+        // 开放寻址,保存lights中的位置+1,0表示空
+        final long[] keys;
+        final int[] slots;
+        final int mask;
+
+        Snapshot(LightPeripheral[] lights) {
+            this.lights = lights;
+
+            int capacity = 4;
+            while (capacity < lights.length * 2)
+                capacity <<= 1;
+
+            this.keys = new long[capacity];
+            this.slots = new int[capacity];
+            this.mask = capacity - 1;
+
+            for (int i = 0; i < lights.length; i++) {
+                long key = lights[i].getMacLong();
+                int slot = hash(key) & this.mask;
+                while (this.slots[slot] != 0)
+                    slot = (slot + 1) & this.mask;
+                this.keys[slot] = key;
+                this.slots[slot] = i + 1;
+            }
+        }
+
+        int indexOf(long key) {
+
+            if (key == -1)
+                return -1;
+
+            int slot = hash(key) & this.mask;
+            int index;
+
+            while ((index = this.slots[slot]) != 0) {
+                if (this.keys[slot] == key)
+                    return index - 1;
+                slot = (slot + 1) & this.mask;
+            }
+
+            return -1;
+        }
+
+        private static int hash(long key) {
+            // MAC的低位是设备序号,高位是厂商,混合一下
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
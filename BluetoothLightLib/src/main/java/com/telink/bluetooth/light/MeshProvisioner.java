@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import android.content.Context;
+
+import com.telink.bluetooth.TelinkLog;
+import com.telink.util.Event;
+import com.telink.util.EventListener;
+import com.telink.util.Strings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * 同时保持多个连接更新网络参数
+ * <p>每个连接一个{@link LightController},各自登录,有各自的session key.
+ * 一个设备完成(成功或失败)后,同一个连接马上取下一个设备,失败的设备放回队尾重试一次.
+ * <p>LightController内部用{@link android.os.Handler}计时,必须在有Looper的线程上创建,所以在构造时全部创建好.
+ */
+final class MeshProvisioner {
+
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(MeshProvisioner.class);
+
+    public static final int MAX_CONCURRENCY = 8;
+    // 第一次失败后再试一次
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final Context context;
+    private final Worker[] workers;
+    private final Queue<LightPeripheral> pending = new ArrayDeque<>();
+    private final Map<String, Result> results = new LinkedHashMap<>();
+    private final Map<String, Integer> attempts = new HashMap<>();
+
+    private byte[] password;
+    private byte[] newMeshName;
+    private byte[] newPassword;
+    private byte[] longTermKey;
+    private int timeoutSeconds;
+    private ProvisionJournal journal;
+
+    private volatile Callback callback;
+    private int total;
+    private int completed;
+    private int succeeded;
+    private boolean running;
+
+    /**
+     * @param concurrency 同时连接的设备数,范围[1, {@link #MAX_CONCURRENCY}]
+     */
+    public MeshProvisioner(Context context, int concurrency) {
+        this.context = context;
+
+        int size = Math.max(1, Math.min(concurrency, MAX_CONCURRENCY));
+        this.workers = new Worker[size];
+        for (int i = 0; i < size; i++)
+            this.workers[i] = new Worker(i);
+    }
+
+    /**
+     * 从{@link LeUpdateParameters}读取旧密码,新的网络名,密码,LTK和超时
+     */
+    public synchronized MeshProvisioner setParameters(Parameters params) {
+        this.password = Strings.stringToBytes(params.getString(Parameters.PARAM_MESH_PASSWORD), 16);
+        this.newMeshName = Strings.stringToBytes(params.getString(Parameters.PARAM_NEW_MESH_NAME), 16);
+        this.newPassword = Strings.stringToBytes(params.getString(Parameters.PARAM_NEW_PASSWORD), 16);
+        this.longTermKey = params.getBytes(Parameters.PARAM_LONG_TERM_KEY);
+        this.timeoutSeconds = params.getInt(Parameters.PARAM_TIMEOUT_SECONDS, 0);
+        return this;
+    }
+
+    /**
+     * 设置步骤日志,null为不记录
+     */
+    public synchronized MeshProvisioner setJournal(ProvisionJournal journal) {
+        this.journal = journal;
+        for (Worker worker : this.workers)
+            worker.controller.setJournal(journal);
+        return this;
+    }
+
+    public int getConcurrency() {
+        return this.workers.length;
+    }
+
+    /**
+     * 开始更新,已经在运行时忽略
+     *
+     * @param lights 需要更新的设备,meshChanged为true的跳过
+     */
+    public void start(LightPeripheral[] lights, Callback callback) {
+
+        synchronized (this) {
+
+            if (this.running)
+                return;
+
+            this.running = true;
+            this.callback = callback;
+            this.pending.clear();
+            this.results.clear();
+            this.attempts.clear();
+            this.completed = 0;
+            this.succeeded = 0;
+
+            for (LightPeripheral light : lights) {
+
+                if (light == null)
+                    continue;
+
+                // 日志中已完成的设备直接算成功
+                if (this.journal != null && this.journal.restore(light)) {
+                    this.results.put(light.getMacAddress(), new Result(light, true, null, 0));
+                    this.completed++;
+                    this.succeeded++;
+                } else if (!light.meshChanged) {
+                    this.pending.add(light);
+                }
+            }
+
+            this.total = this.pending.size() + this.completed;
+
+            LOG.d("start %d lights with %d connections", this.total, this.workers.length);
+        }
+
+        for (Worker worker : this.workers)
+            worker.next();
+
+        this.checkCompleted();
+    }
+
+    /**
+     * 停止并断开所有连接,不再回调
+     */
+    public void cancel() {
+
+        synchronized (this) {
+            this.running = false;
+            this.callback = null;
+            this.pending.clear();
+        }
+
+        for (Worker worker : this.workers)
+            worker.stop();
+    }
+
+    public synchronized boolean isRunning() {
+        return this.running;
+    }
+
+    public synchronized int getTotal() {
+        return this.total;
+    }
+
+    public synchronized int getCompleted() {
+        return this.completed;
+    }
+
+    public synchronized int getSucceeded() {
+        return this.succeeded;
+    }
+
+    /**
+     * @return 按完成顺序排列的每个设备的结果
+     */
+    public synchronized List<Result> getResults() {
+        return Collections.unmodifiableList(new ArrayList<>(this.results.values()));
+    }
+
+    public synchronized Result getResult(String macAddress) {
+        return this.results.get(macAddress);
+    }
+
+    private synchronized LightPeripheral poll(Worker worker) {
+
+        LightPeripheral light = this.running ? this.pending.poll() : null;
+
+        if (light != null) {
+            Integer count = this.attempts.get(light.getMacAddress());
+            worker.attempts = count == null ? 1 : count + 1;
+            this.attempts.put(light.getMacAddress(), worker.attempts);
+        }
+
+        return light;
+    }
+
+    private void onFinished(Worker worker, LightPeripheral light, boolean success, String reason) {
+
+        Callback callback;
+        Result result = null;
+        int completed;
+        int total;
+
+        synchronized (this) {
+
+            if (!this.running)
+                return;
+
+            int attempts = worker.attempts;
+
+            if (!success && attempts < MAX_ATTEMPTS) {
+                LOG.d("retry %s later : %s", light.getMacAddress(), reason);
+                this.pending.add(light);
+            } else {
+                result = new Result(light, success, reason, attempts);
+                this.results.put(light.getMacAddress(), result);
+                this.completed++;
+                if (success)
+                    this.succeeded++;
+            }
+
+            callback = this.callback;
+            completed = this.completed;
+            total = this.total;
+        }
+
+        if (result != null && callback != null)
+            callback.onResult(worker.controller, result, completed, total);
+
+        worker.next();
+        this.checkCompleted();
+    }
+
+    private void checkCompleted() {
+
+        Callback callback;
+        int succeeded;
+        int total;
+
+        synchronized (this) {
+
+            if (!this.running || this.completed < this.total)
+                return;
+
+            this.running = false;
+            callback = this.callback;
+            this.callback = null;
+            succeeded = this.succeeded;
+            total = this.total;
+
+            if (this.journal != null)
+                this.journal.compact();
+        }
+
+        LOG.d("completed %d/%d", succeeded, total);
+
+        if (callback != null)
+            callback.onCompleted(succeeded, total);
+    }
+
+    /**
+     * 一个连接,依次处理队列中的设备: 连接 -> 登录 -> reset -> 断开
+     */
+    private final class Worker implements EventListener<Integer> {
+
+        final LightController controller = new LightController();
+        final int index;
+        // 当前设备,没有时为null
+        LightPeripheral light;
+        // 当前设备第几次尝试,在MeshProvisioner的锁内修改
+        int attempts;
+
+        Worker(int index) {
+            this.index = index;
+            this.controller.setIsUpdating(true);
+            this.controller.addEventListener(LightController.LightEvent.CONNECT_SUCCESS, this);
+            this.controller.addEventListener(LightController.LightEvent.CONNECT_FAILURE, this);
+            this.controller.addEventListener(LightController.LightEvent.CONNECT_FAILURE_N, this);
+            this.controller.addEventListener(LightController.LightEvent.LOGIN_SUCCESS, this);
+            this.controller.addEventListener(LightController.LightEvent.LOGIN_FAILURE, this);
+            this.controller.addEventListener(LightController.LightEvent.RESET_MESH_SUCCESS, this);
+            this.controller.addEventListener(LightController.LightEvent.RESET_MESH_FAILURE, this);
+        }
+
+        void next() {
+
+            LightPeripheral light = poll(this);
+
+            synchronized (this) {
+                this.light = light;
+            }
+
+            if (light == null) {
+                this.controller.disconnect();
+                return;
+            }
+
+            LOG.d("[%d] connect %s", this.index, light.getMacAddress());
+
+            this.controller.setTimeoutSeconds(timeoutSeconds);
+            this.controller.disconnect();
+            this.controller.connect(context, light);
+
+            Callback callback = MeshProvisioner.this.callback;
+            if (callback != null)
+                callback.onConnecting(this.controller, light);
+        }
+
+        void stop() {
+
+            LightPeripheral light;
+
+            synchronized (this) {
+                light = this.light;
+                this.light = null;
+            }
+
+            if (light != null)
+                light.detach();
+            this.controller.disconnect();
+        }
+
+        @Override
+        public void performed(Event<Integer> event) {
+
+            LightPeripheral light;
+
+            synchronized (this) {
+                light = this.light;
+            }
+
+            // 上一个设备断开等还未回调的旧事件
+            if (light == null || event.getSender() != light)
+                return;
+
+            switch (event.getType()) {
+                case LightController.LightEvent.CONNECT_SUCCESS:
+                    if (light.getMeshName() == null) {
+                        this.finish(light, false, "no mesh name");
+                        break;
+                    }
+                    byte[] meshName = java.util.Arrays.copyOf(light.getMeshName(), 16);
+                    this.controller.loginForReset(meshName, password, newMeshName, newPassword);
+                    break;
+                case LightController.LightEvent.LOGIN_SUCCESS:
+                    Callback callback = MeshProvisioner.this.callback;
+                    if (callback != null)
+                        callback.onUpdating(this.controller, light);
+                    this.controller.reset(newMeshName, newPassword, longTermKey);
+                    break;
+                case LightController.LightEvent.RESET_MESH_SUCCESS:
+                    this.finish(light, true, null);
+                    break;
+                case LightController.LightEvent.CONNECT_FAILURE:
+                case LightController.LightEvent.CONNECT_FAILURE_N:
+                case LightController.LightEvent.LOGIN_FAILURE:
+                case LightController.LightEvent.RESET_MESH_FAILURE:
+                    Object args = ((LightController.LightEvent) event).getArgs();
+                    this.finish(light, false, args == null ? null : args.toString());
+                    break;
+            }
+        }
+
+        private void finish(LightPeripheral light, boolean success, String reason) {
+
+            synchronized (this) {
+                // 同一个设备的失败可能连续上报(比如登录失败后又断开),只处理第一次
+                if (this.light != light)
+                    return;
+                this.light = null;
+            }
+
+            // 主动断开产生的断开事件不再发给这个连接,避免算到下一个设备上
+            light.detach();
+            this.controller.disconnect();
+            onFinished(this, light, success, reason);
+        }
+    }
+
+    /**
+     * 单个设备的结果
+     */
+    public static final class Result {
+
+        public final LightPeripheral light;
+        public final boolean success;
+        // 失败原因,成功时为null
+        public final String reason;
+        public final int attempts;
+
+        Result(LightPeripheral light, boolean success, String reason, int attempts) {
+            this.light = light;
+            this.success = success;
+            this.reason = reason;
+            this.attempts = attempts;
+        }
+    }
+
+    /**
+     * 在LightController的事件线程上回调,不同连接的回调可能同时发生
+     */
+    interface Callback {
+
+        void onConnecting(LightController controller, LightPeripheral light);
+
+        void onUpdating(LightController controller, LightPeripheral light);
+
+        void onResult(LightController controller, Result result, int completed, int total);
+
+        void onCompleted(int succeeded, int total);
+    }
+}
@@ -25,6 +25,12 @@ public class Parameters {
 
     public static final String PARAM_AUTO_ENABLE_NOTIFICATION = "com.telink.bluetooth.light.PARAM_AUTO_ENABLE_NOTIFICATION";
     public static final String PARAM_AUTO_CONNECT_MAC = "com.telink.bluetooth.light.PARAM_AUTO_CONNECT_MAC";
+    public static final String PARAM_SCAN_MODE = "com.telink.bluetooth.light.PARAM_SCAN_MODE";
+    public static final String PARAM_SCAN_MATCH_MODE = "com.telink.bluetooth.light.PARAM_SCAN_MATCH_MODE";
+    public static final String PARAM_SCAN_REPORT_DELAY = "com.telink.bluetooth.light.PARAM_SCAN_REPORT_DELAY";
+    public static final String PARAM_SCAN_VENDOR_FILTER = "com.telink.bluetooth.light.PARAM_SCAN_VENDOR_FILTER";
+    public static final String PARAM_UPDATE_CONCURRENCY = "com.telink.bluetooth.light.PARAM_UPDATE_CONCURRENCY";
+    public static final String PARAM_UPDATE_JOURNAL = "com.telink.bluetooth.light.PARAM_UPDATE_JOURNAL";
 
     private final Map<String, Object> mParams = new HashMap<>();
 
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import com.telink.bluetooth.TelinkLog;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 更新网络参数的步骤日志,App被杀后重新更新时跳过已完成的设备,未完成的从记录的步骤继续
+ * <p>只追加写入,每条记录写完后同步到磁盘.打开时丢弃末尾不完整或校验错误的记录;全部完成后压缩,每个设备最多保留地址和步骤两条.
+ * <p>文件格式: 头部"TLPJ" + 版本号(1字节) + 新网络参数的hash(4字节),之后每条记录为
+ * <pre>
+ * mac(6) step(1) value(2) check(1)
+ * </pre>
+ * 新网络参数不同的日志直接清空.
+ * <p>设备收到LTK后才同时生效网络名,密码和LTK,所以{@link #STEP_MESH_NAME}和{@link #STEP_PASSWORD}
+ * 之后断开的设备需要从网络名重新写入;{@link #STEP_LTK}之后设备可能已经换成新的网络,先用新的网络参数登录确认.
+ */
+final class ProvisionJournal implements Closeable {
+
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(ProvisionJournal.class);
+
+    public static final int STEP_NONE = 0;
+    // value为新的地址
+    public static final int STEP_ADDRESS = 1;
+    public static final int STEP_MESH_NAME = 2;
+    public static final int STEP_PASSWORD = 3;
+    public static final int STEP_LTK = 4;
+    public static final int STEP_COMPLETED = 5;
+
+    private static final byte[] MAGIC = new byte[]{'T', 'L', 'P', 'J'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 9;
+    private static final int RECORD_LENGTH = 10;
+
+    private final File file;
+    private final int target;
+    private final Map<Long, Entry> entries = new LinkedHashMap<>();
+    private final byte[] record = new byte[RECORD_LENGTH];
+
+    private FileOutputStream out;
+
+    private ProvisionJournal(File file, int target) {
+        this.file = file;
+        this.target = target;
+    }
+
+    /**
+     * 打开日志,读出已有的记录
+     *
+     * @param meshName    新的网络名,补0到16字节
+     * @param password    新的密码,补0到16字节
+     * @param longTermKey 新的LTK,可以为null
+     */
+    public static ProvisionJournal open(File file, byte[] meshName, byte[] password, byte[] longTermKey) throws IOException {
+
+        int target = 31 * (31 * Arrays.hashCode(meshName) + Arrays.hashCode(password)) + Arrays.hashCode(longTermKey);
+
+        ProvisionJournal journal = new ProvisionJournal(file, target);
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * @return 没有记录时返回{@link #STEP_NONE}
+     */
+    public synchronized int getStep(long mac) {
+        Entry entry = this.entries.get(mac);
+        return entry == null ? STEP_NONE : entry.step;
+    }
+
+    /**
+     * @return 已经设置的新地址,没有时返回-1
+     */
+    public synchronized int getAddress(long mac) {
+        Entry entry = this.entries.get(mac);
+        return entry == null ? -1 : entry.address;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * 按日志调整设备,更新前调用
+     * <p>已经设置过的地址继续使用,不再重新分配;已完成的设备标记为meshChanged.
+     *
+     * @return 是否已经完成
+     */
+    public synchronized boolean restore(LightPeripheral light) {
+
+        Entry entry = this.entries.get(light.getMacLong());
+
+        if (entry == null)
+            return false;
+
+        if (entry.address != -1)
+            light.setNewMeshAddress(entry.address);
+
+        if (entry.step == STEP_COMPLETED) {
+            light.meshChanged = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * 追加一条记录并同步到磁盘,写入失败只打印日志,不影响更新
+     */
+    public synchronized void record(long mac, int step, int value) {
+
+        if (mac == -1)
+            return;
+
+        this.apply(mac, step, value);
+
+        if (this.out == null)
+            return;
+
+        encode(this.record, mac, step, value);
+
+        try {
+            this.out.write(this.record);
+            this.out.getFD().sync();
+        } catch (IOException e) {
+            LOG.e("journal write error : %s", e.getMessage());
+        }
+    }
+
+    public void record(LightPeripheral light, int step) {
+        this.record(light.getMacLong(), step, 0);
+    }
+
+    /**
+     * 重写为每个设备一条地址记录和一条步骤记录,先写临时文件再替换
+     */
+    public synchronized void compact() {
+
+        File tmp = new File(this.file.getPath() + ".tmp");
+
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                byte[] data = new byte[HEADER_LENGTH + this.entries.size() * RECORD_LENGTH * 2];
+                int position = this.writeHeader(data);
+                byte[] record = new byte[RECORD_LENGTH];
+
+                for (Map.Entry<Long, Entry> item : this.entries.entrySet()) {
+                    Entry entry = item.getValue();
+                    if (entry.address != -1) {
+                        encode(record, item.getKey(), STEP_ADDRESS, entry.address);
+                        System.arraycopy(record, 0, data, position, RECORD_LENGTH);
+                        position += RECORD_LENGTH;
+                    }
+                    if (entry.step != STEP_ADDRESS && entry.step != STEP_NONE) {
+                        encode(record, item.getKey(), entry.step, 0);
+                        System.arraycopy(record, 0, data, position, RECORD_LENGTH);
+                        position += RECORD_LENGTH;
+                    }
+                }
+
+                out.write(data, 0, position);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+
+            this.closeStream();
+
+            if (!tmp.renameTo(this.file))
+                throw new IOException("rename " + tmp + " failed");
+
+            this.out = new FileOutputStream(this.file, true);
+        } catch (IOException e) {
+            LOG.e("journal compact error : %s", e.getMessage());
+            tmp.delete();
+            if (this.out == null)
+                this.reopen();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closeStream();
+    }
+
+    private void apply(long mac, int step, int value) {
+
+        Entry entry = this.entries.get(mac);
+
+        if (entry == null) {
+            entry = new Entry();
+            this.entries.put(mac, entry);
+        }
+
+        if (step == STEP_ADDRESS) {
+            entry.address = value;
+            // 地址在网络名之前设置
+            if (entry.step < STEP_ADDRESS)
+                entry.step = STEP_ADDRESS;
+        } else {
+            // 写入过LTK的设备可能已经是新的网络,重新写入网络名和密码时仍然保持STEP_LTK,下次先用新的网络参数登录;
+            // 其他以最后一条为准,密码错误后可以退回STEP_NONE
+            boolean committed = entry.step == STEP_LTK && (step == STEP_MESH_NAME || step == STEP_PASSWORD);
+            if (!committed)
+                entry.step = step;
+        }
+    }
+
+    private void load() throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+
+        try {
+            long length = raf.length();
+            byte[] header = new byte[HEADER_LENGTH];
+            boolean valid = false;
+
+            if (length >= HEADER_LENGTH) {
+                raf.readFully(header);
+                byte[] expected = new byte[HEADER_LENGTH];
+                this.writeHeader(expected);
+                valid = Arrays.equals(header, expected);
+            }
+
+            long position = HEADER_LENGTH;
+
+            if (valid) {
+                byte[] data = new byte[(int) (length - HEADER_LENGTH)];
+                raf.readFully(data);
+
+                for (int offset = 0; offset + RECORD_LENGTH <= data.length; offset += RECORD_LENGTH) {
+                    if (!check(data, offset))
+                        break;
+                    long mac = 0;
+                    for (int i = 0; i < 6; i++)
+                        mac = (mac << 8) | (data[offset + i] & 0xFF);
+                    int step = data[offset + 6] & 0xFF;
+                    int value = ((data[offset + 7] & 0xFF) << 8) | (data[offset + 8] & 0xFF);
+                    this.apply(mac, step, value);
+                    position += RECORD_LENGTH;
+                }
+
+                if (position != length)
+                    LOG.w("journal truncated at %d/%d", position, length);
+            } else {
+                if (length > 0)
+                    LOG.w("journal for another mesh, reset");
+                this.writeHeader(header);
+                raf.seek(0);
+                raf.write(header);
+            }
+
+            // 丢弃不完整的记录,之后从这里追加
+            raf.setLength(position);
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        LOG.d("journal %s : %d lights", this.file.getName(), this.entries.size());
+
+        this.out = new FileOutputStream(this.file, true);
+    }
+
+    private void reopen() {
+        try {
+            this.out = new FileOutputStream(this.file, true);
+        } catch (IOException e) {
+            LOG.e("journal open error : %s", e.getMessage());
+        }
+    }
+
+    private void closeStream() {
+
+        if (this.out == null)
+            return;
+
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            LOG.e("journal close error : %s", e.getMessage());
+        }
+
+        this.out = null;
+    }
+
+    private int writeHeader(byte[] data) {
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[4] = VERSION;
+        data[5] = (byte) (this.target >> 24);
+        data[6] = (byte) (this.target >> 16);
+        data[7] = (byte) (this.target >> 8);
+        data[8] = (byte) this.target;
+        return HEADER_LENGTH;
+    }
+
+    private static void encode(byte[] record, long mac, int step, int value) {
+        for (int i = 5; i >= 0; i--) {
+            record[i] = (byte) mac;
+            mac >>>= 8;
+        }
+        record[6] = (byte) step;
+        record[7] = (byte) (value >> 8);
+        record[8] = (byte) value;
+        record[9] = checksum(record, 0);
+    }
+
+    private static boolean check(byte[] data, int offset) {
+        return data[offset + RECORD_LENGTH - 1] == checksum(data, offset);
+    }
+
+    /**
+     * 全0的记录(写了一半的扇区)校验不通过
+     */
+    private static byte checksum(byte[] data, int offset) {
+        int value = 0xA5;
+        for (int i = 0; i < RECORD_LENGTH - 1; i++)
+            value = (((value << 1) | (value >>> 7)) & 0xFF) ^ (data[offset + i] & 0xFF);
+        return (byte) value;
+    }
+
+    private static final class Entry {
+        int step = STEP_NONE;
+        int address = -1;
+    }
+}
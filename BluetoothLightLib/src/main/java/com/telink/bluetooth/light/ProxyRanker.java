@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.light;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 自动连接时选择代理节点
+ * <p>每个设备的广播包更新平滑后的RSSI(EWMA)和广播间隔,连接/登录结果按MAC保存,扫描列表清空后仍然保留.
+ * 分数 = 平滑RSSI + 广播频率加分 + 历史成功率加分 - 长时间没有广播的扣分 - 最近失败的扣分,单位都按dBm折算.
+ */
+final class ProxyRanker {
+
+    // 新样本的权重,越大越跟随最新的RSSI
+    private static final float RSSI_ALPHA = 0.25f;
+    private static final float INTERVAL_ALPHA = 0.25f;
+
+    // 每秒一个广播包加1,最多加10
+    private static final float MAX_RATE = 10f;
+    // 成功率从0到1对应-10到+10
+    private static final float HISTORY_WEIGHT = 20f;
+    // 超过STALE_MILLIS没有广播后每秒扣2
+    private static final long STALE_MILLIS = 3000;
+    private static final float STALE_WEIGHT = 2f;
+    private static final float MAX_STALE_PENALTY = 40f;
+    // 最近失败的设备暂时排到后面
+    private static final long FAILURE_BACKOFF_MILLIS = 10 * 1000;
+    private static final float FAILURE_PENALTY = 15f;
+
+    private static final int MAX_HISTORY = 256;
+
+    private final Map<Long, History> histories = new LinkedHashMap<Long, History>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, History> eldest) {
+            return size() > MAX_HISTORY;
+        }
+    };
+
+    /**
+     * 扫描回调里每个广播包调用一次,不分配对象
+     */
+    public void onAdvertise(LightPeripheral light, int rssi, long now) {
+        light.getSignal().update(rssi, now);
+    }
+
+    public void onSuccess(LightPeripheral light, long now) {
+        synchronized (this.histories) {
+            History history = this.obtain(light.getMacLong());
+            history.success++;
+            history.lastSuccessTime = now;
+        }
+    }
+
+    public void onFailure(LightPeripheral light, long now) {
+        synchronized (this.histories) {
+            History history = this.obtain(light.getMacLong());
+            history.failure++;
+            history.lastFailureTime = now;
+        }
+    }
+
+    public void clear() {
+        synchronized (this.histories) {
+            this.histories.clear();
+        }
+    }
+
+    /**
+     * @return 分数最高的设备, lights为空时返回null
+     */
+    public LightPeripheral select(LightPeripheral[] lights, long now) {
+
+        LightPeripheral result = null;
+        float best = 0;
+
+        for (LightPeripheral light : lights) {
+            float score = this.score(light, now);
+            if (result == null || score > best) {
+                result = light;
+                best = score;
+            }
+        }
+
+        return result;
+    }
+
+    public float score(LightPeripheral light, long now) {
+
+        Signal signal = light.getSignal();
+        float score;
+        long lastTime;
+        float interval;
+
+        synchronized (signal) {
+            score = signal.count == 0 ? light.getRssi() : signal.rssi;
+            lastTime = signal.lastTime;
+            interval = signal.interval;
+        }
+
+        if (interval > 0)
+            score += Math.min(1000f / interval, MAX_RATE);
+
+        if (lastTime > 0) {
+            long age = now - lastTime;
+            if (age > STALE_MILLIS)
+                score -= Math.min((age - STALE_MILLIS) / 1000f * STALE_WEIGHT, MAX_STALE_PENALTY);
+        }
+
+        synchronized (this.histories) {
+            History history = this.histories.get(light.getMacLong());
+            if (history != null) {
+                // 拉普拉斯平滑,没有记录时为0.5
+                float ratio = (history.success + 1f) / (history.success + history.failure + 2f);
+                score += (ratio - 0.5f) * HISTORY_WEIGHT;
+                if (history.lastFailureTime > history.lastSuccessTime
+                        && now - history.lastFailureTime < FAILURE_BACKOFF_MILLIS)
+                    score -= FAILURE_PENALTY;
+            }
+        }
+
+        return score;
+    }
+
+    private History obtain(long mac) {
+        History history = this.histories.get(mac);
+        if (history == null) {
+            history = new History();
+            this.histories.put(mac, history);
+        }
+        return history;
+    }
+
+    /**
+     * 广播信号,保存在{@link LightPeripheral}上,随扫描列表一起清空
+     */
+    static final class Signal {
+
+        private float rssi;
+        // 平均广播间隔,单位毫秒,只有一个样本时为0
+        private float interval;
+        private long lastTime;
+        private int count;
+
+        synchronized void update(int rssi, long now) {
+
+            if (this.count == 0) {
+                this.rssi = rssi;
+            } else {
+                this.rssi += RSSI_ALPHA * (rssi - this.rssi);
+
+                long delta = now - this.lastTime;
+                if (delta > 0) {
+                    if (this.interval == 0)
+                        this.interval = delta;
+                    else
+                        this.interval += INTERVAL_ALPHA * (delta - this.interval);
+                }
+            }
+
+            this.lastTime = now;
+            this.count++;
+        }
+
+        synchronized float getRssi() {
+            return this.rssi;
+        }
+
+        synchronized int getCount() {
+            return this.count;
+        }
+    }
+
+    private static final class History {
+        int success;
+        int failure;
+        long lastSuccessTime;
+        long lastFailureTime;
+    }
+}
@@ -21,8 +21,20 @@ public abstract class AES {
 
     public static boolean Security = true;
 
+    private static final boolean NATIVE_LOADED;
+    private static volatile boolean useNative;
+    private static CommandCipher cachedCipher;
+    private static Cipher ecbCipher;
+
     static {
-        System.loadLibrary("TelinkCrypto");
+        boolean loaded;
+        try {
+            System.loadLibrary("TelinkCrypto");
+            loaded = true;
+        } catch (UnsatisfiedLinkError e) {
+            loaded = false;
+        }
+        NATIVE_LOADED = loaded;
     }
 
     private AES() {
@@ -41,9 +53,14 @@ public abstract class AES {
         content = Arrays.reverse(content);
 
         SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
-        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-        return cipher.doFinal(content);
+
+        // Cipher只查找一次,每次只重新设置key
+        synchronized (AES.class) {
+            if (ecbCipher == null)
+                ecbCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            ecbCipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
+            return ecbCipher.doFinal(content);
+        }
     }
 
     public static byte[] decrypt(byte[] key, byte[] content)
@@ -60,20 +77,65 @@ public abstract class AES {
         return cipher.doFinal(content);
     }
 
+    /**
+     * libTelinkCrypto是否加载成功
+     */
+    public static boolean isNativeAvailable() {
+        return NATIVE_LOADED;
+    }
+
+    /**
+     * 命令加解密是否使用native实现,默认使用{@link CommandCipher}
+     *
+     * @param enabled native库没有加载成功时无效
+     */
+    public static void setNativeEnabled(boolean enabled) {
+        useNative = enabled && NATIVE_LOADED;
+    }
+
+    public static boolean isNativeEnabled() {
+        return useNative;
+    }
+
+    /**
+     * 加密命令包,plaintext会被原地修改,返回加密后的副本
+     */
     public static byte[] encrypt(byte[] key, byte[] nonce, byte[] plaintext) {
 
         if (!AES.Security)
             return plaintext;
 
-        return encryptCmd(plaintext, nonce, key);
+        if (useNative)
+            return encryptCmd(plaintext, nonce, key);
+
+        synchronized (AES.class) {
+            getCipher(key).encrypt(nonce, plaintext);
+        }
+        return plaintext.clone();
     }
 
+    /**
+     * 解密通知包,plaintext会被原地修改,返回解密后的副本
+     */
     public static byte[] decrypt(byte[] key, byte[] nonce, byte[] plaintext) {
 
         if (!AES.Security)
             return plaintext;
 
-        return decryptCmd(plaintext, nonce, key);
+        if (useNative)
+            return decryptCmd(plaintext, nonce, key);
+
+        synchronized (AES.class) {
+            getCipher(key).decrypt(nonce, plaintext);
+        }
+        return plaintext.clone();
+    }
+
+    // 同一个session key连续使用时复用Cipher
+    private static CommandCipher getCipher(byte[] key) {
+        if (cachedCipher == null || !cachedCipher.isKey(key))
+            cachedCipher = new CommandCipher(key);
+        return cachedCipher;
     }
 
     private static native byte[] encryptCmd(byte[] packet, byte[] iv, byte[] sk);
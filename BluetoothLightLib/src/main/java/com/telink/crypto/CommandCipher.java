@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 命令包加解密的Java实现,与libTelinkCrypto中的aes_att_encryption_packet/aes_att_decryption_packet逐位一致
+ * <p>一个实例对应一个key,Cipher和缓冲区在多个包之间复用.非线程安全.
+ */
+public final class CommandCipher {
+
+    /**
+     * 命令包: sn(3) + mic(2) + 密文
+     */
+    public static final int COMMAND_MIC_OFFSET = 3;
+    /**
+     * 通知包: sn(3) + src(2) + mic(2) + 密文
+     */
+    public static final int NOTIFY_MIC_OFFSET = 5;
+    public static final int MIC_LENGTH = 2;
+
+    private final byte[] key;
+    private final Cipher cipher;
+    private final byte[] r = new byte[16];
+    private final byte[] e = new byte[16];
+    private final byte[] block = new byte[16];
+
+    public CommandCipher(byte[] key) {
+        this.key = key.clone();
+        try {
+            byte[] reversed = new byte[16];
+            for (int i = 0; i < 16; i++)
+                reversed[i] = key[15 - i];
+            this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(reversed, "AES"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isKey(byte[] key) {
+        return java.util.Arrays.equals(this.key, key);
+    }
+
+    /**
+     * Telink的块加密: 输入和输出都是逆序的AES-ECB,in和out可以相同
+     */
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        byte[] block = this.block;
+        this.encryptEcb(in, inOffset, block, 0);
+        for (int i = 0; i < 16; i++)
+            out[outOffset + i] = block[15 - i];
+    }
+
+    /**
+     * 与{@link AES#encrypt(byte[], byte[])}相同: 输入逆序后AES-ECB,输出不逆序
+     */
+    public void encryptEcb(byte[] in, int inOffset, byte[] out, int outOffset) {
+        byte[] block = this.block;
+        for (int i = 0; i < 16; i++)
+            block[i] = in[inOffset + 15 - i];
+        try {
+            this.cipher.doFinal(block, 0, 16, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 原地加密命令包,与native的encryptCmd相同
+     */
+    public void encrypt(byte[] nonce, byte[] packet) {
+        int offset = COMMAND_MIC_OFFSET + MIC_LENGTH;
+        if (packet.length > offset)
+            this.encryptPacket(nonce, packet, COMMAND_MIC_OFFSET, MIC_LENGTH, offset, packet.length - offset);
+    }
+
+    /**
+     * 原地解密通知包,与native的decryptCmd相同
+     *
+     * @return MIC是否正确
+     */
+    public boolean decrypt(byte[] nonce, byte[] packet) {
+        int offset = NOTIFY_MIC_OFFSET + MIC_LENGTH;
+        return packet.length > offset
+                && this.decryptPacket(nonce, packet, NOTIFY_MIC_OFFSET, MIC_LENGTH, offset, packet.length - offset);
+    }
+
+    public void encryptPacket(byte[] iv, byte[] packet, int micOffset, int micLength, int offset, int length) {
+        this.mic(iv, packet, offset, length);
+        System.arraycopy(this.r, 0, packet, micOffset, micLength);
+        this.ctr(iv, packet, offset, length);
+    }
+
+    public boolean decryptPacket(byte[] iv, byte[] packet, int micOffset, int micLength, int offset, int length) {
+        this.ctr(iv, packet, offset, length);
+        this.mic(iv, packet, offset, length);
+        for (int i = 0; i < micLength; i++) {
+            if (packet[micOffset + i] != this.r[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void mic(byte[] iv, byte[] packet, int offset, int length) {
+        byte[] r = this.r;
+        java.util.Arrays.fill(r, (byte) 0);
+        System.arraycopy(iv, 0, r, 0, 8);
+        r[8] = (byte) length;
+        this.encryptBlock(r, 0, r, 0);
+
+        for (int i = 0; i < length; i++) {
+            r[i & 15] ^= packet[offset + i];
+            if ((i & 15) == 15 || i == length - 1)
+                this.encryptBlock(r, 0, r, 0);
+        }
+    }
+
+    private void ctr(byte[] iv, byte[] packet, int offset, int length) {
+        byte[] r = this.r;
+        byte[] e = this.e;
+        java.util.Arrays.fill(r, (byte) 0);
+        System.arraycopy(iv, 0, r, 1, 8);
+
+        for (int i = 0; i < length; i++) {
+            if ((i & 15) == 0) {
+                this.encryptBlock(r, 0, e, 0);
+                r[0]++;
+            }
+            packet[offset + i] ^= e[i & 15];
+        }
+    }
+}
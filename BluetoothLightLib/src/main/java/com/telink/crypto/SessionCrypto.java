@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.crypto;
+
+/**
+ * 登录成功后按session key创建的加密上下文
+ * <p>key schedule和缓冲区在整个session内复用,不再每次查找Cipher的provider和初始化key.线程安全.
+ */
+public final class SessionCrypto {
+
+    private final byte[] key;
+    private final CommandCipher cipher;
+
+    public SessionCrypto(byte[] sessionKey) {
+        this.key = sessionKey.clone();
+        this.cipher = new CommandCipher(sessionKey);
+    }
+
+    public byte[] getKey() {
+        return this.key.clone();
+    }
+
+    /**
+     * 与{@link AES#encrypt(byte[], byte[])}使用session key加密的结果相同
+     */
+    public byte[] encrypt(byte[] content) {
+
+        if (!AES.Security)
+            return content;
+
+        byte[] result = new byte[16];
+        synchronized (this) {
+            this.cipher.encryptEcb(content, 0, result, 0);
+        }
+        return result;
+    }
+
+    /**
+     * 与{@link AES#encrypt(byte[], byte[], byte[])}相同,packet会被原地修改
+     */
+    public byte[] encryptCommand(byte[] nonce, byte[] packet) {
+
+        if (!AES.Security)
+            return packet;
+
+        if (AES.isNativeEnabled())
+            return AES.encrypt(this.key, nonce, packet);
+
+        synchronized (this) {
+            this.cipher.encrypt(nonce, packet);
+        }
+        return packet.clone();
+    }
+
+    /**
+     * 原地加密命令包,不复制结果
+     */
+    public void encryptCommandInPlace(byte[] nonce, byte[] packet) {
+
+        if (!AES.Security)
+            return;
+
+        // native的encryptCmd同样原地修改packet
+        if (AES.isNativeEnabled()) {
+            AES.encrypt(this.key, nonce, packet);
+            return;
+        }
+
+        synchronized (this) {
+            this.cipher.encrypt(nonce, packet);
+        }
+    }
+
+    /**
+     * 与{@link AES#decrypt(byte[], byte[], byte[])}相同,packet会被原地修改
+     */
+    public byte[] decryptNotification(byte[] nonce, byte[] packet) {
+
+        if (!AES.Security)
+            return packet;
+
+        if (AES.isNativeEnabled())
+            return AES.decrypt(this.key, nonce, packet);
+
+        synchronized (this) {
+            this.cipher.decrypt(nonce, packet);
+        }
+        return packet.clone();
+    }
+}
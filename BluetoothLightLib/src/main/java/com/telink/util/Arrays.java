@@ -5,13 +5,14 @@
 package com.telink.util;
 
 import java.io.UnsupportedEncodingException;
-import java.util.Formatter;
 
 /**
  * 数组工具类
  */
 public final class Arrays {
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
     private Arrays() {
     }
 
@@ -120,22 +121,18 @@ public final class Arrays {
         if (array == null || array.length == 0)
             return "";
 
-        StringBuilder sb = new StringBuilder();
-
-        Formatter formatter = new Formatter(sb);
-        formatter.format("%02X", array[0]);
+        boolean hasSeparator = !Strings.isEmpty(separator);
+        StringBuilder sb = new StringBuilder(array.length * (hasSeparator ? 2 + separator.length() : 2));
 
-        for (int i = 1; i < array.length; i++) {
+        for (int i = 0; i < array.length; i++) {
 
-            if (!Strings.isEmpty(separator))
+            if (i > 0 && hasSeparator)
                 sb.append(separator);
 
-            formatter.format("%02X", array[i]);
+            int value = array[i] & 0xFF;
+            sb.append(HEX_DIGITS[value >>> 4]).append(HEX_DIGITS[value & 0x0F]);
         }
 
-        formatter.flush();
-        formatter.close();
-
         return sb.toString();
     }
 
@@ -9,22 +9,26 @@ import android.os.Looper;
 
 import com.telink.bluetooth.TelinkLog;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class EventBus<T> {
 
+    private static final TelinkLog.Logger LOG = TelinkLog.getLogger(EventBus.class);
+
     private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
     private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
     private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
@@ -36,143 +40,508 @@ public class EventBus<T> {
     private static final ExecutorService EXECUTOR_SERVICE = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
             TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory); //Executors.newCachedThreadPool(new DefaultThreadFactory());
 
-    protected final Map<T, List<EventListener<T>>> mEventListeners = new ConcurrentHashMap<>();
+    protected final ListenerRegistry<T> mEventListeners;
     protected final Queue<Event<T>> mEventQueue = new ConcurrentLinkedQueue<>();
     protected final Handler mCurrentThreadHandler = new Handler(Looper.myLooper());
     protected final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
-    private final Object mLock = new Object();
-    protected boolean processing = false;
-    private final Runnable task = new Runnable() {
-        @Override
-        public void run() {
-            processEvent();
-        }
-    };
+
+    // 未处理的dispatch次数,从0变为1的生产者负责提交drain任务,同一时间只有一个drain在运行
+    private final AtomicInteger wip = new AtomicInteger();
+    private final Runnable backgroundTask = new DrainTask(Event.ThreadMode.Background);
+    private final Runnable mainTask = new DrainTask(Event.ThreadMode.Main);
+    private final Runnable defaultTask = new DrainTask(Event.ThreadMode.Default);
+
+    // 队列容量和溢出策略
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final Object capacityLock = new Object();
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile int blockedWaiters;
+    private volatile Thread drainThread;
+    // 线程模式切换时已经出队的事件,由下一个drain先处理
+    private volatile Event<T> handoff;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    // 只保留最新一个的事件类型,以及队列中还未回调的合并事件
+    private volatile Set<T> coalescedTypes = Collections.emptySet();
+    private final ConcurrentHashMap<CoalesceKey, CoalescedEvent<T>> pendingCoalesced = new ConcurrentHashMap<>();
+
+    // 只由drain线程写
+    private volatile long drainCount;
+    private volatile long processedCount;
+    private volatile int maxBatchSize;
+    private final AtomicLong dispatchedCount = new AtomicLong();
+
+    public EventBus() {
+        this(ListenerRegistry.<T>newMapRegistry());
+    }
+
+    /**
+     * @param registry 监听注册表,Integer类型的事件可以使用{@link ListenerRegistry#newIntRegistry()}
+     */
+    protected EventBus(ListenerRegistry<T> registry) {
+        this.mEventListeners = registry;
+    }
 
     public void addEventListener(T eventType, EventListener<T> listener) {
+        if (listener != null)
+            this.mEventListeners.add(eventType, listener);
+    }
 
-        synchronized (this.mEventListeners) {
-            List<EventListener<T>> listeners;
+    public void removeEventListener(EventListener<T> listener) {
+        this.mEventListeners.remove(listener);
+    }
 
-            if (this.mEventListeners.containsKey(eventType)) {
-                listeners = this.mEventListeners.get(eventType);
-            } else {
-                listeners = new ArrayList<>();
-                this.mEventListeners.put(eventType, listeners);
-            }
+    public void removeEventListener(T eventType, EventListener<T> listener) {
+        this.mEventListeners.remove(eventType, listener);
+    }
 
-            if (!listeners.contains(listener)) {
-                listeners.add(listener);
+    public void removeEventListeners() {
+        this.mEventListeners.clear();
+    }
+
+    public boolean hasEventListener(T eventType) {
+        return this.mEventListeners.get(eventType) != null;
+    }
+
+    /**
+     * 事件进入队列,按dispatch的顺序依次回调
+     * <p>多个线程可以同时dispatch,不加锁.队列由一个drain任务批量处理,
+     * 遇到线程模式不同的事件时把剩下的队列交给对应的线程继续处理,保证顺序.
+     */
+    public void dispatchEvent(final Event<T> event) {
+
+        this.dispatchedCount.incrementAndGet();
+
+        Event<T> queued = event;
+
+        if (!this.coalescedTypes.isEmpty() && this.coalescedTypes.contains(event.getType())) {
+            CoalesceKey key = new CoalesceKey(event.getType(), event.getSender());
+            CoalescedEvent<T> pending = this.pendingCoalesced.get(key);
+            // 队列中已有同一来源的同类事件,只替换它的内容
+            if (pending != null && pending.replace(event)) {
+                this.coalescedCount.incrementAndGet();
+                return;
             }
+            CoalescedEvent<T> coalesced = new CoalescedEvent<>(key, event);
+            this.pendingCoalesced.put(key, coalesced);
+            queued = coalesced;
         }
+
+        if (this.queueSize.get() >= this.capacity && !this.onOverflow(queued))
+            return;
+
+        this.queueSize.incrementAndGet();
+        this.mEventQueue.add(queued);
+
+        if (this.wip.getAndIncrement() == 0)
+            this.schedule(queued.getThreadMode());
     }
 
-    public void removeEventListener(EventListener<T> listener) {
-        synchronized (this.mEventListeners) {
-            for (T eventType : this.mEventListeners.keySet()) {
-                this.removeEventListener(eventType, listener);
-            }
+    /**
+     * 设置事件类型是否合并: 队列中还未回调的同一来源({@link Event#getSender()})的同类事件只保留最新的一个,
+     * 用于进度,RSSI这类只关心最新值的事件
+     */
+    public synchronized void setCoalescing(T eventType, boolean coalescing) {
+        Set<T> types = new HashSet<>(this.coalescedTypes);
+        if (coalescing)
+            types.add(eventType);
+        else
+            types.remove(eventType);
+        this.coalescedTypes = types;
+    }
+
+    public boolean isCoalescing(T eventType) {
+        return this.coalescedTypes.contains(eventType);
+    }
+
+    /**
+     * 设置队列容量和超过容量时的处理方式,默认不限制容量
+     */
+    public void setCapacity(int capacity, OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        synchronized (this.capacityLock) {
+            this.capacityLock.notifyAll();
         }
     }
 
-    public void removeEventListener(T eventType, EventListener<T> listener) {
-        synchronized (this.mEventListeners) {
-            if (this.mEventListeners.containsKey(eventType)) {
-                List<EventListener<T>> listeners = this.mEventListeners.get(eventType);
-                listeners.remove(listener);
-            }
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return this.overflowPolicy;
+    }
+
+    /**
+     * 队列中的事件数
+     */
+    public int getQueueSize() {
+        return this.queueSize.get();
+    }
+
+    /**
+     * {@link OverflowPolicy#DROP_OLDEST}和{@link OverflowPolicy#COALESCE}丢掉的事件数
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    /**
+     * {@link #setCoalescing(Object, boolean)}的事件类型合并掉的事件数
+     */
+    public long getCoalescedCount() {
+        return this.coalescedCount.get();
+    }
+
+    /**
+     * {@link OverflowPolicy#CALLER_RUNS}在调用线程上回调的事件数
+     */
+    public long getCallerRunsCount() {
+        return this.callerRunsCount.get();
+    }
+
+    /**
+     * {@link OverflowPolicy#BLOCK}阻塞的次数
+     */
+    public long getBlockedCount() {
+        return this.blockedCount.get();
+    }
+
+    /**
+     * 共享线程池拒绝执行的次数,被拒绝时在调用线程上处理队列
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * 所有EventBus共享的线程池中等待的任务数
+     */
+    public static int getExecutorQueueSize() {
+        return sPoolWorkQueue.size();
+    }
+
+    /**
+     * @return 是否还需要入队
+     */
+    private boolean onOverflow(Event<T> event) {
+
+        switch (this.overflowPolicy) {
+
+            case DROP_OLDEST:
+                this.dropOldest();
+                return true;
+
+            case COALESCE:
+                // 合并类型的事件在dispatch时已经按来源合并,能到这里的是新来源,每个来源最多一个,直接入队
+                if (event instanceof CoalescedEvent)
+                    return true;
+                this.dropOldest();
+                return true;
+
+            case CALLER_RUNS:
+                this.callerRunsCount.incrementAndGet();
+                this.processEvent(this.unwrap(event));
+                return false;
+
+            case BLOCK:
+            default:
+                // 在drain需要的线程上阻塞会死锁,直接入队
+                if (!this.canBlock())
+                    return true;
+                this.blockedCount.incrementAndGet();
+                synchronized (this.capacityLock) {
+                    this.blockedWaiters++;
+                    try {
+                        while (this.queueSize.get() >= this.capacity)
+                            this.capacityLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        this.blockedWaiters--;
+                    }
+                }
+                return true;
         }
     }
 
-    public void removeEventListeners() {
-        synchronized (this.mEventListeners) {
-            for (T eventType : this.mEventListeners.keySet()) {
-                List<EventListener<T>> listeners = this.mEventListeners.get(eventType);
-                listeners.clear();
-                this.mEventListeners.remove(eventType);
-            }
+    private void dropOldest() {
+        Event<T> oldest;
+        while (this.queueSize.get() >= this.capacity && (oldest = this.mEventQueue.poll()) != null) {
+            this.discard(oldest);
+            this.droppedCount.incrementAndGet();
         }
     }
 
-    public void dispatchEvent(final Event<T> event) {
-//        TelinkLog.d("event looper : " + event.getThreadMode());
+    /**
+     * 正在drain的线程,以及Main/Default模式的drain所在的looper线程上不能阻塞:
+     * 例如在主线程dispatch时,队列要等主线程上的drain才能变短
+     */
+    private boolean canBlock() {
 
-        this.mEventQueue.add(event);
+        if (Thread.currentThread() == this.drainThread)
+            return false;
 
-        TelinkLog.d("postCommand event : " + event.getType() + "--" + event.getClass().getName());
+        Looper looper = Looper.myLooper();
 
-        synchronized (this.mLock) {
-            if (!this.processing)
-                this.processOnThread();
-        }
+        return looper == null
+                || (looper != this.mMainThreadHandler.getLooper() && looper != this.mCurrentThreadHandler.getLooper());
     }
 
-    private void processOnThread() {
+    /**
+     * drain任务执行的次数
+     */
+    public long getDrainCount() {
+        return this.drainCount;
+    }
 
-        final Event<T> event;
+    public long getDispatchedCount() {
+        return this.dispatchedCount.get();
+    }
 
-        synchronized (mEventQueue) {
-            event = this.mEventQueue.peek();
-            if (event == null)
-                return;
-        }
+    public long getProcessedCount() {
+        return this.processedCount;
+    }
+
+    /**
+     * 还未回调的事件数
+     */
+    public long getPendingCount() {
+        return this.queueSize.get();
+    }
 
-        switch (event.getThreadMode()) {
+    /**
+     * 一次drain处理的最多事件数
+     */
+    public int getMaxBatchSize() {
+        return this.maxBatchSize;
+    }
+
+    private void schedule(Event.ThreadMode threadMode) {
+        switch (threadMode) {
             case Background:
-                EXECUTOR_SERVICE.execute(task);
+                try {
+                    EXECUTOR_SERVICE.execute(this.backgroundTask);
+                } catch (RejectedExecutionException e) {
+                    // 线程池已满,在当前线程上处理,wip仍然持有,不会有第二个drain
+                    this.rejectedCount.incrementAndGet();
+                    this.drain(threadMode);
+                }
                 break;
             case Main:
-                mMainThreadHandler.post(task);
+                this.mMainThreadHandler.post(this.mainTask);
                 break;
             case Default:
-                mCurrentThreadHandler.post(task);
+                this.mCurrentThreadHandler.post(this.defaultTask);
                 break;
         }
     }
 
-    private void processEvent() {
-//        TelinkLog.d("process on thread : " + Thread.currentThread().getName());
+    private void drain(Event.ThreadMode threadMode) {
 
-        final Event<T> event;
+        int missed = 1;
+        int batch = 0;
+        Thread previous = this.drainThread;
+        this.drainThread = Thread.currentThread();
+        this.drainCount++;
 
-        synchronized (mEventQueue) {
-            event = mEventQueue.poll();
-            if (event == null)
-                return;
-        }
+        try {
+            for (; ; ) {
+
+                Event<T> event;
 
-//        TelinkLog.d("process postCommand event : " + event.getType() + "--" + event.getClass().getName());
+                while ((event = this.poll()) != null) {
 
-        T eventType = event.getType();
-        List<EventListener<T>> listeners = null;
+                    // 交给对应的线程,wip不释放,其他生产者不会提交新的drain
+                    if (event.getThreadMode() != threadMode) {
+                        this.handoff = event;
+                        this.onDrained(batch);
+                        this.schedule(event.getThreadMode());
+                        return;
+                    }
+
+                    this.processEvent(this.unwrap(event));
+                    batch++;
+                }
 
-        synchronized (this.mEventListeners) {
-            if (this.mEventListeners.containsKey(eventType)) {
-                listeners = this.mEventListeners.get(eventType);
+                this.onDrained(batch);
+                batch = 0;
+
+                missed = this.wip.addAndGet(-missed);
+
+                if (missed == 0)
+                    return;
             }
+        } finally {
+            this.drainThread = previous;
+        }
+    }
+
+    /**
+     * 在释放wip或者交给下一个drain之前更新,保证只有一个线程写
+     */
+    private void onDrained(int batch) {
+        this.processedCount += batch;
+        if (batch > this.maxBatchSize)
+            this.maxBatchSize = batch;
+    }
+
+    private Event<T> poll() {
+
+        Event<T> event = this.handoff;
+
+        if (event != null) {
+            this.handoff = null;
+            return event;
         }
 
-        if (listeners != null && !listeners.isEmpty()) {
-            synchronized (this.mLock) {
-                this.processing = true;
+        event = this.mEventQueue.poll();
+
+        if (event != null)
+            this.onDequeued();
+
+        return event;
+    }
+
+    /**
+     * 从队列中移除但不回调的事件
+     */
+    private void discard(Event<T> event) {
+        this.onDequeued();
+        this.unwrap(event);
+    }
+
+    /**
+     * 合并事件出队后不再接受替换,返回最新的事件
+     */
+    private Event<T> unwrap(Event<T> event) {
+        if (!(event instanceof CoalescedEvent))
+            return event;
+        CoalescedEvent<T> coalesced = (CoalescedEvent<T>) event;
+        this.pendingCoalesced.remove(coalesced.key, coalesced);
+        return coalesced.take();
+    }
+
+    private void onDequeued() {
+        this.queueSize.decrementAndGet();
+        if (this.blockedWaiters > 0) {
+            synchronized (this.capacityLock) {
+                this.capacityLock.notifyAll();
             }
+        }
+    }
+
+    private void processEvent(Event<T> event) {
+
+        // 快照不会被修改,直接遍历
+        EventListener<T>[] listeners = this.mEventListeners.get(event.getType());
+
+        if (listeners == null)
+            return;
 
-            for (EventListener<T> listener : listeners) {
-                if (listener != null)
-                    listener.performed(event);
+        for (int i = 0; i < listeners.length; i++) {
+            // 一个监听出错不能让整个队列停下来
+            try {
+                listeners[i].performed(event);
+            } catch (RuntimeException e) {
+                LOG.e("EventBus listener error : %s", event.getType(), e);
             }
         }
+    }
+
+    /**
+     * 队列超过容量时的处理方式
+     */
+    public enum OverflowPolicy {
+        /**
+         * 阻塞dispatch的线程直到队列有空位.正在drain的线程和looper线程(主线程,创建EventBus的线程)上不阻塞,直接入队
+         */
+        BLOCK,
+        /**
+         * 丢掉队列中最早的事件
+         */
+        DROP_OLDEST,
+        /**
+         * 只合并{@link #setCoalescing(Object, boolean)}设置的事件类型: 同一来源的在队列中只保留最新的,
+         * 新来源的事件超过容量也入队(每个来源最多一个);其他类型的事件和{@link #DROP_OLDEST}一样丢掉最早的
+         */
+        COALESCE,
+        /**
+         * 在dispatch的线程上直接回调,不保证顺序
+         */
+        CALLER_RUNS
+    }
+
+    private static final class CoalesceKey {
+
+        final Object type;
+        final Object sender;
+
+        CoalesceKey(Object type, Object sender) {
+            this.type = type;
+            this.sender = sender;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CoalesceKey))
+                return false;
+            CoalesceKey other = (CoalesceKey) o;
+            return this.sender == other.sender && this.type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.type.hashCode() * 31 + System.identityHashCode(this.sender);
+        }
+    }
+
+    /**
+     * 队列中代表一组合并事件的占位,出队时取最新的事件回调
+     */
+    private static final class CoalescedEvent<T> extends Event<T> {
+
+        final CoalesceKey key;
+        private Event<T> latest;
+        private boolean taken;
+
+        CoalescedEvent(CoalesceKey key, Event<T> event) {
+            super(event.getSender(), event.getType(), event.getThreadMode());
+            this.key = key;
+            this.latest = event;
+        }
 
-        this.processEventCompleted();
+        synchronized boolean replace(Event<T> event) {
+            if (this.taken)
+                return false;
+            this.latest = event;
+            return true;
+        }
+
+        synchronized Event<T> take() {
+            this.taken = true;
+            return this.latest;
+        }
     }
 
-    private void processEventCompleted() {
-        synchronized (this.mLock) {
-            this.processing = false;
+    private final class DrainTask implements Runnable {
+
+        private final Event.ThreadMode threadMode;
+
+        DrainTask(Event.ThreadMode threadMode) {
+            this.threadMode = threadMode;
         }
 
-        if (!this.mEventQueue.isEmpty())
-            this.processOnThread();
+        @Override
+        public void run() {
+            drain(this.threadMode);
+        }
     }
 
     private static class DefaultThreadFactory implements ThreadFactory {
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link EventBus}的监听注册表
+ * <p>写时复制: 注册和移除时加锁生成新的不可变快照,分发时只读一次volatile引用,不加锁,不分配迭代器.
+ * 返回的监听数组不能修改.
+ */
+public abstract class ListenerRegistry<T> {
+
+    /**
+     * 任意类型的事件
+     */
+    public static <T> ListenerRegistry<T> newMapRegistry() {
+        return new MapRegistry<>();
+    }
+
+    /**
+     * Integer类型的事件,用int数组保存key,查找时不需要hashCode和equals
+     */
+    public static ListenerRegistry<Integer> newIntRegistry() {
+        return new IntRegistry();
+    }
+
+    /**
+     * @return 没有监听时返回null
+     */
+    public abstract EventListener<T>[] get(T eventType);
+
+    public abstract void add(T eventType, EventListener<T> listener);
+
+    public abstract void remove(T eventType, EventListener<T> listener);
+
+    public abstract void remove(EventListener<T> listener);
+
+    public abstract void clear();
+
+    /**
+     * 泛型数组只在这里创建,类型由调用处的变量决定
+     *
+     * @param componentType 数组元素的类型,比如EventListener.class或EventListener[].class
+     */
+    @SuppressWarnings("unchecked")
+    static <E> E[] newArray(Class<?> componentType, int length) {
+        return (E[]) java.lang.reflect.Array.newInstance(componentType, length);
+    }
+
+    static <T> EventListener<T>[] append(EventListener<T>[] listeners, EventListener<T> listener) {
+        int length = listeners == null ? 0 : listeners.length;
+        if (length > 0 && indexOf(listeners, listener) >= 0)
+            return listeners;
+        EventListener<T>[] result = newArray(EventListener.class, length + 1);
+        if (length > 0)
+            System.arraycopy(listeners, 0, result, 0, length);
+        result[length] = listener;
+        return result;
+    }
+
+    /**
+     * @return 移除后为空时返回null
+     */
+    static <T> EventListener<T>[] without(EventListener<T>[] listeners, EventListener<T> listener) {
+        if (listeners == null)
+            return null;
+        int index = indexOf(listeners, listener);
+        if (index < 0)
+            return listeners;
+        if (listeners.length == 1)
+            return null;
+        EventListener<T>[] result = newArray(EventListener.class, listeners.length - 1);
+        System.arraycopy(listeners, 0, result, 0, index);
+        System.arraycopy(listeners, index + 1, result, index, result.length - index);
+        return result;
+    }
+
+    private static <T> int indexOf(EventListener<T>[] listeners, EventListener<T> listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i].equals(listener))
+                return i;
+        }
+        return -1;
+    }
+
+    private static final class MapRegistry<T> extends ListenerRegistry<T> {
+
+        private volatile Map<T, EventListener<T>[]> snapshot = new HashMap<>();
+
+        @Override
+        public EventListener<T>[] get(T eventType) {
+            return this.snapshot.get(eventType);
+        }
+
+        @Override
+        public synchronized void add(T eventType, EventListener<T> listener) {
+            Map<T, EventListener<T>[]> map = new HashMap<>(this.snapshot);
+            map.put(eventType, append(map.get(eventType), listener));
+            this.snapshot = map;
+        }
+
+        @Override
+        public synchronized void remove(T eventType, EventListener<T> listener) {
+            EventListener<T>[] listeners = this.snapshot.get(eventType);
+            if (listeners == null)
+                return;
+            Map<T, EventListener<T>[]> map = new HashMap<>(this.snapshot);
+            EventListener<T>[] result = without(listeners, listener);
+            if (result == null)
+                map.remove(eventType);
+            else
+                map.put(eventType, result);
+            this.snapshot = map;
+        }
+
+        @Override
+        public synchronized void remove(EventListener<T> listener) {
+            Map<T, EventListener<T>[]> map = new HashMap<>(this.snapshot.size());
+            for (Map.Entry<T, EventListener<T>[]> entry : this.snapshot.entrySet()) {
+                EventListener<T>[] result = without(entry.getValue(), listener);
+                if (result != null)
+                    map.put(entry.getKey(), result);
+            }
+            this.snapshot = map;
+        }
+
+        @Override
+        public synchronized void clear() {
+            this.snapshot = new HashMap<>();
+        }
+    }
+
+    private static final class IntRegistry extends ListenerRegistry<Integer> {
+
+        private static final Snapshot EMPTY = new Snapshot(new int[0], ListenerRegistry.<EventListener<Integer>[]>newArray(EventListener[].class, 0));
+
+        private volatile Snapshot snapshot = EMPTY;
+
+        @Override
+        public EventListener<Integer>[] get(Integer eventType) {
+            Snapshot snapshot = this.snapshot;
+            int index = java.util.Arrays.binarySearch(snapshot.keys, eventType);
+            return index >= 0 ? snapshot.listeners[index] : null;
+        }
+
+        @Override
+        public synchronized void add(Integer eventType, EventListener<Integer> listener) {
+            this.put(eventType, append(this.get(eventType), listener));
+        }
+
+        @Override
+        public synchronized void remove(Integer eventType, EventListener<Integer> listener) {
+            EventListener<Integer>[] listeners = this.get(eventType);
+            if (listeners != null)
+                this.put(eventType, without(listeners, listener));
+        }
+
+        @Override
+        public synchronized void remove(EventListener<Integer> listener) {
+            Snapshot snapshot = this.snapshot;
+            for (int key : snapshot.keys)
+                this.remove(key, listener);
+        }
+
+        @Override
+        public synchronized void clear() {
+            this.snapshot = EMPTY;
+        }
+
+        /**
+         * listeners为null时移除这个key
+         */
+        private void put(int key, EventListener<Integer>[] listeners) {
+
+            Snapshot snapshot = this.snapshot;
+            int index = java.util.Arrays.binarySearch(snapshot.keys, key);
+            int size = snapshot.keys.length;
+            int[] keys;
+            EventListener<Integer>[][] values;
+
+            if (index >= 0) {
+                if (listeners != null) {
+                    values = snapshot.listeners.clone();
+                    values[index] = listeners;
+                    this.snapshot = new Snapshot(snapshot.keys, values);
+                    return;
+                }
+                keys = new int[size - 1];
+                values = newArray(EventListener[].class, size - 1);
+                System.arraycopy(snapshot.keys, 0, keys, 0, index);
+                System.arraycopy(snapshot.keys, index + 1, keys, index, size - index - 1);
+                System.arraycopy(snapshot.listeners, 0, values, 0, index);
+                System.arraycopy(snapshot.listeners, index + 1, values, index, size - index - 1);
+            } else {
+                if (listeners == null)
+                    return;
+                index = -index - 1;
+                keys = new int[size + 1];
+                values = newArray(EventListener[].class, size + 1);
+                System.arraycopy(snapshot.keys, 0, keys, 0, index);
+                System.arraycopy(snapshot.keys, index, keys, index + 1, size - index);
+                System.arraycopy(snapshot.listeners, 0, values, 0, index);
+                System.arraycopy(snapshot.listeners, index, values, index + 1, size - index);
+                keys[index] = key;
+                values[index] = listeners;
+            }
+
+            this.snapshot = new Snapshot(keys, values);
+        }
+
+        private static final class Snapshot {
+            final int[] keys;
+            final EventListener<Integer>[][] listeners;
+
+            Snapshot(int[] keys, EventListener<Integer>[][] listeners) {
+                this.keys = keys;
+                this.listeners = listeners;
+            }
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 一个网络的设备地址和组地址分配器
+ * <p>设备地址[{@link MeshUtils#DEVICE_ADDRESS_MIN}, {@link MeshUtils#DEVICE_ADDRESS_MAX}]和
+ * 组地址[{@link MeshUtils#GROUP_ADDRESS_MIN}, {@link MeshUtils#GROUP_ADDRESS_MAX}]各用一个256位的位图保存,
+ * 分配时最多查找4个long,用CAS设置,不加锁,多个连接同时分配不会拿到同一个地址.
+ * <p>从上次分配的地址之后开始找空位,到末尾后再从头开始,刚释放的地址尽量晚一些再用.
+ * <p>{@link #toBytes()}/{@link #fromBytes(byte[])}用于保存和恢复.
+ */
+public final class MeshAddressAllocator {
+
+    private static final int WORDS = 4;
+    // 每个范围序列化后的字节数
+    private static final int RANGE_BYTES = WORDS * 8;
+
+    private final Range devices = new Range(MeshUtils.DEVICE_ADDRESS_MIN, MeshUtils.DEVICE_ADDRESS_MAX);
+    private final Range groups = new Range(MeshUtils.GROUP_ADDRESS_MIN, MeshUtils.GROUP_ADDRESS_MAX);
+
+    /**
+     * 分配一个设备地址
+     *
+     * @return 没有空闲地址时返回-1
+     */
+    public int allocDeviceAddress() {
+        return this.devices.alloc();
+    }
+
+    /**
+     * 分配一个组地址
+     *
+     * @return 没有空闲地址时返回-1
+     */
+    public int allocGroupAddress() {
+        return this.groups.alloc();
+    }
+
+    /**
+     * 一次分配多个设备地址,同时更新多个设备前调用
+     *
+     * @return 空闲地址不够时不分配,返回null
+     */
+    public int[] allocDeviceAddresses(int count) {
+        return this.devices.alloc(count);
+    }
+
+    /**
+     * 一次分配多个组地址
+     *
+     * @return 空闲地址不够时不分配,返回null
+     */
+    public int[] allocGroupAddresses(int count) {
+        return this.groups.alloc(count);
+    }
+
+    /**
+     * 标记已经使用的地址,比如从已有的设备列表恢复
+     *
+     * @return 之前未使用时返回true,地址不在范围内或已经使用时返回false
+     */
+    public boolean reserve(int address) {
+        Range range = this.rangeOf(address);
+        return range != null && range.reserve(address - range.min);
+    }
+
+    /**
+     * 一次标记多个已经使用的地址,不在范围内的忽略
+     */
+    public void reserveAll(Iterable<Integer> addresses) {
+
+        long[] deviceBits = new long[WORDS];
+        long[] groupBits = new long[WORDS];
+
+        for (Integer address : addresses) {
+            if (address == null)
+                continue;
+            Range range = this.rangeOf(address);
+            if (range == null)
+                continue;
+            int index = address - range.min;
+            long[] bits = range == this.devices ? deviceBits : groupBits;
+            bits[index >>> 6] |= 1L << (index & 63);
+        }
+
+        this.devices.reserve(deviceBits);
+        this.groups.reserve(groupBits);
+    }
+
+    /**
+     * 释放地址,设备或组删除后调用
+     *
+     * @return 之前已经使用时返回true
+     */
+    public boolean release(int address) {
+        Range range = this.rangeOf(address);
+        return range != null && range.release(address - range.min);
+    }
+
+    public boolean isAllocated(int address) {
+        Range range = this.rangeOf(address);
+        return range != null && range.isSet(address - range.min);
+    }
+
+    public int getDeviceCount() {
+        return this.devices.count();
+    }
+
+    public int getGroupCount() {
+        return this.groups.count();
+    }
+
+    /**
+     * 释放全部地址
+     */
+    public void clear() {
+        this.devices.clear();
+        this.groups.clear();
+    }
+
+    /**
+     * 设备地址和组地址的位图,共64字节,第n位对应范围内第n个地址
+     */
+    public byte[] toBytes() {
+        byte[] data = new byte[RANGE_BYTES * 2];
+        this.devices.write(data, 0);
+        this.groups.write(data, RANGE_BYTES);
+        return data;
+    }
+
+    /**
+     * 从{@link #toBytes()}的结果恢复,下次从已使用的最大地址之后开始分配
+     */
+    public static MeshAddressAllocator fromBytes(byte[] data) {
+
+        if (data == null || data.length != RANGE_BYTES * 2)
+            throw new IllegalArgumentException("invalid allocator data");
+
+        MeshAddressAllocator allocator = new MeshAddressAllocator();
+        allocator.devices.read(data, 0);
+        allocator.groups.read(data, RANGE_BYTES);
+        return allocator;
+    }
+
+    private Range rangeOf(int address) {
+        if (address >= this.devices.min && address <= this.devices.max)
+            return this.devices;
+        if (address >= this.groups.min && address <= this.groups.max)
+            return this.groups;
+        return null;
+    }
+
+    private static final class Range {
+
+        final int min;
+        final int max;
+        final int size;
+        final AtomicLongArray bits = new AtomicLongArray(WORDS);
+        // 下一次开始查找的位置,只是提示,并发时不要求准确
+        final AtomicInteger cursor = new AtomicInteger();
+
+        Range(int min, int max) {
+            this.min = min;
+            this.max = max;
+            this.size = max - min + 1;
+        }
+
+        int alloc() {
+
+            int start = this.cursor.get();
+            if (start >= this.size)
+                start = 0;
+
+            int word = start >>> 6;
+            // 先找start之后,再从头找到start之前
+            int index = this.claim(word, this.mask(word) & (-1L << (start & 63)));
+
+            for (int i = 1; index == -1 && i <= WORDS; i++) {
+                int w = (word + i) % WORDS;
+                long mask = this.mask(w);
+                if (i == WORDS)
+                    mask &= ~(-1L << (start & 63));
+                index = this.claim(w, mask);
+            }
+
+            if (index == -1)
+                return -1;
+
+            this.cursor.set(index + 1);
+            return this.min + index;
+        }
+
+        int[] alloc(int count) {
+
+            int[] result = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                result[i] = this.alloc();
+                if (result[i] == -1) {
+                    for (int j = 0; j < i; j++)
+                        this.release(result[j] - this.min);
+                    return null;
+                }
+            }
+
+            return result;
+        }
+
+        boolean reserve(int index) {
+
+            long bit = 1L << (index & 63);
+            int word = index >>> 6;
+            long value;
+
+            do {
+                value = this.bits.get(word);
+                if ((value & bit) != 0)
+                    return false;
+            } while (!this.bits.compareAndSet(word, value, value | bit));
+
+            this.advance(index + 1);
+            return true;
+        }
+
+        void reserve(long[] words) {
+
+            int last = -1;
+
+            for (int i = 0; i < WORDS; i++) {
+
+                long bits = words[i];
+                if (bits == 0)
+                    continue;
+
+                long value;
+                do {
+                    value = this.bits.get(i);
+                } while (!this.bits.compareAndSet(i, value, value | bits));
+
+                last = i * 64 + 63 - Long.numberOfLeadingZeros(bits);
+            }
+
+            this.advance(last + 1);
+        }
+
+        boolean release(int index) {
+
+            long bit = 1L << (index & 63);
+            int word = index >>> 6;
+            long value;
+
+            do {
+                value = this.bits.get(word);
+                if ((value & bit) == 0)
+                    return false;
+            } while (!this.bits.compareAndSet(word, value, value & ~bit));
+
+            return true;
+        }
+
+        boolean isSet(int index) {
+            return (this.bits.get(index >>> 6) & (1L << (index & 63))) != 0;
+        }
+
+        int count() {
+            int count = 0;
+            for (int i = 0; i < WORDS; i++)
+                count += Long.bitCount(this.bits.get(i));
+            return count;
+        }
+
+        void clear() {
+            for (int i = 0; i < WORDS; i++)
+                this.bits.set(i, 0);
+            this.cursor.set(0);
+        }
+
+        void write(byte[] data, int offset) {
+            for (int i = 0; i < WORDS; i++) {
+                long value = this.bits.get(i);
+                for (int j = 0; j < 8; j++)
+                    data[offset + i * 8 + j] = (byte) (value >>> (j * 8));
+            }
+        }
+
+        void read(byte[] data, int offset) {
+
+            int last = -1;
+
+            for (int i = 0; i < WORDS; i++) {
+                long value = 0;
+                for (int j = 7; j >= 0; j--)
+                    value = (value << 8) | (data[offset + i * 8 + j] & 0xFF);
+                value &= this.mask(i);
+                this.bits.set(i, value);
+                if (value != 0)
+                    last = i * 64 + 63 - Long.numberOfLeadingZeros(value);
+            }
+
+            this.cursor.set(last + 1);
+        }
+
+        /**
+         * 在一个long中取最低的空闲位
+         *
+         * @return 位置,没有空闲位时返回-1
+         */
+        private int claim(int word, long mask) {
+
+            for (; ; ) {
+                long value = this.bits.get(word);
+                long free = ~value & mask;
+                if (free == 0)
+                    return -1;
+                long bit = free & -free;
+                if (this.bits.compareAndSet(word, value, value | bit))
+                    return (word << 6) + Long.numberOfTrailingZeros(bit);
+            }
+        }
+
+        private void advance(int next) {
+            int value;
+            do {
+                value = this.cursor.get();
+                if (value >= next)
+                    return;
+            } while (!this.cursor.compareAndSet(value, next));
+        }
+
+        /**
+         * 范围内的有效位
+         */
+        private long mask(int word) {
+            int bits = this.size - (word << 6);
+            if (bits >= 64)
+                return -1L;
+            if (bits <= 0)
+                return 0;
+            return (1L << bits) - 1;
+        }
+    }
+}
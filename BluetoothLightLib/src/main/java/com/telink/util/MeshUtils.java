@@ -5,8 +5,6 @@
 package com.telink.util;
 
 import java.security.SecureRandom;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 public final class MeshUtils {
@@ -18,16 +16,59 @@ public final class MeshUtils {
 
     public static final String CHARS = "123456789aAbBcCdDeEfFgGhHiIjJkKlLmMnNoOpPqQrRsStTuUvVwWxXyYzZ+-*/<>/?!@#$%^&;'[]{}|,.";
 
-    private static final MeshAddressComparator MESH_ADDRESS_COMPARATOR = new MeshAddressComparator();
-
-    private static int GroupAddress = GROUP_ADDRESS_MIN;
-    private static int DeviceAddress = DEVICE_ADDRESS_MIN;
-
     private static SecureRandom rng;
 
     private MeshUtils() {
     }
 
+    /**
+     * "AA:BB:CC:DD:EE:FF"格式的MAC地址转换成48位的long,不分配对象
+     *
+     * @return 格式不正确时返回-1
+     */
+    public static long macToLong(String mac) {
+
+        if (mac == null || mac.length() != 17)
+            return -1;
+
+        long result = 0;
+
+        for (int i = 0; i < 17; i++) {
+
+            char c = mac.charAt(i);
+
+            if (i % 3 == 2) {
+                if (c != ':')
+                    return -1;
+                continue;
+            }
+
+            int digit = Character.digit(c, 16);
+
+            if (digit < 0)
+                return -1;
+
+            result = (result << 4) | digit;
+        }
+
+        return result;
+    }
+
+    public static String longToMac(long mac) {
+
+        StringBuilder sb = new StringBuilder(17);
+
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int value = (int) (mac >>> shift) & 0xFF;
+            sb.append(Character.toUpperCase(Character.forDigit(value >>> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(value & 0x0F, 16)));
+            if (shift > 0)
+                sb.append(':');
+        }
+
+        return sb.toString();
+    }
+
     public static byte[] generateRandom(int length) {
 
         byte[] data = new byte[length];
@@ -58,136 +99,66 @@ public final class MeshUtils {
         return data;
     }
 
-    synchronized public static int allocGroupAddress(List<Integer> allocAddress) {
-
-        if (allocAddress == null || allocAddress.isEmpty()) {
-
-            GroupAddress = GROUP_ADDRESS_MIN;
-
-            if ((GroupAddress + 1) > GROUP_ADDRESS_MAX)
-                return -1;
-
-            return GroupAddress++;
-        }
-
-        int count = allocAddress.size();
-
-        if (count > (GROUP_ADDRESS_MAX - GROUP_ADDRESS_MIN))
-            return -1;
-
-        Collections.sort(allocAddress, MESH_ADDRESS_COMPARATOR);
-
-        Integer last = allocAddress.get(count - 1);
-
-        if ((last + 1) <= GROUP_ADDRESS_MAX)
-            return last + 1;
-
-        Integer prev = null;
-        Integer next;
-
-        int i = 0;
-
-        while (i < count) {
-
-            if (prev == null) {
-                prev = allocAddress.get(i);
-                i = 1;
-                continue;
-            }
-
-            next = allocAddress.get(i);
-
-            if ((prev + 1) != next && prev != GROUP_ADDRESS_MAX) {
-                return prev + 1;
-            }
-
-            if ((i + 1) >= count) {
-
-                if (next >= GROUP_ADDRESS_MAX) {
-                    GroupAddress = GROUP_ADDRESS_MIN;
-                    return GroupAddress++;
-                } else {
-                    return next + 1;
-                }
-            }
-
-            prev = next;
-            i++;
-        }
-
-        return -1;
+    /**
+     * 在已使用的地址中分配新的组地址,新代码直接用{@link MeshAddressAllocator}
+     * <p>结果和原来的实现相同: 最大地址之后还有空位时返回最大地址+1,否则返回最小已用地址之上的第一个空位,
+     * 都没有时返回{@link #GROUP_ADDRESS_MIN};与MeshAddressAllocator的查找顺序不同.
+     * 不再对传入的列表排序.
+     *
+     * @return 没有空闲地址时返回-1
+     */
+    @Deprecated
+    public static int allocGroupAddress(List<Integer> allocAddress) {
+        return allocAddress(allocAddress, GROUP_ADDRESS_MIN, GROUP_ADDRESS_MAX);
     }
 
-    synchronized public static int allocDeviceAddress(List<Integer> allocAddress) {
-
-        if (allocAddress == null || allocAddress.isEmpty()) {
+    /**
+     * 在已使用的地址中分配新的设备地址,新代码直接用{@link MeshAddressAllocator}
+     * <p>结果和原来的实现相同,见{@link #allocGroupAddress(List)}.
+     *
+     * @return 没有空闲地址时返回-1
+     */
+    @Deprecated
+    public static int allocDeviceAddress(List<Integer> allocAddress) {
+        return allocAddress(allocAddress, DEVICE_ADDRESS_MIN, DEVICE_ADDRESS_MAX);
+    }
 
-            DeviceAddress = DEVICE_ADDRESS_MIN;
+    private static int allocAddress(List<Integer> allocAddress, int min, int max) {
 
-            if ((DeviceAddress + 1) > DEVICE_ADDRESS_MAX)
-                return -1;
-
-            return DeviceAddress++;
-        }
+        if (allocAddress == null || allocAddress.isEmpty())
+            return min;
 
         int count = allocAddress.size();
 
-        if (count > (DEVICE_ADDRESS_MAX - DEVICE_ADDRESS_MIN))
+        if (count > (max - min))
             return -1;
 
-        Collections.sort(allocAddress, MESH_ADDRESS_COMPARATOR);
+        // 复制到int数组排序,不装箱
+        int[] addresses = new int[count];
+        for (int i = 0; i < count; i++)
+            addresses[i] = allocAddress.get(i);
+        java.util.Arrays.sort(addresses);
 
-        Integer last = allocAddress.get(count - 1);
+        int last = addresses[count - 1];
 
-        if ((last + 1) <= DEVICE_ADDRESS_MAX)
+        if ((last + 1) <= max)
             return last + 1;
 
-        Integer prev = null;
-        Integer next;
+        int prev = addresses[0];
 
-        int i = 0;
-
-        while (i < count) {
-
-            if (prev == null) {
-                prev = allocAddress.get(i);
-                i = 1;
-                continue;
-            }
+        for (int i = 1; i < count; i++) {
 
-            next = allocAddress.get(i);
+            int next = addresses[i];
 
-            if ((prev + 1) != next && prev != DEVICE_ADDRESS_MAX) {
+            if ((prev + 1) != next && prev != max)
                 return prev + 1;
-            }
-
-            if ((i + 1) >= count) {
 
-                if (next >= DEVICE_ADDRESS_MAX) {
-                    DeviceAddress = DEVICE_ADDRESS_MIN;
-                    return DeviceAddress++;
-                } else {
-                    return next + 1;
-                }
-            }
+            if ((i + 1) >= count)
+                return next >= max ? min : next + 1;
 
             prev = next;
-            i++;
         }
 
         return -1;
     }
-
-    private static class MeshAddressComparator implements Comparator<Integer> {
-
-        @Override
-        public int compare(Integer lhs, Integer rhs) {
-
-            if (lhs > rhs)
-                return 1;
-            if (lhs < rhs)
-                return -1;
-            return 0;
-        }
-    }
 }
@@ -0,0 +1,182 @@
+package com.telink.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 控制命令从Peripheral.sendCommand入队到写回调出队的开销,配合-prof gc查看每个命令的分配
+ * <p>合并键和LightController一样是(1 << 24) | (opcode << 16) | address,不在Integer的缓存范围内.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandQueueBenchmark {
+
+    private static final UUID SERVICE_UUID = UUID.fromString("00010203-0405-0607-0809-0a0b0c0d1910");
+    private static final UUID COMMAND_UUID = UUID.fromString("00010203-0405-0607-0809-0a0b0c0d1912");
+    private static final int ADDRESSES = 16;
+
+    private final CommandQueue queue = new CommandQueue();
+    private final Command.Callback callback = new Command.Callback() {
+        @Override
+        public void success(Peripheral peripheral, Command command, Object obj) {
+        }
+
+        @Override
+        public void error(Peripheral peripheral, Command command, String errorMsg) {
+        }
+
+        @Override
+        public boolean timeout(Peripheral peripheral, Command command) {
+            return false;
+        }
+    };
+
+    private Peripheral peripheral;
+    private int address;
+
+    @Setup
+    public void setup() {
+        TelinkLog.allowD = false;
+
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("A4:C1:38:00:00:01");
+        this.peripheral = new Peripheral(device, null, -50);
+        this.peripheral.setTransportFactory(new InlineTransport());
+        // shim的Handler每次post都会分配,Android上的Message从池中取,这里不计超时只看库本身的分配
+        this.peripheral.commandTimeoutMill = 0;
+        this.peripheral.connect(null);
+        this.peripheral.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+    }
+
+    private Command obtain() {
+        this.address = (this.address + 1) % ADDRESSES;
+        Command command = Command.obtain();
+        if (command.data == null)
+            command.data = new byte[20];
+        command.serviceUUID = SERVICE_UUID;
+        command.characteristicUUID = COMMAND_UUID;
+        command.type = Command.CommandType.WRITE_NO_RESPONSE;
+        command.coalesceKey = (1 << 24) | (0xD2 << 16) | (this.address + 0x100);
+        return command;
+    }
+
+    /**
+     * 队列本身: 带合并键入队,取出,回收
+     */
+    @Benchmark
+    public CommandContext queue() {
+        CommandContext commandContext = CommandContext.obtain(this.callback, this.obtain());
+        this.queue.add(commandContext);
+        CommandContext head = this.queue.peek();
+        this.queue.remove(head);
+        head.recycle(head.command);
+        return head;
+    }
+
+    /**
+     * 队列中已有同一个目标的命令时直接替换
+     */
+    @Benchmark
+    public boolean coalesce() {
+        Command first = this.obtain();
+        Command second = this.obtain();
+        second.coalesceKey = first.coalesceKey;
+        return this.queue.add(CommandContext.obtain(this.callback, first))
+                | this.queue.add(CommandContext.obtain(this.callback, second));
+    }
+
+    /**
+     * 整个Peripheral: 入队,写入,写回调,出队,回收
+     */
+    @Benchmark
+    public boolean peripheral() {
+        return this.peripheral.sendCommand(this.callback, this.obtain());
+    }
+
+    /**
+     * 写入时立即在调用线程上回调成功
+     */
+    private static final class InlineTransport implements GattTransport, GattTransport.Factory {
+
+        private final BluetoothGattService service = new BluetoothGattService(SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        private BluetoothGattCallback callback;
+
+        InlineTransport() {
+            this.service.addCharacteristic(new BluetoothGattCharacteristic(COMMAND_UUID,
+                    BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, 0));
+        }
+
+        @Override
+        public GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<BluetoothGattService> getServices() {
+            return Collections.singletonList(this.service);
+        }
+
+        @Override
+        public BluetoothGattService getService(UUID serviceUUID) {
+            return this.service;
+        }
+
+        @Override
+        public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+            return false;
+        }
+
+        @Override
+        public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+            this.callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+            return true;
+        }
+
+        @Override
+        public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return false;
+        }
+
+        @Override
+        public boolean requestConnectionPriority(int connectionPriority) {
+            return false;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
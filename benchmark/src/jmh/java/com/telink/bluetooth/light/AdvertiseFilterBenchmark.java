@@ -0,0 +1,69 @@
+package com.telink.bluetooth.light;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.telink.bluetooth.TelinkLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 扫描时每个广播包都要经过的过滤
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AdvertiseFilterBenchmark {
+
+    /**
+     * mesh: 本厂商的灯, foreign: 其它厂商的设备
+     */
+    @Param({"mesh", "foreign"})
+    public String record;
+
+    private final DefaultAdvertiseDataFilter filter = DefaultAdvertiseDataFilter.create();
+    private final BluetoothDevice device = new BluetoothDevice("A4:C1:38:01:02:03", "telink_mesh1");
+    private byte[] scanRecord;
+
+    static byte[] scanRecord(int vendorId) {
+        return new byte[]{
+                // flags
+                0x02, 0x01, 0x06,
+                // complete local name "telink_mesh1"
+                0x0D, 0x09, 't', 'e', 'l', 'i', 'n', 'k', '_', 'm', 'e', 's', 'h', '1',
+                // manufacturer data
+                0x05, (byte) 0xFF, (byte) (vendorId >> 8), (byte) vendorId, 0x01, 0x00,
+                // mesh uuid(2) + reserved(4) + product uuid(2) + status(1) + mesh address(2)
+                0x0E, (byte) 0xFF, (byte) (vendorId >> 8), (byte) vendorId,
+                0x11, 0x02, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x01, 0x05, 0x00,
+                0x00
+        };
+    }
+
+    @Setup
+    public void setup() {
+        TelinkLog.allowD = false;
+        this.scanRecord = scanRecord("mesh".equals(this.record) ? Manufacture.getDefault().getVendorId() : 0x004C);
+    }
+
+    @Benchmark
+    public LightPeripheral filter() {
+        return this.filter.filter(this.device, -60, this.scanRecord);
+    }
+
+    /**
+     * 只做第一步解析,不创建LightPeripheral
+     */
+    @Benchmark
+    public boolean parse() {
+        return AdvertiseData.obtain().parse(this.scanRecord);
+    }
+}
@@ -0,0 +1,62 @@
+package com.telink.bluetooth.light;
+
+import com.telink.bluetooth.TelinkLog;
+import com.telink.crypto.SessionCrypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link LightController}发送命令时的组帧和加密
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommandEncodeBenchmark {
+
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final byte[] frame = new byte[CommandEncoder.FRAME_LENGTH];
+    private final byte[] params = new byte[]{0x01, 0x00, 0x00};
+    private final byte[] macAddress = new byte[]{0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+    private SessionCrypto crypto;
+    private int sn;
+
+    @Setup
+    public void setup() {
+        TelinkLog.allowD = false;
+        byte[] sessionKey = new byte[16];
+        new Random(1).nextBytes(sessionKey);
+        this.crypto = new SessionCrypto(sessionKey);
+    }
+
+    @Benchmark
+    public byte[] writeFrame() {
+        CommandEncoder.writeFrame(this.frame, ++this.sn, 0xFFFF, Opcode.BLE_GATT_OP_CTRL_D0.getValue(), 0x1102, this.params);
+        return this.frame;
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        this.encoder.encode(this.crypto, this.macAddress, this.frame, ++this.sn, 0xFFFF,
+                Opcode.BLE_GATT_OP_CTRL_D0.getValue(), 0x1102, this.params);
+        return this.frame;
+    }
+
+    /**
+     * 复制结果的加密接口,用来对比原地加密
+     */
+    @Benchmark
+    public byte[] encodeCopy() {
+        int sn = ++this.sn;
+        CommandEncoder.writeFrame(this.frame, sn, 0xFFFF, Opcode.BLE_GATT_OP_CTRL_D0.getValue(), 0x1102, this.params);
+        return this.crypto.encryptCommand(this.encoder.nonce(this.macAddress, sn), this.frame);
+    }
+}
@@ -0,0 +1,51 @@
+package com.telink.bluetooth.light;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 扫描回调里每个广播包都要做的重复设备检查
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LightPeripheralsBenchmark {
+
+    @Param({"255"})
+    public int size;
+
+    private final LightPeripherals lights = new LightPeripherals();
+    private String last;
+    private String missing;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < this.size; i++) {
+            String mac = String.format("A4:C1:38:00:%02X:%02X", i >> 8, i & 0xFF);
+            BluetoothDevice device = new BluetoothDevice(mac, "telink_mesh1");
+            this.lights.put(new LightPeripheral(device, null, -60, null, i));
+            this.last = mac;
+        }
+        this.missing = "A4:C1:38:FF:FF:FF";
+    }
+
+    @Benchmark
+    public boolean containsLast() {
+        return this.lights.contains(this.last);
+    }
+
+    @Benchmark
+    public boolean containsMissing() {
+        return this.lights.contains(this.missing);
+    }
+}
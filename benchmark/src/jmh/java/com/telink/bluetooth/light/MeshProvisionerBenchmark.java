@@ -0,0 +1,113 @@
+package com.telink.bluetooth.light;
+
+import com.telink.bluetooth.Peripheral;
+import com.telink.bluetooth.TelinkLog;
+import com.telink.bluetooth.sim.VirtualLight;
+import com.telink.bluetooth.sim.VirtualMesh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在{@link VirtualMesh}上更新整个网络的网络名,密码和LTK,比较同时连接数
+ * <p>每次调用都重新创建出厂状态的网络.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MeshProvisionerBenchmark {
+
+    private static final int TIMEOUT = 60;
+
+    @Param({"32"})
+    public int nodes;
+
+    @Param({"2"})
+    public int latency;
+
+    @Param({"1", "4"})
+    public int concurrency;
+
+    private VirtualMesh mesh;
+    private LightPeripheral[] lights;
+    private MeshProvisioner provisioner;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        TelinkLog.allowD = false;
+        this.provisioner = new MeshProvisioner(null, this.concurrency);
+        this.provisioner.setParameters(LeUpdateParameters.create()
+                .setOldPassword("123")
+                .setNewMeshName("telink_mesh2")
+                .setNewPassword("456"));
+    }
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        this.mesh = new VirtualMesh("telink_mesh1", "123").setLatency(this.latency).setSeed(1);
+        List<VirtualLight> nodes = this.mesh.addNodes(this.nodes);
+        Peripheral.setDefaultTransportFactory(this.mesh);
+
+        int vendorId = Manufacture.getDefault().getVendorId();
+        this.lights = new LightPeripheral[nodes.size()];
+        for (int i = 0; i < this.lights.length; i++) {
+            LightPeripheral light = nodes.get(i).createPeripheral(vendorId);
+            // 只更新网络名和密码,不改地址
+            light.setNewMeshAddress(light.getMeshAddress());
+            this.lights[i] = light;
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        this.provisioner.cancel();
+        this.mesh.shutdown();
+        Peripheral.setDefaultTransportFactory(null);
+    }
+
+    @Benchmark
+    public int provision() throws InterruptedException {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] result = new int[1];
+
+        this.provisioner.start(this.lights, new MeshProvisioner.Callback() {
+            @Override
+            public void onConnecting(LightController controller, LightPeripheral light) {
+            }
+
+            @Override
+            public void onUpdating(LightController controller, LightPeripheral light) {
+            }
+
+            @Override
+            public void onResult(LightController controller, MeshProvisioner.Result result, int completed, int total) {
+            }
+
+            @Override
+            public void onCompleted(int succeeded, int total) {
+                result[0] = succeeded;
+                latch.countDown();
+            }
+        });
+
+        if (!latch.await(TIMEOUT, TimeUnit.SECONDS))
+            throw new IllegalStateException("provision timeout");
+        if (result[0] != this.lights.length)
+            throw new IllegalStateException("provisioned " + result[0] + "/" + this.lights.length);
+
+        return result[0];
+    }
+}
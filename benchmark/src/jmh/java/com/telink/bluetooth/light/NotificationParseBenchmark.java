@@ -0,0 +1,36 @@
+package com.telink.bluetooth.light;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * online status通知的解析,每个通知包含两个设备的状态
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NotificationParseBenchmark {
+
+    private final OnlineStatusNotificationParser parser = OnlineStatusNotificationParser.create();
+    private final NotificationInfo notifyInfo = new NotificationInfo();
+
+    @Setup
+    public void setup() {
+        this.notifyInfo.opcode = Opcode.BLE_GATT_OP_CTRL_DC.getValue() & 0xFF;
+        this.notifyInfo.src = 0x0001;
+        this.notifyInfo.params = new byte[]{0x01, 0x01, 0x64, 0x00, 0x02, 0x01, 0x00, 0x00, 0x00, 0x00};
+    }
+
+    @Benchmark
+    public List<OnlineStatusNotificationParser.DeviceNotificationInfo> parse() {
+        return this.parser.parse(this.notifyInfo);
+    }
+}
@@ -0,0 +1,54 @@
+package com.telink.bluetooth.light;
+
+import com.telink.bluetooth.TelinkLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OTA分包和crc16
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OtaPacketBenchmark {
+
+    @Param({"65536"})
+    public int firmwareSize;
+
+    private final OtaPacketParser parser = new OtaPacketParser();
+    private final byte[] packet = new byte[20];
+    private int packetCount;
+    private int index;
+
+    @Setup
+    public void setup() {
+        TelinkLog.allowD = false;
+        byte[] firmware = new byte[this.firmwareSize];
+        new Random(1).nextBytes(firmware);
+        this.parser.set(firmware);
+        this.packetCount = (this.firmwareSize + 15) / 16;
+        new Random(2).nextBytes(this.packet);
+    }
+
+    @Benchmark
+    public byte[] getPacket() {
+        if (++this.index == this.packetCount)
+            this.index = 0;
+        return this.parser.getPacket(this.index);
+    }
+
+    @Benchmark
+    public int crc16() {
+        return this.parser.crc16(this.packet);
+    }
+}
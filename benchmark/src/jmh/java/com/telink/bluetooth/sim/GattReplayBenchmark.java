@@ -0,0 +1,124 @@
+package com.telink.bluetooth.sim;
+
+import com.telink.bluetooth.GattCapture;
+import com.telink.bluetooth.Peripheral;
+import com.telink.bluetooth.TelinkLog;
+import com.telink.bluetooth.light.GattReplay;
+import com.telink.bluetooth.light.LightController;
+import com.telink.bluetooth.light.Manufacture;
+import com.telink.bluetooth.light.NotificationParser;
+import com.telink.bluetooth.light.OnlineStatusNotificationParser;
+import com.telink.util.Event;
+import com.telink.util.EventListener;
+import com.telink.util.Strings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 先在{@link VirtualMesh}上抓一次完整的在线状态上报,再离线回放
+ * <p>replay经过LightController的命令匹配和事件分发,parse只跑NotificationParser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GattReplayBenchmark {
+
+    private static final String MESH_NAME = "telink_mesh1";
+    private static final String PASSWORD = "123";
+    private static final int TIMEOUT = 10;
+
+    @Param({"250"})
+    public int nodes;
+
+    private GattReplay replay;
+    private LightController controller;
+
+    @Setup
+    public void setup() throws Exception {
+        TelinkLog.allowD = false;
+        NotificationParser.register(OnlineStatusNotificationParser.create());
+
+        File file = File.createTempFile("gatt", ".cap");
+        file.deleteOnExit();
+        GattCapture capture = new GattCapture(file, 0);
+
+        VirtualMesh mesh = new VirtualMesh(MESH_NAME, PASSWORD).setSeed(1);
+        mesh.addNodes(this.nodes);
+        Peripheral.setDefaultTransportFactory(mesh);
+        Peripheral.setCapture(capture);
+
+        LightController controller = new LightController();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch login = new CountDownLatch(1);
+        final CountDownLatch status = new CountDownLatch((this.nodes + 1) / 2);
+
+        controller.addEventListener(LightController.LightEvent.CONNECT_SUCCESS, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                connected.countDown();
+            }
+        });
+        controller.addEventListener(LightController.LightEvent.LOGIN_SUCCESS, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                login.countDown();
+            }
+        });
+        controller.addEventListener(LightController.LightEvent.NOTIFICATION_RECEIVE, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                status.countDown();
+            }
+        });
+
+        try {
+            controller.connect(null, mesh.getNode(1).createPeripheral(Manufacture.getDefault().getVendorId()));
+            if (!connected.await(TIMEOUT, TimeUnit.SECONDS))
+                throw new IllegalStateException("connect timeout");
+            controller.login(Strings.stringToBytes(MESH_NAME, 16), Strings.stringToBytes(PASSWORD, 16));
+            if (!login.await(TIMEOUT, TimeUnit.SECONDS))
+                throw new IllegalStateException("login timeout");
+            controller.enableNotification();
+            controller.updateNotification();
+            if (!status.await(TIMEOUT, TimeUnit.SECONDS))
+                throw new IllegalStateException("status timeout");
+        } finally {
+            Peripheral.setCapture(null);
+            capture.close();
+            controller.disconnect();
+            controller.removeEventListeners();
+            mesh.shutdown();
+            Peripheral.setDefaultTransportFactory(null);
+        }
+
+        this.replay = GattReplay.load(file);
+        this.controller = new LightController();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.controller.removeEventListeners();
+    }
+
+    @Benchmark
+    public int replay() throws InterruptedException {
+        return this.replay.replay(this.controller);
+    }
+
+    @Benchmark
+    public int parse() {
+        return this.replay.parse();
+    }
+}
@@ -0,0 +1,137 @@
+package com.telink.bluetooth.sim;
+
+import com.telink.bluetooth.Peripheral;
+import com.telink.bluetooth.TelinkLog;
+import com.telink.bluetooth.light.CommandFuture;
+import com.telink.bluetooth.light.LightController;
+import com.telink.bluetooth.light.Manufacture;
+import com.telink.util.Event;
+import com.telink.util.EventListener;
+import com.telink.util.Strings;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 通过{@link VirtualMesh}测量LightController -> Peripheral -> GattTransport整个链路
+ * <p>控制命令的写入往返,状态查询的请求/响应,以及整个mesh的0xDC在线状态上报.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MeshSimulationBenchmark {
+
+    private static final String MESH_NAME = "telink_mesh1";
+    private static final String PASSWORD = "123";
+    private static final int TIMEOUT = 10;
+
+    @Param({"100", "250"})
+    public int nodes;
+
+    @Param({"0", "2"})
+    public int latency;
+
+    private VirtualMesh mesh;
+    private LightController controller;
+    private int target;
+    private volatile CountDownLatch statusLatch;
+    private final byte[] params = new byte[]{0x32};
+
+    @Setup
+    public void setup() throws Exception {
+        TelinkLog.allowD = false;
+
+        this.mesh = new VirtualMesh(MESH_NAME, PASSWORD).setLatency(this.latency).setSeed(1);
+        this.mesh.addNodes(this.nodes);
+        Peripheral.setDefaultTransportFactory(this.mesh);
+
+        this.controller = new LightController();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch login = new CountDownLatch(1);
+
+        this.controller.addEventListener(LightController.LightEvent.CONNECT_SUCCESS, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                connected.countDown();
+            }
+        });
+        this.controller.addEventListener(LightController.LightEvent.LOGIN_SUCCESS, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                login.countDown();
+            }
+        });
+        this.controller.addEventListener(LightController.LightEvent.NOTIFICATION_RECEIVE, new EventListener<Integer>() {
+            @Override
+            public void performed(Event<Integer> event) {
+                byte[] data = (byte[]) ((LightController.LightEvent) event).getArgs();
+                CountDownLatch latch = statusLatch;
+                if (latch != null && (data[7] & 0xFF) == 0xDC)
+                    latch.countDown();
+            }
+        });
+
+        VirtualLight direct = this.mesh.getNode(1);
+        this.target = this.nodes;
+
+        this.controller.connect(null, direct.createPeripheral(Manufacture.getDefault().getVendorId()));
+        if (!connected.await(TIMEOUT, TimeUnit.SECONDS))
+            throw new IllegalStateException("connect timeout");
+
+        this.controller.login(Strings.stringToBytes(MESH_NAME, 16), Strings.stringToBytes(PASSWORD, 16));
+        if (!login.await(TIMEOUT, TimeUnit.SECONDS))
+            throw new IllegalStateException("login timeout");
+
+        this.controller.enableNotification();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.controller.disconnect();
+        this.controller.removeEventListeners();
+        this.mesh.shutdown();
+        Peripheral.setDefaultTransportFactory(null);
+    }
+
+    /**
+     * 发给最远的灯的亮度命令,写入完成即返回
+     */
+    @Benchmark
+    public byte[] command() throws Exception {
+        CommandFuture future = this.controller.sendCommandAsync((byte) 0xD2, this.target, this.params, false, 0);
+        return future.get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 0xDA状态查询,等待0xDB响应
+     */
+    @Benchmark
+    public byte[] statusQuery() throws Exception {
+        CommandFuture future = this.controller.sendCommandAsync((byte) 0xDA, this.target, null, false, 0,
+                0xDB, TIMEOUT * 1000);
+        return future.get(TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 整个mesh的在线状态,每个0xDC包两个灯
+     */
+    @Benchmark
+    public boolean onlineStatus() throws Exception {
+        CountDownLatch latch = new CountDownLatch((this.nodes + 1) / 2);
+        this.statusLatch = latch;
+        this.controller.updateNotification();
+        boolean completed = latch.await(TIMEOUT, TimeUnit.SECONDS);
+        this.statusLatch = null;
+        return completed;
+    }
+}
@@ -0,0 +1,65 @@
+package com.telink.util;
+
+import com.telink.bluetooth.TelinkLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 事件分发
+ * <p>使用{@link Event.ThreadMode#Default},shim的Handler在当前线程执行,测量的是入队,查找监听和回调的开销.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EventBusBenchmark {
+
+    private static final Integer EVENT_TYPE = 1;
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    @Param({"map", "int"})
+    public String registry;
+
+    private EventBus<Integer> eventBus;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        TelinkLog.allowD = false;
+        this.blackhole = blackhole;
+        this.eventBus = "int".equals(this.registry) ? new IntEventBus() : new EventBus<Integer>();
+        for (int i = 0; i < this.listeners; i++) {
+            this.eventBus.addEventListener(EVENT_TYPE, new EventListener<Integer>() {
+                @Override
+                public void performed(Event<Integer> event) {
+                    blackhole.consume(event);
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public void dispatchEvent() {
+        this.eventBus.dispatchEvent(new Event<>(this, EVENT_TYPE));
+    }
+
+    /**
+     * 与LightController相同的int注册表
+     */
+    private static final class IntEventBus extends EventBus<Integer> {
+        IntEventBus() {
+            super(ListenerRegistry.newIntRegistry());
+        }
+    }
+}
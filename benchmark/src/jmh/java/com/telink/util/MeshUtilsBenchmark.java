@@ -0,0 +1,57 @@
+package com.telink.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分配设备地址
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MeshUtilsBenchmark {
+
+    /**
+     * 已分配的地址数
+     */
+    @Param({"16", "128", "254"})
+    public int allocated;
+
+    private final List<Integer> addresses = new ArrayList<>();
+    private final MeshAddressAllocator allocator = new MeshAddressAllocator();
+
+    @Setup
+    public void setup() {
+        // 倒序并留一个空位,走排序和查找空位的路径
+        for (int address = MeshUtils.DEVICE_ADDRESS_MAX; this.addresses.size() < this.allocated; address--) {
+            if (address != MeshUtils.DEVICE_ADDRESS_MAX - 1)
+                this.addresses.add(address);
+        }
+        this.allocator.reserveAll(this.addresses);
+    }
+
+    @Benchmark
+    public int allocDeviceAddress() {
+        return MeshUtils.allocDeviceAddress(this.addresses);
+    }
+
+    /**
+     * 分配后释放,保持已分配的数量不变
+     */
+    @Benchmark
+    public int allocator() {
+        int address = this.allocator.allocDeviceAddress();
+        this.allocator.release(address);
+        return address;
+    }
+}
@@ -0,0 +1,716 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.sim;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import com.telink.bluetooth.GattTransport;
+import com.telink.bluetooth.light.Manufacture;
+import com.telink.bluetooth.light.UuidInformation;
+import com.telink.crypto.CommandCipher;
+import com.telink.util.Arrays;
+import com.telink.util.Strings;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 到一个模拟灯的GATT连接
+ * <p>和Android一样同一时间只能有一个读写操作,前一个操作回调之前再读写返回false.
+ * 请求在调用线程上复制数据,在mesh的回调线程上处理并回调.
+ */
+final class VirtualGatt implements GattTransport {
+
+    private static final int PROPERTIES = BluetoothGattCharacteristic.PROPERTY_READ
+            | BluetoothGattCharacteristic.PROPERTY_WRITE
+            | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE
+            | BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+
+    private static final int PACKET_LENGTH = 20;
+
+    private final VirtualMesh mesh;
+    private final VirtualLight light;
+    private final BluetoothGattCallback callback;
+    private final int vendorId;
+
+    private final List<BluetoothGattService> services = new ArrayList<>(2);
+    private final UUID pairUUID;
+    private final UUID commandUUID;
+    private final UUID notifyUUID;
+    private final UUID otaUUID;
+    private final BluetoothGattCharacteristic notifyCharacteristic;
+
+    // 以下只在mesh的回调线程上访问
+    private CommandCipher sessionCipher;
+    private byte[] sessionKey;
+    private byte[] pairValue = new byte[]{0x0E};
+    private byte[] newMeshName;
+    private byte[] newPassword;
+    private int notifySequence;
+
+    private boolean busy;
+    private boolean connected;
+    private boolean closed;
+    private volatile boolean notificationEnabled;
+
+    VirtualGatt(VirtualMesh mesh, VirtualLight light, BluetoothGattCallback callback) {
+        this.mesh = mesh;
+        this.light = light;
+        this.callback = callback;
+
+        Manufacture manufacture = Manufacture.getDefault();
+        this.vendorId = manufacture.getVendorId();
+        this.pairUUID = manufacture.getUUID(Manufacture.UUIDType.PAIR);
+        this.commandUUID = manufacture.getUUID(Manufacture.UUIDType.COMMAND);
+        this.notifyUUID = manufacture.getUUID(Manufacture.UUIDType.NOTIFY);
+        this.otaUUID = manufacture.getUUID(Manufacture.UUIDType.OTA);
+
+        BluetoothGattService telink = new BluetoothGattService(manufacture.getUUID(Manufacture.UUIDType.SERVICE),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        telink.addCharacteristic(new BluetoothGattCharacteristic(this.notifyUUID, PROPERTIES, 0));
+        telink.addCharacteristic(new BluetoothGattCharacteristic(this.commandUUID, PROPERTIES, 0));
+        telink.addCharacteristic(new BluetoothGattCharacteristic(this.otaUUID, PROPERTIES, 0));
+        telink.addCharacteristic(new BluetoothGattCharacteristic(this.pairUUID, PROPERTIES, 0));
+        this.notifyCharacteristic = telink.getCharacteristic(this.notifyUUID);
+
+        BluetoothGattService deviceInformation = new BluetoothGattService(UuidInformation.SERVICE_DEVICE_INFORMATION.getValue(),
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        deviceInformation.addCharacteristic(new BluetoothGattCharacteristic(UuidInformation.CHARACTERISTIC_FIRMWARE.getValue(),
+                BluetoothGattCharacteristic.PROPERTY_READ, 0));
+
+        this.services.add(telink);
+        this.services.add(deviceInformation);
+    }
+
+    void connect() {
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (VirtualGatt.this) {
+                    if (closed)
+                        return;
+                    connected = true;
+                }
+                callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+            }
+        }, 1);
+    }
+
+    /********************************************************************************
+     * GattTransport
+     *******************************************************************************/
+
+    @Override
+    public boolean discoverServices() {
+
+        synchronized (this) {
+            if (!this.connected)
+                return false;
+        }
+
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (isOpen())
+                    callback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, 1);
+
+        return true;
+    }
+
+    @Override
+    public List<BluetoothGattService> getServices() {
+        return this.services;
+    }
+
+    @Override
+    public BluetoothGattService getService(UUID serviceUUID) {
+        for (BluetoothGattService service : this.services) {
+            if (service.getUuid().equals(serviceUUID))
+                return service;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean readCharacteristic(final BluetoothGattCharacteristic characteristic) {
+
+        if (!this.acquire())
+            return false;
+
+        this.mesh.readCount.incrementAndGet();
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isOpen())
+                    return;
+                characteristic.setValue(onRead(characteristic.getUuid(), characteristic.getValue()));
+                release();
+                callback.onCharacteristicRead(null, characteristic, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, 1);
+
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(final BluetoothGattCharacteristic characteristic) {
+
+        if (!this.acquire())
+            return false;
+
+        final byte[] value = characteristic.getValue() == null ? new byte[0] : characteristic.getValue().clone();
+
+        this.mesh.writeCount.incrementAndGet();
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isOpen())
+                    return;
+                int status = BluetoothGatt.GATT_SUCCESS;
+                if (value.length > mesh.getMtu() - 3)
+                    status = BluetoothGatt.GATT_INVALID_ATTRIBUTE_LENGTH;
+                else
+                    onWrite(characteristic.getUuid(), value);
+                release();
+                callback.onCharacteristicWrite(null, characteristic, status);
+            }
+        }, 1);
+
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        if (!this.isOpen())
+            return false;
+        if (characteristic.getUuid().equals(this.notifyUUID))
+            this.notificationEnabled = enable;
+        return true;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+
+        if (!this.isOpen())
+            return false;
+
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isOpen())
+                    return;
+                int rssi;
+                synchronized (light) {
+                    rssi = light.rssi;
+                }
+                callback.onReadRemoteRssi(null, rssi, BluetoothGatt.GATT_SUCCESS);
+            }
+        }, 1);
+
+        return true;
+    }
+
+    @Override
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return this.isOpen();
+    }
+
+    @Override
+    public void disconnect() {
+
+        synchronized (this) {
+            if (!this.connected || this.closed)
+                return;
+            this.connected = false;
+        }
+
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (VirtualGatt.this) {
+                    if (closed)
+                        return;
+                }
+                callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_DISCONNECTED);
+            }
+        }, 1);
+    }
+
+    @Override
+    public synchronized void close() {
+        this.closed = true;
+        this.connected = false;
+    }
+
+    private synchronized boolean isOpen() {
+        return this.connected && !this.closed;
+    }
+
+    private synchronized boolean acquire() {
+        if (!this.connected || this.closed || this.busy)
+            return false;
+        this.busy = true;
+        return true;
+    }
+
+    private synchronized void release() {
+        this.busy = false;
+    }
+
+    /********************************************************************************
+     * Read / Write
+     *******************************************************************************/
+
+    private byte[] onRead(UUID characteristicUUID, byte[] value) {
+
+        if (characteristicUUID.equals(this.pairUUID))
+            return this.pairValue;
+
+        if (characteristicUUID.equals(this.otaUUID)) {
+            synchronized (this.light) {
+                int index = this.light.otaNextIndex;
+                return new byte[]{(byte) (index & 0xFF), (byte) (index >> 8 & 0xFF)};
+            }
+        }
+
+        if (characteristicUUID.equals(UuidInformation.CHARACTERISTIC_FIRMWARE.getValue()))
+            return Strings.stringToBytes(this.light.getFirmwareVersion());
+
+        return value;
+    }
+
+    private void onWrite(UUID characteristicUUID, byte[] value) {
+
+        if (value.length == 0)
+            return;
+
+        if (characteristicUUID.equals(this.pairUUID)) {
+            this.onPairWrite(value);
+        } else if (characteristicUUID.equals(this.commandUUID)) {
+            this.onCommandWrite(value);
+        } else if (characteristicUUID.equals(this.notifyUUID)) {
+            if (value[0] == 0x01)
+                this.reportOnlineStatus();
+        } else if (characteristicUUID.equals(this.otaUUID)) {
+            this.onOtaWrite(value);
+        }
+    }
+
+    /********************************************************************************
+     * Pair
+     *******************************************************************************/
+
+    private void onPairWrite(byte[] value) {
+
+        switch (value[0]) {
+            case 0x0C:
+                this.login(value);
+                break;
+            case 0x04:
+                this.newMeshName = this.decryptPairValue(value);
+                break;
+            case 0x05:
+                this.newPassword = this.decryptPairValue(value);
+                break;
+            case 0x06:
+                this.resetMesh(this.decryptPairValue(value));
+                break;
+            case 0x0A:
+                // 删除后恢复出厂的mesh
+                Manufacture manufacture = Manufacture.getDefault();
+                synchronized (this.light) {
+                    this.light.meshName = Strings.stringToBytes(manufacture.getFactoryName(), 16);
+                    this.light.password = Strings.stringToBytes(manufacture.getFactoryPassword(), 16);
+                    this.light.longTermKey = manufacture.getFactoryLtk();
+                }
+                this.pairValue = new byte[]{0x0B};
+                break;
+            default:
+                this.pairValue = new byte[]{0x0E};
+                break;
+        }
+    }
+
+    /**
+     * 登录: 检查[0x0C, randm(8), AES(randm, name^password)的后8字节逆序],
+     * 回复[0x0D, rands(8), AES(rands, name^password)的后8字节逆序]
+     */
+    private void login(byte[] value) {
+
+        this.sessionCipher = null;
+        this.sessionKey = null;
+        this.pairValue = new byte[]{0x0E};
+
+        if (value.length < 17)
+            return;
+
+        byte[] plaintext = new byte[16];
+        synchronized (this.light) {
+            for (int i = 0; i < 16; i++)
+                plaintext[i] = (byte) (this.light.meshName[i] ^ this.light.password[i]);
+        }
+
+        byte[] randm = new byte[8];
+        System.arraycopy(value, 1, randm, 0, 8);
+
+        byte[] expected = this.pairProof(randm, plaintext);
+        for (int i = 0; i < 8; i++) {
+            if (expected[i] != value[9 + i])
+                return;
+        }
+
+        byte[] rands = new byte[8];
+        this.mesh.nextBytes(rands);
+
+        byte[] response = new byte[17];
+        response[0] = 0x0D;
+        System.arraycopy(rands, 0, response, 1, 8);
+        System.arraycopy(this.pairProof(rands, plaintext), 0, response, 9, 8);
+        this.pairValue = response;
+
+        byte[] random = new byte[16];
+        System.arraycopy(randm, 0, random, 0, 8);
+        System.arraycopy(rands, 0, random, 8, 8);
+
+        byte[] sessionKey = ecb(plaintext, random);
+        Arrays.reverse(sessionKey, 0, sessionKey.length - 1);
+        this.sessionKey = sessionKey;
+        this.sessionCipher = new CommandCipher(sessionKey);
+    }
+
+    private byte[] pairProof(byte[] random, byte[] plaintext) {
+        byte[] key = new byte[16];
+        System.arraycopy(random, 0, key, 0, 8);
+        byte[] encrypted = ecb(key, plaintext);
+        byte[] proof = new byte[8];
+        System.arraycopy(encrypted, 8, proof, 0, 8);
+        Arrays.reverse(proof, 0, proof.length - 1);
+        return proof;
+    }
+
+    private byte[] decryptPairValue(byte[] value) {
+
+        if (this.sessionKey == null || value.length < 17)
+            return null;
+
+        byte[] content = new byte[16];
+        System.arraycopy(value, 1, content, 0, 16);
+        Arrays.reverse(content, 0, content.length - 1);
+
+        byte[] key = Arrays.reverse(this.sessionKey.clone());
+        try {
+            Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"));
+            content = cipher.doFinal(content);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+
+        return Arrays.reverse(content);
+    }
+
+    /**
+     * 收到ltk后修改mesh,回复[0x07, session key加密的name^password^ltk逆序]
+     */
+    private void resetMesh(byte[] longTermKey) {
+
+        if (this.newMeshName == null || this.newPassword == null || longTermKey == null) {
+            this.pairValue = new byte[]{0x0E};
+            return;
+        }
+
+        byte[] check = new byte[16];
+        for (int i = 0; i < 16; i++)
+            check[i] = (byte) (this.newMeshName[i] ^ this.newPassword[i] ^ longTermKey[i]);
+
+        synchronized (this.light) {
+            this.light.meshName = this.newMeshName;
+            this.light.password = this.newPassword;
+            this.light.longTermKey = longTermKey;
+        }
+
+        check = Arrays.reverse(ecb(this.sessionKey, check));
+
+        byte[] response = new byte[17];
+        response[0] = 0x07;
+        System.arraycopy(check, 0, response, 1, 16);
+        this.pairValue = response;
+
+        this.newMeshName = null;
+        this.newPassword = null;
+    }
+
+    /********************************************************************************
+     * Command
+     *******************************************************************************/
+
+    private void onCommandWrite(byte[] value) {
+
+        CommandCipher cipher = this.sessionCipher;
+
+        if (cipher == null || value.length != PACKET_LENGTH)
+            return;
+
+        byte[] macBytes = this.light.getMacBytes();
+        byte[] nonce = new byte[8];
+        System.arraycopy(macBytes, 0, nonce, 0, 4);
+        nonce[4] = 0x01;
+        System.arraycopy(value, 0, nonce, 5, 3);
+
+        if (!cipher.decryptPacket(nonce, value, CommandCipher.COMMAND_MIC_OFFSET, CommandCipher.MIC_LENGTH,
+                CommandCipher.COMMAND_MIC_OFFSET + CommandCipher.MIC_LENGTH, value.length - 5)) {
+            this.mesh.micErrorCount.incrementAndGet();
+            return;
+        }
+
+        int dst = (value[5] & 0xFF) | (value[6] & 0xFF) << 8;
+        int opcode = value[7] & 0xFF;
+        byte[] params = new byte[10];
+        System.arraycopy(value, 10, params, 0, 10);
+
+        for (VirtualLight target : this.mesh.route(this.light, dst)) {
+            if (!this.mesh.isLost(this.light, target))
+                this.execute(target, opcode, params);
+        }
+    }
+
+    private void execute(VirtualLight target, int opcode, byte[] params) {
+
+        int address;
+
+        switch (opcode) {
+            case 0xD0:
+                synchronized (target) {
+                    target.on = params[0] != 0;
+                }
+                this.reportStatus(target);
+                break;
+            case 0xD2:
+                synchronized (target) {
+                    target.brightness = params[0] & 0xFF;
+                    target.on = target.brightness != 0;
+                }
+                this.reportStatus(target);
+                break;
+            case 0xD7:
+                int group = (params[1] & 0xFF) | (params[2] & 0xFF) << 8;
+                synchronized (target) {
+                    if (params[0] == 0x01)
+                        target.groups.add(group);
+                    else
+                        target.groups.remove(group);
+                }
+                break;
+            case 0xDA:
+                byte[] status = new byte[10];
+                synchronized (target) {
+                    status[0] = (byte) (target.on ? 0x01 : 0x00);
+                    status[1] = (byte) target.brightness;
+                }
+                this.notify(target, 0xDB, status);
+                break;
+            case 0xE0:
+                address = (params[0] & 0xFF) | (params[1] & 0xFF) << 8;
+                // 0xFFFF只查询地址
+                if (address != 0xFFFF) {
+                    synchronized (target) {
+                        target.meshAddress = address;
+                    }
+                }
+                this.notifyAddress(target);
+                break;
+            case 0xE3:
+                Manufacture manufacture = Manufacture.getDefault();
+                synchronized (target) {
+                    target.meshName = Strings.stringToBytes(manufacture.getFactoryName(), 16);
+                    target.password = Strings.stringToBytes(manufacture.getFactoryPassword(), 16);
+                    target.longTermKey = manufacture.getFactoryLtk();
+                    target.groups.clear();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /********************************************************************************
+     * Notify
+     *******************************************************************************/
+
+    private void notifyAddress(VirtualLight target) {
+        byte[] params = new byte[10];
+        synchronized (target) {
+            params[0] = (byte) (target.meshAddress & 0xFF);
+            params[1] = (byte) (target.meshAddress >> 8 & 0xFF);
+        }
+        // 源地址之后是mac
+        byte[] mac = target.getMacBytes();
+        System.arraycopy(mac, 0, params, 2, Math.min(mac.length, 6));
+        this.notify(target, 0xE1, params);
+    }
+
+    private void reportStatus(VirtualLight target) {
+        byte[] params = new byte[10];
+        this.fillStatus(target, params, 0);
+        this.notify(target, 0xDC, params);
+    }
+
+    /**
+     * 每个0xDC包包含两个灯的状态
+     */
+    private void reportOnlineStatus() {
+
+        List<VirtualLight> lights = this.mesh.getNodes();
+        byte[] params = null;
+        int count = 0;
+
+        for (VirtualLight target : lights) {
+            if (params == null)
+                params = new byte[10];
+            this.fillStatus(target, params, count * 4);
+            if (++count == 2) {
+                this.notify(target, 0xDC, params);
+                params = null;
+                count = 0;
+            }
+        }
+
+        if (params != null)
+            this.notify(this.light, 0xDC, params);
+    }
+
+    private void fillStatus(VirtualLight target, byte[] params, int offset) {
+        synchronized (target) {
+            params[offset] = (byte) (target.meshAddress & 0xFF);
+            params[offset + 1] = 0x01;
+            params[offset + 2] = (byte) (target.on ? Math.max(target.brightness, 1) : 0);
+            params[offset + 3] = 0x00;
+        }
+    }
+
+    /**
+     * 加密后通过notify特征发出,转发的包经过一次mesh延迟并且可能丢失
+     */
+    private void notify(VirtualLight source, int opcode, byte[] params) {
+
+        CommandCipher cipher = this.sessionCipher;
+
+        if (!this.notificationEnabled || cipher == null)
+            return;
+
+        if (this.mesh.isLost(this.light, source))
+            return;
+
+        int sn = ++this.notifySequence;
+        int src;
+        synchronized (source) {
+            src = source.meshAddress;
+        }
+
+        final byte[] packet = new byte[PACKET_LENGTH];
+        packet[0] = (byte) (sn & 0xFF);
+        packet[1] = (byte) (sn >> 8 & 0xFF);
+        packet[2] = (byte) (sn >> 16 & 0xFF);
+        packet[3] = (byte) (src & 0xFF);
+        packet[4] = (byte) (src >> 8 & 0xFF);
+        packet[7] = (byte) opcode;
+        packet[8] = (byte) (this.vendorId >> 8 & 0xFF);
+        packet[9] = (byte) (this.vendorId & 0xFF);
+        System.arraycopy(params, 0, packet, 10, Math.min(params.length, 10));
+
+        byte[] nonce = new byte[8];
+        System.arraycopy(this.light.getMacBytes(), 0, nonce, 0, 3);
+        System.arraycopy(packet, 0, nonce, 3, 5);
+        cipher.encryptPacket(nonce, packet, CommandCipher.NOTIFY_MIC_OFFSET, CommandCipher.MIC_LENGTH,
+                CommandCipher.NOTIFY_MIC_OFFSET + CommandCipher.MIC_LENGTH, packet.length - 7);
+
+        this.mesh.notificationCount.incrementAndGet();
+        this.mesh.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isOpen() || !notificationEnabled)
+                    return;
+                notifyCharacteristic.setValue(packet);
+                callback.onCharacteristicChanged(null, notifyCharacteristic);
+            }
+        }, source == this.light ? 1 : 2);
+    }
+
+    /********************************************************************************
+     * OTA
+     *******************************************************************************/
+
+    /**
+     * 固件包: index(2) + data + crc16(2),校验包: index(2) + crc16(2)
+     */
+    private void onOtaWrite(byte[] value) {
+
+        if (value.length < 4)
+            return;
+
+        int index = (value[0] & 0xFF) | (value[1] & 0xFF) << 8;
+        int crc = (value[value.length - 2] & 0xFF) | (value[value.length - 1] & 0xFF) << 8;
+
+        synchronized (this.light) {
+
+            if (index == 0 && value.length > 4)
+                this.light.resetOta();
+
+            if (crc != crc16(value) || index != this.light.otaNextIndex) {
+                this.light.otaErrors++;
+                return;
+            }
+
+            if (value.length == 4) {
+                this.light.otaCompleted = true;
+                return;
+            }
+
+            this.light.otaImage.write(value, 2, value.length - 4);
+            this.light.otaNextIndex++;
+        }
+    }
+
+    /**
+     * 与OtaPacketParser#crc16相同
+     */
+    static int crc16(byte[] packet) {
+
+        int length = packet.length - 2;
+        int crc = 0xFFFF;
+        int ds;
+
+        for (int j = 0; j < length; j++) {
+
+            ds = packet[j];
+
+            for (int i = 0; i < 8; i++) {
+                crc = (crc >> 1) ^ ((crc ^ ds) & 1) * 0xA001 & 0xFFFF;
+                ds = ds >> 1;
+            }
+        }
+
+        return crc;
+    }
+
+    /**
+     * 与AES#encrypt(byte[], byte[])相同
+     */
+    private static byte[] ecb(byte[] key, byte[] content) {
+        byte[] result = new byte[16];
+        new CommandCipher(key).encryptEcb(content, 0, result, 0);
+        return result;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.sim;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.telink.bluetooth.light.LightPeripheral;
+import com.telink.util.Arrays;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 模拟的灯,保存mesh信息,开关和亮度,分组和OTA收到的固件
+ * <p>状态只在{@link VirtualMesh}的回调线程上修改.
+ */
+public final class VirtualLight {
+
+    private final String macAddress;
+    private final byte[] macBytes;
+    private final BluetoothDevice device;
+
+    int meshAddress;
+    byte[] meshName;
+    byte[] password;
+    byte[] longTermKey;
+
+    boolean on = true;
+    int brightness = 100;
+    int rssi = -60;
+    final Set<Integer> groups = new HashSet<>();
+    String firmwareVersion = "V1.0";
+
+    // OTA
+    int otaNextIndex;
+    int otaErrors;
+    boolean otaCompleted;
+    final ByteArrayOutputStream otaImage = new ByteArrayOutputStream();
+
+    VirtualLight(String macAddress, String name, int meshAddress, byte[] meshName, byte[] password, byte[] longTermKey) {
+        this.macAddress = macAddress;
+        this.device = new BluetoothDevice(macAddress, name);
+        this.meshAddress = meshAddress;
+        this.meshName = meshName;
+        this.password = password;
+        this.longTermKey = longTermKey;
+
+        // 与Peripheral#getMacBytes相同: 按字节解析后逆序
+        String[] strArray = macAddress.split(":");
+        this.macBytes = new byte[strArray.length];
+        for (int i = 0; i < strArray.length; i++)
+            this.macBytes[i] = (byte) (Integer.parseInt(strArray[i], 16) & 0xFF);
+        Arrays.reverse(this.macBytes, 0, this.macBytes.length - 1);
+    }
+
+    public String getMacAddress() {
+        return this.macAddress;
+    }
+
+    byte[] getMacBytes() {
+        return this.macBytes;
+    }
+
+    public BluetoothDevice getDevice() {
+        return this.device;
+    }
+
+    public synchronized int getMeshAddress() {
+        return this.meshAddress;
+    }
+
+    public synchronized byte[] getMeshName() {
+        return this.meshName;
+    }
+
+    public synchronized boolean isOn() {
+        return this.on;
+    }
+
+    public synchronized int getBrightness() {
+        return this.brightness;
+    }
+
+    public synchronized boolean isInGroup(int groupAddress) {
+        return this.groups.contains(groupAddress);
+    }
+
+    public synchronized String getFirmwareVersion() {
+        return this.firmwareVersion;
+    }
+
+    public synchronized void setFirmwareVersion(String firmwareVersion) {
+        this.firmwareVersion = firmwareVersion;
+    }
+
+    public synchronized void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    /**
+     * 收到校验包时为true
+     */
+    public synchronized boolean isOtaCompleted() {
+        return this.otaCompleted;
+    }
+
+    /**
+     * 索引不连续或者CRC错误的OTA包数
+     */
+    public synchronized int getOtaErrors() {
+        return this.otaErrors;
+    }
+
+    /**
+     * OTA收到的固件
+     */
+    public synchronized byte[] getOtaImage() {
+        return this.otaImage.toByteArray();
+    }
+
+    /**
+     * 与灯的广播包格式相同
+     */
+    public synchronized byte[] getScanRecord(int vendorId) {
+
+        byte[] name = this.meshName;
+        int nameLength = 0;
+        while (nameLength < name.length && name[nameLength] != 0)
+            nameLength++;
+
+        byte[] scanRecord = new byte[3 + 2 + nameLength + 6 + 15 + 1];
+        int position = 0;
+
+        // flags
+        scanRecord[position++] = 0x02;
+        scanRecord[position++] = 0x01;
+        scanRecord[position++] = 0x06;
+
+        // complete local name
+        scanRecord[position++] = (byte) (nameLength + 1);
+        scanRecord[position++] = 0x09;
+        System.arraycopy(name, 0, scanRecord, position, nameLength);
+        position += nameLength;
+
+        // manufacturer data
+        scanRecord[position++] = 0x05;
+        scanRecord[position++] = (byte) 0xFF;
+        scanRecord[position++] = (byte) (vendorId >> 8);
+        scanRecord[position++] = (byte) vendorId;
+        scanRecord[position++] = 0x01;
+        scanRecord[position++] = 0x00;
+
+        // mesh uuid(2) + reserved(4) + product uuid(2) + status(1) + mesh address(2)
+        scanRecord[position++] = 0x0E;
+        scanRecord[position++] = (byte) 0xFF;
+        scanRecord[position++] = (byte) (vendorId >> 8);
+        scanRecord[position++] = (byte) vendorId;
+        scanRecord[position++] = 0x11;
+        scanRecord[position++] = 0x02;
+        position += 4;
+        scanRecord[position++] = 0x01;
+        scanRecord[position++] = 0x00;
+        scanRecord[position++] = (byte) (this.on ? 0x01 : 0x00);
+        scanRecord[position++] = (byte) (this.meshAddress & 0xFF);
+        scanRecord[position] = (byte) (this.meshAddress >> 8 & 0xFF);
+
+        return scanRecord;
+    }
+
+    /**
+     * 相当于扫描到这个灯
+     */
+    public synchronized LightPeripheral createPeripheral(int vendorId) {
+        return new LightPeripheral(this.device, this.getScanRecord(vendorId), this.rssi, this.meshName, this.meshAddress);
+    }
+
+    synchronized void resetOta() {
+        this.otaNextIndex = 0;
+        this.otaErrors = 0;
+        this.otaCompleted = false;
+        this.otaImage.reset();
+    }
+}
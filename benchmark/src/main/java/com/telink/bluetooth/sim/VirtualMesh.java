@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 The Telink Bluetooth Light Project
+ *
+ */
+package com.telink.bluetooth.sim;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+
+import com.telink.bluetooth.GattTransport;
+import com.telink.bluetooth.light.Manufacture;
+import com.telink.util.Strings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在JVM上模拟一个Telink mesh网络,代替BluetoothGatt
+ * <p>实现pair/command/notify/ota特征: 登录和session key,修改mesh,0xDC在线状态,0xE1地址通知,OTA包的CRC和索引检查.
+ * 通过{@link com.telink.bluetooth.Peripheral#setDefaultTransportFactory(GattTransport.Factory)}接入,
+ * 上层的LightController和Peripheral不需要修改.
+ * <p>所有GATT回调都在同一个线程上按顺序执行,延迟为{@link #setLatency(int)}.
+ * 丢包只作用于经过mesh转发的命令和通知,直连的灯总是收到.
+ */
+public final class VirtualMesh implements GattTransport.Factory {
+
+    public static final int DEFAULT_MTU = 23;
+
+    private final byte[] meshName;
+    private final byte[] password;
+    private final byte[] longTermKey;
+
+    private final Map<String, VirtualLight> lightsByMac = new LinkedHashMap<>();
+    private final ScheduledExecutorService executor;
+    private Random random = new Random();
+
+    private volatile int latency = 0;
+    private volatile double lossRate = 0;
+    private volatile int mtu = DEFAULT_MTU;
+
+    final AtomicLong writeCount = new AtomicLong();
+    final AtomicLong readCount = new AtomicLong();
+    final AtomicLong notificationCount = new AtomicLong();
+    final AtomicLong droppedCount = new AtomicLong();
+    final AtomicLong micErrorCount = new AtomicLong();
+
+    public VirtualMesh(String meshName, String password) {
+        this.meshName = Strings.stringToBytes(meshName, 16);
+        this.password = Strings.stringToBytes(password, 16);
+        this.longTermKey = Manufacture.getDefault().getFactoryLtk();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "virtual-mesh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 每个GATT操作和每次mesh转发的延迟,单位毫秒
+     */
+    public VirtualMesh setLatency(int latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public int getLatency() {
+        return this.latency;
+    }
+
+    /**
+     * mesh转发的丢包率,0到1
+     */
+    public VirtualMesh setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    /**
+     * ATT MTU,写入超过mtu-3字节时返回{@link BluetoothGatt#GATT_INVALID_ATTRIBUTE_LENGTH}
+     */
+    public VirtualMesh setMtu(int mtu) {
+        this.mtu = mtu;
+        return this;
+    }
+
+    public int getMtu() {
+        return this.mtu;
+    }
+
+    public synchronized VirtualMesh setSeed(long seed) {
+        this.random = new Random(seed);
+        return this;
+    }
+
+    /**
+     * 添加count个灯,mesh地址从已有的最大地址往后分配
+     */
+    public synchronized List<VirtualLight> addNodes(int count) {
+
+        List<VirtualLight> added = new ArrayList<>(count);
+        int address = this.lightsByMac.size();
+
+        for (int i = 0; i < count; i++) {
+            address++;
+            String mac = String.format(Locale.US, "A4:C1:38:00:%02X:%02X", address >> 8 & 0xFF, address & 0xFF);
+            VirtualLight light = new VirtualLight(mac, "telink_mesh1", address,
+                    this.meshName.clone(), this.password.clone(), this.longTermKey.clone());
+            this.lightsByMac.put(mac, light);
+            added.add(light);
+        }
+
+        return added;
+    }
+
+    public synchronized VirtualLight getNode(int meshAddress) {
+        for (VirtualLight light : this.lightsByMac.values()) {
+            if (light.getMeshAddress() == meshAddress)
+                return light;
+        }
+        return null;
+    }
+
+    public synchronized VirtualLight getNode(String macAddress) {
+        return this.lightsByMac.get(macAddress);
+    }
+
+    public synchronized List<VirtualLight> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(this.lightsByMac.values()));
+    }
+
+    public synchronized int size() {
+        return this.lightsByMac.size();
+    }
+
+    public long getWriteCount() {
+        return this.writeCount.get();
+    }
+
+    public long getReadCount() {
+        return this.readCount.get();
+    }
+
+    public long getNotificationCount() {
+        return this.notificationCount.get();
+    }
+
+    /**
+     * 模拟丢掉的mesh转发
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.get();
+    }
+
+    public long getMicErrorCount() {
+        return this.micErrorCount.get();
+    }
+
+    public void resetCounters() {
+        this.writeCount.set(0);
+        this.readCount.set(0);
+        this.notificationCount.set(0);
+        this.droppedCount.set(0);
+        this.micErrorCount.set(0);
+    }
+
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public GattTransport connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+
+        VirtualLight light = this.getNode(device.getAddress());
+
+        if (light == null || this.executor.isShutdown())
+            return null;
+
+        VirtualGatt gatt = new VirtualGatt(this, light, callback);
+        gatt.connect();
+        return gatt;
+    }
+
+    /********************************************************************************
+     * Package API
+     *******************************************************************************/
+
+    void schedule(Runnable task, int hops) {
+        if (!this.executor.isShutdown())
+            this.executor.schedule(task, (long) this.latency * hops, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 命令的目标: 0为直连的灯,0xFFFF为所有灯,最高位为1时是组地址
+     */
+    synchronized List<VirtualLight> route(VirtualLight connected, int dst) {
+
+        List<VirtualLight> targets = new ArrayList<>();
+
+        if (dst == 0x0000) {
+            targets.add(connected);
+            return targets;
+        }
+
+        for (VirtualLight light : this.lightsByMac.values()) {
+            boolean matched;
+            synchronized (light) {
+                if (dst == 0xFFFF)
+                    matched = true;
+                else if ((dst & 0x8000) != 0)
+                    matched = light.groups.contains(dst);
+                else
+                    matched = light.meshAddress == dst;
+            }
+            if (matched)
+                targets.add(light);
+        }
+
+        return targets;
+    }
+
+    /**
+     * 经过mesh转发的包是否丢失
+     */
+    synchronized boolean isLost(VirtualLight connected, VirtualLight light) {
+        if (light == connected || this.lossRate <= 0 || this.random.nextDouble() >= this.lossRate)
+            return false;
+        this.droppedCount.incrementAndGet();
+        return true;
+    }
+
+    synchronized void nextBytes(byte[] bytes) {
+        this.random.nextBytes(bytes);
+    }
+}
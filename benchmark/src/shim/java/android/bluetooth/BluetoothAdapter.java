@@ -0,0 +1,17 @@
+package android.bluetooth;
+
+/**
+ * JVM shim: 只能按地址创建{@link BluetoothDevice}
+ */
+public final class BluetoothAdapter {
+
+    private static final BluetoothAdapter DEFAULT = new BluetoothAdapter();
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return DEFAULT;
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        return new BluetoothDevice(address, null);
+    }
+}
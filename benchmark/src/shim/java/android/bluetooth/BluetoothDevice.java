@@ -0,0 +1,35 @@
+package android.bluetooth;
+
+import android.content.Context;
+
+/**
+ * JVM shim: 只保存名字和地址,不能连接
+ */
+public class BluetoothDevice {
+
+    public static final int DEVICE_TYPE_LE = 2;
+
+    private final String address;
+    private final String name;
+
+    public BluetoothDevice(String address, String name) {
+        this.address = address;
+        this.name = name;
+    }
+
+    public String getAddress() {
+        return this.address;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getType() {
+        return DEVICE_TYPE_LE;
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+        return null;
+    }
+}
@@ -0,0 +1,61 @@
+package android.bluetooth;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM shim: 所有操作都失败
+ */
+public class BluetoothGatt {
+
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+    public static final int GATT_FAILURE = 0x101;
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTED = 2;
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+
+    public BluetoothDevice getDevice() {
+        return null;
+    }
+
+    public boolean discoverServices() {
+        return false;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return Collections.emptyList();
+    }
+
+    public BluetoothGattService getService(UUID uuid) {
+        return null;
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return false;
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return false;
+    }
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return false;
+    }
+
+    public boolean readRemoteRssi() {
+        return false;
+    }
+
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return false;
+    }
+
+    public void disconnect() {
+    }
+
+    public void close() {
+    }
+}
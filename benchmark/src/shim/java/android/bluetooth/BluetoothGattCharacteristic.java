@@ -0,0 +1,70 @@
+package android.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * JVM shim
+ */
+public class BluetoothGattCharacteristic {
+
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+
+    private final UUID uuid;
+    private final int properties;
+    private BluetoothGattService service;
+    private byte[] value;
+    private int writeType = WRITE_TYPE_DEFAULT;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+        this.uuid = uuid;
+        this.properties = properties;
+    }
+
+    public UUID getUuid() {
+        return this.uuid;
+    }
+
+    public int getInstanceId() {
+        return 0;
+    }
+
+    public int getProperties() {
+        return this.properties;
+    }
+
+    public BluetoothGattService getService() {
+        return this.service;
+    }
+
+    void setService(BluetoothGattService service) {
+        this.service = service;
+    }
+
+    public byte[] getValue() {
+        return this.value;
+    }
+
+    public boolean setValue(byte[] value) {
+        this.value = value;
+        return true;
+    }
+
+    public int getWriteType() {
+        return this.writeType;
+    }
+
+    public void setWriteType(int writeType) {
+        this.writeType = writeType;
+    }
+
+    public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+        return null;
+    }
+}
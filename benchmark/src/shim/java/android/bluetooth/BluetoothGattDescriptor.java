@@ -0,0 +1,29 @@
+package android.bluetooth;
+
+import java.util.UUID;
+
+/**
+ * JVM shim
+ */
+public class BluetoothGattDescriptor {
+
+    private final UUID uuid;
+    private byte[] value;
+
+    public BluetoothGattDescriptor(UUID uuid, int permissions) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return this.uuid;
+    }
+
+    public byte[] getValue() {
+        return this.value;
+    }
+
+    public boolean setValue(byte[] value) {
+        this.value = value;
+        return true;
+    }
+}
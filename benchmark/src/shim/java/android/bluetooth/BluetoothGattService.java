@@ -0,0 +1,41 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * JVM shim
+ */
+public class BluetoothGattService {
+
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+
+    private final UUID uuid;
+    private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return this.uuid;
+    }
+
+    public List<BluetoothGattCharacteristic> getCharacteristics() {
+        return this.characteristics;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : this.characteristics) {
+            if (characteristic.getUuid().equals(uuid))
+                return characteristic;
+        }
+        return null;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        characteristic.setService(this);
+        return this.characteristics.add(characteristic);
+    }
+}
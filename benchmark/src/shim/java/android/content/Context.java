@@ -0,0 +1,9 @@
+package android.content;
+
+/**
+ * JVM shim
+ */
+public abstract class Context {
+
+    public static final String BLUETOOTH_SERVICE = "bluetooth";
+}
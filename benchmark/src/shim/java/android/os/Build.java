@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * JVM shim
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.O;
+        public static final String RELEASE = "8.0.0";
+    }
+
+    public static class VERSION_CODES {
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+    }
+}
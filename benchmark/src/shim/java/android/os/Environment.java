@@ -0,0 +1,20 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * JVM shim: 外部存储指向临时目录
+ */
+public class Environment {
+
+    public static final String MEDIA_MOUNTED = "mounted";
+    public static final String MEDIA_UNMOUNTED = "unmounted";
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    public static String getExternalStorageState() {
+        return MEDIA_UNMOUNTED;
+    }
+}
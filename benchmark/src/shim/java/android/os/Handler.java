@@ -0,0 +1,119 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM shim
+ * <p>没有消息循环: post的任务在调用线程上立即执行,延迟任务在一个共享的定时线程上执行.
+ * 和Android一样,定时任务和蓝牙回调不在同一个线程.
+ */
+public class Handler {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "shim-main-looper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Looper looper;
+    private final Map<Runnable, List<ScheduledFuture<?>>> pending = new HashMap<>();
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public final Looper getLooper() {
+        return this.looper;
+    }
+
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        this.schedule(r, delayMillis);
+        return true;
+    }
+
+    public final boolean postAtTime(Runnable r, long uptimeMillis) {
+        this.schedule(r, uptimeMillis - SystemClock.uptimeMillis());
+        return true;
+    }
+
+    public final boolean postAtTime(Runnable r, Object token, long uptimeMillis) {
+        return this.postAtTime(r, uptimeMillis);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        synchronized (this.pending) {
+            List<ScheduledFuture<?>> futures = this.pending.remove(r);
+            if (futures != null) {
+                for (ScheduledFuture<?> future : futures)
+                    future.cancel(false);
+            }
+        }
+    }
+
+    public final void removeCallbacks(Runnable r, Object token) {
+        this.removeCallbacks(r);
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+        synchronized (this.pending) {
+            for (List<ScheduledFuture<?>> futures : this.pending.values()) {
+                for (ScheduledFuture<?> future : futures)
+                    future.cancel(false);
+            }
+            this.pending.clear();
+        }
+    }
+
+    private void schedule(final Runnable r, long delayMillis) {
+
+        final ScheduledFuture<?>[] holder = new ScheduledFuture<?>[1];
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (pending) {
+                    List<ScheduledFuture<?>> futures = pending.get(r);
+                    if (futures == null || !futures.remove(holder[0]))
+                        return;
+                    if (futures.isEmpty())
+                        pending.remove(r);
+                }
+                try {
+                    r.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        synchronized (this.pending) {
+            holder[0] = TIMER.schedule(task, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+            List<ScheduledFuture<?>> futures = this.pending.get(r);
+            if (futures == null) {
+                futures = new ArrayList<>(1);
+                this.pending.put(r, futures);
+            }
+            futures.add(holder[0]);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package android.os;
+
+/**
+ * JVM shim: 没有消息循环,只用来区分主线程和当前线程的Handler
+ * <p>第一次使用Looper的线程(通常是main)算作主线程,其他线程没有Looper.
+ */
+public final class Looper {
+
+    private static final Looper MAIN = new Looper();
+    private static final Thread MAIN_THREAD = Thread.currentThread();
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    public static Looper myLooper() {
+        return Thread.currentThread() == MAIN_THREAD ? MAIN : null;
+    }
+
+    public void quit() {
+    }
+}
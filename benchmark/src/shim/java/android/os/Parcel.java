@@ -0,0 +1,42 @@
+package android.os;
+
+/**
+ * JVM shim: benchmark不会序列化对象
+ */
+public final class Parcel {
+
+    private Parcel() {
+    }
+
+    public void writeInt(int val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeString(String val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeByteArray(byte[] b) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void writeValue(Object v) {
+        throw new UnsupportedOperationException();
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException();
+    }
+
+    public String readString() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void readByteArray(byte[] val) {
+        throw new UnsupportedOperationException();
+    }
+
+    public Object readValue(ClassLoader loader) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,11 @@
+package android.text;
+
+/**
+ * JVM shim
+ */
+public class TextUtils {
+
+    public static boolean isEmpty(CharSequence str) {
+        return str == null || str.length() == 0;
+    }
+}
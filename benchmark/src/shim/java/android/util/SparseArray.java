@@ -0,0 +1,93 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * JVM shim: 与Android相同的有序数组实现,不做延迟删除
+ */
+public class SparseArray<E> {
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    public SparseArray() {
+        this(10);
+    }
+
+    public SparseArray(int initialCapacity) {
+        this.keys = new int[Math.max(initialCapacity, 1)];
+        this.values = new Object[this.keys.length];
+    }
+
+    public E get(int key) {
+        return this.get(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int key, E valueIfKeyNotFound) {
+        int i = Arrays.binarySearch(this.keys, 0, this.size, key);
+        return i < 0 ? valueIfKeyNotFound : (E) this.values[i];
+    }
+
+    public void put(int key, E value) {
+        int i = Arrays.binarySearch(this.keys, 0, this.size, key);
+
+        if (i >= 0) {
+            this.values[i] = value;
+            return;
+        }
+
+        i = ~i;
+
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+        }
+
+        System.arraycopy(this.keys, i, this.keys, i + 1, this.size - i);
+        System.arraycopy(this.values, i, this.values, i + 1, this.size - i);
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.size++;
+    }
+
+    public void delete(int key) {
+        int i = Arrays.binarySearch(this.keys, 0, this.size, key);
+        if (i >= 0)
+            this.removeAt(i);
+    }
+
+    public void remove(int key) {
+        this.delete(key);
+    }
+
+    public void removeAt(int index) {
+        System.arraycopy(this.keys, index + 1, this.keys, index, this.size - index - 1);
+        System.arraycopy(this.values, index + 1, this.values, index, this.size - index - 1);
+        this.size--;
+        this.values[this.size] = null;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int keyAt(int index) {
+        return this.keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) this.values[index];
+    }
+
+    public int indexOfKey(int key) {
+        return Arrays.binarySearch(this.keys, 0, this.size, key);
+    }
+
+    public void clear() {
+        Arrays.fill(this.values, 0, this.size, null);
+        this.size = 0;
+    }
+}